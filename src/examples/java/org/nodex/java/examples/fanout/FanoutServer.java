@@ -24,8 +24,7 @@ import org.nodex.java.core.buffer.Buffer;
 import org.nodex.java.core.net.NetServer;
 import org.nodex.java.core.net.NetSocket;
 import org.nodex.java.core.shared.SharedData;
-
-import java.util.Set;
+import org.nodex.java.core.shared.SharedLongSet;
 
 public class FanoutServer extends NodexMain {
   public static void main(String[] args) throws Exception {
@@ -36,16 +35,18 @@ public class FanoutServer extends NodexMain {
   }
 
   public void go() throws Exception {
-    final Set<Long> connections = SharedData.getSet("conns");
+    final SharedLongSet connections = SharedData.getLongSet("conns");
 
     new NetServer().connectHandler(new EventHandler<NetSocket>() {
       public void onEvent(final NetSocket socket) {
         connections.add(socket.writeHandlerID);
         socket.dataHandler(new EventHandler<Buffer>() {
-          public void onEvent(Buffer buffer) {
-            for (Long actorID : connections) {
-              Nodex.instance.sendToHandler(actorID, buffer);
-            }
+          public void onEvent(final Buffer buffer) {
+            connections.forEach(new SharedLongSet.Visitor() {
+              public void visit(long actorID) {
+                Nodex.instance.sendToHandler(actorID, buffer);
+              }
+            });
           }
         });
         socket.closedHandler(new SimpleEventHandler() {
@@ -48,8 +48,8 @@ import java.nio.charset.Charset;
  */
 public class Buffer {
 
-  //Node.x buffers are always dynamic
-  private DynamicChannelBuffer buffer;
+  //Node.x buffers are always dynamic, apart from wrapped ones which are made dynamic when first written to
+  private ChannelBuffer buffer;
 
   /**
    * Creates a new empty Buffer that is expected to have a size of {@code initialSizeHint} after data has been
@@ -89,15 +89,29 @@ public class Buffer {
    */
   public Buffer(ChannelBuffer buffer) {
     if (buffer instanceof DynamicChannelBuffer) {
-      this.buffer = (DynamicChannelBuffer) buffer;
+      this.buffer = buffer;
     } else {
-      //TODO - if Netty could provide a DynamicChannelBuffer constructor which took a HeapBuffer this would
-      //save an extra copy
-      this.buffer = (DynamicChannelBuffer) ChannelBuffers.dynamicBuffer(buffer.readableBytes());
-      this.buffer.writeBytes(buffer, 0, buffer.readableBytes());
+      this.buffer = copyOf(buffer);
     }
   }
 
+  private Buffer() {
+  }
+
+  /**
+   * Create a new Buffer over the readable bytes of a Netty {@code ChannelBuffer} without copying them. The bytes are
+   * only copied into an expandable buffer if the Buffer is written to.<p>
+   * This method is meant for internal use only.
+   */
+  public static Buffer wrap(ChannelBuffer buffer) {
+    if (buffer.readerIndex() != 0) {
+      buffer = buffer.slice();
+    }
+    Buffer buff = new Buffer();
+    buff.buffer = buffer;
+    return buff;
+  }
+
   /**
    * Returns a {@code String} represention of the Buffer assuming it contains a {@code String} encoding in UTF-8
    */
@@ -197,7 +211,7 @@ public class Buffer {
    */
   public Buffer appendBuffer(Buffer buff) {
     ChannelBuffer cb = buff.getChannelBuffer();
-    buffer.writeBytes(buff.getChannelBuffer());
+    expandable().writeBytes(buff.getChannelBuffer());
     cb.readerIndex(0); // Need to reset readerindex since Netty write modifies readerIndex of source!
     return this;
   }
@@ -207,7 +221,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendBytes(byte[] bytes) {
-    buffer.writeBytes(bytes);
+    expandable().writeBytes(bytes);
     return this;
   }
 
@@ -216,7 +230,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendByte(byte b) {
-    buffer.writeByte(b);
+    expandable().writeByte(b);
     return this;
   }
 
@@ -225,7 +239,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendInt(int i) {
-    buffer.writeInt(i);
+    expandable().writeInt(i);
     return this;
   }
 
@@ -234,7 +248,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendLong(long l) {
-    buffer.writeLong(l);
+    expandable().writeLong(l);
     return this;
   }
 
@@ -243,7 +257,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendShort(short s) {
-    buffer.writeShort(s);
+    expandable().writeShort(s);
     return this;
   }
 
@@ -252,7 +266,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendFloat(float f) {
-    buffer.writeFloat(f);
+    expandable().writeFloat(f);
     return this;
   }
 
@@ -261,7 +275,7 @@ public class Buffer {
    * Returns a reference to {@code this} so multiple operations can be appended together.
    */
   public Buffer appendDouble(double d) {
-    buffer.writeDouble(d);
+    expandable().writeDouble(d);
     return this;
   }
 
@@ -422,7 +436,7 @@ public class Buffer {
 
   private Buffer append(String str, Charset charset) {
     byte[] bytes = str.getBytes(charset);
-    buffer.writeBytes(bytes);
+    expandable().writeBytes(bytes);
     return this;
   }
 
@@ -436,6 +450,7 @@ public class Buffer {
   //TODO this is all a bit of a pain - if we can just throw exceptions if people set stuff outside of the buffer
   //like Netty that would be preferable
   private void ensureWritable(int pos, int len) {
+    DynamicChannelBuffer buffer = expandable();
     int ni = pos + len;
     int cap = buffer.capacity();
     int over = ni - cap;
@@ -449,4 +464,20 @@ public class Buffer {
     }
   }
 
+  //A wrapped buffer can't grow so its bytes are copied the first time the Buffer is written to
+  private DynamicChannelBuffer expandable() {
+    if (!(buffer instanceof DynamicChannelBuffer)) {
+      buffer = copyOf(buffer);
+    }
+    return (DynamicChannelBuffer) buffer;
+  }
+
+  //TODO - if Netty could provide a DynamicChannelBuffer constructor which took a HeapBuffer this would
+  //save an extra copy
+  private static DynamicChannelBuffer copyOf(ChannelBuffer buffer) {
+    DynamicChannelBuffer copy = (DynamicChannelBuffer) ChannelBuffers.dynamicBuffer(buffer.readableBytes());
+    copy.writeBytes(buffer, 0, buffer.readableBytes());
+    return copy;
+  }
+
 }
@@ -89,7 +89,7 @@ public class AsyncFile {
 
     closed = true;
 
-    CompletionHandler comp = new CompletionHandler<Void>() {
+    CompletionHandler<Void> comp = new CompletionHandler<Void>() {
       public void onEvent(Completion<Void> completion) {
         if (completion.failed()) {
           completionHandler.onEvent(completion);
@@ -108,7 +108,7 @@ public class AsyncFile {
       //Need to wait for all writes to complete before firing the completionHandler
       closedCompletionHandler = comp;
     } else {
-      completionHandler.onEvent(Completion.VOID_SUCCESSFUL_COMPLETION);
+      comp.onEvent(Completion.VOID_SUCCESSFUL_COMPLETION);
     }
   }
 
@@ -30,4 +30,6 @@ public abstract class AbstractConnection extends ConnectionBase {
     return channel.write(obj);
   }
 
+  abstract void internalClose();
+
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.SimpleEventHandler;
+import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.file.AsyncFile;
+import org.nodex.java.core.file.FileSystem;
+import org.nodex.java.core.streams.ReadStream;
+import org.nodex.java.core.streams.WriteStream;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Collects the body of an HTTP request or response and hands it to a handler once it has all been read.<p>
+ * Each chunk read from the wire is already in a buffer of its own, so the chunks are kept as they are and copied just once
+ * into a buffer of exactly the right size at the end. If the {@code Content-Length} is known the final buffer is allocated
+ * up front and each chunk is copied into it as it arrives instead. Once the body grows past the spill threshold it is
+ * written to a temporary file, and the stream is paused whenever the file falls behind.<p>
+ * A body larger than the maximum size is rejected as soon as that is known, which is before any of it has been read if
+ * there is a {@code Content-Length}.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+abstract class BodyAggregator {
+
+  //The largest body which can be held in memory
+  static final long MAX_IN_MEMORY = Integer.MAX_VALUE;
+
+  private final ReadStream stream;
+  private final long maxBytes;
+  private final long spillThreshold;
+  private final EventHandler<HttpBody> handler;
+
+  //The body, if it has a known length that is small enough to hold in memory
+  private ChannelBuffer body;
+  //Otherwise the chunks of the body, until it is spilled
+  private List<ChannelBuffer> chunks;
+  private long received;
+  private boolean rejected;
+  private boolean ended;
+  private String path;
+  private AsyncFile file;
+  private WriteStream fileStream;
+
+  BodyAggregator(ReadStream stream, String contentLength, long maxBytes, long spillThreshold,
+                 EventHandler<HttpBody> handler) {
+    if (maxBytes < 0 || spillThreshold < 0) {
+      throw new IllegalArgumentException("maxBytes and spillThreshold must be >= 0");
+    }
+    if (spillThreshold > MAX_IN_MEMORY) {
+      throw new IllegalArgumentException("spillThreshold must be <= " + MAX_IN_MEMORY);
+    }
+    this.stream = stream;
+    this.maxBytes = maxBytes;
+    this.spillThreshold = spillThreshold;
+    this.handler = handler;
+
+    long length = -1;
+    if (contentLength != null) {
+      try {
+        length = Long.parseLong(contentLength.trim());
+      } catch (NumberFormatException e) {
+        //Treat it as unknown, the body is still checked as it arrives
+      }
+    }
+    if (length > maxBytes) {
+      rejected = true;
+      tooLarge();
+    } else if (length >= 0 && length <= spillThreshold) {
+      body = ChannelBuffers.dynamicBuffer((int) length);
+    } else {
+      chunks = new ArrayList<>();
+      if (length > spillThreshold) {
+        spill();
+      }
+    }
+
+    stream.dataHandler(new EventHandler<Buffer>() {
+      public void onEvent(Buffer data) {
+        handleData(data.getChannelBuffer());
+      }
+    });
+    stream.endHandler(new SimpleEventHandler() {
+      public void onEvent() {
+        handleEnd();
+      }
+    });
+  }
+
+  /**
+   * Called once if the body is larger than the maximum size. Nothing more is read into the body after this.
+   */
+  abstract void tooLarge();
+
+  /**
+   * Called once if the body can't be written to the temporary file. Nothing more is read into the body after this.
+   */
+  abstract void failed(Exception e);
+
+  private void handleData(ChannelBuffer data) {
+    if (rejected) {
+      return;
+    }
+    received += data.readableBytes();
+    if (received > maxBytes) {
+      rejected = true;
+      discard();
+      tooLarge();
+    } else if (body != null) {
+      body.writeBytes(data);
+    } else if (fileStream != null) {
+      writeToFile(data);
+    } else {
+      chunks.add(data);
+      if (path == null && received > spillThreshold) {
+        spill();
+      }
+    }
+  }
+
+  private void handleEnd() {
+    if (rejected) {
+      return;
+    }
+    ended = true;
+    if (body != null) {
+      handler.onEvent(new HttpBody(received, new Buffer(body), null));
+    } else if (path == null) {
+      ChannelBuffer buff = ChannelBuffers.dynamicBuffer((int) received);
+      for (ChannelBuffer chunk : chunks) {
+        buff.writeBytes(chunk);
+      }
+      chunks = null;
+      handler.onEvent(new HttpBody(received, new Buffer(buff), null));
+    } else if (file != null) {
+      closeFile();
+    }
+    //Otherwise the file is still being opened, and it's closed once any data held in memory has been written to it
+  }
+
+  private void spill() {
+    path = new File(System.getProperty("java.io.tmpdir"), "node.x-body-" + UUID.randomUUID()).getPath();
+    //Keep what's read while the file is opened in memory
+    stream.pause();
+    FileSystem.instance.open(path, "rw-------", false, true, true, new CompletionHandler<AsyncFile>() {
+      public void onEvent(Completion<AsyncFile> completion) {
+        if (completion.failed()) {
+          fail(completion.exception);
+          return;
+        }
+        file = completion.result;
+        if (rejected) {
+          discard();
+          return;
+        }
+        fileStream = file.getWriteStream();
+        fileStream.exceptionHandler(new EventHandler<Exception>() {
+          public void onEvent(Exception e) {
+            fail(e);
+          }
+        });
+        for (ChannelBuffer chunk : chunks) {
+          writeToFile(chunk);
+        }
+        chunks = null;
+        if (ended) {
+          closeFile();
+        } else if (!fileStream.writeQueueFull()) {
+          stream.resume();
+        }
+      }
+    });
+  }
+
+  private void writeToFile(ChannelBuffer data) {
+    fileStream.writeBuffer(new Buffer(data));
+    if (fileStream.writeQueueFull()) {
+      stream.pause();
+      fileStream.drainHandler(new SimpleEventHandler() {
+        public void onEvent() {
+          if (!rejected && !ended) {
+            stream.resume();
+          }
+        }
+      });
+    }
+  }
+
+  private void closeFile() {
+    file.close(new CompletionHandler<Void>() {
+      public void onEvent(Completion<Void> completion) {
+        if (completion.failed()) {
+          fail(completion.exception);
+        } else if (!rejected) {
+          handler.onEvent(new HttpBody(received, null, path));
+        }
+      }
+    });
+  }
+
+  private void fail(Exception e) {
+    if (!rejected) {
+      rejected = true;
+      discard();
+      if (!ended) {
+        //Let the rest of the body be read and dropped
+        stream.resume();
+      }
+      failed(e);
+    }
+  }
+
+  //Drop anything read so far, including the file if the body has been spilled
+  private void discard() {
+    body = null;
+    chunks = null;
+    if (file != null) {
+      final AsyncFile f = file;
+      file = null;
+      fileStream = null;
+      f.close(new CompletionHandler<Void>() {
+        public void onEvent(Completion<Void> completion) {
+          FileSystem.instance.delete(path, new CompletionHandler<Void>() {
+            public void onEvent(Completion<Void> completion) {
+            }
+          });
+        }
+      });
+    }
+  }
+}
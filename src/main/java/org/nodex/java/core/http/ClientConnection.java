@@ -16,7 +16,6 @@
 
 package org.nodex.java.core.http;
 
-import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
@@ -24,15 +23,10 @@ import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.websocket.WebSocketFrame;
-import org.jboss.netty.handler.codec.http.websocket.WebSocketFrameDecoder;
-import org.jboss.netty.handler.codec.http.websocket.WebSocketFrameEncoder;
 import org.nodex.java.core.EventHandler;
-import org.nodex.java.core.SimpleEventHandler;
 import org.nodex.java.core.buffer.Buffer;
 
 import java.util.Queue;
-import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 class ClientConnection extends AbstractConnection {
@@ -64,52 +58,28 @@ class ClientConnection extends AbstractConnection {
       throw new IllegalStateException("Already websocket");
     }
 
-    final String key1 = WebsocketHandshakeHelper.genWSkey();
-    final String key2 = WebsocketHandshakeHelper.genWSkey();
-    long c = new Random().nextLong();
-
-    final Buffer out = new Buffer(WebsocketHandshakeHelper.calcResponse(key1, key2, c));
-    final ChannelBuffer buff = ChannelBuffers.buffer(8);
-    buff.writeLong(c);
+    final String key = WebsocketHandshakeHelper.genKey();
 
     HttpClientRequest req = new HttpClientRequest(client, "GET", uri, new EventHandler<HttpClientResponse>() {
       public void onEvent(HttpClientResponse resp) {
-        if (resp.statusCode != 101 || !resp.statusMessage.equals("Web Socket Protocol Handshake")) {
+        if (resp.statusCode != 101) {
           handleException(new IllegalStateException("Invalid protocol handshake - invalid status: " + resp.statusCode
               + "msg:" + resp.statusMessage));
-        } else if (!resp.getHeader(HttpHeaders.Names.CONNECTION).equals(HttpHeaders.Values.UPGRADE)) {
+        } else if (!WebsocketHandshakeHelper.isUpgrade(resp.getHeader(HttpHeaders.Names.UPGRADE),
+            resp.getHeader(HttpHeaders.Names.CONNECTION))) {
           //TODO - these exceptions need to be piped to the *Request* exception handler
           handleException(new IllegalStateException("Invalid protocol handshake - no Connection header"));
+        } else if (!WebsocketHandshakeHelper.calcAccept(key).equals(
+            resp.getHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_ACCEPT))) {
+          handleException(new IllegalStateException("Invalid protocol handshake - wrong response"));
         } else {
-          final Buffer buff = Buffer.create(0);
-          resp.dataHandler(new EventHandler<Buffer>() {
-            public void onEvent(Buffer data) {
-              buff.appendBuffer(data);
-            }
-          });
-          resp.endHandler(new SimpleEventHandler() {
-            public void onEvent() {
-              boolean matched = true;
-              if (buff.length() == out.length()) {
-                for (int i = 0; i < buff.length(); i++) {
-                  if (out.getByte(i) != buff.getByte(i)) {
-                    matched = false;
-                    break;
-                  }
-                }
-                if (matched) {
-                  //We upgraded ok
-                  ChannelPipeline p = channel.getPipeline();
-                  p.replace("decoder", "wsdecoder", new WebSocketFrameDecoder());
-                  p.replace("encoder", "wsencoder", new WebSocketFrameEncoder());
-                  ws = new Websocket(uri, ClientConnection.this);
-                  wsConnect.onEvent(ws);
-                  return;
-                }
-              }
-              handleException(new IllegalStateException("Invalid protocol handshake - wrong response"));
-            }
-          });
+          //We upgraded ok. The response decoder passes on any frames which arrived with the response
+          ChannelPipeline p = channel.getPipeline();
+          p.addAfter("decoder", "wsdecoder", new WebsocketFrameDecoder(false, client.getMaxWebsocketFrameSize()));
+          p.replace("encoder", "wsencoder", new WebsocketFrameEncoder(true));
+          ws = new Websocket(uri, ClientConnection.this, false);
+          currentRequest = null;
+          wsConnect.onEvent(ws);
         }
       }
     }, contextID, Thread.currentThread());
@@ -118,10 +88,10 @@ class ClientConnection extends AbstractConnection {
     req.setChunked(false);
     req.putHeader(HttpHeaders.Names.UPGRADE, HttpHeaders.Values.WEBSOCKET).
         putHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.UPGRADE).
-        putHeader(HttpHeaders.Names.ORIGIN, (ssl ? "http://" : "https://") + hostHeader).
-        putHeader(HttpHeaders.Names.SEC_WEBSOCKET_KEY1, key1).
-        putHeader(HttpHeaders.Names.SEC_WEBSOCKET_KEY2, key2);
-    req.sendDirect(this, new Buffer(buff));
+        putHeader(HttpHeaders.Names.ORIGIN, (ssl ? "https://" : "http://") + hostHeader).
+        putHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_KEY, key).
+        putHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_VERSION, WebsocketHandshakeHelper.VERSION);
+    req.sendDirect(this, Buffer.create(0));
   }
 
   @Override
@@ -193,18 +163,31 @@ class ClientConnection extends AbstractConnection {
     } catch (Throwable t) {
       handleHandlerException(t);
     }
-    if (!keepAlive) {
+    if (!keepAlive && ws == null) {
       close();
     }
   }
 
-  void handleWsFrame(WebSocketFrame frame) {
+  void handleWsFrame(WebsocketFrame frame) {
     if (ws != null) {
-      ws.handleFrame(frame);
+      setContextID();
+      try {
+        ws.handleFrame(frame);
+      } catch (Throwable t) {
+        handleHandlerException(t);
+      }
     }
   }
 
   protected void handleClosed() {
+    if (ws != null) {
+      setContextID();
+      try {
+        ws.handleClosed();
+      } catch (Throwable t) {
+        handleHandlerException(t);
+      }
+    }
     super.handleClosed();
   }
 
@@ -221,6 +204,9 @@ class ClientConnection extends AbstractConnection {
     if (currentResponse != null) {
       currentResponse.handleException(e);
     }
+    if (ws != null) {
+      ws.handleException(e);
+    }
   }
 
   protected void addFuture(EventHandler<Void> doneHandler, ChannelFuture future) {
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+
+/**
+ * Decodes HTTP responses for the client, with the handling of a websocket handshake response which this version of
+ * Netty lacks.<p>
+ * A 101 response accepting a websocket has no body, but would otherwise be treated as having one which runs until the
+ * connection closes. Once it has been decoded, everything after it is websocket frames, which are passed on as they
+ * are to the frame decoder which the connection adds behind this one - including any which arrived in the same read
+ * as the response.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class ClientResponseDecoder extends HttpResponseDecoder {
+
+  private boolean upgraded;
+
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+    if (upgraded) {
+      ctx.sendUpstream(e);
+    } else {
+      super.messageReceived(ctx, e);
+    }
+  }
+
+  protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, State state)
+      throws Exception {
+    if (upgraded) {
+      return buffer.readBytes(actualReadableBytes());
+    }
+    Object msg = super.decode(ctx, channel, buffer, state);
+    if (msg instanceof HttpResponse && isWebsocketAccept((HttpMessage) msg)) {
+      upgraded = true;
+    }
+    return msg;
+  }
+
+  protected boolean isContentAlwaysEmpty(HttpMessage msg) {
+    return isWebsocketAccept(msg) || super.isContentAlwaysEmpty(msg);
+  }
+
+  private static boolean isWebsocketAccept(HttpMessage msg) {
+    return ((HttpResponse) msg).getStatus().getCode() == 101 &&
+        msg.containsHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_ACCEPT);
+  }
+}
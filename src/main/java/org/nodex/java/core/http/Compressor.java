@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a response body as it is written, in either the gzip or the zlib ({@code deflate}) format.<p>
+ * Each call to {@link #compress} flushes the compressed data written so far, so a streamed body reaches the client as
+ * it is written rather than when the response ends.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class Compressor {
+
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private final Deflater deflater;
+  private final CRC32 crc;
+  private final byte[] out = new byte[8192];
+  private boolean headerWritten;
+
+  Compressor(String encoding, int level) {
+    boolean gzip = ContentCompression.GZIP.equals(encoding);
+    this.deflater = new Deflater(level, gzip);
+    this.crc = gzip ? new CRC32() : null;
+    this.headerWritten = !gzip;
+  }
+
+  ChannelBuffer compress(ChannelBuffer data) {
+    byte[] bytes;
+    int offset;
+    int length = data.readableBytes();
+    if (data.hasArray()) {
+      bytes = data.array();
+      offset = data.arrayOffset() + data.readerIndex();
+    } else {
+      bytes = new byte[length];
+      data.getBytes(data.readerIndex(), bytes);
+      offset = 0;
+    }
+    if (crc != null) {
+      crc.update(bytes, offset, length);
+    }
+    ChannelBuffer buff = ChannelBuffers.dynamicBuffer(length / 2 + 32);
+    writeHeader(buff);
+    deflater.setInput(bytes, offset, length);
+    int n;
+    do {
+      n = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+      buff.writeBytes(out, 0, n);
+    } while (n == out.length);
+    return buff;
+  }
+
+  ChannelBuffer finish() {
+    ChannelBuffer buff = ChannelBuffers.dynamicBuffer(64);
+    writeHeader(buff);
+    deflater.finish();
+    while (!deflater.finished()) {
+      int n = deflater.deflate(out);
+      buff.writeBytes(out, 0, n);
+    }
+    if (crc != null) {
+      writeIntLE(buff, (int) crc.getValue());
+      writeIntLE(buff, (int) deflater.getBytesRead());
+    }
+    deflater.end();
+    return buff;
+  }
+
+  private void writeHeader(ChannelBuffer buff) {
+    if (!headerWritten) {
+      buff.writeBytes(GZIP_HEADER);
+      headerWritten = true;
+    }
+  }
+
+  private static void writeIntLE(ChannelBuffer buff, int i) {
+    buff.writeByte(i);
+    buff.writeByte(i >>> 8);
+    buff.writeByte(i >>> 16);
+    buff.writeByte(i >>> 24);
+  }
+}
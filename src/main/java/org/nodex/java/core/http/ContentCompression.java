@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+/**
+ * The compression settings of an {@link HttpServer}, and the negotiation of a content coding with a client.<p>
+ * Only {@code gzip} and {@code deflate} are supported. Compressed responses always use chunked encoding, so
+ * compression is only used for HTTP/1.1 requests.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class ContentCompression {
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  final int level;
+  final int minSize;
+
+  ContentCompression(int level, int minSize) {
+    this.level = level;
+    this.minSize = minSize;
+  }
+
+  /**
+   * Return the content coding to use for the response to {@code request}, or null if it should not be compressed.
+   * The coding with the highest q value in the {@code Accept-Encoding} header is chosen, preferring gzip on a tie.
+   */
+  String negotiate(HttpRequest request) {
+    if (request.getProtocolVersion() != HttpVersion.HTTP_1_1 || request.getMethod() == HttpMethod.HEAD) {
+      return null;
+    }
+    String accept = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+    if (accept == null) {
+      return null;
+    }
+    float gzip = -1, deflate = -1, any = -1;
+    int pos = 0;
+    int len = accept.length();
+    while (pos < len) {
+      int end = accept.indexOf(',', pos);
+      if (end == -1) {
+        end = len;
+      }
+      int semi = accept.indexOf(';', pos);
+      int nameEnd = semi == -1 || semi > end ? end : semi;
+      String name = accept.substring(pos, nameEnd).trim();
+      float q = nameEnd == end ? 1 : quality(accept.substring(nameEnd + 1, end));
+      if (name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase("x-gzip")) {
+        gzip = Math.max(gzip, q);
+      } else if (name.equalsIgnoreCase(DEFLATE)) {
+        deflate = Math.max(deflate, q);
+      } else if (name.equals("*")) {
+        any = q;
+      }
+      pos = end + 1;
+    }
+    if (gzip == -1) {
+      gzip = any;
+    }
+    if (deflate == -1) {
+      deflate = any;
+    }
+    if (gzip <= 0 && deflate <= 0) {
+      return null;
+    }
+    return gzip >= deflate ? GZIP : DEFLATE;
+  }
+
+  /**
+   * Is a body with the content type {@code contentType} worth compressing? A body with no content type is.
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return true;
+    }
+    int semi = contentType.indexOf(';');
+    String type = (semi == -1 ? contentType : contentType.substring(0, semi)).trim().toLowerCase();
+    return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") ||
+        type.equals("application/json") || type.equals("application/javascript") ||
+        type.equals("application/x-javascript") || type.equals("application/xml") ||
+        type.equals("image/svg+xml");
+  }
+
+  private static float quality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      if (param.startsWith("q=") || param.startsWith("Q=")) {
+        try {
+          return Float.parseFloat(param.substring(2).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.internal.LoopThread;
+import org.nodex.java.core.shared.LoopLocal;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Caches the value of the HTTP {@code Date} header, and its encoded header line, on each event loop.<p>
+ * The header only has a resolution of one second, so formatting it for every response is wasted work. Each loop
+ * formats it at most once a second, when it is first asked for in that second.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class DateCache {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final LoopLocal<DateCache> caches = new LoopLocal<DateCache>() {
+    protected DateCache initialValue() {
+      return new DateCache();
+    }
+  };
+
+  /**
+   * Return the cache for the current event loop. If not called from an event loop a new cache is returned.
+   */
+  static DateCache get() {
+    return Thread.currentThread() instanceof LoopThread ? caches.get() : new DateCache();
+  }
+
+  //SimpleDateFormat is not thread-safe, but each loop has its own
+  private final SimpleDateFormat format;
+  private long second = -1;
+  private String date;
+  private byte[] line;
+
+  private DateCache() {
+    format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+  }
+
+  /**
+   * Return the current value of the {@code Date} header. The same instance is returned until the second changes.
+   */
+  String date() {
+    refresh();
+    return date;
+  }
+
+  /**
+   * Return the encoded {@code Date} header line, including the trailing CRLF, if {@code value} is the current value
+   * returned by {@link #date}, otherwise null. The array must not be modified.
+   */
+  byte[] line(String value) {
+    return value == date ? line : null;
+  }
+
+  /**
+   * Return the encoded {@code Date} header line for the current time, including the trailing CRLF. The array must not
+   * be modified.
+   */
+  byte[] line() {
+    refresh();
+    return line;
+  }
+
+  /**
+   * Format {@code millis} as an HTTP date.
+   */
+  String format(long millis) {
+    return format.format(new Date(millis));
+  }
+
+  /**
+   * Parse an HTTP date, returning the time in milliseconds, or -1 if {@code value} is not a valid date.
+   */
+  long parse(String value) {
+    try {
+      return format.parse(value).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  private void refresh() {
+    long now = System.currentTimeMillis() / 1000;
+    if (now != second) {
+      second = now;
+      date = format.format(new Date(now * 1000));
+      line = ("Date: " + date + "\r\n").getBytes(ASCII);
+    }
+  }
+}
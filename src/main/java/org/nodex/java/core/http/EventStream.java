@@ -0,0 +1,288 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.LoopThread;
+import org.nodex.java.core.internal.NodexInternal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A stream of Server-Sent Events which any number of HTTP responses can subscribe to.</p>
+ *
+ * <p>Each {@link ServerSentEvent} is encoded once, and the same encoding is written to every subscriber. Subscribers
+ * are held by the event loop they belong to. An event is handed to each loop which has subscribers, and the loop
+ * writes it to them - events sent before a loop gets round to them are written to each subscriber as a single write.
+ * Each loop also writes a heartbeat comment to its subscribers every heartbeat interval, using a single timer for all
+ * of them.</p>
+ *
+ * <p>The last few events are kept in a ring. When a browser reconnects it sends the id of the last event it received
+ * in the {@code Last-Event-ID} header, and the events sent since then are replayed to it. If that event is no longer
+ * in the ring all the events in the ring are replayed.</p>
+ *
+ * <p>Responses can only be subscribed on their own event loop, but events can be sent from any thread. Subscribers
+ * which close are removed automatically.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class EventStream {
+
+  /**
+   * The default number of events kept for replay
+   */
+  public static final int DEFAULT_REPLAY_SIZE = 100;
+
+  /**
+   * The default interval in ms between heartbeats
+   */
+  public static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+
+  private static final String LAST_EVENT_ID = "Last-Event-ID";
+
+  private final long heartbeatInterval;
+  private final Map<Thread, Loop> loops = new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  //The replay ring, and the sequence number of the last event sent. Guarded by this
+  private final Sent[] ring;
+  private long seq;
+
+  /**
+   * Create a stream which keeps {@value #DEFAULT_REPLAY_SIZE} events for replay and sends a heartbeat every
+   * {@value #DEFAULT_HEARTBEAT_INTERVAL} ms
+   */
+  public EventStream() {
+    this(DEFAULT_REPLAY_SIZE, DEFAULT_HEARTBEAT_INTERVAL);
+  }
+
+  /**
+   * Create a stream which keeps {@code replaySize} events for replay and sends a heartbeat every
+   * {@code heartbeatInterval} ms, or never if it is zero
+   */
+  public EventStream(int replaySize, long heartbeatInterval) {
+    if (replaySize < 0) {
+      throw new IllegalArgumentException("replaySize must be >= 0");
+    }
+    if (heartbeatInterval < 0) {
+      throw new IllegalArgumentException("heartbeatInterval must be >= 0");
+    }
+    this.ring = new Sent[replaySize];
+    this.heartbeatInterval = heartbeatInterval;
+  }
+
+  /**
+   * Subscribe the response to {@code request} to the stream. The response is started as an event stream, see
+   * {@link HttpServerResponse#startEventStream}, and any events the client missed are replayed to it. This must be
+   * called on the request's event loop.
+   */
+  public void subscribe(HttpServerRequest request) {
+    if (!(Thread.currentThread() instanceof LoopThread)) {
+      throw new IllegalStateException("Responses can only be subscribed on their event loop");
+    }
+    Loop loop = loops.get(Thread.currentThread());
+    if (loop == null) {
+      loop = new Loop(NodexInternal.instance.getLoopContextID(Thread.currentThread()));
+      loops.put(Thread.currentThread(), loop);
+    }
+    HttpServerResponse response = request.response;
+    response.startEventStream(0);
+
+    String lastEventID = request.getHeader(LAST_EVENT_ID);
+    List<Sent> replay = new ArrayList<>();
+    long from;
+    synchronized (this) {
+      from = seq;
+      if (lastEventID != null && ring.length != 0) {
+        long first = Math.max(1, seq - ring.length + 1);
+        for (long s = seq; s >= first; s--) {
+          if (lastEventID.equals(ring[(int) (s % ring.length)].event.id())) {
+            first = s + 1;
+            break;
+          }
+        }
+        for (long s = first; s <= seq; s++) {
+          replay.add(ring[(int) (s % ring.length)]);
+        }
+      }
+    }
+    for (Sent sent : replay) {
+      response.writeEvent(sent.event);
+    }
+    loop.subscribers.add(new Subscriber(response, from));
+    size.incrementAndGet();
+    loop.startHeartbeat();
+  }
+
+  /**
+   * Send {@code event} to all the subscribers
+   */
+  public void send(ServerSentEvent event) {
+    //Held while the event is queued so each loop sees the events in sequence order
+    synchronized (this) {
+      Sent sent = new Sent(++seq, event);
+      if (ring.length != 0) {
+        ring[(int) (seq % ring.length)] = sent;
+      }
+      for (Loop loop : loops.values()) {
+        loop.add(sent);
+      }
+    }
+  }
+
+  /**
+   * Send an event carrying {@code data}, with no id, to all the subscribers
+   */
+  public void send(String data) {
+    send(new ServerSentEvent(data));
+  }
+
+  /**
+   * Return the number of subscribers. Subscribers which have closed are counted until the stream next writes to
+   * their event loop.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Close the stream. The responses of all the subscribers are ended and the heartbeat timers are stopped.
+   */
+  public void close() {
+    for (final Loop loop : loops.values()) {
+      NodexInternal.instance.executeOnContext(loop.contextID, new Runnable() {
+        public void run() {
+          loop.close();
+        }
+      });
+    }
+  }
+
+  private static class Sent {
+    final long seq;
+    final ServerSentEvent event;
+
+    Sent(long seq, ServerSentEvent event) {
+      this.seq = seq;
+      this.event = event;
+    }
+  }
+
+  private static class Subscriber {
+    final HttpServerResponse response;
+    //Events up to this one were sent before it subscribed, and replayed if it missed them
+    final long from;
+
+    Subscriber(HttpServerResponse response, long from) {
+      this.response = response;
+      this.from = from;
+    }
+  }
+
+  private class Loop extends LoopFanOut<Sent> {
+    //Only accessed on the loop
+    final List<Subscriber> subscribers = new ArrayList<>();
+    long heartbeatTimer = -1;
+
+    Loop(long contextID) {
+      super(contextID);
+    }
+
+    void deliver(List<Sent> events) {
+      for (Iterator<Subscriber> iter = subscribers.iterator(); iter.hasNext(); ) {
+        Subscriber sub = iter.next();
+        if (sub.response.isClosed()) {
+          iter.remove();
+          size.decrementAndGet();
+          continue;
+        }
+        List<ChannelBuffer> buffers = new ArrayList<>(events.size());
+        int length = 0;
+        for (Sent s : events) {
+          if (s.seq > sub.from) {
+            buffers.add(s.event.encoded());
+            length += s.event.length();
+          }
+        }
+        if (buffers.size() == 1) {
+          sub.response.writeEncoded(buffers.get(0).duplicate(), length);
+        } else if (!buffers.isEmpty()) {
+          sub.response.writeEncoded(ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()])),
+              length);
+        }
+      }
+    }
+
+    //The timer is set on the loop's own context, which lives as long as the loop, not on a connection's
+    void startHeartbeat() {
+      if (heartbeatInterval == 0 || heartbeatTimer != -1) {
+        return;
+      }
+      NodexInternal.instance.runInContext(contextID, new Runnable() {
+        public void run() {
+          heartbeatTimer = Nodex.instance.setPeriodic(heartbeatInterval, new EventHandler<Long>() {
+            public void onEvent(Long id) {
+              heartbeat();
+            }
+          });
+        }
+      });
+    }
+
+    void heartbeat() {
+      ChannelBuffer heartbeat = ServerSentEvent.HEARTBEAT.encoded();
+      for (Iterator<Subscriber> iter = subscribers.iterator(); iter.hasNext(); ) {
+        Subscriber sub = iter.next();
+        if (sub.response.isClosed()) {
+          iter.remove();
+          size.decrementAndGet();
+        } else {
+          sub.response.writeEncoded(heartbeat.duplicate(), 0);
+        }
+      }
+      if (subscribers.isEmpty()) {
+        Nodex.instance.cancelTimer(heartbeatTimer);
+        heartbeatTimer = -1;
+      }
+    }
+
+    void close() {
+      if (heartbeatTimer != -1) {
+        NodexInternal.instance.runInContext(contextID, new Runnable() {
+          public void run() {
+            Nodex.instance.cancelTimer(heartbeatTimer);
+          }
+        });
+        heartbeatTimer = -1;
+      }
+      for (Subscriber sub : subscribers) {
+        if (!sub.response.isClosed()) {
+          sub.response.end();
+        }
+      }
+      size.addAndGet(-subscribers.size());
+      subscribers.clear();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only, case-insensitive {@code Map} view of the headers of an HTTP message or the trailers of a chunked one.<p>
+ * The headers are not copied. Lookups go straight to Netty's case-insensitive header table, and only allocate when a
+ * header has been sent more than once, in which case the values are joined with commas as allowed by
+ * <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2">RFC 2616</a>. Since it is a view, it
+ * reflects later changes to the message.<p>
+ * This class also interns the names of common headers, so that names which are compared often, such as
+ * {@code Content-Length}, can be compared by reference.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class HeaderMap extends AbstractMap<String, String> {
+
+  static final String[] COMMON_NAMES = {
+      HttpHeaders.Names.ACCEPT, HttpHeaders.Names.ACCEPT_CHARSET, HttpHeaders.Names.ACCEPT_ENCODING,
+      HttpHeaders.Names.ACCEPT_LANGUAGE, HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Names.AGE,
+      HttpHeaders.Names.ALLOW, HttpHeaders.Names.AUTHORIZATION, HttpHeaders.Names.CACHE_CONTROL,
+      HttpHeaders.Names.CONNECTION, HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Names.CONTENT_LANGUAGE,
+      HttpHeaders.Names.CONTENT_LENGTH, HttpHeaders.Names.CONTENT_LOCATION, HttpHeaders.Names.CONTENT_RANGE,
+      HttpHeaders.Names.CONTENT_TYPE, HttpHeaders.Names.COOKIE, HttpHeaders.Names.DATE, HttpHeaders.Names.ETAG,
+      HttpHeaders.Names.EXPECT, HttpHeaders.Names.EXPIRES, HttpHeaders.Names.HOST, HttpHeaders.Names.IF_MATCH,
+      HttpHeaders.Names.IF_MODIFIED_SINCE, HttpHeaders.Names.IF_NONE_MATCH, HttpHeaders.Names.IF_RANGE,
+      HttpHeaders.Names.IF_UNMODIFIED_SINCE, HttpHeaders.Names.LAST_MODIFIED, HttpHeaders.Names.LOCATION,
+      HttpHeaders.Names.ORIGIN, HttpHeaders.Names.PRAGMA, HttpHeaders.Names.RANGE, HttpHeaders.Names.REFERER,
+      HttpHeaders.Names.SERVER, HttpHeaders.Names.SET_COOKIE, HttpHeaders.Names.TRANSFER_ENCODING,
+      HttpHeaders.Names.UPGRADE, HttpHeaders.Names.USER_AGENT, HttpHeaders.Names.VARY, HttpHeaders.Names.VIA,
+      HttpHeaders.Names.WWW_AUTHENTICATE
+  };
+
+  //Open addressing table of the common names, keyed by case-insensitive hash
+  private static final String[] INTERNED = new String[128];
+
+  static {
+    for (String name : COMMON_NAMES) {
+      int i = hash(name) & (INTERNED.length - 1);
+      while (INTERNED[i] != null) {
+        i = (i + 1) & (INTERNED.length - 1);
+      }
+      INTERNED[i] = name;
+    }
+  }
+
+  /**
+   * Return the canonical constant for {@code name} if it is the name of a common header in any case, otherwise
+   * {@code name} itself.
+   */
+  static String intern(String name) {
+    int i = hash(name) & (INTERNED.length - 1);
+    String interned;
+    while ((interned = INTERNED[i]) != null) {
+      if (interned == name || interned.equalsIgnoreCase(name)) {
+        return interned;
+      }
+      i = (i + 1) & (INTERNED.length - 1);
+    }
+    return name;
+  }
+
+  private final HttpMessage message;
+  private final HttpChunkTrailer trailer;
+
+  HeaderMap(HttpMessage message) {
+    this.message = message;
+    this.trailer = null;
+  }
+
+  HeaderMap(HttpChunkTrailer trailer) {
+    this.message = null;
+    this.trailer = trailer;
+  }
+
+  @Override
+  public String get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    List<String> values = getHeaders((String) key);
+    if (values.isEmpty()) {
+      return null;
+    } else if (values.size() == 1) {
+      return values.get(0);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String value : values) {
+      if (sb.length() != 0) {
+        sb.append(',');
+      }
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof String && containsHeader((String) key);
+  }
+
+  @Override
+  public int size() {
+    return getHeaderNames().size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return getHeaderNames().isEmpty();
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(getHeaderNames());
+  }
+
+  @Override
+  public Set<Map.Entry<String, String>> entrySet() {
+    return new AbstractSet<Map.Entry<String, String>>() {
+      public Iterator<Map.Entry<String, String>> iterator() {
+        final Iterator<String> names = getHeaderNames().iterator();
+        return new Iterator<Map.Entry<String, String>>() {
+          public boolean hasNext() {
+            return names.hasNext();
+          }
+
+          public Map.Entry<String, String> next() {
+            String name = names.next();
+            return new SimpleImmutableEntry<>(name, get(name));
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      public int size() {
+        return HeaderMap.this.size();
+      }
+    };
+  }
+
+  private boolean containsHeader(String name) {
+    return message != null ? message.containsHeader(name) : trailer.containsHeader(name);
+  }
+
+  private List<String> getHeaders(String name) {
+    return message != null ? message.getHeaders(name) : trailer.getHeaders(name);
+  }
+
+  private Set<String> getHeaderNames() {
+    return message != null ? message.getHeaderNames() : trailer.getHeaderNames();
+  }
+
+  //Same as String.hashCode but ignoring the case of ASCII letters
+  private static int hash(String name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 32;
+      }
+      h = 31 * h + c;
+    }
+    return h ^ (h >>> 16);
+  }
+}
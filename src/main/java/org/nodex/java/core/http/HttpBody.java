@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.buffer.Buffer;
+
+/**
+ * <p>The complete body of an HTTP request or response, as collected by {@link HttpServerRequest#bodyHandler(long, long, org.nodex.java.core.EventHandler)}
+ * or {@link HttpClientResponse#bodyHandler(long, long, org.nodex.java.core.EventHandler)}.</p>
+ *
+ * <p>A body no larger than the spill threshold is held in memory in {@link #buffer}. A larger body is written to a
+ * temporary file instead, and {@link #file} holds its path. The temporary file is not deleted automatically, so it is
+ * up to the user to move or delete it, e.g. with {@link org.nodex.java.core.file.FileSystem#delete(String, org.nodex.java.core.CompletionHandler)}.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class HttpBody {
+
+  /**
+   * The length of the body in bytes
+   */
+  public final long length;
+
+  /**
+   * The body, or null if it was written to a file
+   */
+  public final Buffer buffer;
+
+  /**
+   * The path of the temporary file the body was written to, or null if it is held in memory
+   */
+  public final String file;
+
+  HttpBody(long length, Buffer buffer, String file) {
+    this.length = length;
+    this.buffer = buffer;
+    this.file = file;
+  }
+
+  /**
+   * Is the body held in memory?
+   */
+  public boolean isInMemory() {
+    return buffer != null;
+  }
+}
@@ -35,8 +35,6 @@ import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
-import org.jboss.netty.handler.codec.http.websocket.WebSocketFrame;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.Nodex;
@@ -78,6 +76,7 @@ public class HttpClient extends SSLBase {
   private final AtomicInteger connectionCount = new AtomicInteger(0);
   private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
   private boolean keepAlive = true;
+  private int maxWebsocketFrameSize = HttpServer.DEFAULT_MAX_WEBSOCKET_FRAME_SIZE;
 
   /**
    * Create an {@code HttpClient} instance
@@ -206,6 +205,26 @@ public class HttpClient extends SSLBase {
     return this;
   }
 
+  /**
+   * Set the maximum payload size in bytes of a websocket frame received by the client. The default is
+   * {@value HttpServer#DEFAULT_MAX_WEBSOCKET_FRAME_SIZE}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpClient setMaxWebsocketFrameSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must be >= 0");
+    }
+    this.maxWebsocketFrameSize = size;
+    return this;
+  }
+
+  /**
+   * Returns the maximum payload size of a websocket frame received by the client
+   */
+  public int getMaxWebsocketFrameSize() {
+    return maxWebsocketFrameSize;
+  }
+
   /**
    * Attempt to connect an HTML5 websocket to the specified URI<p>
    * The connect is done asynchronously and {@code wsConnect} is called back with the result
@@ -395,7 +414,7 @@ public class HttpClient extends SSLBase {
             pipeline.addLast("ssl", new SslHandler(engine));
           }
           pipeline.addLast("encoder", new HttpRequestEncoder());
-          pipeline.addLast("decoder", new HttpResponseDecoder());
+          pipeline.addLast("decoder", new ClientResponseDecoder());
           pipeline.addLast("handler", new ClientHandler());
           return pipeline;
         }
@@ -531,9 +550,8 @@ public class HttpClient extends SSLBase {
             conn.handleResponseEnd();
           }
         }
-      } else if (msg instanceof WebSocketFrame) {
-        WebSocketFrame frame = (WebSocketFrame) msg;
-        conn.handleWsFrame(frame);
+      } else if (msg instanceof WebsocketFrame) {
+        conn.handleWsFrame((WebsocketFrame) msg);
       } else {
         throw new IllegalStateException("Invalid object " + e.getMessage());
       }
@@ -298,8 +298,8 @@ public class HttpClientRequest implements WriteStream {
         headWritten = true;
       }
     } else {
-      connect();
       writeHead = true;
+      connect();
     }
     return this;
   }
@@ -450,11 +450,12 @@ public class HttpClientRequest implements WriteStream {
     }
 
     if (conn == null) {
-      connect();
       if (pendingChunks == null) {
         pendingChunks = new LinkedList<>();
       }
       pendingChunks.add(new PendingChunk(buff, doneHandler));
+      //A pooled connection may be handed over straight away, so the chunk must be pending first
+      connect();
     } else {
       if (!headWritten) {
         writeHead();
@@ -17,12 +17,14 @@
 package org.nodex.java.core.http;
 
 import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.buffer.Buffer;
 import org.nodex.java.core.streams.ReadStream;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
@@ -45,9 +47,7 @@ public class HttpClientResponse implements ReadStream {
   private EventHandler<Exception> exceptionHandler;
   private final HttpResponse response;
   private HttpChunkTrailer trailer;
-  // Cache these for performance
   private Map<String, String> headers;
-  // Cache these for performance
   private Map<String, String> trailers;
 
   /**
@@ -98,12 +98,12 @@ public class HttpClientResponse implements ReadStream {
   /**
    * Returns a map of all headers in the response, If the response contains multiple headers with the same key, the values
    * will be concatenated together into a single header with the same key value, with each value separated by a comma, as specified
-   * <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2">here</a>.
-   *
+   * <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2">here</a>.<p>
+   * The map is a read-only view of the response headers, not a copy, and keys are looked up ignoring case.
    */
   public Map<String, String> getHeaders() {
     if (headers == null) {
-      headers = HeaderUtils.simplifyHeaders(response.getHeaders());
+      headers = new HeaderMap(response);
     }
     return headers;
   }
@@ -112,16 +112,15 @@ public class HttpClientResponse implements ReadStream {
    * Returns a map of all trailers in the response, If the response contains multiple trailers with the same key, the values
    * will be concatenated together into a single header with the same key value, with each value separated by a comma, as specified
    * <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2">here</a>.<p>
-   * If trailers have been sent by the server, they won't be available on the client side until the last chunk is received.
-   *
+   * If trailers have been sent by the server, they won't be available on the client side until the last chunk is received.<p>
+   * As with {@link #getHeaders}, the map is a read-only view and keys are looked up ignoring case.
    */
   public Map<String, String> getTrailers() {
+    if (trailer == null) {
+      return Collections.emptyMap();
+    }
     if (trailers == null) {
-      if (trailer == null) {
-        trailers = new HashMap<>();
-      } else {
-        trailers = HeaderUtils.simplifyHeaders(trailer.getHeaders());
-      }
+      trailers = new HeaderMap(trailer);
     }
     return trailers;
   }
@@ -147,6 +146,44 @@ public class HttpClientResponse implements ReadStream {
     this.dataHandler = dataHandler;
   }
 
+  /**
+   * Collect the whole response body in memory and call {@code bodyHandler} with it once the response has been read.
+   * This sets the data handler and end handler of the response.<p>
+   * If the body is larger than {@code maxBytes} the exception handler is called instead, and the rest of the body is
+   * read and dropped. When the response has a {@code Content-Length} this happens before any of the body is read. A
+   * {@code maxBytes} larger than {@code Integer.MAX_VALUE} is treated as {@code Integer.MAX_VALUE}, the most a Buffer
+   * can hold.
+   */
+  public void bodyHandler(long maxBytes, final EventHandler<Buffer> bodyHandler) {
+    //Everything is held in memory, so the body can't be larger than a Buffer can hold
+    maxBytes = Math.min(maxBytes, BodyAggregator.MAX_IN_MEMORY);
+    bodyHandler(maxBytes, maxBytes, new EventHandler<HttpBody>() {
+      public void onEvent(HttpBody body) {
+        bodyHandler.onEvent(body.buffer);
+      }
+    });
+  }
+
+  /**
+   * Collect the whole response body and call {@code bodyHandler} with it once the response has been read. This sets the
+   * data handler and end handler of the response.<p>
+   * A body of up to {@code spillThreshold} bytes is held in memory, and a larger one is written to a temporary file,
+   * see {@link HttpBody}. If the body is larger than {@code maxBytes}, or can't be written to the file, the exception
+   * handler is called instead of the {@code bodyHandler}.
+   */
+  public void bodyHandler(final long maxBytes, long spillThreshold, EventHandler<HttpBody> bodyHandler) {
+    checkThread();
+    new BodyAggregator(this, response.getHeader(HttpHeaders.Names.CONTENT_LENGTH), maxBytes, spillThreshold, bodyHandler) {
+      void tooLarge() {
+        handleException(new IOException("Response body is larger than " + maxBytes + " bytes"));
+      }
+
+      void failed(Exception e) {
+        handleException(e);
+      }
+    };
+  }
+
   /**
    * Specify an end handler for the response. The {@code endHandler} is called once the entire response has been read.
    */
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+/**
+ * <p>The statistics of the requests to one route of an {@link HttpServer}, or to one HTTP method if the request wasn't
+ * routed by a {@link RouteMatcher}.</p>
+ *
+ * <p>Times are in microseconds, from the request's headers being received. The time to first byte is until the head
+ * of the response is written, and the time to last byte is until the response has ended. Sizes are of the request and
+ * response bodies, before any compression.</p>
+ *
+ * <p>The instances returned by {@link HttpServerStats} are snapshots and do not change.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class HttpRouteStats {
+
+  private final String name;
+  private long requests;
+  private long bytesIn;
+  private long bytesOut;
+  //Indexed by the first digit of the status code
+  private final long[] statusClasses = new long[6];
+  private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+  private final LatencyHistogram timeToLastByte = new LatencyHistogram();
+
+  HttpRouteStats(String name) {
+    this.name = name;
+  }
+
+  /**
+   * The route, for example {@code GET /users/:id}, or the method, for example {@code GET}.
+   */
+  public String name() {
+    return name;
+  }
+
+  /**
+   * The number of requests which have been responded to.
+   */
+  public long requests() {
+    return requests;
+  }
+
+  public long bytesIn() {
+    return bytesIn;
+  }
+
+  public long bytesOut() {
+    return bytesOut;
+  }
+
+  /**
+   * Return the number of responses with a status code in {@code statusClass}, e.g. {@code 5} for 5xx responses.
+   */
+  public long statusClassCount(int statusClass) {
+    return statusClass < 1 || statusClass > 5 ? 0 : statusClasses[statusClass];
+  }
+
+  public LatencyHistogram timeToFirstByte() {
+    return timeToFirstByte;
+  }
+
+  public LatencyHistogram timeToLastByte() {
+    return timeToLastByte;
+  }
+
+  public String toString() {
+    return name + ": requests=" + requests + " bytesIn=" + bytesIn + " bytesOut=" + bytesOut + " ttfb=[" +
+        timeToFirstByte + "] ttlb=[" + timeToLastByte + "]";
+  }
+
+  void record(int statusCode, long in, long out, long firstByteMicros, long lastByteMicros) {
+    requests++;
+    bytesIn += in;
+    bytesOut += out;
+    int statusClass = statusCode / 100;
+    if (statusClass >= 1 && statusClass <= 5) {
+      statusClasses[statusClass]++;
+    }
+    timeToFirstByte.record(firstByteMicros);
+    timeToLastByte.record(lastByteMicros);
+  }
+
+  void add(HttpRouteStats other) {
+    requests += other.requests;
+    bytesIn += other.bytesIn;
+    bytesOut += other.bytesOut;
+    for (int i = 0; i < statusClasses.length; i++) {
+      statusClasses[i] += other.statusClasses[i];
+    }
+    timeToFirstByte.add(other.timeToFirstByte);
+    timeToLastByte.add(other.timeToLastByte);
+  }
+
+  HttpRouteStats copy() {
+    HttpRouteStats copy = new HttpRouteStats(name);
+    copy.add(this);
+    return copy;
+  }
+}
@@ -40,7 +40,6 @@ import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.websocket.WebSocketFrameDecoder;
 import org.jboss.netty.handler.codec.http.websocket.WebSocketFrameEncoder;
@@ -48,9 +47,12 @@ import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.ConnectionLimit;
+import org.nodex.java.core.internal.ConnectionTimeouts;
 import org.nodex.java.core.internal.NodexInternal;
 import org.nodex.java.core.internal.SSLBase;
 import org.nodex.java.core.internal.ThreadSourceUtils;
+import org.nodex.java.core.internal.WriteCoalescer;
 
 import javax.net.ssl.SSLEngine;
 import java.net.InetAddress;
@@ -70,6 +72,8 @@ import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.SEC_WEBSOCKET
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Values.WEBSOCKET;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.SWITCHING_PROTOCOLS;
+import static org.jboss.netty.handler.codec.http.HttpResponseStatus.UPGRADE_REQUIRED;
 import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 /**
@@ -83,6 +87,26 @@ import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
  */
 public class HttpServer extends SSLBase {
 
+  /**
+   * The default maximum number of pipelined requests on a connection which are handled at the same time
+   */
+  public static final int DEFAULT_PIPELINING_DEPTH = 16;
+
+  /**
+   * The default compression level used when compression is supported
+   */
+  public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+  /**
+   * The default size in bytes below which a response body with a known length is not compressed
+   */
+  public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+  /**
+   * The default maximum payload size in bytes of a websocket frame received by the server
+   */
+  public static final int DEFAULT_MAX_WEBSOCKET_FRAME_SIZE = 1024 * 1024;
+
   private EventHandler<HttpServerRequest> requestHandler;
   private EventHandler<Websocket> wsHandler;
   private Map<Channel, ServerConnection> connectionMap = new ConcurrentHashMap();
@@ -90,6 +114,19 @@ public class HttpServer extends SSLBase {
   private ChannelGroup serverChannelGroup;
   private boolean listening;
   private ClientAuth clientAuth = ClientAuth.NONE;
+  private int pipeliningDepth = DEFAULT_PIPELINING_DEPTH;
+  private boolean compressionSupported;
+  private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+  private int compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+  private ContentCompression compression;
+  private long idleTimeout;
+  private long headerReadTimeout;
+  private long bodyReadTimeout;
+  private long writeTimeout;
+  private int maxConnections;
+  private int maxWebsocketFrameSize = DEFAULT_MAX_WEBSOCKET_FRAME_SIZE;
+  private ConnectionLimit connectionLimit;
+  private HttpServerMetrics metrics;
   private final Thread th;
   private final long contextID;
 
@@ -153,6 +190,9 @@ public class HttpServer extends SSLBase {
     if (listening) {
       throw new IllegalStateException("Listen already called");
     }
+    if (compressionSupported) {
+      compression = new ContentCompression(compressionLevel, compressionMinSize);
+    }
 
     listening = true;
 
@@ -166,8 +206,16 @@ public class HttpServer extends SSLBase {
 
     checkSSL();
 
+    final ConnectionLimit limit = maxConnections > 0 ? new ConnectionLimit(maxConnections) : null;
+    connectionLimit = limit;
+    final boolean timeouts = ConnectionTimeouts.enabled(idleTimeout, headerReadTimeout, bodyReadTimeout, writeTimeout);
+
     bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
       public ChannelPipeline getPipeline() {
+        if (limit != null) {
+          //Called on the acceptor thread, so this stops us accepting any more until we're under the limit
+          limit.acquire();
+        }
         ChannelPipeline pipeline = Channels.pipeline();
 
         if (ssl) {
@@ -190,8 +238,16 @@ public class HttpServer extends SSLBase {
           pipeline.addLast("ssl", new SslHandler(engine));
         }
 
+        pipeline.addFirst("coalescer", new WriteCoalescer());    // Must be nearest the socket
+        if (timeouts) {
+          pipeline.addFirst("timeouts", new ConnectionTimeouts(idleTimeout, headerReadTimeout, bodyReadTimeout,
+              writeTimeout));    // Sees raw reads and writes
+        }
+        if (limit != null) {
+          pipeline.addFirst("limit", limit);
+        }
         pipeline.addLast("decoder", new HttpRequestDecoder());
-        pipeline.addLast("encoder", new HttpResponseEncoder());
+        pipeline.addLast("encoder", new ServerResponseEncoder());
 
         pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());       // For large file / sendfile support
         pipeline.addLast("handler", new ServerHandler());
@@ -278,6 +334,171 @@ public class HttpServer extends SSLBase {
     return this;
   }
 
+  /**
+   * Set the maximum number of pipelined requests on a connection which can be handled at the same time. Requests
+   * arriving beyond this are not handled until earlier responses have been written. Responses are always written in
+   * the order of their requests, whichever is ended first. A depth of {@code 1} handles one request at a time. The
+   * default is {@value #DEFAULT_PIPELINING_DEPTH}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setPipeliningDepth(int depth) {
+    checkThread();
+    if (depth < 1) {
+      throw new IllegalArgumentException("depth must be >= 1");
+    }
+    this.pipeliningDepth = depth;
+    return this;
+  }
+
+  /**
+   * If {@code supported} is {@code true}, response bodies are compressed with gzip or deflate for clients which
+   * accept it in their {@code Accept-Encoding} header. Compression is streamed, so chunked responses are compressed as
+   * they are written. Responses which already have a {@code Content-Encoding} header, or whose {@code Content-Type} is
+   * not textual, are sent as they are.<p>
+   * Files sent with {@link HttpServerResponse#sendFile} are compressed once, in the background, and the compressed copy
+   * is sent to later requests for the file. The default is {@code false}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setCompressionSupported(boolean supported) {
+    checkThread();
+    this.compressionSupported = supported;
+    return this;
+  }
+
+  /**
+   * Set the compression level, from {@code 1} for the fastest to {@code 9} for the best compression. The default is
+   * {@value #DEFAULT_COMPRESSION_LEVEL}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setCompressionLevel(int level) {
+    checkThread();
+    if (level < 1 || level > 9) {
+      throw new IllegalArgumentException("level must be between 1 and 9");
+    }
+    this.compressionLevel = level;
+    return this;
+  }
+
+  /**
+   * Set the size in bytes below which response bodies and files are not compressed. Chunked responses are always
+   * compressed since their size isn't known up front. The default is {@value #DEFAULT_COMPRESSION_MIN_SIZE}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setCompressionMinSize(int minSize) {
+    checkThread();
+    if (minSize < 0) {
+      throw new IllegalArgumentException("minSize must be >= 0");
+    }
+    this.compressionMinSize = minSize;
+    return this;
+  }
+
+  /**
+   * Close keep-alive connections which have no request in progress, and have neither read nor written anything, for
+   * {@code timeout} milliseconds. Timeouts are checked every {@value org.nodex.java.core.internal.TimerWheel#TICK}
+   * milliseconds, so a connection can be closed up to that much later. The default is {@code 0}, which means
+   * connections are never closed for being idle.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setIdleTimeout(long timeout) {
+    checkThread();
+    this.idleTimeout = checkTimeout(timeout);
+    return this;
+  }
+
+  /**
+   * Close connections which take longer than {@code timeout} milliseconds to send the headers of a request, timed from
+   * the first byte of the request. This isn't reset as more bytes arrive, so it protects against clients which hold
+   * connections open by sending headers very slowly. Bodies small enough to be read with the headers count towards it
+   * too. The default is {@code 0}, which means there is no header read timeout.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setHeaderReadTimeout(long timeout) {
+    checkThread();
+    this.headerReadTimeout = checkTimeout(timeout);
+    return this;
+  }
+
+  /**
+   * Close connections which send nothing for {@code timeout} milliseconds while sending a request body. Time spent
+   * with the request paused doesn't count. The default is {@code 0}, which means there is no body read timeout.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setBodyReadTimeout(long timeout) {
+    checkThread();
+    this.bodyReadTimeout = checkTimeout(timeout);
+    return this;
+  }
+
+  /**
+   * Close connections which have response data waiting to be written, but haven't been able to write any of it for
+   * {@code timeout} milliseconds, e.g. because the client has stopped reading. The default is {@code 0}, which means
+   * there is no write timeout.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setWriteTimeout(long timeout) {
+    checkThread();
+    this.writeTimeout = checkTimeout(timeout);
+    return this;
+  }
+
+  /**
+   * Set the maximum number of connections the server has open at any one time. While the server is at the maximum it
+   * stops accepting connections, and new connections wait in the operating system's listen backlog until an open one
+   * closes. The default is {@code 0}, which means there is no maximum.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setMaxConnections(int max) {
+    checkThread();
+    if (max < 0) {
+      throw new IllegalArgumentException("max must be >= 0");
+    }
+    this.maxConnections = max;
+    return this;
+  }
+
+  /**
+   * Set the maximum payload size in bytes of a websocket frame received by the server. A peer which sends a larger
+   * frame is sent a close frame with status 1009 and disconnected. Messages larger than this can still be received
+   * if they are split into fragments. The default is {@value #DEFAULT_MAX_WEBSOCKET_FRAME_SIZE}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setMaxWebsocketFrameSize(int size) {
+    checkThread();
+    if (size < 0) {
+      throw new IllegalArgumentException("size must be >= 0");
+    }
+    this.maxWebsocketFrameSize = size;
+    return this;
+  }
+
+  /**
+   * If {@code enabled} is {@code true}, the server records metrics about its requests and connections, which can be
+   * read with {@link #getMetrics}. This should be set before the server starts listening. The default is
+   * {@code false}.
+   * @return A reference to this, so multiple invocations can be chained together.
+   */
+  public HttpServer setMetricsEnabled(boolean enabled) {
+    checkThread();
+    if (!enabled) {
+      if (metrics != null) {
+        metrics.release();
+        metrics = null;
+      }
+    } else if (metrics == null) {
+      metrics = new HttpServerMetrics();
+    }
+    return this;
+  }
+
+  /**
+   * Return the metrics of this server, or {@code null} if they aren't enabled. The metrics are discarded when the server
+   * is closed.
+   */
+  public HttpServerMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Close the server. Any open HTTP connections will be closed.
    */
@@ -292,9 +513,16 @@ public class HttpServer extends SSLBase {
    */
   public void close(final EventHandler<Void> doneHandler) {
     checkThread();
+    if (connectionLimit != null) {
+      //The acceptor may be waiting for a place, and must stop before the server channel can close
+      connectionLimit.close();
+    }
     for (ServerConnection conn : connectionMap.values()) {
       conn.internalClose();
     }
+    if (metrics != null) {
+      metrics.release();
+    }
     if (doneHandler != null) {
       serverChannelGroup.close().addListener(new ChannelGroupFutureListener() {
         public void operationComplete(ChannelGroupFuture channelGroupFuture) throws Exception {
@@ -308,6 +536,13 @@ public class HttpServer extends SSLBase {
     }
   }
 
+  private static long checkTimeout(long timeout) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must be >= 0");
+    }
+    return timeout;
+  }
+
   protected void checkThread() {
     // All ops must always be invoked on same thread
     if (Thread.currentThread() != th) {
@@ -340,6 +575,33 @@ public class HttpServer extends SSLBase {
       p.replace("encoder", "wsencoder", new WebSocketFrameEncoder());
     }
 
+    //RFC 6455 handshake. Returns false if the version isn't supported
+    private boolean writeRFC6455HandshakeResponse(Channel ch, HttpRequest request) {
+      if (!WebsocketHandshakeHelper.VERSION.equals(request.getHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_VERSION))) {
+        HttpResponse res = new DefaultHttpResponse(HTTP_1_1, UPGRADE_REQUIRED);
+        res.setHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_VERSION, WebsocketHandshakeHelper.VERSION);
+        res.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
+        ch.write(res);
+        return false;
+      }
+      HttpResponse res = new DefaultHttpResponse(HTTP_1_1, SWITCHING_PROTOCOLS);
+      res.setHeader(HttpHeaders.Names.UPGRADE, WEBSOCKET);
+      res.setHeader(CONNECTION, HttpHeaders.Values.UPGRADE);
+      res.setHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_ACCEPT,
+          WebsocketHandshakeHelper.calcAccept(request.getHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_KEY)));
+      String protocols = request.getHeader(SEC_WEBSOCKET_PROTOCOL);
+      if (protocols != null) {
+        int comma = protocols.indexOf(',');
+        res.setHeader(SEC_WEBSOCKET_PROTOCOL, (comma == -1 ? protocols : protocols.substring(0, comma)).trim());
+      }
+
+      ChannelPipeline p = ch.getPipeline();
+      p.replace("decoder", "wsdecoder", new WebsocketFrameDecoder(true, maxWebsocketFrameSize));
+      ch.write(res);
+      p.replace("encoder", "wsencoder", new WebsocketFrameEncoder(false));
+      return true;
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
       NioSocketChannel ch = (NioSocketChannel) e.getChannel();
@@ -354,19 +616,17 @@ public class HttpServer extends SSLBase {
             ch.write(new DefaultHttpResponse(HTTP_1_1, CONTINUE));
           }
 
-          if (HttpHeaders.Values.UPGRADE.equalsIgnoreCase(request.getHeader(CONNECTION)) &&
-              WEBSOCKET.equalsIgnoreCase(request.getHeader(HttpHeaders.Names.UPGRADE))) {
-            // Websocket handshake
-            Websocket ws = new Websocket(request.getUri(), conn);
-
-            boolean containsKey1 = request.containsHeader(SEC_WEBSOCKET_KEY1);
-            boolean containsKey2 = request.containsHeader(SEC_WEBSOCKET_KEY2);
-
-            if (containsKey1 && containsKey2) {
+          if (WebsocketHandshakeHelper.isUpgrade(request.getHeader(HttpHeaders.Names.UPGRADE),
+              request.getHeader(CONNECTION))) {
+            if (request.containsHeader(WebsocketHandshakeHelper.SEC_WEBSOCKET_KEY)) {
+              if (writeRFC6455HandshakeResponse(ch, request)) {
+                conn.handleWebsocketConnect(new Websocket(request.getUri(), conn, false));
+              }
+            } else if (request.containsHeader(SEC_WEBSOCKET_KEY1) && request.containsHeader(SEC_WEBSOCKET_KEY2)) {
+              // Websocket handshake, draft-hixie-76
               long c = request.getContent().readLong();
               calcAndWriteWSHandshakeResponse(ch, request, c);
-
-              conn.handleWebsocketConnect(ws);
+              conn.handleWebsocketConnect(new Websocket(request.getUri(), conn, true));
             } else {
               ch.write(new DefaultHttpResponse(HTTP_1_1, FORBIDDEN));
             }
@@ -403,7 +663,8 @@ public class HttpServer extends SSLBase {
       final long contextID = NodexInternal.instance.associateContextWithWorker(ch.getWorker());
       ThreadSourceUtils.runOnCorrectThread(ch, new Runnable() {
         public void run() {
-          final ServerConnection conn = new ServerConnection(ch, contextID, Thread.currentThread());
+          final ServerConnection conn = new ServerConnection(ch, contextID, Thread.currentThread(), pipeliningDepth,
+              compression, metrics);
           conn.requestHandler(requestHandler);
           conn.wsHandler(wsHandler);
           connectionMap.put(ch, conn);
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.shared.LoopLocal;
+
+/**
+ * <p>Records the latency, size and status of the requests to an {@link HttpServer}, and the use of its connections.</p>
+ *
+ * <p>Metrics are enabled with {@link HttpServer#setMetricsEnabled} and retrieved with {@link HttpServer#getMetrics}.
+ * Each event loop records into its own {@link HttpServerStats} held in a {@link LoopLocal}, so recording needs no
+ * synchronization, and once a route has been seen it allocates nothing. {@link #snapshot} combines the stats of all
+ * the loops.</p>
+ *
+ * <p>Requests routed by a {@link RouteMatcher} are recorded under their route, for example {@code GET /users/:id}, and
+ * others under their method.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class HttpServerMetrics {
+
+  private final LoopLocal<HttpServerStats> stats = new LoopLocal<HttpServerStats>() {
+    protected HttpServerStats initialValue() {
+      return new HttpServerStats();
+    }
+  };
+
+  HttpServerMetrics() {
+  }
+
+  /**
+   * Take a snapshot of the stats of all the event loops, and pass it to {@code completionHandler} on the caller's
+   * context.
+   */
+  public void snapshot(CompletionHandler<HttpServerStats> completionHandler) {
+    stats.aggregate(new LoopLocal.Mapper<HttpServerStats, HttpServerStats>() {
+      public HttpServerStats map(HttpServerStats value) {
+        return value.copy();
+      }
+    }, new LoopLocal.Reducer<HttpServerStats>() {
+      public HttpServerStats reduce(HttpServerStats r1, HttpServerStats r2) {
+        return r1.add(r2);
+      }
+    }, completionHandler);
+  }
+
+  /**
+   * Return a request handler which responds with a snapshot of the metrics as JSON, so they can be served from an
+   * admin route, e.g. {@code routeMatcher.get("/admin/metrics", server.getMetrics().adminHandler())}. Latencies are
+   * in microseconds.
+   */
+  public EventHandler<HttpServerRequest> adminHandler() {
+    return new EventHandler<HttpServerRequest>() {
+      public void onEvent(final HttpServerRequest req) {
+        snapshot(new CompletionHandler<HttpServerStats>() {
+          public void onEvent(Completion<HttpServerStats> completion) {
+            if (completion.failed()) {
+              req.response.statusCode = 500;
+              req.response.end();
+            } else {
+              req.response.putHeader("Content-Type", "application/json");
+              req.response.putHeader("Cache-Control", "no-cache");
+              req.response.setChunked(true);
+              req.response.write(toJson(completion.result));
+              req.response.end();
+            }
+          }
+        });
+      }
+    };
+  }
+
+  //Called when the server is closed or stops recording metrics, so the stats aren't kept on every loop
+  void release() {
+    stats.release();
+  }
+
+  //The stats of the current event loop
+  HttpServerStats local() {
+    return stats.get();
+  }
+
+  static String toJson(HttpServerStats stats) {
+    StringBuilder sb = new StringBuilder("{");
+    sb.append("\"connections\":").append(stats.connections());
+    sb.append(",\"requests\":").append(stats.requests());
+    sb.append(",\"reusedRequests\":").append(stats.reusedRequests());
+    sb.append(",\"keepAliveReuseRatio\":").append(stats.keepAliveReuseRatio());
+    sb.append(",\"inFlight\":").append(stats.inFlight());
+    sb.append(",\"inFlightPerLoop\":[");
+    long[] perLoop = stats.inFlightPerLoop();
+    for (int i = 0; i < perLoop.length; i++) {
+      sb.append(i == 0 ? "" : ",").append(perLoop[i]);
+    }
+    sb.append("],\"bytesIn\":").append(stats.bytesIn());
+    sb.append(",\"bytesOut\":").append(stats.bytesOut());
+    sb.append(",\"statusCodes\":{");
+    boolean first = true;
+    for (int code = 100; code < 600; code++) {
+      long count = stats.statusCount(code);
+      if (count != 0) {
+        sb.append(first ? "" : ",").append('"').append(code).append("\":").append(count);
+        first = false;
+      }
+    }
+    sb.append("},\"all\":");
+    appendRoute(sb, stats.all());
+    sb.append(",\"routes\":{");
+    first = true;
+    for (HttpRouteStats route : stats.routes().values()) {
+      sb.append(first ? "" : ",");
+      appendString(sb, route.name());
+      sb.append(':');
+      appendRoute(sb, route);
+      first = false;
+    }
+    return sb.append("}}").toString();
+  }
+
+  private static void appendRoute(StringBuilder sb, HttpRouteStats route) {
+    sb.append("{\"requests\":").append(route.requests());
+    sb.append(",\"bytesIn\":").append(route.bytesIn());
+    sb.append(",\"bytesOut\":").append(route.bytesOut());
+    sb.append(",\"statusClasses\":{");
+    for (int statusClass = 1; statusClass <= 5; statusClass++) {
+      sb.append(statusClass == 1 ? "" : ",").append('"').append(statusClass).append("xx\":")
+          .append(route.statusClassCount(statusClass));
+    }
+    sb.append("},\"timeToFirstByte\":");
+    appendHistogram(sb, route.timeToFirstByte());
+    sb.append(",\"timeToLastByte\":");
+    appendHistogram(sb, route.timeToLastByte());
+    sb.append('}');
+  }
+
+  private static void appendHistogram(StringBuilder sb, LatencyHistogram histogram) {
+    sb.append("{\"count\":").append(histogram.count());
+    sb.append(",\"min\":").append(histogram.min());
+    sb.append(",\"mean\":").append((long) histogram.mean());
+    sb.append(",\"p50\":").append(histogram.percentile(50));
+    sb.append(",\"p90\":").append(histogram.percentile(90));
+    sb.append(",\"p99\":").append(histogram.percentile(99));
+    sb.append(",\"p999\":").append(histogram.percentile(99.9));
+    sb.append(",\"max\":").append(histogram.max());
+    sb.append('}');
+  }
+
+  private static void appendString(StringBuilder sb, String str) {
+    sb.append('"');
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
@@ -18,14 +18,11 @@ package org.nodex.java.core.http;
 
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
-import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.buffer.Buffer;
 import org.nodex.java.core.streams.ReadStream;
 
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -46,30 +43,36 @@ import java.util.Set;
  */
 public class HttpServerRequest implements ReadStream {
 
-  private Map<String, List<String>> params;
+  //The raw query in the uri, or -1 if there is none
+  private final int queryStart;
+  private final int queryEnd;
+  private String[] pathParamNames;
+  private int[] pathParamPositions;
   private EventHandler<Buffer> dataHandler;
   private EventHandler<Void> endHandler;
   private EventHandler<Exception> exceptionHandler;
   private final ServerConnection conn;
   private final HttpRequest request;
-  //Cache this for performance
   private Map<String, String> headers;
 
   HttpServerRequest(ServerConnection conn,
                     HttpRequest request) {
     this.method = request.getMethod().toString();
-    URI theURI;
-    try {
-      theURI = new URI(request.getUri());
-    } catch (URISyntaxException e) {
-      throw new IllegalArgumentException("Invalid uri " + request.getUri()); //Should never happen
-    }
     this.uri = request.getUri();
-    this.path = theURI.getPath();
-    this.query = theURI.getQuery();
+    int pathStart = UriParser.pathStart(uri);
+    int pathEnd = UriParser.pathEnd(uri, pathStart);
+    this.path = UriParser.decode(uri, pathStart, pathEnd, false);
+    if (pathEnd < uri.length() && uri.charAt(pathEnd) == '?') {
+      queryStart = pathEnd + 1;
+      queryEnd = UriParser.queryEnd(uri, queryStart);
+      this.query = UriParser.decode(uri, queryStart, queryEnd, false);
+    } else {
+      queryStart = queryEnd = -1;
+      this.query = null;
+    }
     this.conn = conn;
     this.request = request;
-    this.response = new HttpServerResponse(HttpHeaders.isKeepAlive(request), conn);
+    this.response = new HttpServerResponse(HttpHeaders.isKeepAlive(request), conn, conn.negotiateEncoding(request));
   }
 
   /**
@@ -115,30 +118,33 @@ public class HttpServerRequest implements ReadStream {
   /**
    * Returns a map of all headers in the request, If the request contains multiple headers with the same key, the values
    * will be concatenated together into a single header with the same key value, with each value separated by a comma, as specified
-   * <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2">here</a>.
+   * <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec4.html#sec4.2">here</a>.<p>
+   * The map is a read-only view of the request headers, not a copy, and keys are looked up ignoring case.
    */
   public Map<String, String> getHeaders() {
     if (headers == null) {
-      headers = HeaderUtils.simplifyHeaders(request.getHeaders());
+      headers = new HeaderMap(request);
     }
     return headers;
   }
 
   /**
-   * Return a specific parameter value from the query part of the URI given the parameter name {@code param}, or null
-   * if there is no such parameter.
+   * Return a specific parameter value given the parameter name {@code param}, or null if there is no such parameter.
+   * <p>If the request was routed by a {@link RouteMatcher}, parameters captured from the path by the matching route are
+   * looked at first. Otherwise the parameter is taken from the query part of the URI.
    */
   public String getParam(String param) {
-    if (params == null) {
-      QueryStringDecoder queryStringDecoder = new QueryStringDecoder(uri);
-      params = queryStringDecoder.getParameters();
+    if (pathParamNames != null) {
+      for (int i = 0; i < pathParamNames.length; i++) {
+        if (pathParamNames[i].equals(param)) {
+          return path.substring(pathParamPositions[i * 2], pathParamPositions[i * 2 + 1]);
+        }
+      }
     }
-    List<String> list = params.get(param);
-    if (list != null) {
-      return list.get(0);
-    } else {
+    if (queryStart == -1) {
       return null;
     }
+    return UriParser.getParam(uri, queryStart, queryEnd, param);
   }
 
   /**
@@ -152,6 +158,44 @@ public class HttpServerRequest implements ReadStream {
     this.dataHandler = dataHandler;
   }
 
+  /**
+   * Collect the whole request body in memory and call {@code bodyHandler} with it once the request has been read. This
+   * sets the data handler and end handler of the request.<p>
+   * If the body is larger than {@code maxBytes} a {@code 413} response is sent and the connection is closed. When the
+   * request has a {@code Content-Length} this happens straight away, before any of the body is read, and the
+   * {@code bodyHandler} is not called. A {@code maxBytes} larger than {@code Integer.MAX_VALUE} is treated as
+   * {@code Integer.MAX_VALUE}, the most a Buffer can hold.
+   */
+  public void bodyHandler(long maxBytes, final EventHandler<Buffer> bodyHandler) {
+    //Everything is held in memory, so the body can't be larger than a Buffer can hold
+    maxBytes = Math.min(maxBytes, BodyAggregator.MAX_IN_MEMORY);
+    bodyHandler(maxBytes, maxBytes, new EventHandler<HttpBody>() {
+      public void onEvent(HttpBody body) {
+        bodyHandler.onEvent(body.buffer);
+      }
+    });
+  }
+
+  /**
+   * Collect the whole request body and call {@code bodyHandler} with it once the request has been read. This sets the
+   * data handler and end handler of the request.<p>
+   * A body of up to {@code spillThreshold} bytes is held in memory, and a larger one is written to a temporary file,
+   * see {@link HttpBody}. If the body is larger than {@code maxBytes} a {@code 413} response is sent and the connection
+   * is closed, as for {@link #bodyHandler(long, EventHandler)}. If the body can't be written to the file the exception
+   * handler is called instead of the {@code bodyHandler}.
+   */
+  public void bodyHandler(long maxBytes, long spillThreshold, EventHandler<HttpBody> bodyHandler) {
+    new BodyAggregator(this, getHeader(HttpHeaders.Names.CONTENT_LENGTH), maxBytes, spillThreshold, bodyHandler) {
+      void tooLarge() {
+        response.reject(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE.getCode());
+      }
+
+      void failed(Exception e) {
+        handleException(e);
+      }
+    };
+  }
+
   /**
    * Specify an exception handler for the request. The {@code exceptionHandler} is called if an exception occurs
    * when handling the request.
@@ -184,6 +228,12 @@ public class HttpServerRequest implements ReadStream {
     this.endHandler = handler;
   }
 
+  //The start and end in the path of each parameter captured by a RouteMatcher, which are only extracted if asked for
+  void setPathParams(String[] names, int[] positions) {
+    this.pathParamNames = names;
+    this.pathParamPositions = positions;
+  }
+
   void handleData(Buffer data) {
     if (dataHandler != null) {
       dataHandler.onEvent(data);
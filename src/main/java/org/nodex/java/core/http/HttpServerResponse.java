@@ -29,6 +29,7 @@ import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
 import org.nodex.java.core.buffer.Buffer;
 import org.nodex.java.core.streams.WriteStream;
 
@@ -37,6 +38,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Map;
+import java.util.Queue;
 
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names;
 import static org.jboss.netty.handler.codec.http.HttpResponseStatus.OK;
@@ -60,10 +62,14 @@ import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
  */
 public class HttpServerResponse implements WriteStream {
 
-  private final boolean keepAlive;
+  private boolean keepAlive;
   private final ServerConnection conn;
+  //The content coding accepted by the client, if the server compresses responses
+  private final String encoding;
+  private Compressor compressor;
   private final HttpResponse response;
   private HttpChunkTrailer trailer;
+  private Map<String, String> headers;
 
   private boolean headWritten;
   private ChannelFuture writeFuture;
@@ -73,10 +79,23 @@ public class HttpServerResponse implements WriteStream {
   private long contentLength;
   private long writtenBytes;
   private boolean chunked;
-
-  HttpServerResponse(boolean keepAlive, ServerConnection conn) {
+  private boolean rawBody;
+  private boolean eventStream;
+  private long heartbeatTimer = -1;
+  //Writes held by the connection until the responses before this one have been written
+  Queue<Object> deferred;
+  //For metrics. The nano time the request was received, or 0 if it isn't being recorded, and when the head was written
+  long startTime;
+  long headTime;
+  //The size of the request body received
+  long requestBytes;
+  //The name the request is recorded under - its route if routed by a RouteMatcher, otherwise its method
+  String route;
+
+  HttpServerResponse(boolean keepAlive, ServerConnection conn, String encoding) {
     this.keepAlive = keepAlive;
     this.conn = conn;
+    this.encoding = encoding;
     this.response = new DefaultHttpResponse(HTTP_1_1, HttpResponseStatus.OK);
   }
 
@@ -119,6 +138,7 @@ public class HttpServerResponse implements WriteStream {
    */
   public HttpServerResponse putHeader(String key, Object value) {
     checkWritten();
+    key = HeaderMap.intern(key);
     response.setHeader(key, value);
     checkContentLengthChunked(key, value);
     return this;
@@ -132,12 +152,31 @@ public class HttpServerResponse implements WriteStream {
   public HttpServerResponse putAllHeaders(Map<String, ? extends Object> m) {
     checkWritten();
     for (Map.Entry<String, ? extends Object> entry : m.entrySet()) {
-      response.setHeader(entry.getKey(), entry.getValue().toString());
-      checkContentLengthChunked(entry.getKey(), entry.getValue());
+      String key = HeaderMap.intern(entry.getKey());
+      response.setHeader(key, entry.getValue().toString());
+      checkContentLengthChunked(key, entry.getValue());
     }
     return this;
   }
 
+  /**
+   * Returns the value of the header with the name {@code key} that has been put in the response, or null if there is
+   * no such header. The name is looked up ignoring case.
+   */
+  public String getHeader(String key) {
+    return response.getHeader(key);
+  }
+
+  /**
+   * Returns a read-only, case-insensitive view of the headers that have been put in the response.
+   */
+  public Map<String, String> getHeaders() {
+    if (headers == null) {
+      headers = new HeaderMap(response);
+    }
+    return headers;
+  }
+
   /**
    * Inserts a trailer into the response. The {@link Object#toString()} method will be called on {@code value} to determine
    * the String value to actually use for the trailer value.<p>
@@ -177,6 +216,15 @@ public class HttpServerResponse implements WriteStream {
     conn.setWriteQueueMaxSize(size);
   }
 
+  /**
+   * Set the size of the chunks a file sent with {@code sendFile} is read in when the connection uses SSL, where it
+   * can't be sent with zero-copy. The default is 16KB, the largest amount of data an SSL record can hold.
+   */
+  public void setSendFileChunkSize(int size) {
+    checkWritten();
+    conn.setSendFileChunkSize(size);
+  }
+
   /**
    * If the amount of data that is currently queued is greater than the write queue max size see {@link #setWriteQueueMaxSize(int)}
    * then the response queue is considered full.<p>
@@ -188,7 +236,7 @@ public class HttpServerResponse implements WriteStream {
    */
   public boolean writeQueueFull() {
     checkWritten();
-    return conn.writeQueueFull();
+    return conn.writeQueueFull(this);
   }
 
   /**
@@ -215,6 +263,48 @@ public class HttpServerResponse implements WriteStream {
     this.exceptionHandler = handler;
   }
 
+  /**
+   * Start a Server-Sent Events stream on this response. The head is written straight away, with a
+   * {@code text/event-stream} content type and chunked encoding, and events can then be written with
+   * {@link #writeEvent}. The stream is never compressed.<p>
+   * If {@code heartbeatInterval} is greater than zero a comment is written every {@code heartbeatInterval} ms, so
+   * proxies and browsers don't close the stream when there are no events for a while.<p>
+   * To send the same events to many responses see {@link EventStream}.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public HttpServerResponse startEventStream(long heartbeatInterval) {
+    if (headWritten) {
+      throw new IllegalStateException("Head already written");
+    }
+    checkWritten();
+    if (heartbeatInterval < 0) {
+      throw new IllegalArgumentException("heartbeatInterval must be >= 0");
+    }
+    eventStream = true;
+    rawBody = true;
+    putHeader(Names.CONTENT_TYPE, "text/event-stream; charset=utf-8");
+    putHeader(Names.CACHE_CONTROL, "no-cache");
+    setChunked(true);
+    writeHead();
+    if (heartbeatInterval > 0) {
+      heartbeatTimer = Nodex.instance.setPeriodic(heartbeatInterval, new EventHandler<Long>() {
+        public void onEvent(Long id) {
+          writeEncoded(ServerSentEvent.HEARTBEAT.encoded().duplicate(), 0);
+        }
+      });
+    }
+    return this;
+  }
+
+  /**
+   * Write {@code event} to the event stream. {@link #startEventStream} must have been called first.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public HttpServerResponse writeEvent(ServerSentEvent event) {
+    writeEncoded(event.encoded().duplicate(), event.length());
+    return this;
+  }
+
   /**
    * Write a {@link Buffer} to the response body.
    */
@@ -277,22 +367,68 @@ public class HttpServerResponse implements WriteStream {
    */
   public void end() {
     checkWritten();
+    cancelHeartbeat();
     writeHead();
-    if (chunked) {
+    if (compressor != null) {
+      conn.write(this, new DefaultHttpChunk(compressor.finish()));
+    }
+    if (chunked || compressor != null) {
       HttpChunk nettyChunk;
       if (trailer == null) {
         nettyChunk = new DefaultHttpChunk(ChannelBuffers.EMPTY_BUFFER);
       } else {
         nettyChunk = trailer;
       }
-      writeFuture = conn.write(nettyChunk);
+      writeFuture = conn.write(this, nettyChunk);
     }
     // Close the non-keep-alive connection after the write operation is done.
     if (!keepAlive) {
       writeFuture.addListener(ChannelFutureListener.CLOSE);
     }
     written = true;
-    conn.responseComplete();
+    conn.responseComplete(this);
+  }
+
+  //Send an empty response with the status code and close the connection once it has been written, without
+  //reading the rest of the request. If the response has already been started the connection is just closed.
+  void reject(int code) {
+    if (written) {
+      return;
+    }
+    keepAlive = false;
+    if (headWritten) {
+      written = true;
+      conn.close();
+      return;
+    }
+    statusCode = code;
+    statusMessage = null;
+    chunked = false;
+    response.setHeader(Names.CONNECTION, HttpHeaders.Values.CLOSE);
+    response.removeHeader(Names.CONTENT_LENGTH);
+    response.removeHeader(Names.TRANSFER_ENCODING);
+    contentLength = 0;
+    end();
+  }
+
+  /**
+   * Send the pre-encoded response {@code staticResponse} and end this response. Any status code or headers set on this
+   * response are ignored, and nothing must have been written to it.
+   */
+  public void send(StaticHttpResponse staticResponse) {
+    if (headWritten) {
+      throw new IllegalStateException("Head already written");
+    }
+    checkWritten();
+    statusCode = staticResponse.statusCode;
+    writtenBytes = staticResponse.bodyLength();
+    writeFuture = conn.write(this, staticResponse.encode());
+    // Close the non-keep-alive connection after the write operation is done.
+    if (!keepAlive) {
+      writeFuture.addListener(ChannelFutureListener.CLOSE);
+    }
+    headWritten = written = true;
+    conn.responseComplete(this);
   }
 
   /**
@@ -309,12 +445,14 @@ public class HttpServerResponse implements WriteStream {
 
     if (!file.exists()) {
       HttpResponse response = new DefaultHttpResponse(HTTP_1_1, HttpResponseStatus.NOT_FOUND);
-      writeFuture = conn.write(response);
+      statusCode = HttpResponseStatus.NOT_FOUND.getCode();
+      writeFuture = conn.write(this, response);
     } else {
+      writtenBytes = file.length();
       HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-      response.setHeader(Names.CONTENT_LENGTH, String.valueOf(file.length()));
+      String contenttype = null;
       try {
-        String contenttype = Files.probeContentType(Paths.get(filename));
+        contenttype = Files.probeContentType(Paths.get(filename));
         if (contenttype != null) {
           response.setHeader(Names.CONTENT_TYPE, contenttype);
         }
@@ -322,9 +460,22 @@ public class HttpServerResponse implements WriteStream {
         e.printStackTrace();
       }
 
-      conn.write(response);
+      if (encoding != null && contenttype != null && ContentCompression.isCompressible(contenttype) &&
+          file.length() >= conn.getCompression().minSize) {
+        response.setHeader(Names.VARY, Names.ACCEPT_ENCODING);
+        if (encoding == ContentCompression.GZIP) {
+          File compressed = PrecompressedFiles.get(file);
+          if (compressed != null) {
+            file = compressed;
+            response.setHeader(Names.CONTENT_ENCODING, ContentCompression.GZIP);
+          }
+        }
+      }
+      response.setHeader(Names.CONTENT_LENGTH, String.valueOf(file.length()));
+
+      conn.write(this, response);
 
-      writeFuture = conn.sendFile(file);
+      writeFuture = conn.sendFile(this, file);
     }
 
     // Close the non-keep-alive connection after the write operation is done.
@@ -332,11 +483,85 @@ public class HttpServerResponse implements WriteStream {
       writeFuture.addListener(ChannelFutureListener.CLOSE);
     }
     headWritten = written = true;
-    conn.responseComplete();
+    conn.responseComplete(this);
 
     return this;
   }
 
+  /**
+   * Tell the kernel to stream {@code length} bytes of the file {@code filename}, starting at {@code offset}, directly
+   * from disk to the outgoing connection as the body of this response, and end the response. The {@code doneHandler}
+   * is called after the body has been written to the wire.<p>
+   * Unlike {@link #sendFile(String)}, the status code and headers set on this response are sent, with a
+   * {@code Content-Length} of {@code length}, so to send part of a file as partial content set {@link #statusCode} to
+   * {@code 206} and put a {@code Content-Range} header first. Nothing must have been written to the response.<p>
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public HttpServerResponse sendFile(String filename, long offset, long length, EventHandler<Void> doneHandler) {
+    checkWritten();
+    File file = new File(filename);
+    if (offset < 0 || length < 0 || offset + length > file.length()) {
+      throw new IllegalArgumentException("Range " + offset + "+" + length + " is outside file " + filename +
+          " of length " + file.length());
+    }
+    putHeader(Names.CONTENT_LENGTH, length);
+    sendFile(file, offset, length);
+    if (writeFuture != null && doneHandler != null) {
+      conn.addFuture(doneHandler, writeFuture);
+    }
+    return this;
+  }
+
+  /*
+  Send the head of this response, with its status and headers, followed by length bytes of file from offset, and end
+  the response. The Content-Length header must already have been put. The body is never compressed.
+   */
+  void sendFile(File file, long offset, long length) {
+    if (headWritten) {
+      throw new IllegalStateException("Head already written");
+    }
+    checkWritten();
+    rawBody = true;
+    writtenBytes = length;
+    writeHead();
+    writeFuture = conn.sendFile(this, file, offset, length);
+    if (writeFuture == null) {
+      //The file couldn't be opened and the head has been sent, so the client can only be told by closing
+      conn.close();
+    } else if (!keepAlive) {
+      writeFuture.addListener(ChannelFutureListener.CLOSE);
+    }
+    written = true;
+    conn.responseComplete(this);
+  }
+
+  boolean isEnded() {
+    return written;
+  }
+
+  boolean isClosed() {
+    return written || !conn.isOpen();
+  }
+
+  //Writes an encoded event, as an HTTP chunk, to the event stream
+  void writeEncoded(ChannelBuffer chunk, int bodyLength) {
+    if (!eventStream) {
+      throw new IllegalStateException("Event stream not started");
+    }
+    checkWritten();
+    writtenBytes += bodyLength;
+    writeFuture = conn.write(this, chunk);
+  }
+
+  void handleClosed() {
+    cancelHeartbeat();
+  }
+
+  //The size of the body before any compression
+  long bodyBytes() {
+    return writtenBytes;
+  }
+
   void writable() {
     if (drainHandler != null) {
       drainHandler.onEvent(null);
@@ -349,6 +574,13 @@ public class HttpServerResponse implements WriteStream {
     }
   }
 
+  private void cancelHeartbeat() {
+    if (heartbeatTimer != -1) {
+      Nodex.instance.cancelTimer(heartbeatTimer);
+      heartbeatTimer = -1;
+    }
+  }
+
   private void checkTrailer() {
     if (trailer == null) trailer = new DefaultHttpChunkTrailer();
   }
@@ -359,27 +591,49 @@ public class HttpServerResponse implements WriteStream {
     }
   }
 
+  //The key must have been interned
   private void checkContentLengthChunked(String key, Object value) {
-    if (key.equals(HttpHeaders.Names.CONTENT_LENGTH)) {
-      contentLength = Integer.parseInt(value.toString());
+    if (key == HttpHeaders.Names.CONTENT_LENGTH) {
+      contentLength = Long.parseLong(value.toString());
       chunked = false;
-    } else if (key.equals(HttpHeaders.Names.TRANSFER_ENCODING) && value.equals(HttpHeaders.Values.CHUNKED)) {
+    } else if (key == HttpHeaders.Names.TRANSFER_ENCODING && HttpHeaders.Values.CHUNKED.equalsIgnoreCase(value.toString())) {
       chunked = true;
     }
   }
 
+  private boolean shouldCompress() {
+    if (rawBody || response.containsHeader(Names.CONTENT_ENCODING) || response.containsHeader(Names.CONTENT_RANGE) ||
+        statusCode == 204 || statusCode == 304 ||
+        !ContentCompression.isCompressible(response.getHeader(Names.CONTENT_TYPE))) {
+      return false;
+    }
+    return chunked || contentLength >= conn.getCompression().minSize;
+  }
+
   private void writeHead() {
     if (!headWritten) {
       HttpResponseStatus status = statusMessage == null ? HttpResponseStatus.valueOf(statusCode) :
                                   new HttpResponseStatus(statusCode, statusMessage);
       response.setStatus(status);
-      if (chunked) {
+      if (!response.containsHeader(Names.DATE)) {
+        response.setHeader(Names.DATE, DateCache.get().date());
+      }
+      if (encoding != null && shouldCompress()) {
+        compressor = new Compressor(encoding, conn.getCompression().level);
+        response.removeHeader(Names.CONTENT_LENGTH);
+        response.setHeader(Names.CONTENT_ENCODING, encoding);
+        response.addHeader(Names.VARY, Names.ACCEPT_ENCODING);
+      }
+      if (chunked || compressor != null) {
         response.setHeader(Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
       } else if (contentLength == 0) {
         response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
       }
-      writeFuture = conn.write(response);
+      writeFuture = conn.write(this, response);
       headWritten = true;
+      if (startTime != 0) {
+        headTime = System.nanoTime();
+      }
     }
   }
 
@@ -393,8 +647,20 @@ public class HttpServerResponse implements WriteStream {
     }
 
     writeHead();
-    Object msg = chunked ? new DefaultHttpChunk(chunk) : chunk;
-    writeFuture = conn.write(msg);
+    Object msg = null;
+    if (compressor != null) {
+      //An empty chunk is the last chunk, so nothing is written unless there's some compressed data to send. The done
+      //handler is called once everything written before has gone
+      ChannelBuffer compressed = chunk.readable() ? compressor.compress(chunk) : null;
+      if (compressed != null && compressed.readable()) {
+        msg = new DefaultHttpChunk(compressed);
+      }
+    } else {
+      msg = chunked ? new DefaultHttpChunk(chunk) : chunk;
+    }
+    if (msg != null) {
+      writeFuture = conn.write(this, msg);
+    }
     if (doneHandler != null) {
       conn.addFuture(doneHandler, writeFuture);
     }
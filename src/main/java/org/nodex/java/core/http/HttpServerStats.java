@@ -0,0 +1,225 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>A point in time snapshot of the statistics of an {@link HttpServer}, returned by
+ * {@link HttpServerMetrics#snapshot}.</p>
+ *
+ * <p>The statistics are kept separately by each event loop, without any synchronization, and combined when the
+ * snapshot is taken. So the snapshot is not atomic across loops, but each loop's contribution is consistent.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class HttpServerStats {
+
+  //The most routes kept by a loop. Any others are counted together, so clients can't make us keep a route per method
+  private static final int MAX_ROUTES = 256;
+  static final String OTHER = "other";
+
+  private long connections;
+  private long requests;
+  private long reusedRequests;
+  private long inFlight;
+  private long[] loopInFlight;
+  private long lateBytesIn;
+  private final long[] statusCodes = new long[600];
+  private final Map<String, HttpRouteStats> routes = new HashMap<>();
+  //Only in snapshots
+  private HttpRouteStats all;
+
+  HttpServerStats() {
+  }
+
+  /**
+   * The number of connections accepted.
+   */
+  public long connections() {
+    return connections;
+  }
+
+  /**
+   * The number of requests received.
+   */
+  public long requests() {
+    return requests;
+  }
+
+  /**
+   * The number of requests received on a connection which had already carried a request.
+   */
+  public long reusedRequests() {
+    return reusedRequests;
+  }
+
+  /**
+   * Return the proportion of requests which reused a kept alive connection, or {@code 0} if there have been none.
+   */
+  public double keepAliveReuseRatio() {
+    return requests == 0 ? 0 : (double) reusedRequests / requests;
+  }
+
+  /**
+   * The number of requests which have been received but not yet responded to.
+   */
+  public long inFlight() {
+    return inFlight;
+  }
+
+  /**
+   * The number of requests in flight on each event loop, in no particular order.
+   */
+  public long[] inFlightPerLoop() {
+    return loopInFlight.clone();
+  }
+
+  /**
+   * The total size of the request bodies received.
+   */
+  public long bytesIn() {
+    return all.bytesIn() + lateBytesIn;
+  }
+
+  /**
+   * The total size of the response bodies sent.
+   */
+  public long bytesOut() {
+    return all.bytesOut();
+  }
+
+  /**
+   * Return the number of responses sent with status code {@code statusCode}.
+   */
+  public long statusCount(int statusCode) {
+    return statusCode < 0 || statusCode >= statusCodes.length ? 0 : statusCodes[statusCode];
+  }
+
+  /**
+   * The statistics of all responses together.
+   */
+  public HttpRouteStats all() {
+    return all;
+  }
+
+  /**
+   * The statistics of each route, by name. Requests which weren't routed by a {@link RouteMatcher} are under their
+   * method.
+   */
+  public Map<String, HttpRouteStats> routes() {
+    return Collections.unmodifiableMap(routes);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("connections=").append(connections).append(" requests=").append(requests).append(" inFlight=")
+        .append(inFlight).append(" keepAliveReuseRatio=").append(keepAliveReuseRatio()).append('\n');
+    sb.append(all).append('\n');
+    for (HttpRouteStats route : routes.values()) {
+      sb.append(route).append('\n');
+    }
+    return sb.toString();
+  }
+
+  void connected() {
+    connections++;
+  }
+
+  void requestStarted(boolean reused) {
+    requests++;
+    if (reused) {
+      reusedRequests++;
+    }
+    inFlight++;
+  }
+
+  //A request has ended without a response being sent, e.g. the connection closed
+  void requestAbandoned() {
+    inFlight--;
+  }
+
+  void requestCompleted(String route, int statusCode, long bytesIn, long bytesOut, long firstByteMicros,
+                        long lastByteMicros) {
+    inFlight--;
+    if (statusCode >= 0 && statusCode < statusCodes.length) {
+      statusCodes[statusCode]++;
+    }
+    HttpRouteStats stats = routes.get(route);
+    if (stats == null) {
+      if (routes.size() >= MAX_ROUTES) {
+        route = OTHER;
+        stats = routes.get(route);
+      }
+      if (stats == null) {
+        stats = new HttpRouteStats(route);
+        routes.put(route, stats);
+      }
+    }
+    stats.record(statusCode, bytesIn, bytesOut, firstByteMicros, lastByteMicros);
+  }
+
+  //Request body received after the response was sent
+  void bytesIn(long bytes) {
+    lateBytesIn += bytes;
+  }
+
+  //A snapshot of the stats of one loop
+  HttpServerStats copy() {
+    HttpServerStats copy = new HttpServerStats();
+    copy.all = new HttpRouteStats("all");
+    copy.loopInFlight = new long[] {inFlight};
+    copy.addCounts(this);
+    for (HttpRouteStats route : routes.values()) {
+      copy.routes.put(route.name(), route.copy());
+      copy.all.add(route);
+    }
+    return copy;
+  }
+
+  //Combine with the snapshot of another loop
+  HttpServerStats add(HttpServerStats other) {
+    addCounts(other);
+    long[] combined = new long[loopInFlight.length + other.loopInFlight.length];
+    System.arraycopy(loopInFlight, 0, combined, 0, loopInFlight.length);
+    System.arraycopy(other.loopInFlight, 0, combined, loopInFlight.length, other.loopInFlight.length);
+    loopInFlight = combined;
+    for (HttpRouteStats route : other.routes.values()) {
+      HttpRouteStats mine = routes.get(route.name());
+      if (mine == null) {
+        routes.put(route.name(), route);
+      } else {
+        mine.add(route);
+      }
+    }
+    all.add(other.all);
+    return this;
+  }
+
+  private void addCounts(HttpServerStats other) {
+    connections += other.connections;
+    requests += other.requests;
+    reusedRequests += other.reusedRequests;
+    inFlight += other.inFlight;
+    lateBytesIn += other.lateBytesIn;
+    for (int i = 0; i < statusCodes.length; i++) {
+      statusCodes[i] += other.statusCodes[i];
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+/**
+ * <p>A histogram of latencies in microseconds, with a relative error of about 3%.</p>
+ *
+ * <p>Like an HDR histogram, values below 64 each have their own bucket, and above that each power of two is split into
+ * 32 buckets of equal width, so the buckets are a fixed array and recording a value is a few shifts and an increment.
+ * Values above about 12 days are counted in the last bucket.</p>
+ *
+ * <p>The instances returned by {@link HttpServerStats} are snapshots and do not change.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int LINEAR = SUB_BUCKETS * 2;
+  private static final int MAX_EXPONENT = 40;
+  //Plus one for values of 2^MAX_EXPONENT and above
+  private static final int BUCKETS = LINEAR + (MAX_EXPONENT - SUB_BITS - 1) * SUB_BUCKETS + 1;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  LatencyHistogram() {
+  }
+
+  /**
+   * The number of values recorded.
+   */
+  public long count() {
+    return count;
+  }
+
+  /**
+   * The smallest value recorded, or {@code 0} if there are none.
+   */
+  public long min() {
+    return count == 0 ? 0 : min;
+  }
+
+  /**
+   * The largest value recorded.
+   */
+  public long max() {
+    return max;
+  }
+
+  /**
+   * The mean of the values recorded, or {@code 0} if there are none.
+   */
+  public double mean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Return the value below which {@code percentile} percent of the values fall, for example {@code 99.9}. The result
+   * is the upper end of the bucket holding that value, so it is never less than the exact value.
+   */
+  public long percentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100");
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+
+  public String toString() {
+    return "count=" + count + " min=" + min() + " mean=" + (long) mean() + " p50=" + percentile(50) + " p90=" +
+        percentile(90) + " p99=" + percentile(99) + " p99.9=" + percentile(99.9) + " max=" + max;
+  }
+
+  void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    counts[bucket(micros)]++;
+    count++;
+    sum += micros;
+    if (micros < min) {
+      min = micros;
+    }
+    if (micros > max) {
+      max = micros;
+    }
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  LatencyHistogram copy() {
+    LatencyHistogram copy = new LatencyHistogram();
+    copy.add(this);
+    return copy;
+  }
+
+  private static int bucket(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    //The top SUB_BITS bits after the leading one pick the bucket within the power of two
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < LINEAR) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+    int sub = (bucket - LINEAR) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BITS);
+    return (1L << exponent) + (sub + 1) * width - 1;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.internal.NodexInternal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The part of a broadcast on one event loop, used by {@link WebsocketGroup} and {@link EventStream}. Items can be
+ * added from any thread. The loop is only scheduled once for however many items are added before it runs, and it is
+ * given all of them at once, so they can be written to each of its members as a single write.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+abstract class LoopFanOut<T> implements Runnable {
+
+  final long contextID;
+  private final Queue<T> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  LoopFanOut(long contextID) {
+    this.contextID = contextID;
+  }
+
+  /**
+   * Called on the loop, in the loop's context, with the items added since it was last called, in the order they were
+   * added
+   */
+  abstract void deliver(List<T> items);
+
+  void add(T item) {
+    pending.add(item);
+    if (scheduled.compareAndSet(false, true)) {
+      NodexInternal.instance.executeOnContext(contextID, this);
+    }
+  }
+
+  public void run() {
+    //Cleared first so an item added while we are draining schedules another run
+    scheduled.set(false);
+    final List<T> items = new ArrayList<>();
+    T item;
+    while ((item = pending.poll()) != null) {
+      items.add(item);
+    }
+    if (!items.isEmpty()) {
+      NodexInternal.instance.runInContext(contextID, new Runnable() {
+        public void run() {
+          deliver(items);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.SimpleEventHandler;
+import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.parsetools.RecordParser;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>A streaming parser for {@code multipart/form-data} request bodies, as sent by browsers for forms with file
+ * uploads.</p>
+ *
+ * <p>Each part of the body is emitted to the part handler as a {@link MultipartPart} as soon as its headers have been
+ * read, and the content of the part is then delivered through the part's data handler as it arrives. No more than a
+ * few bytes more than the boundary are held back at any time, so memory use does not depend on the size of the body.
+ * Pausing a part pauses the request, so a part can be pumped to an {@link org.nodex.java.core.file.AsyncFile} with flow
+ * control:</p>
+ * <pre>
+ * new MultipartParser(req, new EventHandler&lt;MultipartPart&gt;() {
+ *   public void onEvent(final MultipartPart part) {
+ *     part.pause();
+ *     FileSystem.instance.open("uploads/" + id, new CompletionHandler&lt;AsyncFile&gt;() {
+ *       public void onEvent(Completion&lt;AsyncFile&gt; completion) {
+ *         new Pump(part, completion.result.getWriteStream()).start();
+ *         part.resume();
+ *       }
+ *     });
+ *   }
+ * });
+ * </pre>
+ *
+ * <p>The parser sets the data handler, end handler and exception handler of the request. If the body is malformed the
+ * exception handler of the parser, and of the current part, is called and the rest of the body is ignored.</p>
+ *
+ * <p>Instances of this class must only be used from the event loop of the request.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class MultipartParser {
+
+  /**
+   * The default maximum size of the headers of a part, in bytes
+   */
+  public static final int DEFAULT_MAX_HEADER_SIZE = 8 * 1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+  private static final int[] HEADER_END_SKIP = skipTable(HEADER_END);
+
+  private enum State {PREAMBLE, AFTER_BOUNDARY, HEADERS, BODY, EPILOGUE, FAILED}
+
+  private final HttpServerRequest request;
+  private final EventHandler<MultipartPart> partHandler;
+  //A CRLF, two dashes and the boundary
+  private final byte[] delimiter;
+  private final int[] delimiterSkip;
+  //Data which has been read but not parsed, either because it might be part of a delimiter or because we're paused
+  private final ChannelBuffer pending = ChannelBuffers.dynamicBuffer();
+  private State state = State.PREAMBLE;
+  private MultipartPart part;
+  private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+  private boolean paused;
+  private boolean parsing;
+  private boolean requestEnded;
+  private EventHandler<Void> endHandler;
+  private EventHandler<Exception> exceptionHandler;
+
+  /**
+   * Create a new parser for the body of {@code request}. The request must have a {@code multipart} content type with a
+   * boundary. Each part is passed to {@code partHandler} once its headers have been read.
+   */
+  public MultipartParser(HttpServerRequest request, EventHandler<MultipartPart> partHandler) {
+    String boundary = boundary(request.getHeader("Content-Type"));
+    if (boundary == null) {
+      throw new IllegalArgumentException("Request is not multipart or has no boundary");
+    }
+    this.request = request;
+    this.partHandler = partHandler;
+    this.delimiter = RecordParser.latin1StringToBytes("\r\n--" + boundary);
+    this.delimiterSkip = skipTable(delimiter);
+    //The first boundary doesn't have to be preceded by a CRLF
+    pending.writeByte('\r');
+    pending.writeByte('\n');
+
+    request.dataHandler(new EventHandler<Buffer>() {
+      public void onEvent(Buffer data) {
+        handleData(data.getChannelBuffer().duplicate());
+      }
+    });
+    request.endHandler(new SimpleEventHandler() {
+      public void onEvent() {
+        requestEnded = true;
+        checkEnd();
+      }
+    });
+    request.exceptionHandler(new EventHandler<Exception>() {
+      public void onEvent(Exception e) {
+        fail(e);
+      }
+    });
+  }
+
+  /**
+   * Set the maximum size of the headers of a part in bytes. The default is {@link #DEFAULT_MAX_HEADER_SIZE}.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public MultipartParser setMaxHeaderSize(int maxHeaderSize) {
+    if (maxHeaderSize < 1) {
+      throw new IllegalArgumentException("maxHeaderSize must be >= 1");
+    }
+    this.maxHeaderSize = maxHeaderSize;
+    return this;
+  }
+
+  /**
+   * Set a handler to be called once the whole body has been parsed, after the end handler of the last part.
+   */
+  public void endHandler(EventHandler<Void> handler) {
+    this.endHandler = handler;
+  }
+
+  /**
+   * Set a handler to be called if the body is malformed or the request fails.
+   */
+  public void exceptionHandler(EventHandler<Exception> handler) {
+    this.exceptionHandler = handler;
+  }
+
+  void pause() {
+    if (!paused) {
+      paused = true;
+      request.pause();
+    }
+  }
+
+  void resume() {
+    if (paused) {
+      paused = false;
+      request.resume();
+      //If we're resumed from inside a handler the parse in progress carries on by itself
+      if (!parsing && pending.readable()) {
+        parse(pending);
+        pending.discardReadBytes();
+      }
+      checkEnd();
+    }
+  }
+
+  private void handleData(ChannelBuffer data) {
+    if (state == State.EPILOGUE || state == State.FAILED) {
+      return;
+    }
+    if (paused || pending.readable()) {
+      pending.writeBytes(data);
+      if (!paused) {
+        parse(pending);
+        pending.discardReadBytes();
+      }
+    } else {
+      //Parse straight from the data read, and only copy what's left over
+      parse(data);
+      pending.writeBytes(data);
+    }
+  }
+
+  private void checkEnd() {
+    if (requestEnded && !paused && !parsing) {
+      requestEnded = false;
+      if (state == State.EPILOGUE) {
+        if (endHandler != null) {
+          endHandler.onEvent(null);
+        }
+      } else if (state != State.FAILED) {
+        fail(new IOException("Multipart body ended before the closing boundary"));
+      }
+    }
+  }
+
+  private void parse(ChannelBuffer in) {
+    parsing = true;
+    try {
+      while (!paused && in.readable()) {
+        if (!parseNext(in)) {
+          break;
+        }
+      }
+    } finally {
+      parsing = false;
+    }
+  }
+
+  //Returns false if more data is needed
+  private boolean parseNext(ChannelBuffer in) {
+    switch (state) {
+      case PREAMBLE: {
+        int pos = indexOf(in, delimiter, delimiterSkip);
+        if (pos == -1) {
+          in.skipBytes(Math.max(0, in.readableBytes() - (delimiter.length - 1)));
+          return false;
+        }
+        in.readerIndex(pos + delimiter.length);
+        state = State.AFTER_BOUNDARY;
+        return true;
+      }
+      case AFTER_BOUNDARY: {
+        if (in.readableBytes() < 2) {
+          return false;
+        }
+        byte b1 = in.readByte();
+        byte b2 = in.readByte();
+        if (b1 == '-' && b2 == '-') {
+          state = State.EPILOGUE;
+        } else if (b1 == '\r' && b2 == '\n') {
+          state = State.HEADERS;
+        } else {
+          fail(new IOException("Malformed multipart boundary"));
+        }
+        return true;
+      }
+      case HEADERS: {
+        int pos = indexOf(in, HEADER_END, HEADER_END_SKIP);
+        if (pos == -1) {
+          if (in.readableBytes() > maxHeaderSize) {
+            fail(new IOException("Multipart headers are larger than " + maxHeaderSize + " bytes"));
+            return true;
+          }
+          return false;
+        }
+        String headers = in.toString(in.readerIndex(), pos - in.readerIndex(), UTF8);
+        in.readerIndex(pos + HEADER_END.length);
+        state = State.BODY;
+        part = createPart(headers);
+        partHandler.onEvent(part);
+        return true;
+      }
+      case BODY: {
+        int pos = indexOf(in, delimiter, delimiterSkip);
+        if (pos == -1) {
+          //Hold back just enough to spot a delimiter which is split over reads
+          int safe = in.readableBytes() - (delimiter.length - 1);
+          if (safe > 0) {
+            part.handleData(readData(in, safe));
+          }
+          return false;
+        }
+        if (pos > in.readerIndex()) {
+          part.handleData(readData(in, pos - in.readerIndex()));
+        }
+        in.readerIndex(pos + delimiter.length);
+        state = State.AFTER_BOUNDARY;
+        MultipartPart p = part;
+        part = null;
+        p.handleEnd();
+        return true;
+      }
+      default:
+        in.skipBytes(in.readableBytes());
+        return false;
+    }
+  }
+
+  //Data parsed straight from a read is passed on without copying it. The pending buffer is compacted and reused, so
+  //data parsed from it is copied
+  private Buffer readData(ChannelBuffer in, int length) {
+    ChannelBuffer data = in.readSlice(length);
+    return in == pending ? new Buffer(data) : Buffer.wrap(data);
+  }
+
+  private void fail(Exception e) {
+    if (state == State.FAILED) {
+      return;
+    }
+    state = State.FAILED;
+    pending.clear();
+    MultipartPart p = part;
+    part = null;
+    if (p != null) {
+      p.handleException(e);
+    }
+    if (exceptionHandler != null) {
+      exceptionHandler.onEvent(e);
+    }
+    if (paused) {
+      //Let the rest of the body be read and dropped
+      paused = false;
+      request.resume();
+    }
+  }
+
+  private MultipartPart createPart(String str) {
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (String line : str.split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+      }
+    }
+    String disposition = headers.get("Content-Disposition");
+    String name = null;
+    String filename = null;
+    if (disposition != null) {
+      name = param(disposition, "name");
+      filename = param(disposition, "filename");
+    }
+    return new MultipartPart(this, headers, name, filename);
+  }
+
+  /**
+   * Return the boundary from a {@code multipart} content type, or null if it isn't multipart or has no boundary
+   */
+  static String boundary(String contentType) {
+    if (contentType == null || !contentType.regionMatches(true, 0, "multipart/", 0, 10)) {
+      return null;
+    }
+    String boundary = param(contentType, "boundary");
+    return boundary == null || boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+  }
+
+  /**
+   * Return the value of the parameter {@code name} in a header value such as
+   * {@code form-data; name="field"; filename="a.txt"}, or null if there is no such parameter
+   */
+  static String param(String header, String name) {
+    int pos = header.indexOf(';');
+    while (pos != -1) {
+      int start = pos + 1;
+      while (start < header.length() && header.charAt(start) == ' ') {
+        start++;
+      }
+      int eq = header.indexOf('=', start);
+      if (eq == -1) {
+        return null;
+      }
+      boolean matches = header.substring(start, eq).trim().equalsIgnoreCase(name);
+      int i = eq + 1;
+      String value;
+      if (i < header.length() && header.charAt(i) == '"') {
+        StringBuilder sb = new StringBuilder();
+        for (i++; i < header.length() && header.charAt(i) != '"'; i++) {
+          char c = header.charAt(i);
+          if (c == '\\' && i + 1 < header.length()) {
+            c = header.charAt(++i);
+          }
+          sb.append(c);
+        }
+        value = sb.toString();
+        pos = header.indexOf(';', i);
+      } else {
+        pos = header.indexOf(';', i);
+        value = header.substring(i, pos == -1 ? header.length() : pos).trim();
+      }
+      if (matches) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  //Boyer-Moore-Horspool, so the body is mostly scanned a delimiter length at a time
+  private static int indexOf(ChannelBuffer in, byte[] pattern, int[] skip) {
+    int last = pattern.length - 1;
+    int end = in.writerIndex() - last;
+    int i = in.readerIndex();
+    while (i < end) {
+      int j = last;
+      while (in.getByte(i + j) == pattern[j]) {
+        if (j == 0) {
+          return i;
+        }
+        j--;
+      }
+      i += skip[in.getByte(i + last) & 0xFF];
+    }
+    return -1;
+  }
+
+  private static int[] skipTable(byte[] pattern) {
+    int[] skip = new int[256];
+    for (int i = 0; i < skip.length; i++) {
+      skip[i] = pattern.length;
+    }
+    for (int i = 0; i < pattern.length - 1; i++) {
+      skip[pattern[i] & 0xFF] = pattern.length - 1 - i;
+    }
+    return skip;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.streams.ReadStream;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * <p>A part of a {@code multipart/form-data} request body, as emitted by a {@link MultipartParser}.</p>
+ *
+ * <p>The headers of the part are available as soon as it is emitted, and its content is read as a {@link ReadStream},
+ * so a file upload can be pumped straight to an {@link org.nodex.java.core.file.AsyncFile} with a
+ * {@link org.nodex.java.core.streams.Pump}. Pausing a part pauses the whole request, so no more data is read from the
+ * wire until it is resumed.</p>
+ *
+ * <p>Instances of this class must only be used from the event loop of the request they belong to.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class MultipartPart implements ReadStream {
+
+  private final MultipartParser parser;
+  private final Map<String, String> headers;
+  private EventHandler<Buffer> dataHandler;
+  private EventHandler<Void> endHandler;
+  private EventHandler<Exception> exceptionHandler;
+
+  /**
+   * The name of the form field, from the {@code Content-Disposition} header, or null if there is none
+   */
+  public final String name;
+
+  /**
+   * The name of the uploaded file, from the {@code Content-Disposition} header, or null if this part is not a file
+   */
+  public final String filename;
+
+  /**
+   * The {@code Content-Type} of the part, or null if there is none
+   */
+  public final String contentType;
+
+  MultipartPart(MultipartParser parser, Map<String, String> headers, String name, String filename) {
+    this.parser = parser;
+    this.headers = Collections.unmodifiableMap(headers);
+    this.name = name;
+    this.filename = filename;
+    this.contentType = headers.get("Content-Type");
+  }
+
+  /**
+   * Return the header of the part with the name {@code key}, or null if there is no such header. Names are
+   * looked up ignoring case.
+   */
+  public String getHeader(String key) {
+    return headers.get(key);
+  }
+
+  /**
+   * Return a read-only map of all the headers of the part. Keys are looked up ignoring case.
+   */
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * Is this part a file upload?
+   */
+  public boolean isFile() {
+    return filename != null;
+  }
+
+  public void dataHandler(EventHandler<Buffer> handler) {
+    this.dataHandler = handler;
+  }
+
+  /**
+   * Pause the part. This pauses the request the part belongs to.
+   */
+  public void pause() {
+    parser.pause();
+  }
+
+  /**
+   * Resume the part, and the request it belongs to.
+   */
+  public void resume() {
+    parser.resume();
+  }
+
+  public void exceptionHandler(EventHandler<Exception> handler) {
+    this.exceptionHandler = handler;
+  }
+
+  public void endHandler(EventHandler<Void> handler) {
+    this.endHandler = handler;
+  }
+
+  void handleData(Buffer data) {
+    if (dataHandler != null) {
+      dataHandler.onEvent(data);
+    }
+  }
+
+  void handleEnd() {
+    if (endHandler != null) {
+      endHandler.onEvent(null);
+    }
+  }
+
+  void handleException(Exception e) {
+    if (exceptionHandler != null) {
+      exceptionHandler.onEvent(e);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.internal.NodexInternal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of gzipped copies of files served with {@link HttpServerResponse#sendFile}, so each file is compressed once
+ * rather than on every request.<p>
+ * The first time a file is asked for, it is compressed on the background pool and the caller sends the file
+ * uncompressed. Once the compressed copy is ready it is used until the file's length or modification time changes.
+ * Copies are kept for at most {@value #MAX_ENTRIES} files. When there are more, the least recently used copy is
+ * deleted, as is a copy which is out of date. The copies are kept in a temporary directory which is deleted when the
+ * JVM exits.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class PrecompressedFiles {
+
+  private static final int MAX_ENTRIES = 1024;
+
+  private static final class Entry {
+    final long length;
+    final long lastModified;
+    volatile File compressed;
+    //Set once the entry has been replaced or evicted. Guarded by this
+    private boolean discarded;
+
+    Entry(long length, long lastModified) {
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    synchronized void completed(File file) {
+      if (discarded) {
+        file.delete();
+      } else {
+        compressed = file;
+      }
+    }
+
+    //Deletes the copy, or if it is still being written, has it deleted once it's done
+    synchronized void discard() {
+      discarded = true;
+      if (compressed != null) {
+        compressed.delete();
+        compressed = null;
+      }
+    }
+  }
+
+  //In access order, so the eldest entry is the least recently used. Guarded by itself
+  private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      if (size() > MAX_ENTRIES) {
+        eldest.getValue().discard();
+        return true;
+      }
+      return false;
+    }
+  };
+  private static File dir;
+
+  private PrecompressedFiles() {
+  }
+
+  /**
+   * Return the gzipped copy of {@code file}, or null if it is not ready yet.
+   */
+  static File get(final File file) {
+    final String path = file.getAbsolutePath();
+    final long length = file.length();
+    final long lastModified = file.lastModified();
+    final Entry newEntry = new Entry(length, lastModified);
+    synchronized (entries) {
+      Entry entry = entries.get(path);
+      if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+        return entry.compressed;
+      }
+      entries.put(path, newEntry);
+      if (entry != null) {
+        entry.discard();
+      }
+    }
+    NodexInternal.instance.getBackgroundPool().execute(new Runnable() {
+      public void run() {
+        try {
+          newEntry.completed(compress(file));
+        } catch (IOException e) {
+          //Leave the entry without a compressed copy, so the file is sent uncompressed
+          e.printStackTrace(System.err);
+        }
+      }
+    });
+    return null;
+  }
+
+  private static File compress(File file) throws IOException {
+    File target = File.createTempFile("nodex", ".gz", dir());
+    try (InputStream in = new FileInputStream(file);
+         OutputStream out = new GZIPOutputStream(new FileOutputStream(target), 64 * 1024) {
+           {
+             def.setLevel(Deflater.BEST_COMPRESSION);
+           }
+         }) {
+      byte[] buff = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buff)) != -1) {
+        out.write(buff, 0, n);
+      }
+    }
+    return target;
+  }
+
+  private static synchronized File dir() throws IOException {
+    if (dir == null) {
+      final File created = Files.createTempDirectory("nodex-precompressed").toFile();
+      //A single hook for the whole directory, since every File.deleteOnExit is remembered until the JVM exits
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          File[] files = created.listFiles();
+          if (files != null) {
+            for (File file : files) {
+              file.delete();
+            }
+          }
+          created.delete();
+        }
+      });
+      dir = created;
+    }
+    return dir;
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.shared.LoopLocal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Routes HTTP requests to different handlers depending on the request method and path.</p>
+ *
+ * <p>A {@code RouteMatcher} is itself a request handler, so it can be passed to
+ * {@link HttpServer#requestHandler(org.nodex.java.core.EventHandler)}. Handlers are registered with a path pattern
+ * for a particular HTTP method, using methods such as {@link #get} and {@link #post}, or for any method using
+ * {@link #all}. A pattern is made up of:</p>
+ * <ul>
+ *   <li>Literal text, which must match the path exactly, for example {@code /animals/cats}</li>
+ *   <li>Named parameters, which start with a {@code :} and match one path segment, for example {@code /animals/:id}.
+ *   The value of the segment can be retrieved with {@link HttpServerRequest#getParam}</li>
+ *   <li>A trailing {@code *}, which matches the rest of the path, including nothing at all, for example
+ *   {@code /static/*}. The value of the rest of the path can be retrieved as the parameter {@code *}</li>
+ * </ul>
+ *
+ * <p>If more than one pattern matches a path, literal text is preferred over a parameter, and a parameter over a
+ * wildcard, segment by segment. Routes for the request method are tried before routes registered with
+ * {@link #all}. If no route matches, the handler set with {@link #noMatch} is called, which by default sends a 404.</p>
+ *
+ * <p>The patterns are compiled into a radix tree, so the cost of matching a request depends on the length of its path,
+ * not the number of routes, and matching allocates nothing apart from the values of any parameters, which are only
+ * extracted from the path when asked for.</p>
+ *
+ * <p>Routes should be registered before the server starts listening. Once it is listening, an instance of this class
+ * can be used from any event loop.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class RouteMatcher implements EventHandler<HttpServerRequest> {
+
+  private static final String WILDCARD = "*";
+
+  private final Map<String, Node> methodRoutes = new HashMap<>();
+  private final Node anyRoutes = new Node("");
+  private int maxParams;
+  private EventHandler<HttpServerRequest> noMatchHandler;
+
+  //Per loop scratch space for the start and end of each parameter while matching, so matching doesn't allocate. It's
+  //shared by all matchers, since the positions are copied out before a handler is called
+  private static final LoopLocal<int[]> positions = new LoopLocal<>();
+
+  public void onEvent(HttpServerRequest request) {
+    int[] pos = positions.get();
+    if (pos == null || pos.length < maxParams * 2) {
+      pos = new int[maxParams * 2];
+      positions.set(pos);
+    }
+    String path = request.path;
+    Route route = null;
+    Node root = methodRoutes.get(request.method);
+    if (root != null) {
+      route = match(root, path, 0, 0, pos);
+    }
+    if (route == null) {
+      route = match(anyRoutes, path, 0, 0, pos);
+    }
+    if (route != null) {
+      if (route.paramNames.length != 0) {
+        int[] params = new int[route.paramNames.length * 2];
+        System.arraycopy(pos, 0, params, 0, params.length);
+        request.setPathParams(route.paramNames, params);
+      }
+      request.response.route = route.name;
+      route.handler.onEvent(request);
+    } else if (noMatchHandler != null) {
+      noMatchHandler.onEvent(request);
+    } else {
+      request.response.statusCode = 404;
+      request.response.end();
+    }
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP GET
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher get(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("GET", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP PUT
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher put(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("PUT", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP POST
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher post(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("POST", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP DELETE
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher delete(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("DELETE", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP OPTIONS
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher options(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("OPTIONS", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP HEAD
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher head(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("HEAD", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP TRACE
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher trace(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("TRACE", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP CONNECT
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher connect(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("CONNECT", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching HTTP PATCH
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher patch(String pattern, EventHandler<HttpServerRequest> handler) {
+    return addRoute("PATCH", pattern, handler);
+  }
+
+  /**
+   * Specify a handler that will be called for a matching request with any HTTP method, if there is no matching route
+   * for the specific method.
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher all(String pattern, EventHandler<HttpServerRequest> handler) {
+    addRoute(anyRoutes, "ALL", pattern, handler);
+    return this;
+  }
+
+  /**
+   * Specify a handler that will be called when no route matches a request. If no handler is specified a 404 is sent.
+   * @return a reference to this, so methods can be chained.
+   */
+  public RouteMatcher noMatch(EventHandler<HttpServerRequest> handler) {
+    this.noMatchHandler = handler;
+    return this;
+  }
+
+  private RouteMatcher addRoute(String method, String pattern, EventHandler<HttpServerRequest> handler) {
+    Node root = methodRoutes.get(method);
+    if (root == null) {
+      root = new Node("");
+      methodRoutes.put(method, root);
+    }
+    addRoute(root, method, pattern, handler);
+    return this;
+  }
+
+  /*
+  Compile the pattern into the tree. Each run of literal text becomes one or more literal nodes, splitting existing
+  nodes where they share a prefix, each parameter becomes the parameter child of the node before it, and a trailing
+  wildcard is stored on the node before it. If the same pattern is added twice, the later handler replaces the earlier.
+   */
+  private void addRoute(Node root, String method, String pattern, EventHandler<HttpServerRequest> handler) {
+    if (pattern == null || !pattern.startsWith("/")) {
+      throw new IllegalArgumentException("Pattern must start with /: " + pattern);
+    }
+    List<String> names = new ArrayList<>();
+    Node node = root;
+    int pos = 0;
+    int len = pattern.length();
+    boolean wildcard = false;
+    while (pos < len) {
+      char c = pattern.charAt(pos);
+      if (c == ':') {
+        int end = pattern.indexOf('/', pos);
+        if (end == -1) {
+          end = len;
+        }
+        if (end == pos + 1) {
+          throw new IllegalArgumentException("Parameter with no name in pattern: " + pattern);
+        }
+        names.add(pattern.substring(pos + 1, end));
+        if (node.param == null) {
+          node.param = new Node("");
+        }
+        node = node.param;
+        pos = end;
+      } else if (c == '*') {
+        if (pos != len - 1) {
+          throw new IllegalArgumentException("Wildcard must be at the end of pattern: " + pattern);
+        }
+        names.add(WILDCARD);
+        wildcard = true;
+        pos = len;
+      } else {
+        int end = pos;
+        while (end < len && pattern.charAt(end) != ':' && pattern.charAt(end) != '*') {
+          end++;
+        }
+        node = node.insertLiteral(pattern.substring(pos, end));
+        pos = end;
+      }
+    }
+    Route route = new Route(method + " " + pattern, handler, names.toArray(new String[names.size()]));
+    if (wildcard) {
+      node.wildcardRoute = route;
+    } else {
+      node.route = route;
+    }
+    maxParams = Math.max(maxParams, route.paramNames.length);
+  }
+
+  /*
+  Match the rest of the path from pos, at a node whose label has already been matched. Literal children are tried
+  first, then the parameter child, then a wildcard, backtracking if a branch doesn't lead to a route.
+   */
+  private static Route match(Node node, String path, int pos, int numParams, int[] positions) {
+    int len = path.length();
+    if (pos == len && node.route != null) {
+      return node.route;
+    }
+    if (pos < len) {
+      Node child = node.literalChild(path.charAt(pos));
+      if (child != null && path.regionMatches(pos, child.label, 0, child.label.length())) {
+        Route route = match(child, path, pos + child.label.length(), numParams, positions);
+        if (route != null) {
+          return route;
+        }
+      }
+      if (node.param != null && path.charAt(pos) != '/') {
+        int end = path.indexOf('/', pos);
+        if (end == -1) {
+          end = len;
+        }
+        positions[numParams * 2] = pos;
+        positions[numParams * 2 + 1] = end;
+        Route route = match(node.param, path, end, numParams + 1, positions);
+        if (route != null) {
+          return route;
+        }
+      }
+    }
+    if (node.wildcardRoute != null) {
+      positions[numParams * 2] = pos;
+      positions[numParams * 2 + 1] = len;
+      return node.wildcardRoute;
+    }
+    return null;
+  }
+
+  private static final class Route {
+    //The name metrics are recorded under
+    final String name;
+    final EventHandler<HttpServerRequest> handler;
+    final String[] paramNames;
+
+    Route(String name, EventHandler<HttpServerRequest> handler, String[] paramNames) {
+      this.name = name;
+      this.handler = handler;
+      this.paramNames = paramNames;
+    }
+  }
+
+  private static final class Node {
+    //The literal text matched by this node. Empty for the root and parameter nodes
+    String label;
+    //Literal children, no two of which have labels starting with the same character
+    Node[] children = new Node[0];
+    Node param;
+    Route route;
+    Route wildcardRoute;
+
+    Node(String label) {
+      this.label = label;
+    }
+
+    Node literalChild(char c) {
+      for (Node child : children) {
+        if (child.label.charAt(0) == c) {
+          return child;
+        }
+      }
+      return null;
+    }
+
+    //Return the node reached by matching text from this node, creating and splitting nodes as necessary
+    Node insertLiteral(String text) {
+      Node child = literalChild(text.charAt(0));
+      if (child == null) {
+        child = new Node(text);
+        addChild(child);
+        return child;
+      }
+      int common = 0;
+      int max = Math.min(text.length(), child.label.length());
+      while (common < max && text.charAt(common) == child.label.charAt(common)) {
+        common++;
+      }
+      if (common < child.label.length()) {
+        //Split the child so its label is the common prefix
+        Node rest = new Node(child.label.substring(common));
+        rest.children = child.children;
+        rest.param = child.param;
+        rest.route = child.route;
+        rest.wildcardRoute = child.wildcardRoute;
+        child.label = child.label.substring(0, common);
+        child.children = new Node[] {rest};
+        child.param = null;
+        child.route = null;
+        child.wildcardRoute = null;
+      }
+      if (common == text.length()) {
+        return child;
+      }
+      return child.insertLiteral(text.substring(common));
+    }
+
+    private void addChild(Node child) {
+      Node[] copy = new Node[children.length + 1];
+      System.arraycopy(children, 0, copy, 0, children.length);
+      copy[children.length] = child;
+      children = copy;
+    }
+  }
+}
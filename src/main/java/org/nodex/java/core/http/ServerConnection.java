@@ -19,6 +19,8 @@ package org.nodex.java.core.http;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.websocket.WebSocketFrame;
@@ -26,27 +28,54 @@ import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.Nodex;
 import org.nodex.java.core.SimpleEventHandler;
 import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.internal.ConnectionTimeouts;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.util.LinkedList;
 import java.util.Queue;
 
+/**
+ * <p>A server side HTTP connection.</p>
+ *
+ * <p>Pipelined requests are dispatched to the request handler as soon as they arrive, up to the pipelining depth. The
+ * responses to them are kept in request order. Only the response to the oldest outstanding request writes to the
+ * channel, the others hold their writes until all the responses before them have ended.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
 class ServerConnection extends AbstractConnection {
 
   private static final int CHANNEL_PAUSE_QUEUE_SIZE = 5;
 
+  private final int pipeliningDepth;
+  private final ContentCompression compression;
+  //Null if the server doesn't record metrics
+  private final HttpServerMetrics metrics;
+  private long requestCount;
   private EventHandler<HttpServerRequest> requestHandler;
   private EventHandler<Websocket> wsHandler;
   private HttpServerRequest currentRequest;
-  private boolean pendingResponse;
+  //Responses which have not yet been written to the channel, in request order
+  private final Queue<HttpServerResponse> responses = new LinkedList<>();
   private Websocket ws;
   private boolean channelPaused;
   private boolean paused;
   private boolean sentCheck;
   private final Queue<Object> pending = new LinkedList<>();
+  //Null if the server has no timeouts
+  private final ConnectionTimeouts timeouts;
 
-  ServerConnection(Channel channel, long contextID, Thread th) {
+  ServerConnection(Channel channel, long contextID, Thread th, int pipeliningDepth,
+                   ContentCompression compression, HttpServerMetrics metrics) {
     super(channel, contextID, th);
+    this.pipeliningDepth = pipeliningDepth;
+    this.compression = compression;
+    this.metrics = metrics;
+    if (metrics != null) {
+      metrics.local().connected();
+    }
+    this.timeouts = (ConnectionTimeouts) channel.getPipeline().get("timeouts");
   }
 
   @Override
@@ -67,8 +96,15 @@ class ServerConnection extends AbstractConnection {
   }
 
   void handleMessage(Object msg) {
-    if (paused || (msg instanceof HttpRequest && pendingResponse) || !pending.isEmpty()) {
-      //We queue requests if paused or a request is in progress to prevent responses being written in the wrong order
+    if (timeouts != null) {
+      if (msg instanceof HttpRequest) {
+        timeouts.headersRead(((HttpRequest) msg).isChunked());
+      } else if (msg instanceof HttpChunk && ((HttpChunk) msg).isLast()) {
+        timeouts.bodyRead();
+      }
+    }
+    if (paused || (msg instanceof HttpRequest && responses.size() >= pipeliningDepth) || !pending.isEmpty()) {
+      //We queue requests if paused or too many responses are outstanding
       pending.add(msg);
 
       if (pending.size() == CHANNEL_PAUSE_QUEUE_SIZE) {
@@ -82,11 +118,70 @@ class ServerConnection extends AbstractConnection {
     }
   }
 
-  void responseComplete() {
-    pendingResponse = false;
+  ChannelFuture write(HttpServerResponse resp, Object msg) {
+    if (resp == responses.peek()) {
+      return channel.write(msg);
+    } else {
+      return defer(resp, msg);
+    }
+  }
+
+  ChannelFuture sendFile(HttpServerResponse resp, File file) {
+    return sendFile(resp, file, 0, file.length());
+  }
+
+  ChannelFuture sendFile(HttpServerResponse resp, File file, long offset, long length) {
+    if (resp == responses.peek()) {
+      return sendFile(file, offset, length);
+    } else {
+      return defer(resp, new FileRange(file, offset, length));
+    }
+  }
+
+  boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  /*
+  A response which can't write yet is considered full, so anything pumping to it waits for the drain handler to be
+  called when it can
+   */
+  boolean writeQueueFull(HttpServerResponse resp) {
+    return resp != responses.peek() || writeQueueFull();
+  }
+
+  void responseComplete(HttpServerResponse resp) {
+    if (resp.startTime != 0) {
+      record(resp);
+    }
+    if (resp == responses.peek()) {
+      responses.poll();
+      //Write out any responses which were waiting for this one
+      HttpServerResponse next;
+      while ((next = responses.peek()) != null) {
+        flushDeferred(next);
+        if (!next.isEnded()) {
+          if (channel.isWritable()) {
+            next.writable();
+          }
+          break;
+        }
+        responses.poll();
+      }
+    }
+    checkIdle();
     checkNextTick();
   }
 
+  ContentCompression getCompression() {
+    return compression;
+  }
+
+  //The content coding to compress the response to request with, or null
+  String negotiateEncoding(HttpRequest request) {
+    return compression == null ? null : compression.negotiate(request);
+  }
+
   void requestHandler(EventHandler<HttpServerRequest> handler) {
     this.requestHandler = handler;
   }
@@ -104,7 +199,13 @@ class ServerConnection extends AbstractConnection {
     setContextID();
     try {
       this.currentRequest = req;
-      pendingResponse = true;
+      responses.add(req.response);
+      if (metrics != null) {
+        metrics.local().requestStarted(requestCount++ > 0);
+        //Replaced by the route if a RouteMatcher handles it
+        req.response.route = req.method;
+        req.response.startTime = System.nanoTime();
+      }
       if (requestHandler != null) {
         requestHandler.onEvent(req);
       }
@@ -116,6 +217,13 @@ class ServerConnection extends AbstractConnection {
   private void handleChunk(Buffer chunk) {
     try {
       setContextID();
+      if (metrics != null) {
+        if (currentRequest.response.startTime != 0) {
+          currentRequest.response.requestBytes += chunk.length();
+        } else {
+          metrics.local().bytesIn(chunk.length());
+        }
+      }
       currentRequest.handleData(chunk);
     } catch (Throwable t) {
       handleHandlerException(t);
@@ -127,6 +235,7 @@ class ServerConnection extends AbstractConnection {
       setContextID();
       currentRequest.handleEnd();
       currentRequest = null;
+      checkIdle();
     } catch (Throwable t) {
       handleHandlerException(t);
     }
@@ -134,10 +243,11 @@ class ServerConnection extends AbstractConnection {
 
   void handleInterestedOpsChanged() {
     try {
-      if ((channel.getInterestOps() & Channel.OP_WRITE) == Channel.OP_WRITE) {
+      //OP_WRITE is set while the write queue is full, so it's when it's cleared that the connection has drained
+      if (channel.isWritable()) {
         setContextID();
-        if (currentRequest != null) {
-          currentRequest.response.writable();
+        if (!responses.isEmpty()) {
+          responses.peek().writable();
         } else if (ws != null) {
           ws.writable();
         }
@@ -148,6 +258,9 @@ class ServerConnection extends AbstractConnection {
   }
 
   void handleWebsocketConnect(Websocket ws) {
+    if (timeouts != null) {
+      timeouts.upgraded();
+    }
     try {
       if (wsHandler != null) {
         setContextID();
@@ -170,7 +283,39 @@ class ServerConnection extends AbstractConnection {
     }
   }
 
+  private void handleWsFrame(WebsocketFrame frame) {
+    try {
+      if (ws != null) {
+        setContextID();
+        ws.handleFrame(frame);
+      } else if (frame.opcode == WebsocketFrame.ERROR) {
+        internalClose();
+      }
+    } catch (Throwable t) {
+      handleHandlerException(t);
+    }
+  }
+
   protected void handleClosed() {
+    if (metrics != null) {
+      for (HttpServerResponse resp : responses) {
+        if (resp.startTime != 0) {
+          resp.startTime = 0;
+          metrics.local().requestAbandoned();
+        }
+      }
+    }
+    for (HttpServerResponse resp : responses) {
+      resp.handleClosed();
+    }
+    if (ws != null) {
+      try {
+        setContextID();
+        ws.handleClosed();
+      } catch (Throwable t) {
+        handleHandlerException(t);
+      }
+    }
     super.handleClosed();
   }
 
@@ -196,8 +341,8 @@ class ServerConnection extends AbstractConnection {
     return super.isSSL();
   }
 
-  protected ChannelFuture sendFile(File file) {
-    return super.sendFile(file);
+  protected ChannelFuture sendFile(File file, long offset, long length) {
+    return super.sendFile(file, offset, length);
   }
 
   private void processMessage(Object msg) {
@@ -223,6 +368,8 @@ class ServerConnection extends AbstractConnection {
       if (chunk.isLast()) {
         handleEnd();
       }
+    } else if (msg instanceof WebsocketFrame) {
+      handleWsFrame((WebsocketFrame) msg);
     } else if (msg instanceof WebSocketFrame) {
       WebSocketFrame frame = (WebSocketFrame) msg;
       handleWsFrame(frame);
@@ -231,9 +378,81 @@ class ServerConnection extends AbstractConnection {
     checkNextTick();
   }
 
+  private ChannelFuture defer(HttpServerResponse resp, Object msg) {
+    if (resp.deferred == null) {
+      resp.deferred = new LinkedList<>();
+    }
+    ChannelFuture future = Channels.future(channel);
+    resp.deferred.add(msg);
+    resp.deferred.add(future);
+    return future;
+  }
+
+  private void flushDeferred(HttpServerResponse resp) {
+    if (resp.deferred == null) {
+      return;
+    }
+    Queue<Object> deferred = resp.deferred;
+    resp.deferred = null;
+    while (!deferred.isEmpty()) {
+      Object msg = deferred.poll();
+      final ChannelFuture future = (ChannelFuture) deferred.poll();
+      ChannelFuture written;
+      if (msg instanceof FileRange) {
+        FileRange range = (FileRange) msg;
+        written = sendFile(range.file, range.offset, range.length);
+        if (written == null) {
+          //As for a sendFile which isn't deferred, the head has been sent so the client can only be told by closing
+          future.setFailure(new FileNotFoundException("Failed to open " + range.file));
+          close();
+          continue;
+        }
+      } else {
+        written = channel.write(msg);
+      }
+      written.addListener(new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture written) {
+          if (written.isSuccess()) {
+            future.setSuccess();
+          } else {
+            future.setFailure(written.getCause());
+          }
+        }
+      });
+    }
+  }
+
+  //A deferred sendFile
+  private static final class FileRange {
+    final File file;
+    final long offset;
+    final long length;
+
+    FileRange(File file, long offset, long length) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private void record(HttpServerResponse resp) {
+    long now = System.nanoTime();
+    long headTime = resp.headTime == 0 ? now : resp.headTime;
+    metrics.local().requestCompleted(resp.route, resp.statusCode, resp.requestBytes, resp.bodyBytes(),
+        (headTime - resp.startTime) / 1000, (now - resp.startTime) / 1000);
+    resp.startTime = 0;
+  }
+
+  private void checkIdle() {
+    if (timeouts != null && responses.isEmpty() && currentRequest == null && pending.isEmpty()) {
+      timeouts.idle();
+    }
+  }
+
   private void checkNextTick() {
     // Check if there are more pending messages in the queue that can be processed next time around
-    if (!sentCheck && !pending.isEmpty() && !paused && (!pendingResponse || pending.peek() instanceof HttpChunk)) {
+    if (!sentCheck && !pending.isEmpty() && !paused &&
+        (responses.size() < pipeliningDepth || !(pending.peek() instanceof HttpRequest))) {
       sentCheck = true;
       Nodex.instance.nextTick(new SimpleEventHandler() {
         public void onEvent() {
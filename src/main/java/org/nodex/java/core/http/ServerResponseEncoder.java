@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunkTrailer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes HTTP responses for the server. It produces the same bytes as Netty's {@code HttpResponseEncoder}, but uses
+ * pre-encoded forms of the status lines of the standard status codes and of common header names, writes other header
+ * names and values straight into the buffer without converting them to byte arrays first, and uses the loop's cached
+ * {@code Date} header line.<p>
+ * Instances hold the chunked state of the current response so there must be one per channel.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class ServerResponseEncoder extends OneToOneEncoder {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+  //Indexed by status code, for the standard statuses
+  private static final HttpResponseStatus[] STATUSES = new HttpResponseStatus[600];
+  private static final byte[][] STATUS_LINES = new byte[600][];
+  //Keyed by the interned header name
+  private static final Map<String, byte[]> NAMES = new IdentityHashMap<>();
+
+  static {
+    for (int code = 100; code < 600; code++) {
+      HttpResponseStatus status = HttpResponseStatus.valueOf(code);
+      if (status == HttpResponseStatus.valueOf(code)) {
+        //It's one of the constants
+        STATUSES[code] = status;
+        STATUS_LINES[code] = (HttpVersion.HTTP_1_1.toString() + ' ' + status.toString() + "\r\n").getBytes(ASCII);
+      }
+    }
+    for (String name : HeaderMap.COMMON_NAMES) {
+      NAMES.put(name, (name + ": ").getBytes(ASCII));
+    }
+  }
+
+  /**
+   * Return the encoded status line for {@code status} in HTTP/1.1, including the trailing CRLF, or null if it is not a
+   * standard status. The array must not be modified.
+   */
+  static byte[] statusLine(HttpResponseStatus status) {
+    int code = status.getCode();
+    return code >= 0 && code < STATUSES.length && STATUSES[code] == status ? STATUS_LINES[code] : null;
+  }
+
+  /**
+   * Encode {@code name: value} and the trailing CRLF into {@code buff}.
+   */
+  static void encodeHeader(ChannelBuffer buff, String name, String value) {
+    byte[] encodedName = NAMES.get(name);
+    if (encodedName != null) {
+      buff.writeBytes(encodedName);
+    } else {
+      writeAscii(buff, name);
+      buff.writeByte(':');
+      buff.writeByte(' ');
+    }
+    writeAscii(buff, value);
+    buff.writeBytes(CRLF);
+  }
+
+  private boolean chunked;
+
+  @Override
+  protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+    if (msg instanceof HttpResponse) {
+      HttpResponse response = (HttpResponse) msg;
+      chunked = HttpHeaders.Values.CHUNKED.equalsIgnoreCase(response.getHeader(HttpHeaders.Names.TRANSFER_ENCODING));
+      ChannelBuffer header = ChannelBuffers.dynamicBuffer(256, channel.getConfig().getBufferFactory());
+      encodeStatusLine(header, response);
+      DateCache dateCache = null;
+      for (Map.Entry<String, String> entry : response.getHeaders()) {
+        String name = entry.getKey();
+        String value = entry.getValue();
+        if (name == HttpHeaders.Names.DATE) {
+          if (dateCache == null) {
+            dateCache = DateCache.get();
+          }
+          byte[] line = dateCache.line(value);
+          if (line != null) {
+            header.writeBytes(line);
+            continue;
+          }
+        }
+        encodeHeader(header, name, value);
+      }
+      header.writeBytes(CRLF);
+      ChannelBuffer content = response.getContent();
+      if (!content.readable()) {
+        return header;
+      } else if (chunked) {
+        throw new IllegalArgumentException("HttpMessage.content must be empty if Transfer-Encoding is chunked.");
+      } else {
+        return ChannelBuffers.wrappedBuffer(header, content);
+      }
+    } else if (msg instanceof HttpChunk) {
+      HttpChunk chunk = (HttpChunk) msg;
+      if (chunked) {
+        if (chunk.isLast()) {
+          chunked = false;
+          if (chunk instanceof HttpChunkTrailer) {
+            ChannelBuffer trailer = ChannelBuffers.dynamicBuffer(channel.getConfig().getBufferFactory());
+            trailer.writeByte('0');
+            trailer.writeBytes(CRLF);
+            for (Map.Entry<String, String> entry : ((HttpChunkTrailer) chunk).getHeaders()) {
+              encodeHeader(trailer, entry.getKey(), entry.getValue());
+            }
+            trailer.writeBytes(CRLF);
+            return trailer;
+          } else {
+            return ChannelBuffers.wrappedBuffer(LAST_CHUNK);
+          }
+        } else {
+          ChannelBuffer content = chunk.getContent();
+          int contentLength = content.readableBytes();
+          ChannelBuffer size = ChannelBuffers.buffer(10);
+          writeAscii(size, Integer.toHexString(contentLength));
+          size.writeBytes(CRLF);
+          return ChannelBuffers.wrappedBuffer(size, content.slice(content.readerIndex(), contentLength),
+              ChannelBuffers.wrappedBuffer(CRLF));
+        }
+      } else {
+        return chunk.isLast() ? null : chunk.getContent();
+      }
+    }
+    return msg;
+  }
+
+  private static void encodeStatusLine(ChannelBuffer buff, HttpResponse response) {
+    byte[] line = response.getProtocolVersion() == HttpVersion.HTTP_1_1 ? statusLine(response.getStatus()) : null;
+    if (line != null) {
+      buff.writeBytes(line);
+    } else {
+      writeAscii(buff, response.getProtocolVersion().toString());
+      buff.writeByte(' ');
+      writeAscii(buff, response.getStatus().toString());
+      buff.writeBytes(CRLF);
+    }
+  }
+
+  private static void writeAscii(ChannelBuffer buff, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      buff.writeByte((byte) s.charAt(i));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * <p>A Server-Sent Event, which can be written to an event stream response with
+ * {@link HttpServerResponse#writeEvent} or sent to all the subscribers of an {@link EventStream}.</p>
+ *
+ * <p>The event is encoded once when it is created, including the HTTP chunk it is sent in, and that encoding is
+ * shared by every response it is written to. Instances are immutable so can be used from any thread.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class ServerSentEvent {
+
+  //A comment, which the browser ignores, sent to keep idle streams open
+  static final ServerSentEvent HEARTBEAT = new ServerSentEvent(null,
+      ChannelBuffers.copiedBuffer(":\n\n", CharsetUtil.US_ASCII));
+
+  private final String id;
+  private final ChannelBuffer encoded;
+  private final int length;
+
+  /**
+   * Create an event with no id and the default event type, carrying {@code data}
+   */
+  public ServerSentEvent(String data) {
+    this(null, null, data);
+  }
+
+  /**
+   * Create an event. {@code id} and {@code event} can be {@code null}, in which case the event has no id or the
+   * default event type, {@code message}. If {@code data} has several lines they are sent as separate data fields and
+   * joined up again by the browser.
+   */
+  public ServerSentEvent(String id, String event, String data) {
+    this(id, ChannelBuffers.copiedBuffer(format(id, event, data), CharsetUtil.UTF_8));
+  }
+
+  private ServerSentEvent(String id, ChannelBuffer payload) {
+    this.id = id;
+    this.length = payload.readableBytes();
+    this.encoded = chunk(payload);
+  }
+
+  /**
+   * Return the id of the event, or {@code null} if it has none
+   */
+  public String id() {
+    return id;
+  }
+
+  //The event as an HTTP chunk. Each write must use a duplicate
+  ChannelBuffer encoded() {
+    return encoded;
+  }
+
+  //The size of the event without the chunk framing
+  int length() {
+    return length;
+  }
+
+  private static String format(String id, String event, String data) {
+    StringBuilder sb = new StringBuilder();
+    if (id != null) {
+      appendField(sb, "id", id);
+    }
+    if (event != null) {
+      appendField(sb, "event", event);
+    }
+    for (String line : data.split("\r\n|\r|\n", -1)) {
+      sb.append("data: ").append(line).append('\n');
+    }
+    return sb.append('\n').toString();
+  }
+
+  private static void appendField(StringBuilder sb, String name, String value) {
+    if (value.indexOf('\n') != -1 || value.indexOf('\r') != -1) {
+      throw new IllegalArgumentException(name + " must not contain line breaks");
+    }
+    sb.append(name).append(": ").append(value).append('\n');
+  }
+
+  private static ChannelBuffer chunk(ChannelBuffer payload) {
+    byte[] size = (Integer.toHexString(payload.readableBytes()) + "\r\n").getBytes(CharsetUtil.US_ASCII);
+    ChannelBuffer chunk = ChannelBuffers.buffer(size.length + payload.readableBytes() + 2);
+    chunk.writeBytes(size);
+    chunk.writeBytes(payload);
+    chunk.writeByte('\r');
+    chunk.writeByte('\n');
+    return chunk;
+  }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.nodex.java.core.BlockingTask;
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.buffer.Buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names;
+
+/**
+ * <p>A request handler which serves the files under a web root directory.</p>
+ *
+ * <p>The metadata of each file - its size, modification time, content type and ETag - is read on the background pool
+ * the first time the file is asked for and cached, so after that requests don't touch the file system on the event
+ * loop. The directories holding cached files are watched, and the cached metadata of a file is dropped as soon as it
+ * changes. Small files are also cached in memory, up to a total size; larger files are sent with zero-copy
+ * {@link HttpServerResponse#sendFile}.</p>
+ *
+ * <p>Conditional requests with {@code If-None-Match} or {@code If-Modified-Since} are answered with {@code 304 Not
+ * Modified} when they can be, and single {@code Range} requests, optionally with {@code If-Range}, are answered with
+ * {@code 206 Partial Content}. Only {@code GET} and {@code HEAD} are allowed.</p>
+ *
+ * <p>Example:</p>
+ * <pre>
+ * new HttpServer().requestHandler(new StaticFileHandler("web")).listen(8080);
+ * </pre>
+ *
+ * <p>Instances of this class are thread-safe once configured, and can be shared between servers.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class StaticFileHandler implements EventHandler<HttpServerRequest> {
+
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final long[] UNSATISFIABLE = new long[0];
+
+  private final Path root;
+  private final Map<Path, FileInfo> cache = new ConcurrentHashMap<>();
+  private final Map<Path, Boolean> watchedDirs = new ConcurrentHashMap<>();
+  private final AtomicLong memoryUsed = new AtomicLong();
+  private String indexPage = "index.html";
+  private int smallFileMaxSize = 16 * 1024;
+  private long memoryCacheSize = 16 * 1024 * 1024;
+  private int maxAge = -1;
+  private WatchService watcher;
+  private boolean closed;
+
+  /**
+   * Create a handler serving the files under the directory {@code webRoot}
+   */
+  public StaticFileHandler(String webRoot) {
+    this.root = Paths.get(webRoot).toAbsolutePath().normalize();
+  }
+
+  /**
+   * Set the file served for a request whose path ends with {@code /}. The default is {@code index.html}.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public StaticFileHandler setIndexPage(String indexPage) {
+    this.indexPage = indexPage;
+    return this;
+  }
+
+  /**
+   * Set the size in bytes up to which files are cached in memory. The default is 16KB.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public StaticFileHandler setSmallFileMaxSize(int size) {
+    this.smallFileMaxSize = size;
+    return this;
+  }
+
+  /**
+   * Set the maximum total size in bytes of the files cached in memory. The default is 16MB.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public StaticFileHandler setMemoryCacheSize(long size) {
+    this.memoryCacheSize = size;
+    return this;
+  }
+
+  /**
+   * If {@code maxAge} is not negative a {@code Cache-Control} header allowing clients to cache the files for that many
+   * seconds is sent. The default is {@code -1}.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public StaticFileHandler setMaxAge(int maxAge) {
+    this.maxAge = maxAge;
+    return this;
+  }
+
+  /**
+   * Stop watching for changes to files and drop the cache. The handler must not be used after this.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      if (watcher != null) {
+        try {
+          watcher.close();
+        } catch (IOException ignore) {
+        }
+      }
+    }
+    clear();
+  }
+
+  public void onEvent(final HttpServerRequest req) {
+    boolean head = req.method.equals("HEAD");
+    if (!head && !req.method.equals("GET")) {
+      req.response.statusCode = 405;
+      req.response.putHeader(Names.ALLOW, "GET, HEAD");
+      req.response.end();
+      return;
+    }
+    final Path path = resolve(req.path);
+    if (path == null) {
+      req.response.statusCode = 404;
+      req.response.end();
+      return;
+    }
+    FileInfo info = cache.get(path);
+    if (info != null) {
+      send(req, info);
+    } else {
+      new BlockingTask<FileInfo>(new CompletionHandler<FileInfo>() {
+        public void onEvent(Completion<FileInfo> completion) {
+          if (completion.succeeded()) {
+            send(req, completion.result);
+          } else {
+            completion.exception.printStackTrace(System.err);
+            req.response.statusCode = 500;
+            req.response.end();
+          }
+        }
+      }) {
+        public FileInfo execute() throws Exception {
+          return load(path);
+        }
+      }.run();
+    }
+  }
+
+  private static final FileInfo NOT_FOUND = new FileInfo();
+
+  private static final class FileInfo {
+    final File file;
+    final long length;
+    final long lastModified;
+    final String lastModifiedDate;
+    final String etag;
+    final String contentType;
+    final ChannelBuffer content;
+
+    FileInfo(File file, long length, long lastModified, String contentType, ChannelBuffer content) {
+      this.file = file;
+      this.length = length;
+      //HTTP dates only have a resolution of a second
+      this.lastModified = lastModified / 1000 * 1000;
+      this.lastModifiedDate = DateCache.get().format(this.lastModified);
+      this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    //A file which doesn't exist
+    FileInfo() {
+      this.file = null;
+      this.length = 0;
+      this.lastModified = 0;
+      this.lastModifiedDate = null;
+      this.etag = null;
+      this.contentType = null;
+      this.content = null;
+    }
+  }
+
+  //Return the file for the request path, or null if it is outside the web root
+  private Path resolve(String reqPath) {
+    if (reqPath.endsWith("/")) {
+      reqPath += indexPage;
+    }
+    try {
+      Path path = root.resolve(reqPath.startsWith("/") ? reqPath.substring(1) : reqPath).normalize();
+      return path.startsWith(root) ? path : null;
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  //Called on the background pool
+  private FileInfo load(Path path) throws Exception {
+    //Watch first, so a change made while we read the file is seen
+    boolean watched = watch(path.getParent());
+    FileInfo info;
+    BasicFileAttributes attrs = null;
+    try {
+      attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      //Not found
+    }
+    if (attrs == null || !attrs.isRegularFile()) {
+      //Misses aren't cached, otherwise requests for made up paths would grow the cache without limit
+      return NOT_FOUND;
+    } else {
+      String contentType = Files.probeContentType(path);
+      ChannelBuffer content = null;
+      long length = attrs.size();
+      if (length <= smallFileMaxSize && memoryUsed.addAndGet(length) <= memoryCacheSize) {
+        content = ChannelBuffers.wrappedBuffer(Files.readAllBytes(path));
+        if (content.readableBytes() != length) {
+          //Changed while we read it - let the next request try again
+          memoryUsed.addAndGet(-length);
+          content = null;
+          watched = false;
+        }
+      } else if (length <= smallFileMaxSize) {
+        memoryUsed.addAndGet(-length);
+      }
+      info = new FileInfo(path.toFile(), length, attrs.lastModifiedTime().toMillis(),
+          contentType == null ? DEFAULT_CONTENT_TYPE : contentType, content);
+    }
+    if (watched) {
+      release(cache.put(path, info));
+      if (changed(path, info)) {
+        //Changed after the watch was registered but before the entry was added, so the event may have been missed
+        if (cache.remove(path, info)) {
+          release(info);
+        }
+      }
+    } else {
+      release(info);
+    }
+    return info;
+  }
+
+  private static boolean changed(Path path, FileInfo info) throws IOException {
+    try {
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      return info.file == null || attrs.size() != info.length ||
+          attrs.lastModifiedTime().toMillis() / 1000 * 1000 != info.lastModified;
+    } catch (NoSuchFileException e) {
+      return info.file != null;
+    }
+  }
+
+  private void send(HttpServerRequest req, FileInfo info) {
+    HttpServerResponse response = req.response;
+    if (info.file == null) {
+      response.statusCode = 404;
+      response.end();
+      return;
+    }
+    response.putHeader(Names.ETAG, info.etag);
+    response.putHeader(Names.LAST_MODIFIED, info.lastModifiedDate);
+    response.putHeader(Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+    if (maxAge >= 0) {
+      response.putHeader(Names.CACHE_CONTROL, "public, max-age=" + maxAge);
+    }
+    if (notModified(req, info)) {
+      response.statusCode = 304;
+      response.end();
+      return;
+    }
+    long offset = 0;
+    long length = info.length;
+    String rangeHeader = req.getHeader(Names.RANGE);
+    if (rangeHeader != null && ifRange(req, info)) {
+      long[] range = parseRange(rangeHeader, info.length);
+      if (range == UNSATISFIABLE) {
+        response.statusCode = 416;
+        response.putHeader(Names.CONTENT_RANGE, "bytes */" + info.length);
+        response.end();
+        return;
+      } else if (range != null) {
+        offset = range[0];
+        length = range[1] - range[0] + 1;
+        response.statusCode = 206;
+        response.putHeader(Names.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + info.length);
+      }
+    }
+    response.putHeader(Names.CONTENT_TYPE, info.contentType);
+    response.putHeader(Names.CONTENT_LENGTH, length);
+    if (req.method.equals("HEAD") || length == 0) {
+      response.end();
+    } else if (info.content != null) {
+      response.write(new Buffer(info.content.slice((int) offset, (int) length)));
+      response.end();
+    } else {
+      response.sendFile(info.file, offset, length);
+    }
+  }
+
+  private static boolean notModified(HttpServerRequest req, FileInfo info) {
+    String ifNoneMatch = req.getHeader(Names.IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(info.etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = req.getHeader(Names.IF_MODIFIED_SINCE);
+    if (ifModifiedSince != null) {
+      long since = DateCache.get().parse(ifModifiedSince);
+      return since != -1 && info.lastModified <= since;
+    }
+    return false;
+  }
+
+  //Should the Range header be used?
+  private static boolean ifRange(HttpServerRequest req, FileInfo info) {
+    String ifRange = req.getHeader(Names.IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals(info.etag);
+    }
+    return DateCache.get().parse(ifRange) == info.lastModified;
+  }
+
+  /*
+  Parse a single byte range against a file of size bytes, returning the first and last byte positions, or
+  UNSATISFIABLE, or null if the header is malformed or has more than one range, in which case it is ignored
+   */
+  static long[] parseRange(String header, long size) {
+    if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+      return null;
+    }
+    String spec = header.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    try {
+      long first, last;
+      if (dash == 0) {
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix == 0) {
+          return UNSATISFIABLE;
+        }
+        first = Math.max(0, size - suffix);
+        last = size - 1;
+      } else {
+        first = Long.parseLong(spec.substring(0, dash));
+        last = dash == spec.length() - 1 ? size - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+        if (last < first && first < size) {
+          return null;
+        }
+      }
+      if (first >= size || first < 0) {
+        return UNSATISFIABLE;
+      }
+      return new long[] {first, last};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  //Register dir with the watcher, returning false if it can't be watched
+  private boolean watch(Path dir) {
+    if (watchedDirs.containsKey(dir)) {
+      return true;
+    }
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+      try {
+        if (watcher == null) {
+          watcher = FileSystems.getDefault().newWatchService();
+          Thread th = new Thread(new Runnable() {
+            public void run() {
+              processEvents();
+            }
+          }, "node.x-static-file-watcher");
+          th.setDaemon(true);
+          th.start();
+        }
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirs.put(dir, Boolean.TRUE);
+        return true;
+      } catch (IOException | UnsupportedOperationException e) {
+        return false;
+      }
+    }
+  }
+
+  private void processEvents() {
+    WatchService watcher = this.watcher;
+    while (true) {
+      WatchKey key;
+      try {
+        key = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          clear();
+        } else {
+          Path path = dir.resolve((Path) event.context());
+          release(cache.remove(path));
+        }
+      }
+      if (!key.reset()) {
+        //The directory has gone
+        watchedDirs.remove(dir);
+        for (Path path : cache.keySet()) {
+          if (path.getParent().equals(dir)) {
+            release(cache.remove(path));
+          }
+        }
+      }
+    }
+  }
+
+  private void clear() {
+    for (Path path : cache.keySet()) {
+      release(cache.remove(path));
+    }
+  }
+
+  private void release(FileInfo info) {
+    if (info != null && info.content != null) {
+      memoryUsed.addAndGet(-info.length);
+    }
+  }
+}
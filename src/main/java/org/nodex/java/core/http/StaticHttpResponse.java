@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.nodex.java.core.buffer.Buffer;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * <p>A complete HTTP response which is encoded once and can then be sent any number of times, from any event loop,
+ * using {@link HttpServerResponse#send(StaticHttpResponse)}.</p>
+ *
+ * <p>This is useful for responses which never change, such as health checks, redirects or fixed JSON documents. Sending
+ * one writes the pre-encoded bytes directly to the connection, with the current {@code Date} header spliced in, without
+ * copying them or encoding any headers.</p>
+ *
+ * <p>Instances of this class are immutable.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class StaticHttpResponse {
+
+  //The status line and headers, without the Date header
+  private final ChannelBuffer head;
+  //The blank line ending the headers and the body
+  private final ChannelBuffer tail;
+  final int statusCode;
+
+  /**
+   * Create a response with the status {@code statusCode}, the headers {@code headers} and the body {@code body}. The
+   * {@link Object#toString()} method will be called on the header values to determine the String value to actually use.
+   * The {@code Content-Length} and {@code Date} headers are set automatically, so they should not be in {@code headers}.
+   * {@code headers} may be null. The body is copied so later changes to {@code body} have no effect.
+   */
+  public StaticHttpResponse(int statusCode, Map<String, ? extends Object> headers, Buffer body) {
+    HttpResponseStatus status = HttpResponseStatus.valueOf(statusCode);
+    this.statusCode = statusCode;
+    ChannelBuffer buff = ChannelBuffers.dynamicBuffer(256);
+    byte[] statusLine = ServerResponseEncoder.statusLine(status);
+    if (statusLine == null) {
+      throw new IllegalArgumentException("Not a standard status code: " + statusCode);
+    }
+    buff.writeBytes(statusLine);
+    if (headers != null) {
+      for (Map.Entry<String, ? extends Object> entry : headers.entrySet()) {
+        String name = HeaderMap.intern(entry.getKey());
+        if (name != HttpHeaders.Names.CONTENT_LENGTH && name != HttpHeaders.Names.DATE) {
+          ServerResponseEncoder.encodeHeader(buff, name, entry.getValue().toString());
+        }
+      }
+    }
+    int length = body == null ? 0 : body.length();
+    ServerResponseEncoder.encodeHeader(buff, HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(length));
+    this.head = ChannelBuffers.copiedBuffer(buff);
+    ChannelBuffer tail = ChannelBuffers.buffer(length + 2);
+    tail.writeByte('\r');
+    tail.writeByte('\n');
+    if (body != null) {
+      tail.writeBytes(body.getChannelBuffer(), 0, length);
+    }
+    this.tail = tail;
+  }
+
+  /**
+   * Create a response with the status {@code statusCode} and the body {@code body}, which will be sent with the
+   * {@code Content-Type} {@code contentType}.
+   */
+  public StaticHttpResponse(int statusCode, String contentType, String body) {
+    this(statusCode, contentType == null ? null :
+        Collections.singletonMap(HttpHeaders.Names.CONTENT_TYPE, contentType), Buffer.create(body));
+  }
+
+  int bodyLength() {
+    return tail.readableBytes() - 2;
+  }
+
+  /**
+   * Return the encoded response with the current Date header. The underlying bytes are shared, not copied.
+   */
+  ChannelBuffer encode() {
+    return ChannelBuffers.wrappedBuffer(head.duplicate(), ChannelBuffers.wrappedBuffer(DateCache.get().line()),
+        tail.duplicate());
+  }
+}
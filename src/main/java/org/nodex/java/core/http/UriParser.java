@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import java.nio.charset.Charset;
+
+/**
+ * Splits and decodes request URIs in a single pass without going through {@link java.net.URI}.<p>
+ * Nothing is allocated for the common case of a path with no query and no escapes, and query parameters are found by
+ * scanning the raw query string, decoding only the value that is asked for.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class UriParser {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private UriParser() {
+  }
+
+  /**
+   * Return the index at which the path starts in {@code uri}. This is after the scheme and authority if the uri is
+   * absolute.
+   */
+  static int pathStart(String uri) {
+    if (uri.startsWith("/")) {
+      return 0;
+    }
+    int scheme = uri.indexOf("://");
+    if (scheme == -1) {
+      return 0;
+    }
+    int len = uri.length();
+    for (int i = scheme + 3; i < len; i++) {
+      char c = uri.charAt(i);
+      if (c == '/' || c == '?' || c == '#') {
+        return i;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Return the index at which the path ends in {@code uri}, which is the index of the query or fragment delimiter if
+   * there is one.
+   */
+  static int pathEnd(String uri, int pathStart) {
+    int len = uri.length();
+    for (int i = pathStart; i < len; i++) {
+      char c = uri.charAt(i);
+      if (c == '?' || c == '#') {
+        return i;
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Return the index at which the query ends in {@code uri}, given the index at which it starts.
+   */
+  static int queryEnd(String uri, int queryStart) {
+    int end = uri.indexOf('#', queryStart);
+    return end == -1 ? uri.length() : end;
+  }
+
+  /**
+   * Return the decoded value of the first parameter called {@code name} in the raw query {@code uri[start, end)}, or
+   * null if there is no such parameter. A parameter with no {@code =} has the empty string as its value.
+   */
+  static String getParam(String uri, int start, int end, String name) {
+    int pos = start;
+    while (pos < end) {
+      int amp = uri.indexOf('&', pos);
+      if (amp == -1 || amp > end) {
+        amp = end;
+      }
+      int eq = uri.indexOf('=', pos);
+      if (eq == -1 || eq > amp) {
+        eq = amp;
+      }
+      if (eq > pos && nameMatches(uri, pos, eq, name)) {
+        return eq == amp ? "" : decode(uri, eq + 1, amp, true);
+      }
+      pos = amp + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Percent-decode {@code s[start, end)} as UTF-8. If {@code plusIsSpace} is true, {@code +} is decoded as a space, as
+   * it is in query strings. Malformed escapes are left as they are.
+   */
+  static String decode(String s, int start, int end, boolean plusIsSpace) {
+    int i = start;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c == '%' || (plusIsSpace && c == '+')) {
+        break;
+      }
+      i++;
+    }
+    if (i == end) {
+      //Nothing to decode
+      return start == 0 && end == s.length() ? s : s.substring(start, end);
+    }
+    StringBuilder sb = new StringBuilder(end - start);
+    sb.append(s, start, i);
+    byte[] bytes = null;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c == '%' && i + 2 < end && hexValue(s, i + 1) >= 0 && hexValue(s, i + 2) >= 0) {
+        //Decode a run of escapes together, since a multi-byte character is escaped as several bytes
+        if (bytes == null) {
+          bytes = new byte[(end - i) / 3];
+        }
+        int n = 0;
+        while (i + 2 < end && s.charAt(i) == '%' && hexValue(s, i + 1) >= 0 && hexValue(s, i + 2) >= 0) {
+          bytes[n++] = (byte) ((hexValue(s, i + 1) << 4) + hexValue(s, i + 2));
+          i += 3;
+        }
+        sb.append(new String(bytes, 0, n, UTF8));
+      } else {
+        sb.append(plusIsSpace && c == '+' ? ' ' : c);
+        i++;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean nameMatches(String uri, int start, int end, String name) {
+    for (int i = start; i < end; i++) {
+      char c = uri.charAt(i);
+      if (c == '%' || c == '+') {
+        //Escaped name - rare so just decode it
+        return decode(uri, start, end, true).equals(name);
+      }
+    }
+    return end - start == name.length() && uri.regionMatches(start, name, 0, end - start);
+  }
+
+  private static int hexValue(String s, int i) {
+    return Character.digit(s.charAt(i), 16);
+  }
+}
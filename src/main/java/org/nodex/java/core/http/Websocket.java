@@ -16,13 +16,22 @@
 
 package org.nodex.java.core.http;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.websocket.DefaultWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocket.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
 import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
 import org.nodex.java.core.buffer.Buffer;
 import org.nodex.java.core.streams.ReadStream;
 import org.nodex.java.core.streams.WriteStream;
 
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * <p>Encapsulation of an HTML 5 Websocket</p>
  *
@@ -31,22 +40,47 @@ import org.nodex.java.core.streams.WriteStream;
  * instance when a client succeeds in a websocket handshake with a server. Once an instance has been obtained it can
  * be used to send or receive buffers of data from the connection, a bit like a TCP socket.</p>
  *
+ * <p>Websockets speak the RFC 6455 protocol. Messages can be sent and received in fragments, the data handler is
+ * called with the payload of each frame as it arrives so large messages can be streamed. Pings are answered
+ * automatically, and closing the websocket performs the closing handshake. The server still accepts the older
+ * draft-hixie-76 handshake, in which case fragments and pings are not available.</p>
+ *
  * <p>Instances of this class can only be used from the event loop thread which created it.</p>
  *
  * @author <a href="http://tfox.org">Tim Fox</a>
  */
 public class Websocket implements ReadStream, WriteStream {
 
+  /**
+   * How long, in ms, to wait for the peer to answer a close frame before closing the connection anyway
+   */
+  public static final long CLOSE_TIMEOUT = 5000;
+
+  private static final int STATUS_NORMAL = 1000;
+  private static final int MAX_PING_PAYLOAD = 125;
+
   private final AbstractConnection conn;
+  private final boolean hixie;
 
   private EventHandler<Buffer> dataHandler;
+  private EventHandler<WebsocketFrame> frameHandler;
+  private EventHandler<Buffer> pongHandler;
   private EventHandler<Void> drainHandler;
   private EventHandler<Exception> exceptionHandler;
   private EventHandler<Void> endHandler;
+  //Used by groups holding frames for this websocket. Called when the write queue drains, as well as the drain handler,
+  //and when the last fragment of a message has been written
+  private List<EventHandler<Void>> groupDrainHandlers;
+
+  private boolean fragmenting;
+  private boolean closeSent;
+  private boolean ended;
+  private long closeTimer = -1;
 
-  Websocket(String uri, AbstractConnection conn) {
+  Websocket(String uri, AbstractConnection conn, boolean hixie) {
     this.uri = uri;
     this.conn = conn;
+    this.hixie = hixie;
   }
 
   /**
@@ -59,28 +93,89 @@ public class Websocket implements ReadStream, WriteStream {
    * Write {@code data} to the websocket as binary frame
    */
   public void writeBinaryFrame(Buffer data) {
-    WebSocketFrame frame = new DefaultWebSocketFrame(0x80, data.getChannelBuffer());
-    conn.write(frame);
+    if (hixie) {
+      conn.write(new DefaultWebSocketFrame(0x80, data.getChannelBuffer()));
+    } else {
+      writeFrame(WebsocketFrame.BINARY, true, data.getChannelBuffer());
+    }
   }
 
   /**
    * Write {@code str} to the websocket as text frame
    */
   public void writeTextFrame(String str) {
-    WebSocketFrame frame = new DefaultWebSocketFrame(str);
-    conn.write(frame);
+    if (hixie) {
+      conn.write(new DefaultWebSocketFrame(str));
+    } else {
+      writeFrame(WebsocketFrame.TEXT, true, ChannelBuffers.copiedBuffer(str, CharsetUtil.UTF_8));
+    }
+  }
+
+  /**
+   * Write {@code data}, which must be UTF-8 encoded, to the websocket as a text frame. This avoids decoding and
+   * re-encoding text which is already held as bytes.
+   */
+  public void writeTextFrame(Buffer data) {
+    if (hixie) {
+      conn.write(new DefaultWebSocketFrame(0, data.getChannelBuffer()));
+    } else {
+      writeFrame(WebsocketFrame.TEXT, true, data.getChannelBuffer());
+    }
+  }
+
+  /**
+   * Write {@code data} as one fragment of a message. The first fragment of a message decides whether it is a text or
+   * binary message using {@code text}, which is ignored for the rest of the fragments. {@code last} must be set on
+   * the final fragment. Pings can be written between the fragments of a message, other messages cannot.
+   */
+  public void writeFragment(Buffer data, boolean text, boolean last) {
+    checkRFC6455("Fragments");
+    int opcode = fragmenting ? WebsocketFrame.CONTINUATION : text ? WebsocketFrame.TEXT : WebsocketFrame.BINARY;
+    fragmenting = !last;
+    writeFrame(opcode, last, data.getChannelBuffer());
+    if (last) {
+      callGroupDrainHandlers();
+    }
+  }
+
+  /**
+   * Send a ping to the peer carrying {@code data}, which can be at most 125 bytes. The peer answers with a pong
+   * carrying the same data, which is passed to the {@link #pongHandler}.
+   */
+  public void writePing(Buffer data) {
+    checkRFC6455("Pings");
+    if (data.length() > MAX_PING_PAYLOAD) {
+      throw new IllegalArgumentException("ping data must be <= " + MAX_PING_PAYLOAD + " bytes");
+    }
+    writeFrame(WebsocketFrame.PING, true, data.getChannelBuffer());
   }
 
   /**
    * Specify a data handler for the websocket. As data is received on the websocket the handler will be called, passing
-   * in a Buffer of data
+   * in a Buffer of data. The handler is called for each frame, so a fragmented message arrives in several buffers.
    */
   public void dataHandler(EventHandler<Buffer> handler) {
     this.dataHandler = handler;
   }
 
   /**
-   * Specify an end handler for the websocket. The {@code endHandler} is called once there is no more data to be read.
+   * Specify a frame handler for the websocket. It is called for each data frame received, before the data handler,
+   * and can be used to find out whether the data is text and where each message ends.
+   */
+  public void frameHandler(EventHandler<WebsocketFrame> handler) {
+    this.frameHandler = handler;
+  }
+
+  /**
+   * Specify a handler to be called with the data of each pong received from the peer.
+   */
+  public void pongHandler(EventHandler<Buffer> handler) {
+    this.pongHandler = handler;
+  }
+
+  /**
+   * Specify an end handler for the websocket. The {@code endHandler} is called once there is no more data to be read,
+   * either because the peer has sent a close frame or because the connection has closed.
    */
   public void endHandler(EventHandler<Void> handler) {
     this.endHandler = handler;
@@ -153,10 +248,56 @@ public class Websocket implements ReadStream, WriteStream {
   }
 
   /**
-   * Close the websocket
+   * Close the websocket. A close frame is sent to the peer and the connection is closed once the peer answers with
+   * its own close frame, or after {@link #CLOSE_TIMEOUT} ms.
    */
   public void close() {
-    conn.close();
+    if (hixie) {
+      conn.close();
+    } else if (!closeSent) {
+      sendClose(STATUS_NORMAL);
+      closeTimer = Nodex.instance.setTimer(CLOSE_TIMEOUT, new EventHandler<Long>() {
+        public void onEvent(Long id) {
+          closeTimer = -1;
+          conn.internalClose();
+        }
+      });
+    }
+  }
+
+  //The following are used by WebsocketGroup
+
+  //A server side RFC 6455 websocket can write a frame encoded once for the whole group, others mask or use the old
+  //framing so must encode it themselves
+  boolean sharesEncoding() {
+    return !hixie && conn instanceof ServerConnection;
+  }
+
+  void writeEncoded(ChannelBuffer encoded) {
+    if (!closeSent) {
+      conn.write(encoded);
+    }
+  }
+
+  void writeData(boolean text, ChannelBuffer data) {
+    if (hixie) {
+      conn.write(new DefaultWebSocketFrame(text ? 0 : 0x80, data));
+    } else {
+      writeFrame(text ? WebsocketFrame.TEXT : WebsocketFrame.BINARY, true, data);
+    }
+  }
+
+  boolean isClosed() {
+    return closeSent || ended;
+  }
+
+  //Group frames can't be written between the fragments of a message
+  boolean isFragmenting() {
+    return fragmenting;
+  }
+
+  void closeConnection() {
+    conn.internalClose();
   }
 
   void handleFrame(WebSocketFrame frame) {
@@ -165,10 +306,88 @@ public class Websocket implements ReadStream, WriteStream {
     }
   }
 
+  void handleFrame(WebsocketFrame frame) {
+    switch (frame.opcode) {
+      case WebsocketFrame.PING:
+        if (!closeSent) {
+          writeFrame(WebsocketFrame.PONG, true, frame.data);
+        }
+        break;
+      case WebsocketFrame.PONG:
+        if (pongHandler != null) {
+          pongHandler.onEvent(frame.getData());
+        }
+        break;
+      case WebsocketFrame.CLOSE:
+        if (closeSent) {
+          conn.internalClose();
+        } else {
+          //Echo the status code back, then close
+          closeSent = true;
+          int status = frame.data.readableBytes() >= 2 ? frame.data.getUnsignedShort(frame.data.readerIndex()) :
+              STATUS_NORMAL;
+          conn.write(WebsocketFrame.close(status)).addListener(ChannelFutureListener.CLOSE);
+        }
+        handleEnd();
+        break;
+      case WebsocketFrame.ERROR:
+        ChannelBuffer data = frame.data;
+        int status = data.getUnsignedShort(data.readerIndex());
+        handleException(new ProtocolException(data.toString(data.readerIndex() + 2, data.readableBytes() - 2,
+            CharsetUtil.UTF_8)));
+        if (!closeSent) {
+          closeSent = true;
+          conn.write(WebsocketFrame.close(status)).addListener(ChannelFutureListener.CLOSE);
+        } else {
+          conn.internalClose();
+        }
+        handleEnd();
+        break;
+      default:
+        if (frameHandler != null) {
+          frameHandler.onEvent(frame);
+        }
+        if (dataHandler != null) {
+          dataHandler.onEvent(frame.getData());
+        }
+    }
+  }
+
+  void handleClosed() {
+    if (closeTimer != -1) {
+      Nodex.instance.cancelTimer(closeTimer);
+      closeTimer = -1;
+    }
+    handleEnd();
+  }
+
   void writable() {
     if (drainHandler != null) {
       drainHandler.onEvent(null);
     }
+    callGroupDrainHandlers();
+  }
+
+  private void callGroupDrainHandlers() {
+    if (groupDrainHandlers != null && !groupDrainHandlers.isEmpty()) {
+      //Copied, as a group removes its handler once it has written what it held
+      for (EventHandler<Void> handler : new ArrayList<>(groupDrainHandlers)) {
+        handler.onEvent(null);
+      }
+    }
+  }
+
+  void addGroupDrainHandler(EventHandler<Void> handler) {
+    if (groupDrainHandlers == null) {
+      groupDrainHandlers = new ArrayList<>(1);
+    }
+    groupDrainHandlers.add(handler);
+  }
+
+  void removeGroupDrainHandler(EventHandler<Void> handler) {
+    if (groupDrainHandlers != null) {
+      groupDrainHandlers.remove(handler);
+    }
   }
 
   void handleException(Exception e) {
@@ -176,4 +395,31 @@ public class Websocket implements ReadStream, WriteStream {
       exceptionHandler.onEvent(e);
     }
   }
+
+  private void handleEnd() {
+    if (!ended) {
+      ended = true;
+      if (endHandler != null) {
+        endHandler.onEvent(null);
+      }
+    }
+  }
+
+  private void sendClose(int status) {
+    closeSent = true;
+    conn.write(WebsocketFrame.close(status));
+  }
+
+  private void writeFrame(int opcode, boolean fin, ChannelBuffer data) {
+    //Like writing to a closed socket, anything written after the close frame is dropped
+    if (!closeSent) {
+      conn.write(new WebsocketFrame(opcode, fin, opcode == WebsocketFrame.TEXT, data));
+    }
+  }
+
+  private void checkRFC6455(String what) {
+    if (hixie) {
+      throw new IllegalStateException(what + " are not supported by draft-hixie-76 websockets");
+    }
+  }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.nodex.java.core.buffer.Buffer;
+
+/**
+ * <p>A single RFC 6455 data frame received on a {@link Websocket}.</p>
+ *
+ * <p>A message sent by the peer can be split into several fragments, each of which arrives as a separate frame. The
+ * first fragment carries the type of the message, later fragments are continuations. {@link #isText()} and
+ * {@link #isBinary()} report the type of the message the frame belongs to, so they can be relied upon for
+ * continuations too. {@link #isFinal()} is {@code true} for the last fragment of a message.</p>
+ *
+ * <p>The payload of a text frame is passed through as UTF-8 bytes, no {@code String} is created unless
+ * {@link #getText()} is called.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class WebsocketFrame {
+
+  static final int CONTINUATION = 0x0;
+  static final int TEXT = 0x1;
+  static final int BINARY = 0x2;
+  static final int CLOSE = 0x8;
+  static final int PING = 0x9;
+  static final int PONG = 0xA;
+
+  //Not an RFC 6455 opcode - the decoder passes a protocol error upstream as a frame with this opcode
+  static final int ERROR = -1;
+
+  final int opcode;
+  final boolean fin;
+  final boolean text;
+  final ChannelBuffer data;
+  private Buffer buffer;
+
+  WebsocketFrame(int opcode, boolean fin, boolean text, ChannelBuffer data) {
+    this.opcode = opcode;
+    this.fin = fin;
+    this.text = text;
+    this.data = data;
+  }
+
+  static WebsocketFrame close(int statusCode) {
+    ChannelBuffer data = ChannelBuffers.buffer(2);
+    data.writeShort(statusCode);
+    return new WebsocketFrame(CLOSE, true, false, data);
+  }
+
+  static WebsocketFrame error(int statusCode, String message) {
+    ChannelBuffer data = ChannelBuffers.buffer(2);
+    data.writeShort(statusCode);
+    return new WebsocketFrame(ERROR, true, false, ChannelBuffers.wrappedBuffer(data,
+        ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8)));
+  }
+
+  /**
+   * @return {@code true} if the frame belongs to a text message
+   */
+  public boolean isText() {
+    return text;
+  }
+
+  /**
+   * @return {@code true} if the frame belongs to a binary message
+   */
+  public boolean isBinary() {
+    return !text;
+  }
+
+  /**
+   * @return {@code true} if the frame is a continuation of a fragmented message
+   */
+  public boolean isContinuation() {
+    return opcode == CONTINUATION;
+  }
+
+  /**
+   * @return {@code true} if this is the last frame of its message
+   */
+  public boolean isFinal() {
+    return fin;
+  }
+
+  /**
+   * The payload of the frame. The returned Buffer is created once and wraps the payload where it was read, the bytes
+   * are only copied if the Buffer is written to.
+   */
+  public Buffer getData() {
+    if (buffer == null) {
+      buffer = Buffer.wrap(data);
+    }
+    return buffer;
+  }
+
+  /**
+   * Decode the payload of the frame as UTF-8. Note that the frames of a fragmented message can split a multi-byte
+   * character, in which case the payloads should be joined before decoding.
+   */
+  public String getText() {
+    return data.toString(CharsetUtil.UTF_8);
+  }
+}
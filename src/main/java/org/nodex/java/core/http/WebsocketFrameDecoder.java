@@ -0,0 +1,223 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Decodes RFC 6455 websocket frames into {@link WebsocketFrame} instances.<p>
+ * A frame whose payload is wholly contained in the buffer read from the socket is handed on as a slice of that buffer,
+ * unmasked in place, so the payload is never copied by the decoder. Only a frame which is split between reads is
+ * accumulated, into a buffer sized for the whole payload up front. Fragments of a message are handed on as they
+ * arrive rather than being reassembled, so a large message can be streamed.<p>
+ * Protocol violations are handed on as a frame with the {@link WebsocketFrame#ERROR} opcode, carrying the close status
+ * code to send to the peer, after which the rest of the input is ignored.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class WebsocketFrameDecoder extends SimpleChannelUpstreamHandler {
+
+  static final int STATUS_PROTOCOL_ERROR = 1002;
+  static final int STATUS_TOO_BIG = 1009;
+
+  private static final int MAX_HEADER_SIZE = 14;
+  private static final int MAX_CONTROL_PAYLOAD = 125;
+
+  private final boolean server;
+  private final int maxFrameSize;
+
+  //The start of a header which was split between reads
+  private final ChannelBuffer header = ChannelBuffers.buffer(MAX_HEADER_SIZE);
+  //The frame currently being read
+  private int opcode;
+  private boolean fin;
+  private boolean masked;
+  private int mask;
+  //Set when a frame's payload is split between reads
+  private ChannelBuffer payload;
+  private int remaining;
+  //Fragmented message state
+  private boolean inMessage;
+  private boolean messageText;
+  private boolean failed;
+
+  WebsocketFrameDecoder(boolean server, int maxFrameSize) {
+    this.server = server;
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+    if (!(e.getMessage() instanceof ChannelBuffer)) {
+      ctx.sendUpstream(e);
+      return;
+    }
+    ChannelBuffer in = (ChannelBuffer) e.getMessage();
+    while (!failed && in.readable()) {
+      if (payload != null) {
+        int n = Math.min(remaining, in.readableBytes());
+        int start = payload.writerIndex();
+        payload.writeBytes(in, n);
+        if (masked) {
+          mask(payload, start, n, mask, start);
+        }
+        remaining -= n;
+        if (remaining == 0) {
+          ChannelBuffer data = payload;
+          payload = null;
+          fire(ctx, e, data);
+        }
+      } else {
+        int len = readHeader(ctx, e, in);
+        if (len < 0) {
+          break;
+        }
+        if (in.readableBytes() >= len) {
+          ChannelBuffer data = in.slice(in.readerIndex(), len);
+          in.skipBytes(len);
+          if (masked) {
+            mask(data, 0, len, mask, 0);
+          }
+          fire(ctx, e, data);
+        } else {
+          //Dynamic, so the Buffer handed to the user wraps it rather than copying it
+          payload = ChannelBuffers.dynamicBuffer(len);
+          remaining = len;
+        }
+      }
+    }
+  }
+
+  //Returns the payload length once a whole header has been read, or -1 if more input is needed
+  private int readHeader(ChannelHandlerContext ctx, MessageEvent e, ChannelBuffer in) {
+    int held = header.readableBytes();
+    ChannelBuffer buf = in;
+    if (held != 0) {
+      header.writeBytes(in, in.readerIndex(), Math.min(header.writableBytes(), in.readableBytes()));
+      buf = header;
+    }
+    int idx = buf.readerIndex();
+    int avail = buf.readableBytes();
+    if (avail < 2) {
+      hold(in, held);
+      return -1;
+    }
+    int b0 = buf.getUnsignedByte(idx);
+    int b1 = buf.getUnsignedByte(idx + 1);
+    int lenField = b1 & 0x7F;
+    boolean hasMask = (b1 & 0x80) != 0;
+    int headerLen = 2 + (lenField == 126 ? 2 : lenField == 127 ? 8 : 0) + (hasMask ? 4 : 0);
+    if (avail < headerLen) {
+      hold(in, held);
+      return -1;
+    }
+    long len = lenField == 126 ? buf.getUnsignedShort(idx + 2) : lenField == 127 ? buf.getLong(idx + 2) : lenField;
+    if (hasMask) {
+      mask = buf.getInt(idx + headerLen - 4);
+    }
+    if (held == 0) {
+      in.skipBytes(headerLen);
+    } else {
+      in.skipBytes(headerLen - held);
+      header.clear();
+    }
+
+    fin = (b0 & 0x80) != 0;
+    opcode = b0 & 0x0F;
+    masked = hasMask;
+    if ((b0 & 0x70) != 0) {
+      return fail(ctx, e, STATUS_PROTOCOL_ERROR, "Reserved bits set");
+    }
+    if (masked != server) {
+      return fail(ctx, e, STATUS_PROTOCOL_ERROR, server ? "Client frame not masked" : "Server frame masked");
+    }
+    if (len < 0) {
+      return fail(ctx, e, STATUS_PROTOCOL_ERROR, "Invalid payload length");
+    }
+    switch (opcode) {
+      case WebsocketFrame.CLOSE:
+      case WebsocketFrame.PING:
+      case WebsocketFrame.PONG:
+        if (!fin || len > MAX_CONTROL_PAYLOAD) {
+          return fail(ctx, e, STATUS_PROTOCOL_ERROR, "Invalid control frame");
+        }
+        return (int) len;
+      case WebsocketFrame.CONTINUATION:
+        if (!inMessage) {
+          return fail(ctx, e, STATUS_PROTOCOL_ERROR, "Continuation frame without a message");
+        }
+        break;
+      case WebsocketFrame.TEXT:
+      case WebsocketFrame.BINARY:
+        if (inMessage) {
+          return fail(ctx, e, STATUS_PROTOCOL_ERROR, "Data frame inside a fragmented message");
+        }
+        messageText = opcode == WebsocketFrame.TEXT;
+        break;
+      default:
+        return fail(ctx, e, STATUS_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+    }
+    if (len > maxFrameSize) {
+      return fail(ctx, e, STATUS_TOO_BIG, "Frame too big");
+    }
+    inMessage = !fin;
+    return (int) len;
+  }
+
+  //The header is incomplete so keep what we have of it. It's shorter than MAX_HEADER_SIZE so all of the input fits
+  private void hold(ChannelBuffer in, int held) {
+    if (held == 0) {
+      header.writeBytes(in);
+    } else {
+      in.skipBytes(in.readableBytes());
+    }
+  }
+
+  private int fail(ChannelHandlerContext ctx, MessageEvent e, int statusCode, String message) {
+    failed = true;
+    Channels.fireMessageReceived(ctx, WebsocketFrame.error(statusCode, message), e.getRemoteAddress());
+    return -1;
+  }
+
+  private void fire(ChannelHandlerContext ctx, MessageEvent e, ChannelBuffer data) {
+    boolean control = (opcode & 0x08) != 0;
+    WebsocketFrame frame = new WebsocketFrame(opcode, fin, !control && messageText, data);
+    Channels.fireMessageReceived(ctx, frame, e.getRemoteAddress());
+  }
+
+  /*
+  XORs length bytes from index with the masking key, a long at a time. phase is the offset into the payload of the
+  first byte, which picks where in the key to start
+   */
+  static void mask(ChannelBuffer buf, int index, int length, int key, int phase) {
+    int m = Integer.rotateLeft(key, 8 * (phase & 3));
+    long m64 = ((long) m << 32) | (m & 0xFFFFFFFFL);
+    int end = index + length;
+    int i = index;
+    for (; i + 8 <= end; i += 8) {
+      buf.setLong(i, buf.getLong(i) ^ m64);
+    }
+    //Whole longs leave the key in the same phase
+    for (int shift = 24; i < end; i++, shift = (shift + 24) & 31) {
+      buf.setByte(i, buf.getByte(i) ^ (m >>> shift));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Encodes {@link WebsocketFrame} instances as RFC 6455 frames. Anything else, such as an already encoded frame, is
+ * passed through untouched.<p>
+ * Frames sent by a server are not masked, so the payload is wrapped behind the header rather than copied. Frames sent
+ * by a client must be masked with a fresh key, which means the payload is copied so the caller's buffer is left alone.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class WebsocketFrameEncoder extends OneToOneEncoder {
+
+  private final boolean mask;
+
+  WebsocketFrameEncoder(boolean mask) {
+    this.mask = mask;
+  }
+
+  protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+    if (msg instanceof WebsocketFrame) {
+      return encode((WebsocketFrame) msg, mask);
+    } else {
+      return msg;
+    }
+  }
+
+  static ChannelBuffer encode(WebsocketFrame frame, boolean mask) {
+    ChannelBuffer data = frame.data;
+    int len = data.readableBytes();
+    int lenSize = len <= 125 ? 0 : len <= 0xFFFF ? 2 : 8;
+    ChannelBuffer header = ChannelBuffers.buffer(2 + lenSize + (mask ? 4 : 0));
+    header.writeByte((frame.fin ? 0x80 : 0) | frame.opcode);
+    int maskBit = mask ? 0x80 : 0;
+    if (lenSize == 0) {
+      header.writeByte(maskBit | len);
+    } else if (lenSize == 2) {
+      header.writeByte(maskBit | 126);
+      header.writeShort(len);
+    } else {
+      header.writeByte(maskBit | 127);
+      header.writeLong(len);
+    }
+    if (len == 0) {
+      if (mask) {
+        header.writeInt(0);
+      }
+      return header;
+    }
+    if (!mask) {
+      return ChannelBuffers.wrappedBuffer(header, data);
+    }
+    int key = ThreadLocalRandom.current().nextInt();
+    header.writeInt(key);
+    ChannelBuffer body = ChannelBuffers.buffer(len);
+    body.writeBytes(data, data.readerIndex(), len);
+    WebsocketFrameDecoder.mask(body, 0, len, key, 0);
+    return ChannelBuffers.wrappedBuffer(header, body);
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.internal.LoopThread;
+import org.nodex.java.core.internal.NodexInternal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A group of {@link Websocket websockets} which frames can be broadcast to.</p>
+ *
+ * <p>Each frame written to the group is encoded once, into a buffer which is shared by all the members rather than
+ * being encoded again for each of them. The members are held by the event loop they belong to. A frame is handed to
+ * each loop which has members, and the loop writes it to them. Frames written to the group before a loop gets round
+ * to them are written to each member as a single write.</p>
+ *
+ * <p>A member which can't keep up, so its write queue is full (see {@link Websocket#writeQueueFull}), is dealt with
+ * according to the group's {@link SlowConsumerPolicy}. Frames for a member which is in the middle of writing a
+ * fragmented message (see {@link Websocket#writeFragment}) are held, up to the group's max buffered bytes, whatever the
+ * policy, and written once the last fragment has been written.</p>
+ *
+ * <p>Websockets can only be added to and removed from the group on their own event loop, but frames can be written
+ * to the group from any thread. Members which close are removed from the group automatically.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class WebsocketGroup {
+
+  /**
+   * What to do with a member whose write queue is full when a frame is written to the group
+   */
+  public enum SlowConsumerPolicy {
+    /**
+     * The member misses the frame
+     */
+    DROP,
+    /**
+     * The group holds frames for the member, up to the group's max buffered bytes, and writes them once the member's
+     * write queue is no longer full. If more are held the oldest are dropped
+     */
+    BUFFER,
+    /**
+     * The member is disconnected and removed from the group
+     */
+    DISCONNECT
+  }
+
+  /**
+   * The default maximum number of bytes held for a member by a group with the {@link SlowConsumerPolicy#BUFFER}
+   * policy
+   */
+  public static final int DEFAULT_MAX_BUFFERED_BYTES = 1024 * 1024;
+
+  private final SlowConsumerPolicy policy;
+  private final int maxBufferedBytes;
+  private final Map<Thread, Loop> loops = new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Create a group with the {@link SlowConsumerPolicy#DROP} policy
+   */
+  public WebsocketGroup() {
+    this(SlowConsumerPolicy.DROP, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  /**
+   * Create a group which deals with slow members using {@code policy}. {@code maxBufferedBytes} limits the frames
+   * held for a member by the {@link SlowConsumerPolicy#BUFFER} policy, or while it's writing a fragmented message.
+   */
+  public WebsocketGroup(SlowConsumerPolicy policy, int maxBufferedBytes) {
+    if (policy == null) {
+      throw new NullPointerException("policy");
+    }
+    if (maxBufferedBytes < 0) {
+      throw new IllegalArgumentException("maxBufferedBytes must be >= 0");
+    }
+    this.policy = policy;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Add {@code ws} to the group. This must be called on the websocket's event loop.
+   */
+  public void add(Websocket ws) {
+    Loop loop = loops.get(Thread.currentThread());
+    if (loop == null) {
+      if (!(Thread.currentThread() instanceof LoopThread)) {
+        throw new IllegalStateException("Websockets can only be added to a group on their event loop");
+      }
+      loop = new Loop(NodexInternal.instance.getLoopContextID(Thread.currentThread()));
+      loops.put(Thread.currentThread(), loop);
+    }
+    if (!ws.isClosed() && !loop.members.containsKey(ws)) {
+      loop.members.put(ws, new Member(ws));
+      size.incrementAndGet();
+    }
+  }
+
+  /**
+   * Remove {@code ws} from the group. This must be called on the websocket's event loop.
+   */
+  public void remove(Websocket ws) {
+    Loop loop = loops.get(Thread.currentThread());
+    Member member = loop == null ? null : loop.members.remove(ws);
+    if (member != null) {
+      member.release();
+      size.decrementAndGet();
+    }
+  }
+
+  /**
+   * Return the number of websockets in the group. Members which have closed are counted until the group next writes
+   * to their event loop.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Write {@code data} to all the members of the group as a binary frame. {@code data} is copied once, so can be
+   * changed afterwards.
+   */
+  public void writeBinaryFrame(Buffer data) {
+    broadcast(false, data.getChannelBuffer());
+  }
+
+  /**
+   * Write {@code str} to all the members of the group as a text frame
+   */
+  public void writeTextFrame(String str) {
+    broadcast(true, ChannelBuffers.copiedBuffer(str, CharsetUtil.UTF_8));
+  }
+
+  /**
+   * Write {@code data}, which must be UTF-8 encoded, to all the members of the group as a text frame. {@code data} is
+   * copied once, so can be changed afterwards.
+   */
+  public void writeTextFrame(Buffer data) {
+    broadcast(true, data.getChannelBuffer());
+  }
+
+  private void broadcast(boolean text, ChannelBuffer data) {
+    WebsocketFrame frame = new WebsocketFrame(text ? WebsocketFrame.TEXT : WebsocketFrame.BINARY, true, text, data);
+    //Copy the header and payload into one buffer which is never changed, so the loops can share it
+    ChannelBuffer encoded = ChannelBuffers.copiedBuffer(WebsocketFrameEncoder.encode(frame, false));
+    int headerSize = encoded.readableBytes() - data.readableBytes();
+    Shared shared = new Shared(encoded, text, encoded.slice(headerSize, data.readableBytes()));
+    for (Loop loop : loops.values()) {
+      loop.add(shared);
+    }
+  }
+
+  //A frame as written to the group. The buffers are never changed, so each write uses a duplicate of them
+  private static class Shared {
+    final ChannelBuffer encoded;
+    final boolean text;
+    final ChannelBuffer data;
+
+    Shared(ChannelBuffer encoded, boolean text, ChannelBuffer data) {
+      this.encoded = encoded;
+      this.text = text;
+      this.data = data;
+    }
+  }
+
+  private class Loop extends LoopFanOut<Shared> {
+    //Only accessed on the loop
+    final Map<Websocket, Member> members = new LinkedHashMap<>();
+
+    Loop(long contextID) {
+      super(contextID);
+    }
+
+    void deliver(List<Shared> frames) {
+      for (Iterator<Member> iter = members.values().iterator(); iter.hasNext(); ) {
+        Member member = iter.next();
+        if (member.ws.isClosed() || !member.write(frames)) {
+          member.release();
+          iter.remove();
+          size.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  private class Member implements EventHandler<Void> {
+    final Websocket ws;
+    //Frames held for a slow member by the BUFFER policy, or while it is writing a fragmented message. While any are
+    //held the member is one of the websocket's group drain handlers, so they are written as soon as it can take them
+    Queue<Shared> held;
+    int heldBytes;
+    boolean waitingForDrain;
+
+    Member(Websocket ws) {
+      this.ws = ws;
+    }
+
+    //Returns false if the member has been disconnected
+    boolean write(List<Shared> frames) {
+      if (ws.writeQueueFull()) {
+        switch (policy) {
+          case DISCONNECT:
+            ws.closeConnection();
+            return false;
+          case BUFFER:
+            hold(frames);
+            return true;
+          default:
+            return true;
+        }
+      }
+      if (ws.isFragmenting()) {
+        hold(frames);
+        return true;
+      }
+      if (held != null && !held.isEmpty()) {
+        hold(frames);
+        frames = takeHeld();
+      }
+      send(frames);
+      return true;
+    }
+
+    //The websocket has drained or finished a fragmented message
+    public void onEvent(Void v) {
+      if (!ws.isClosed() && !ws.writeQueueFull() && !ws.isFragmenting()) {
+        List<Shared> frames = takeHeld();
+        if (!frames.isEmpty()) {
+          send(frames);
+        }
+      }
+    }
+
+    //The member has left the group
+    void release() {
+      if (waitingForDrain) {
+        takeHeld();
+      }
+    }
+
+    private void hold(List<Shared> frames) {
+      if (held == null) {
+        held = new ArrayDeque<>();
+      }
+      if (!waitingForDrain) {
+        waitingForDrain = true;
+        ws.addGroupDrainHandler(this);
+      }
+      for (Shared shared : frames) {
+        held.add(shared);
+        heldBytes += shared.encoded.readableBytes();
+      }
+      while (heldBytes > maxBufferedBytes) {
+        heldBytes -= held.remove().encoded.readableBytes();
+      }
+    }
+
+    private List<Shared> takeHeld() {
+      List<Shared> frames = new ArrayList<>(held);
+      held.clear();
+      heldBytes = 0;
+      waitingForDrain = false;
+      ws.removeGroupDrainHandler(this);
+      return frames;
+    }
+
+    private void send(List<Shared> frames) {
+      if (ws.sharesEncoding()) {
+        if (frames.size() == 1) {
+          ws.writeEncoded(frames.get(0).encoded.duplicate());
+        } else {
+          ChannelBuffer[] buffers = new ChannelBuffer[frames.size()];
+          for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = frames.get(i).encoded;
+          }
+          ws.writeEncoded(ChannelBuffers.wrappedBuffer(buffers));
+        }
+      } else {
+        for (Shared shared : frames) {
+          ws.writeData(shared.text, shared.data.duplicate());
+        }
+      }
+    }
+  }
+}
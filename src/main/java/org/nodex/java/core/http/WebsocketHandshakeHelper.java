@@ -18,11 +18,58 @@ package org.nodex.java.core.http;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.util.CharsetUtil;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
 
 class WebsocketHandshakeHelper {
+
+  //RFC 6455 headers, which this version of Netty doesn't know about
+  static final String SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+  static final String SEC_WEBSOCKET_ACCEPT = "Sec-WebSocket-Accept";
+  static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+  static final String VERSION = "13";
+
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  //Connection is a comma separated list of tokens, browsers send e.g. "keep-alive, Upgrade"
+  static boolean isUpgrade(String upgrade, String connection) {
+    if (!HttpHeaders.Values.WEBSOCKET.equalsIgnoreCase(upgrade)) {
+      return false;
+    }
+    if (connection != null) {
+      for (String token : connection.split(",")) {
+        if (HttpHeaders.Values.UPGRADE.equalsIgnoreCase(token.trim())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  static String calcAccept(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return base64(sha1.digest((key.trim() + ACCEPT_GUID).getBytes(CharsetUtil.US_ASCII)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("No such algorithm " + e.getMessage());
+    }
+  }
+
+  static String genKey() {
+    byte[] nonce = new byte[16];
+    ThreadLocalRandom.current().nextBytes(nonce);
+    return base64(nonce);
+  }
+
+  private static String base64(byte[] bytes) {
+    return Base64.encode(ChannelBuffers.wrappedBuffer(bytes), false).toString(CharsetUtil.US_ASCII);
+  }
+
   public static ChannelBuffer calcResponse(String key1, String key2, long c) {
     int a = (int) (Long.parseLong(key1.replaceAll("[^0-9]", "")) / key1.replaceAll("[^ ]", "").length());
     int b = (int) (Long.parseLong(key2.replaceAll("[^0-9]", "")) / key2.replaceAll("[^ ]", "").length());
@@ -20,17 +20,14 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
-import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.channel.socket.nio.NioSocketChannelConfig;
 import org.jboss.netty.handler.ssl.SslHandler;
-import org.jboss.netty.handler.stream.ChunkedFile;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.streams.ReadStream;
 import org.nodex.java.core.streams.WriteStream;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 /**
  * <p>Abstract base class for different types of connections.</p>
@@ -39,6 +36,12 @@ import java.io.RandomAccessFile;
  */
 public class ConnectionBase {
 
+  /**
+   * The default size of the chunks a file is read in when it is sent over SSL. This is the largest amount of data an
+   * SSL record can hold, so each chunk is sent as a single record.
+   */
+  public static final int DEFAULT_SEND_FILE_CHUNK_SIZE = 16 * 1024;
+
   protected ConnectionBase(Channel channel, long contextID, Thread th) {
     this.channel = channel;
     this.contextID = contextID;
@@ -52,6 +55,8 @@ public class ConnectionBase {
 
   protected EventHandler<Exception> exceptionHandler;
   protected EventHandler<Void> closedHandler;
+  //The size of the chunks a file is read in when it can't be sent with zero-copy
+  private int sendFileChunkSize = DEFAULT_SEND_FILE_CHUNK_SIZE;
 
   /**
    * Pause the connection, see {@link ReadStream#pause}
@@ -75,8 +80,25 @@ public class ConnectionBase {
   public void setWriteQueueMaxSize(int size) {
     checkThread();
     NioSocketChannelConfig conf = (NioSocketChannelConfig) channel.getConfig();
-    conf.setWriteBufferLowWaterMark(size / 2);
-    conf.setWriteBufferHighWaterMark(size);
+    //Netty checks each mark against the other as it is set, so which goes first depends on the direction of the change
+    if (size >= conf.getWriteBufferHighWaterMark()) {
+      conf.setWriteBufferHighWaterMark(size);
+      conf.setWriteBufferLowWaterMark(size / 2);
+    } else {
+      conf.setWriteBufferLowWaterMark(size / 2);
+      conf.setWriteBufferHighWaterMark(size);
+    }
+  }
+
+  /**
+   * Set the size of the chunks a file is read in when it is sent over SSL, where it can't be sent with zero-copy.
+   */
+  public void setSendFileChunkSize(int size) {
+    checkThread();
+    if (size < 1) {
+      throw new IllegalArgumentException("size must be >= 1");
+    }
+    this.sendFileChunkSize = size;
   }
 
   /**
@@ -180,26 +202,32 @@ public class ConnectionBase {
   }
 
   protected ChannelFuture sendFile(File file) {
-    RandomAccessFile raf;
+    return sendFile(file, 0, file.length());
+  }
+
+  protected ChannelFuture sendFile(File file, long offset, long length) {
+    final OpenFileCache.Entry openFile;
     try {
-      raf = new RandomAccessFile(file, "r");
-      long fileLength = file.length();
-
-      // Write the content.
-      ChannelFuture writeFuture;
-      if (isSSL()) {
-        // Cannot use zero-copy with HTTPS.
-        writeFuture = channel.write(new ChunkedFile(raf, 0, fileLength, 8192));
-      } else {
-        // No encryption - use zero-copy.
-        final FileRegion region =
-            new DefaultFileRegion(raf.getChannel(), 0, fileLength);
-        writeFuture = channel.write(region);
-      }
-      return writeFuture;
+      openFile = OpenFileCache.instance.acquire(file);
     } catch (IOException e) {
       handleException(e);
       return null;
     }
+
+    // Write the content.
+    ChannelFuture writeFuture;
+    if (isSSL()) {
+      // Cannot use zero-copy with HTTPS.
+      writeFuture = channel.write(new FileRangeInput(openFile.channel(), offset, length, sendFileChunkSize));
+    } else {
+      // No encryption - use zero-copy.
+      writeFuture = channel.write(new DefaultFileRegion(openFile.channel(), offset, length));
+    }
+    writeFuture.addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture future) {
+        openFile.release();
+      }
+    });
+    return writeFuture;
   }
 }
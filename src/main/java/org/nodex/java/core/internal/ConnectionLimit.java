@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Limits the number of connections a server has open at any one time.<p>
+ * {@link #acquire} is called from the server's pipeline factory, which Netty calls on the acceptor thread for each
+ * accepted connection, before it accepts the next one. So while the server is at its limit the acceptor waits, and
+ * further connections wait in the listen backlog rather than taking up file descriptors and memory. The same instance
+ * is added to the pipeline of each connection, and gives the connection's place back when it closes.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+@ChannelHandler.Sharable
+public class ConnectionLimit extends SimpleChannelUpstreamHandler {
+
+  private final int maxConnections;
+  private int connections;
+  private boolean closed;
+
+  public ConnectionLimit(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Wait until the server is under its limit and take a place.
+   * @throws IllegalStateException if the server is closed while waiting. Netty then closes the accepted socket
+   */
+  public synchronized void acquire() {
+    boolean interrupted = false;
+    while (connections >= maxConnections && !closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (closed) {
+      throw new IllegalStateException("Server is closed");
+    }
+    connections++;
+  }
+
+  /**
+   * Stop waiting. Called when the server is closed.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    release();
+    super.channelClosed(ctx, e);
+  }
+
+  private synchronized void release() {
+    connections--;
+    notifyAll();
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Closes a server connection which has been idle, or has been too slow sending a request or reading a response, for
+ * longer than the configured timeouts. A timeout of {@code 0} is disabled.<p>
+ * It must be the handler nearest the socket, so it sees the raw reads and the final writes. All the deadlines of a
+ * connection share a single entry in the {@link TimerWheel} of the connection's event loop, and reads and writes just
+ * record the time, so timeouts cost next to nothing on the data path.<p>
+ * The timeouts are:<p>
+ * Idle: no reads or writes while no request is in progress and nothing is being written.<p>
+ * Header read: the headers of a request have not been received in full this long after their first bytes arrived. It
+ * is not reset by further reads, so a client can't hold the connection by sending a byte at a time.<p>
+ * Body read: no data has been received for this long while reading a request body.<p>
+ * Write: no data has been written for this long while writes are outstanding.<p>
+ * A connection only has header and body read timeouts if it is told about requests using {@link #headersRead} and
+ * {@link #bodyRead}. Otherwise, as for a {@link org.nodex.java.core.net.NetSocket}, only the idle and write timeouts
+ * apply. Read timeouts don't run while reading from the channel is suspended.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class ConnectionTimeouts extends SimpleChannelHandler {
+
+  private final long idleTimeout;
+  private final long headerTimeout;
+  private final long bodyTimeout;
+  private final long writeTimeout;
+
+  private NioSocketChannel channel;
+  private TimerWheel wheel;
+  private boolean closed;
+  private long lastRead;
+  private long lastWrite;
+  private int outstandingWrites;
+  private boolean awaitingHeaders;
+  private long headerDeadline;
+  private boolean readingBody;
+  private boolean busy;
+
+  private final TimerWheel.Entry entry = new TimerWheel.Entry() {
+    protected void expired() {
+      check();
+    }
+  };
+
+  public ConnectionTimeouts(long idleTimeout, long headerTimeout, long bodyTimeout, long writeTimeout) {
+    this.idleTimeout = idleTimeout;
+    this.headerTimeout = headerTimeout;
+    this.bodyTimeout = bodyTimeout;
+    this.writeTimeout = writeTimeout;
+    this.awaitingHeaders = headerTimeout > 0 || bodyTimeout > 0;
+  }
+
+  /**
+   * Are any timeouts set?
+   */
+  public static boolean enabled(long idleTimeout, long headerTimeout, long bodyTimeout, long writeTimeout) {
+    return idleTimeout > 0 || headerTimeout > 0 || bodyTimeout > 0 || writeTimeout > 0;
+  }
+
+  /**
+   * The headers of a request have been read. If {@code hasBody} is true its body is now being read, otherwise the next
+   * bytes received are the headers of the next request.
+   */
+  public void headersRead(boolean hasBody) {
+    if (!onLoop()) {
+      return;
+    }
+    headerDeadline = 0;
+    busy = true;
+    readingBody = hasBody;
+    awaitingHeaders = !hasBody;
+    lastRead = wheel.now();
+    update();
+  }
+
+  /**
+   * The body of the current request has been read.
+   */
+  public void bodyRead() {
+    if (!onLoop()) {
+      return;
+    }
+    readingBody = false;
+    awaitingHeaders = true;
+    update();
+  }
+
+  /**
+   * All requests have been responded to, so the idle timeout starts.
+   */
+  public void idle() {
+    if (!onLoop()) {
+      return;
+    }
+    busy = false;
+    lastRead = wheel.now();
+    update();
+  }
+
+  /**
+   * The connection is no longer carrying requests, e.g. it's been upgraded to a websocket. Only the idle and write
+   * timeouts apply from now on.
+   */
+  public void upgraded() {
+    if (!onLoop()) {
+      return;
+    }
+    awaitingHeaders = readingBody = busy = false;
+    headerDeadline = 0;
+    lastRead = wheel.now();
+    update();
+  }
+
+  @Override
+  public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    final NioSocketChannel ch = (NioSocketChannel) e.getChannel();
+    ThreadSourceUtils.runOnCorrectThread(ch, new Runnable() {
+      public void run() {
+        channel = ch;
+        if (onLoop()) {
+          update();
+        }
+      }
+    });
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+    if (onLoop()) {
+      lastRead = wheel.now();
+      if (awaitingHeaders && headerTimeout > 0 && headerDeadline == 0) {
+        headerDeadline = lastRead + headerTimeout;
+      }
+      update();
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+    if (onLoop()) {
+      if (outstandingWrites++ == 0) {
+        lastWrite = wheel.now();
+        update();
+      }
+      e.getFuture().addListener(new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) {
+          //A failed write from another thread means the channel is being closed anyway
+          if (onLoop() && --outstandingWrites == 0) {
+            lastWrite = wheel.now();
+            update();
+          }
+        }
+      });
+    }
+    super.writeRequested(ctx, e);
+  }
+
+  @Override
+  public void writeComplete(ChannelHandlerContext ctx, WriteCompletionEvent e) throws Exception {
+    if (onLoop()) {
+      //Just record the progress - the write deadline moves back when it next comes round
+      lastWrite = wheel.now();
+    }
+    super.writeComplete(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    final NioSocketChannel ch = (NioSocketChannel) e.getChannel();
+    ThreadSourceUtils.runOnCorrectThread(ch, new Runnable() {
+      public void run() {
+        closed = true;
+        if (wheel != null) {
+          wheel.cancel(entry);
+        }
+      }
+    });
+    super.channelClosed(ctx, e);
+  }
+
+  //Are we on the connection's event loop, and still open? All the state is only touched from the loop
+  private boolean onLoop() {
+    if (closed || channel == null || Thread.currentThread() != channel.getWorker().getThread()) {
+      return false;
+    }
+    if (wheel == null) {
+      wheel = TimerWheel.current();
+      lastRead = lastWrite = wheel.now();
+    }
+    return true;
+  }
+
+  //The earliest deadline, or 0 if there isn't one
+  private long deadline() {
+    long deadline = Long.MAX_VALUE;
+    if (idleTimeout > 0 && !busy && headerDeadline == 0 && outstandingWrites == 0) {
+      deadline = Math.max(lastRead, lastWrite) + idleTimeout;
+    }
+    if (headerDeadline != 0) {
+      deadline = Math.min(deadline, headerDeadline);
+    }
+    if (readingBody && bodyTimeout > 0) {
+      deadline = Math.min(deadline, lastRead + bodyTimeout);
+    }
+    if (outstandingWrites > 0 && writeTimeout > 0) {
+      deadline = Math.min(deadline, lastWrite + writeTimeout);
+    }
+    return deadline == Long.MAX_VALUE ? 0 : deadline;
+  }
+
+  private void update() {
+    long deadline = deadline();
+    if (deadline == 0) {
+      wheel.cancel(entry);
+    } else {
+      wheel.schedule(entry, deadline);
+    }
+  }
+
+  private void check() {
+    long now = wheel.now();
+    if (!channel.isReadable()) {
+      //We aren't reading by choice, so don't hold it against the client
+      lastRead = now;
+      if (headerDeadline != 0) {
+        headerDeadline = now + headerTimeout;
+      }
+    }
+    long deadline = deadline();
+    if (deadline == 0) {
+      return;
+    }
+    if (wheel.passed(deadline)) {
+      channel.close();
+    } else {
+      wheel.schedule(entry, deadline);
+    }
+  }
+}
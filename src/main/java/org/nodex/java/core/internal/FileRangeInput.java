@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A range of a file read in chunks with positional reads, so the file channel can be shared with other sends. Used
+ * where zero-copy isn't possible, e.g. over SSL. Closing it does not close the file channel.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class FileRangeInput implements ChunkedInput {
+
+  private final FileChannel channel;
+  private final long end;
+  private final int chunkSize;
+  private long position;
+
+  FileRangeInput(FileChannel channel, long offset, long length, int chunkSize) {
+    this.channel = channel;
+    this.position = offset;
+    this.end = offset + length;
+    this.chunkSize = chunkSize;
+  }
+
+  public boolean hasNextChunk() {
+    return position < end;
+  }
+
+  public Object nextChunk() throws Exception {
+    if (position >= end) {
+      return null;
+    }
+    ByteBuffer buff = ByteBuffer.allocate((int) Math.min(chunkSize, end - position));
+    while (buff.hasRemaining()) {
+      int read = channel.read(buff, position + buff.position());
+      if (read == -1) {
+        throw new EOFException("File is shorter than the range being sent");
+      }
+    }
+    position += buff.capacity();
+    buff.flip();
+    return ChannelBuffers.wrappedBuffer(buff);
+  }
+
+  public boolean isEndOfInput() {
+    return position >= end;
+  }
+
+  public void close() {
+  }
+}
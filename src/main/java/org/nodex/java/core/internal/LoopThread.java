@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import org.jboss.netty.channel.socket.nio.NioWorker;
+
+import java.lang.reflect.Field;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The thread an event loop runs on. It holds the values of {@link org.nodex.java.core.shared.LoopLocal} instances for
+ * its event loop in a plain array, so they can be accessed without hashing or synchronization.<p>
+ * The values must only be accessed from the thread itself.<p>
+ * It also queues the tasks the loop posts to itself, see {@link #post}.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public final class LoopThread extends Thread {
+
+  //NioWorker.scheduleOtherTask runs a task straight away when it's called from the worker's own thread, so tasks the
+  //loop posts to itself are put on the worker's queues directly
+  private static final Field OTHER_TASKS = workerField("otherTaskQueue");
+  private static final Field WRITE_TASKS = workerField("writeTaskQueue");
+  private static final Field WAKEN_UP = workerField("wakenUp");
+  private static final Field SELECTOR = workerField("selector");
+
+  private Object[] loopLocals = new Object[16];
+  //Created on first use by TimerWheel.current()
+  TimerWheel timerWheel;
+
+  private final ArrayDeque<Runnable> posted = new ArrayDeque<>();
+  private boolean drainScheduled;
+  private NioWorker worker;
+  private Queue<Runnable> otherTasks;
+  private Queue<Runnable> writeTasks;
+  private AtomicBoolean wakenUp;
+
+  private final Runnable drainer = new Runnable() {
+    public void run() {
+      //Only run what was posted before now, so a task which keeps posting itself can't keep the loop from its I/O
+      for (int n = posted.size(); n > 0; n--) {
+        try {
+          posted.poll().run();
+        } catch (Throwable t) {
+          t.printStackTrace(System.err);
+        }
+      }
+      if (posted.isEmpty()) {
+        drainScheduled = false;
+      } else {
+        //The worker runs its other tasks until there are none left, so anything queued there now would run before any
+        //I/O. Write tasks are run after them, and just before the I/O
+        writeTasks.offer(requeue);
+      }
+    }
+  };
+
+  private final Runnable requeue = new Runnable() {
+    public void run() {
+      scheduleDrain();
+    }
+  };
+
+  LoopThread(Runnable runnable, String name) {
+    super(runnable, name);
+  }
+
+  public Object getLoopLocal(int index) {
+    return index < loopLocals.length ? loopLocals[index] : null;
+  }
+
+  public void setLoopLocal(int index, Object value) {
+    if (index >= loopLocals.length) {
+      int len = loopLocals.length;
+      while (len <= index) {
+        len <<= 1;
+      }
+      Object[] copy = new Object[len];
+      System.arraycopy(loopLocals, 0, copy, 0, loopLocals.length);
+      loopLocals = copy;
+    }
+    loopLocals[index] = value;
+  }
+
+  /**
+   * Run {@code task} on this loop once the task it is running now has finished. Tasks are run in the order they're
+   * posted. Must be called from the thread itself, which must be the thread of {@code worker}.
+   */
+  @SuppressWarnings("unchecked")
+  void post(NioWorker worker, Runnable task) {
+    posted.add(task);
+    if (drainScheduled) {
+      return;
+    }
+    if (this.worker == null) {
+      try {
+        otherTasks = (Queue<Runnable>) OTHER_TASKS.get(worker);
+        writeTasks = (Queue<Runnable>) WRITE_TASKS.get(worker);
+        wakenUp = (AtomicBoolean) WAKEN_UP.get(worker);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+      this.worker = worker;
+    }
+    drainScheduled = true;
+    scheduleDrain();
+  }
+
+  private void scheduleDrain() {
+    otherTasks.offer(drainer);
+    //Stop the next select from blocking, in case the worker is handling I/O and has already been through its tasks
+    if (wakenUp.compareAndSet(false, true)) {
+      try {
+        Selector selector = (Selector) SELECTOR.get(worker);
+        if (selector != null) {
+          selector.wakeup();
+        }
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private static Field workerField(String name) {
+    try {
+      Field field = NioWorker.class.getDeclaredField(name);
+      field.setAccessible(true);
+      return field;
+    } catch (NoSuchFieldException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+}
@@ -30,6 +30,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -40,8 +42,10 @@ public final class NodexImpl implements NodexInternal {
   private int backgroundPoolSize = 20;
   private int corePoolSize = Runtime.getRuntime().availableProcessors();
   private volatile ExecutorService backgroundPool;
+  private volatile ForkJoinPool parallelPool;
   private volatile ExecutorService corePool;
   private volatile NioWorkerPool workerPool;
+  private volatile long[] loopContextIDs;
   private volatile ExecutorService acceptorPool;
   private Map<Long, NioWorker> workerMap = new ConcurrentHashMap<>();
   private static final ThreadLocal<Long> contextIDTL = new ThreadLocal<>();
@@ -157,6 +161,32 @@ public final class NodexImpl implements NodexInternal {
     return result;
   }
 
+  //The parallel pool is used for splitting CPU bound work such as bulk operations on shared data across cores, so it
+  //doesn't stall an event loop
+  public ForkJoinPool getParallelPool() {
+    //This is a correct implementation of double-checked locking idiom
+    ForkJoinPool result = parallelPool;
+    if (result == null) {
+      synchronized (this) {
+        result = parallelPool;
+        if (result == null) {
+          parallelPool = result = new ForkJoinPool(corePoolSize, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+              ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+              t.setName("node.x-parallel-thread-" + threadCount.getAndIncrement());
+              // All node.x threads are daemons
+              t.setDaemon(true);
+              return t;
+            }
+          }, null, false);
+        }
+      }
+    }
+    return result;
+  }
+
   public NioWorkerPool getWorkerPool() {
     //This is a correct implementation of double-checked locking idiom
     NioWorkerPool result = workerPool;
@@ -164,14 +194,47 @@ public final class NodexImpl implements NodexInternal {
       synchronized (this) {
         result = workerPool;
         if (result == null) {
-          corePool = Executors.newFixedThreadPool(corePoolSize, new NodeThreadFactory("node.x-core-thread-"));
-          workerPool = result = new NioWorkerPool(corePoolSize, corePool);
+          corePool = Executors.newFixedThreadPool(corePoolSize, new NodeThreadFactory("node.x-core-thread-", true));
+          NioWorkerPool pool = new NioWorkerPool(corePoolSize, corePool);
+          //The pool hands out workers round robin, so this gives us a context on each of them
+          long[] ids = new long[corePoolSize];
+          for (int i = 0; i < corePoolSize; i++) {
+            ids[i] = associateContextWithWorker(pool.nextWorker());
+          }
+          loopContextIDs = ids;
+          workerPool = result = pool;
         }
       }
     }
     return result;
   }
 
+  public long[] getLoopContextIDs() {
+    getWorkerPool();
+    return loopContextIDs;
+  }
+
+  public long getLoopContextID(Thread thread) {
+    for (long id : getLoopContextIDs()) {
+      if (getWorkerForContextID(id).getThread() == thread) {
+        return id;
+      }
+    }
+    throw new IllegalStateException("No context for event loop " + thread);
+  }
+
+  public void runInContext(long contextID, Runnable runnable) {
+    Long prevContextID = getContextID();
+    setContextID(contextID);
+    try {
+      runnable.run();
+    } finally {
+      if (prevContextID != null) {
+        setContextID(prevContextID);
+      }
+    }
+  }
+
   //We use a cached pool, but it will never get large since only used for acceptors.
   //There will be one thread for each port listening on
   public Executor getAcceptorPool() {
@@ -235,6 +298,17 @@ public final class NodexImpl implements NodexInternal {
     }, false);
   }
 
+  public void postOnContext(long contextID, Runnable runnable) {
+    NioWorker worker = getWorkerForContextID(contextID);
+    Thread thread = worker.getThread();
+    if (thread == Thread.currentThread()) {
+      //Worker threads are always loop threads
+      ((LoopThread) thread).post(worker, runnable);
+    } else {
+      worker.scheduleOtherTask(runnable);
+    }
+  }
+
   private void executeOnContext(long contextID, Runnable runnable, boolean sameThreadOptimise) {
     NioWorker worker = workerMap.get(contextID);
     if (worker != null) {
@@ -367,14 +441,21 @@ public final class NodexImpl implements NodexInternal {
   private static class NodeThreadFactory implements ThreadFactory {
 
     private String prefix;
+    private boolean loop;
     private AtomicInteger threadCount = new AtomicInteger(0);
 
     NodeThreadFactory(String prefix) {
+      this(prefix, false);
+    }
+
+    NodeThreadFactory(String prefix, boolean loop) {
       this.prefix = prefix;
+      this.loop = loop;
     }
 
     public Thread newThread(Runnable runnable) {
-      Thread t = new Thread(runnable, prefix + threadCount.getAndIncrement());
+      String name = prefix + threadCount.getAndIncrement();
+      Thread t = loop ? new LoopThread(runnable, name) : new Thread(runnable, name);
       // All node.x threads are daemons
       t.setDaemon(true);
       return t;
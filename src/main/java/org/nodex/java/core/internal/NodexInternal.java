@@ -22,6 +22,7 @@ import org.nodex.java.core.Nodex;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author <a href="http://tfox.org">Tim Fox</a>
@@ -36,6 +37,13 @@ public interface NodexInternal extends Nodex {
 
   void executeOnContext(long contextID, Runnable runnable);
 
+  /**
+   * Run {@code runnable} on the event loop of the context, after the task currently running on that loop. Unlike
+   * {@link #executeOnContext} it is never run inline, even when called from the context's own loop.
+   * @throws IllegalStateException if the context is not registered
+   */
+  void postOnContext(long contextID, Runnable runnable);
+
   long createAndAssociateContext();
 
   long associateContextWithWorker(NioWorker worker);
@@ -48,7 +56,27 @@ public interface NodexInternal extends Nodex {
 
   ExecutorService getBackgroundPool();
 
+  ForkJoinPool getParallelPool();
+
   NioWorker getWorkerForContextID(long contextID);
 
+  /**
+   * Return the IDs of a context on each event loop, one per loop. The array must not be modified.
+   */
+  long[] getLoopContextIDs();
+
+  /**
+   * Return the ID of the context, out of those returned by {@link #getLoopContextIDs}, which belongs to the event loop
+   * running on {@code thread}. It lives as long as the loop, unlike the contexts of connections.
+   * @throws IllegalStateException if {@code thread} isn't an event loop
+   */
+  long getLoopContextID(Thread thread);
+
+  /**
+   * Run {@code runnable} straight away on the current thread with {@code contextID} as the current context, then put
+   * back the previous context.
+   */
+  void runInContext(long contextID, Runnable runnable);
+
   int getCoreThreadPoolSize();
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of open files shared by all connections, so a file which is sent often isn't opened for every send.<p>
+ * Files are only read with positional reads and transfers, so one open file can be used by any number of sends at the
+ * same time. Each time an entry is used it is checked against the file's identity, length and modification time with a
+ * single stat, which is much cheaper than opening and closing the file, and is replaced if the file has changed. Above
+ * the maximum size, the least recently used entries are closed once the sends using them have completed.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+final class OpenFileCache {
+
+  static final OpenFileCache instance = new OpenFileCache(256);
+
+  final class Entry {
+    final RandomAccessFile raf;
+    final Object fileKey;
+    final long length;
+    final long lastModified;
+    //The following are guarded by the cache
+    private int refs;
+    private boolean evicted;
+
+    private Entry(RandomAccessFile raf, BasicFileAttributes attrs) {
+      this.raf = raf;
+      this.fileKey = attrs.fileKey();
+      this.length = attrs.size();
+      this.lastModified = attrs.lastModifiedTime().toMillis();
+    }
+
+    FileChannel channel() {
+      return raf.getChannel();
+    }
+
+    /**
+     * Release the entry once the send using it has completed
+     */
+    void release() {
+      synchronized (OpenFileCache.this) {
+        if (--refs == 0 && evicted) {
+          close(this);
+        }
+      }
+    }
+
+    private boolean matches(BasicFileAttributes attrs) {
+      return !evicted && length == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis() &&
+          (fileKey == null ? attrs.fileKey() == null : fileKey.equals(attrs.fileKey()));
+    }
+  }
+
+  private final int maxSize;
+  //In access order, so the eldest entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  OpenFileCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Return an open entry for {@code file}, which must be released when it is no longer needed.
+   */
+  Entry acquire(File file) throws IOException {
+    String path = file.getAbsolutePath();
+    BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    synchronized (this) {
+      Entry entry = entries.get(path);
+      if (entry != null && entry.matches(attrs)) {
+        entry.refs++;
+        return entry;
+      }
+    }
+    //Open outside the lock
+    Entry opened = new Entry(new RandomAccessFile(file, "r"), attrs);
+    synchronized (this) {
+      Entry current = entries.get(path);
+      if (current != null) {
+        if (current.matches(attrs)) {
+          //Another connection opened it first
+          close(opened);
+          current.refs++;
+          return current;
+        }
+        entries.remove(path);
+        evict(current);
+      }
+      opened.refs++;
+      entries.put(path, opened);
+      if (entries.size() > maxSize) {
+        Iterator<Entry> iter = entries.values().iterator();
+        while (entries.size() > maxSize) {
+          Entry eldest = iter.next();
+          iter.remove();
+          evict(eldest);
+        }
+      }
+      return opened;
+    }
+  }
+
+  //Must hold the lock
+  private void evict(Entry entry) {
+    entry.evicted = true;
+    if (entry.refs == 0) {
+      close(entry);
+    }
+  }
+
+  private static void close(Entry entry) {
+    try {
+      entry.raf.close();
+    } catch (IOException ignore) {
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel owned by a single event loop, for timeouts which are set and moved very often, such as connection
+ * idle timeouts.<p>
+ * Scheduling and cancelling an entry just links or unlinks it from a slot, with no allocation and no synchronization,
+ * since the wheel is only ever used from its own loop. An entry's deadline can be moved later without touching the wheel
+ * at all: when its slot comes round it is simply put back in the slot for its new deadline. So a connection can push
+ * its idle timeout back on every read for the cost of a field write. The time is only read once per tick, and
+ * {@link #now} returns that cached time.<p>
+ * The wheel ticks every {@link #TICK} milliseconds using a single node.x timer, and only while it has entries, so an idle
+ * loop is not woken up. Since the cached time can be up to a tick behind, a deadline worked out from it can be up to a
+ * tick early, so an entry only expires once its deadline is a full tick in the past. Entries therefore never expire
+ * early, and expire at most two ticks late.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public final class TimerWheel {
+
+  /**
+   * The resolution of the wheel in milliseconds
+   */
+  public static final long TICK = 100;
+
+  private static final int SLOTS = 512;
+  private static final int MASK = SLOTS - 1;
+  //Entry.tick values for entries which aren't in a slot
+  private static final long IDLE = -1;
+  private static final long DUE = -2;
+
+  /**
+   * An entry in the wheel. Subclasses decide what happens when the deadline passes.
+   */
+  public static abstract class Entry {
+
+    private Entry prev;
+    private Entry next;
+    private long tick = IDLE;
+    private long deadline;
+
+    /**
+     * Called on the loop once the deadline has passed. The entry is no longer scheduled, but it can be scheduled again.
+     */
+    protected abstract void expired();
+
+    public boolean isScheduled() {
+      return tick != IDLE;
+    }
+  }
+
+  /**
+   * Return the wheel for the current event loop.
+   * @throws IllegalStateException if not called from an event loop
+   */
+  public static TimerWheel current() {
+    Thread thread = Thread.currentThread();
+    if (!(thread instanceof LoopThread)) {
+      throw new IllegalStateException("Timer wheels can only be used from an event loop");
+    }
+    LoopThread loop = (LoopThread) thread;
+    if (loop.timerWheel == null) {
+      loop.timerWheel = new TimerWheel(loop);
+    }
+    return loop.timerWheel;
+  }
+
+  private final Thread thread;
+  private final long contextID;
+  private final Entry[] slots = new Entry[SLOTS];
+  private long now = System.currentTimeMillis();
+  //The last tick which has been processed
+  private long currentTick = now / TICK;
+  private int size;
+  private boolean ticking;
+  //Entries taken out of the current slot which are waiting to be expired
+  private final List<Entry> due = new ArrayList<>();
+
+  private final EventHandler<Long> tickHandler = new EventHandler<Long>() {
+    public void onEvent(Long id) {
+      advance();
+      ticking = false;
+      if (size > 0) {
+        startTicking();
+      }
+    }
+  };
+
+  private TimerWheel(Thread thread) {
+    this.thread = thread;
+    this.contextID = NodexInternal.instance.getLoopContextID(thread);
+  }
+
+  /**
+   * The time in milliseconds as of the last tick of the wheel. If the wheel isn't ticking the time is read afresh.
+   */
+  public long now() {
+    if (!ticking) {
+      //Nothing is scheduled, so there's nothing to catch up on
+      now = System.currentTimeMillis();
+      currentTick = now / TICK;
+    }
+    return now;
+  }
+
+  /**
+   * Schedule {@code entry} to expire at {@code deadline}, which is a time in milliseconds. If the entry is already
+   * scheduled it is moved. Moving an entry to a later deadline costs nothing until its current slot comes round.
+   */
+  public void schedule(Entry entry, long deadline) {
+    checkThread();
+    entry.deadline = deadline;
+    if (entry.tick >= 0 && entry.tick <= tickFor(deadline)) {
+      //It will be moved along when its slot comes round
+      return;
+    }
+    link(entry, deadline);
+  }
+
+  /**
+   * Has {@code deadline} passed, allowing for the cached time being behind?
+   */
+  public boolean passed(long deadline) {
+    return deadline + TICK <= now();
+  }
+
+  /**
+   * Stop {@code entry} from expiring. Does nothing if it isn't scheduled.
+   */
+  public void cancel(Entry entry) {
+    checkThread();
+    if (entry.tick >= 0) {
+      unlink(entry);
+    } else {
+      entry.tick = IDLE;
+    }
+  }
+
+  private void link(Entry entry, long deadline) {
+    if (entry.tick >= 0) {
+      unlink(entry);
+    }
+    long tick = Math.max(tickFor(deadline), currentTick + 1);
+    int slot = (int) (tick & MASK);
+    entry.tick = tick;
+    entry.prev = null;
+    entry.next = slots[slot];
+    if (entry.next != null) {
+      entry.next.prev = entry;
+    }
+    slots[slot] = entry;
+    if (size++ == 0 && !ticking) {
+      startTicking();
+    }
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.prev != null) {
+      entry.prev.next = entry.next;
+    } else {
+      slots[(int) (entry.tick & MASK)] = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.prev = entry.prev;
+    }
+    entry.prev = entry.next = null;
+    entry.tick = IDLE;
+    size--;
+  }
+
+  private void advance() {
+    now = System.currentTimeMillis();
+    long target = now / TICK;
+    //If the loop was blocked for more than a rotation, every slot needs looking at once
+    long from = Math.max(currentTick + 1, target - MASK);
+    for (long tick = from; tick <= target; tick++) {
+      currentTick = tick;
+      //Take the due entries out of the slot first, since expiring one can cancel or schedule others
+      Entry entry = slots[(int) (tick & MASK)];
+      while (entry != null) {
+        Entry next = entry.next;
+        if (entry.tick <= tick) {
+          unlink(entry);
+          entry.tick = DUE;
+          due.add(entry);
+        }
+        entry = next;
+      }
+      for (int i = 0; i < due.size(); i++) {
+        entry = due.get(i);
+        if (entry.tick != DUE) {
+          //Cancelled or rescheduled meanwhile
+          continue;
+        }
+        entry.tick = IDLE;
+        if (passed(entry.deadline)) {
+          entry.expired();
+        } else {
+          link(entry, entry.deadline);
+        }
+      }
+      due.clear();
+    }
+    currentTick = target;
+  }
+
+  private static long tickFor(long deadline) {
+    return (deadline + TICK) / TICK;
+  }
+
+  private void startTicking() {
+    ticking = true;
+    //The timer must belong to the loop's own context, since connection contexts go away when they're closed
+    NodexInternal.instance.runInContext(contextID, new Runnable() {
+      public void run() {
+        Nodex.instance.setTimer(TICK, tickHandler);
+      }
+    });
+  }
+
+  private void checkThread() {
+    if (Thread.currentThread() != thread) {
+      throw new IllegalStateException("Timer wheel used from wrong thread, actual: " + Thread.currentThread() +
+          " expected: " + thread);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.internal;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces the buffers written to a channel while it is handling a read, so they go to the socket in one write.<p>
+ * When data is read from the socket, the handlers above this one typically decode it and call user handlers, which
+ * write a response as several separate buffers - the head, one or more chunks of body, and the end. Each of those
+ * would otherwise be a separate write to the socket. This handler must be first in the pipeline so it sees the raw
+ * reads and the final encoded writes. Buffers written on the event loop while a read is being handled are held back
+ * and written as one composite buffer when the read has been handled, or sooner if more than {@code maxPending} bytes
+ * are held. Anything else, such as file regions, or writes from outside a read, flushes what is held and then goes
+ * straight through so ordering is kept.<p>
+ * The buffers are never held beyond the end of the read, so the channel's writability, and so
+ * {@code writeQueueFull} and drain handlers, work as before.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class WriteCoalescer implements ChannelUpstreamHandler, ChannelDownstreamHandler {
+
+  public static final int DEFAULT_MAX_PENDING = 16 * 1024;
+
+  private final int maxPending;
+  //The following are only accessed on the event loop
+  private int readDepth;
+  private Thread readThread;
+  private List<MessageEvent> pending = new ArrayList<>();
+  private int pendingBytes;
+  private ChannelHandlerContext ctx;
+
+  public WriteCoalescer() {
+    this(DEFAULT_MAX_PENDING);
+  }
+
+  public WriteCoalescer(int maxPending) {
+    this.maxPending = maxPending;
+  }
+
+  public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+    if (e instanceof MessageEvent) {
+      if (readDepth++ == 0) {
+        readThread = Thread.currentThread();
+        this.ctx = ctx;
+      }
+      try {
+        ctx.sendUpstream(e);
+      } finally {
+        if (--readDepth == 0) {
+          readThread = null;
+          flush();
+        }
+      }
+    } else {
+      ctx.sendUpstream(e);
+    }
+  }
+
+  public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+    if (e instanceof MessageEvent && Thread.currentThread() == readThread) {
+      MessageEvent me = (MessageEvent) e;
+      if (me.getMessage() instanceof ChannelBuffer) {
+        pending.add(me);
+        pendingBytes += ((ChannelBuffer) me.getMessage()).readableBytes();
+        if (pendingBytes >= maxPending) {
+          flush();
+        }
+        return;
+      }
+    }
+    if (!pending.isEmpty() && Thread.currentThread() == readThread) {
+      flush();
+    }
+    ctx.sendDownstream(e);
+  }
+
+  private void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    final List<MessageEvent> events = pending;
+    pending = new ArrayList<>();
+    pendingBytes = 0;
+    if (events.size() == 1) {
+      ctx.sendDownstream(events.get(0));
+      return;
+    }
+    ChannelBuffer[] buffers = new ChannelBuffer[events.size()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = (ChannelBuffer) events.get(i).getMessage();
+    }
+    MessageEvent first = events.get(0);
+    ChannelFuture future = Channels.future(first.getChannel());
+    future.addListener(new ChannelFutureListener() {
+      public void operationComplete(ChannelFuture future) throws Exception {
+        for (MessageEvent event : events) {
+          if (future.isSuccess()) {
+            event.getFuture().setSuccess();
+          } else {
+            event.getFuture().setFailure(future.getCause());
+          }
+        }
+      }
+    });
+    Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(buffers), first.getRemoteAddress());
+  }
+}
@@ -39,6 +39,7 @@ import org.nodex.java.core.Nodex;
 import org.nodex.java.core.internal.NodexInternal;
 import org.nodex.java.core.internal.SSLBase;
 import org.nodex.java.core.internal.ThreadSourceUtils;
+import org.nodex.java.core.internal.WriteCoalescer;
 import org.nodex.java.core.buffer.Buffer;
 
 import javax.net.ssl.SSLEngine;
@@ -100,6 +101,7 @@ public class NetClient extends SSLBase {
             engine.setUseClientMode(true); //We are on the client side of the connection
             pipeline.addLast("ssl", new SslHandler(engine));
           }
+          pipeline.addFirst("coalescer", new WriteCoalescer());  // Must be nearest the socket
           pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());  // For large file / sendfile support
           pipeline.addLast("handler", new ClientHandler());
           return pipeline;
@@ -39,9 +39,12 @@ import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.ConnectionLimit;
+import org.nodex.java.core.internal.ConnectionTimeouts;
 import org.nodex.java.core.internal.NodexInternal;
 import org.nodex.java.core.internal.SSLBase;
 import org.nodex.java.core.internal.ThreadSourceUtils;
+import org.nodex.java.core.internal.WriteCoalescer;
 import org.nodex.java.core.buffer.Buffer;
 
 import javax.net.ssl.SSLEngine;
@@ -69,6 +72,10 @@ public class NetServer extends SSLBase {
   private ChannelGroup serverChannelGroup;
   private boolean listening;
   private final Thread th;
+  private long idleTimeout;
+  private long writeTimeout;
+  private int maxConnections;
+  private ConnectionLimit connectionLimit;
 
   private ClientAuth clientAuth = ClientAuth.NONE;
 
@@ -241,6 +248,52 @@ public class NetServer extends SSLBase {
     return this;
   }
 
+  /**
+   * Close connections which have neither read nor written anything for {@code timeout} milliseconds. A connection
+   * isn't idle while it has data waiting to be written. Timeouts are checked every
+   * {@value org.nodex.java.core.internal.TimerWheel#TICK} milliseconds, so a connection can be closed up to that much
+   * later. The default is {@code 0}, which means connections are never closed for being idle.
+   * @return a reference to this so multiple method calls can be chained together
+   */
+  public NetServer setIdleTimeout(long timeout) {
+    checkThread();
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must be >= 0");
+    }
+    this.idleTimeout = timeout;
+    return this;
+  }
+
+  /**
+   * Close connections which have data waiting to be written, but haven't been able to write any of it for
+   * {@code timeout} milliseconds, e.g. because the client has stopped reading. The default is {@code 0}, which means
+   * there is no write timeout.
+   * @return a reference to this so multiple method calls can be chained together
+   */
+  public NetServer setWriteTimeout(long timeout) {
+    checkThread();
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must be >= 0");
+    }
+    this.writeTimeout = timeout;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of connections the server has open at any one time. While the server is at the maximum it
+   * stops accepting connections, and new connections wait in the operating system's listen backlog until an open one
+   * closes. The default is {@code 0}, which means there is no maximum.
+   * @return a reference to this so multiple method calls can be chained together
+   */
+  public NetServer setMaxConnections(int max) {
+    checkThread();
+    if (max < 0) {
+      throw new IllegalArgumentException("max must be >= 0");
+    }
+    this.maxConnections = max;
+    return this;
+  }
+
   /**
    * Instruct the server to listen for incoming connections on the specified {@code port} and all available interfaces.
    * @return a reference to this so multiple method calls can be chained together
@@ -274,8 +327,16 @@ public class NetServer extends SSLBase {
 
     checkSSL();
 
+    final ConnectionLimit limit = maxConnections > 0 ? new ConnectionLimit(maxConnections) : null;
+    connectionLimit = limit;
+    final boolean timeouts = ConnectionTimeouts.enabled(idleTimeout, 0, 0, writeTimeout);
+
     bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
       public ChannelPipeline getPipeline() {
+        if (limit != null) {
+          //Called on the acceptor thread, so this stops us accepting any more until we're under the limit
+          limit.acquire();
+        }
         ChannelPipeline pipeline = Channels.pipeline();
         if (ssl) {
           SSLEngine engine = context.createSSLEngine();
@@ -296,6 +357,13 @@ public class NetServer extends SSLBase {
           }
           pipeline.addLast("ssl", new SslHandler(engine));
         }
+        pipeline.addFirst("coalescer", new WriteCoalescer());  // Must be nearest the socket
+        if (timeouts) {
+          pipeline.addFirst("timeouts", new ConnectionTimeouts(idleTimeout, 0, 0, writeTimeout));  // Sees raw reads and writes
+        }
+        if (limit != null) {
+          pipeline.addFirst("limit", limit);
+        }
         pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());  // For large file / sendfile support
         pipeline.addLast("handler", new ServerHandler());
         return pipeline;
@@ -332,6 +400,11 @@ public class NetServer extends SSLBase {
 
     long cid = Nodex.instance.getContextID();
 
+    if (connectionLimit != null) {
+      //The acceptor may be waiting for a place, and must stop before the server channel can close
+      connectionLimit.close();
+    }
+
     for (NetSocket sock : socketMap.values()) {
       sock.internalClose();
     }
@@ -169,6 +169,30 @@ public class NetSocket extends ConnectionBase implements ReadStream, WriteStream
     super.sendFile(f);
   }
 
+  /**
+   * Tell the kernel to stream {@code length} bytes of the file {@code filename}, starting at {@code offset}, directly
+   * from disk to the outgoing connection. The {@code doneHandler} is called after the bytes have been written to the
+   * wire.<p>
+   * Open files are cached and shared between connections, so sending ranges of the same file repeatedly doesn't open
+   * it each time.
+   */
+  public void sendFile(String filename, long offset, long length, EventHandler<Void> doneHandler) {
+    checkThread();
+    File f = new File(filename);
+    checkRange(f, offset, length);
+    ChannelFuture future = super.sendFile(f, offset, length);
+    if (future != null && doneHandler != null) {
+      addFuture(doneHandler, future);
+    }
+  }
+
+  private static void checkRange(File file, long offset, long length) {
+    if (offset < 0 || length < 0 || offset + length > file.length()) {
+      throw new IllegalArgumentException("Range " + offset + "+" + length + " is outside file " + file + " of length "
+          + file.length());
+    }
+  }
+
   protected long getContextID() {
     return super.getContextID();
   }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An open addressing hash table keyed by primitive {@code long}, with lock free reads and locked writes.<p>
+ * Once a slot has been given a key it keeps that key until the table is resized, so a reader which finds its key in a
+ * slot can safely read the value from that slot without locking. Removed entries are marked deleted and can only be
+ * revived by the same key. Resizing builds a new table and publishes it with a volatile write, so readers still using
+ * the old table see a consistent, if slightly stale, view.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class LongHashTable {
+
+  static final int EMPTY = 0;
+  static final int FULL = 1;
+  static final int DELETED = 2;
+
+  static final class Table {
+    final long[] keys;
+    final AtomicIntegerArray states;
+    final AtomicLongArray longs;
+    final AtomicReferenceArray<Object> objects;
+    final int mask;
+    //Slots which have been given a key - guarded by the write lock
+    int used;
+
+    Table(int capacity, boolean longValues, boolean objectValues) {
+      keys = new long[capacity];
+      states = new AtomicIntegerArray(capacity);
+      longs = longValues ? new AtomicLongArray(capacity) : null;
+      objects = objectValues ? new AtomicReferenceArray<>(capacity) : null;
+      mask = capacity - 1;
+    }
+
+    int capacity() {
+      return keys.length;
+    }
+  }
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final boolean longValues;
+  private final boolean objectValues;
+  private final ReentrantLock lock = new ReentrantLock();
+  volatile Table table;
+  private volatile int size;
+
+  LongHashTable(boolean longValues, boolean objectValues) {
+    this.longValues = longValues;
+    this.objectValues = objectValues;
+    this.table = new Table(INITIAL_CAPACITY, longValues, objectValues);
+  }
+
+  int size() {
+    return size;
+  }
+
+  void lock() {
+    lock.lock();
+  }
+
+  void unlock() {
+    lock.unlock();
+  }
+
+  /**
+   * Return the slot holding a live entry for {@code key} in {@code t}, or -1. Does not need the lock.
+   */
+  static int find(Table t, long key) {
+    int i = hash(key) & t.mask;
+    while (true) {
+      int state = t.states.get(i);
+      if (state == EMPTY) {
+        return -1;
+      }
+      if (t.keys[i] == key) {
+        return state == FULL ? i : -1;
+      }
+      i = (i + 1) & t.mask;
+    }
+  }
+
+  /**
+   * Return the slot for {@code key} in the current table, giving it an empty slot if it doesn't have one. The caller
+   * must hold the lock, set any value for the slot, and then call {@link #publish}.
+   */
+  int slotFor(long key) {
+    Table t = table;
+    int i = hash(key) & t.mask;
+    while (true) {
+      int state = t.states.get(i);
+      if (state == EMPTY) {
+        break;
+      }
+      if (t.keys[i] == key) {
+        return i;
+      }
+      i = (i + 1) & t.mask;
+    }
+    if ((t.used + 1) * 4L > t.capacity() * 3L) {
+      t = resize();
+      i = hash(key) & t.mask;
+      while (t.states.get(i) != EMPTY) {
+        i = (i + 1) & t.mask;
+      }
+    }
+    t.keys[i] = key;
+    t.used++;
+    return i;
+  }
+
+  /**
+   * Make the entry in slot {@code i} of the current table visible to readers. The caller must hold the lock.
+   * @return true if the entry was not already live
+   */
+  boolean publish(int i) {
+    Table t = table;
+    if (t.states.get(i) == FULL) {
+      return false;
+    }
+    t.states.set(i, FULL);
+    size++;
+    return true;
+  }
+
+  /**
+   * Remove the entry in slot {@code i} of the current table. The caller must hold the lock.
+   */
+  void delete(int i) {
+    Table t = table;
+    t.states.set(i, DELETED);
+    if (objectValues) {
+      t.objects.set(i, null);
+    }
+    size--;
+  }
+
+  /**
+   * Remove all entries. The caller must hold the lock.
+   */
+  void clear() {
+    table = new Table(INITIAL_CAPACITY, longValues, objectValues);
+    size = 0;
+  }
+
+  private Table resize() {
+    Table old = table;
+    int capacity = INITIAL_CAPACITY;
+    while (capacity < (size + 1) * 2L) {
+      capacity <<= 1;
+    }
+    Table t = new Table(capacity, longValues, objectValues);
+    for (int i = 0; i < old.capacity(); i++) {
+      if (old.states.get(i) == FULL) {
+        long key = old.keys[i];
+        int j = hash(key) & t.mask;
+        while (t.states.get(j) != EMPTY) {
+          j = (j + 1) & t.mask;
+        }
+        t.keys[j] = key;
+        if (longValues) {
+          t.longs.set(j, old.longs.get(i));
+        }
+        if (objectValues) {
+          t.objects.set(j, old.objects.get(i));
+        }
+        t.states.set(j, FULL);
+        t.used++;
+      }
+    }
+    table = t;
+    return t;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
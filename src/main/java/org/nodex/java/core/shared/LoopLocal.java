@@ -0,0 +1,299 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.LoopThread;
+import org.nodex.java.core.internal.NodexInternal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A variable which has a separate value on each event loop.</p>
+ *
+ * <p>Unlike the other shared data structures, the value of a {@code LoopLocal} is never shared between threads. It is
+ * held in a plain array on the event loop thread, so {@link #get} and {@link #set} need no synchronization and there
+ * is no contention between loops. This makes it a good fit for hot counters and caches, where each loop updates its
+ * own copy and the copies are only combined occasionally, using {@link #aggregate}.</p>
+ *
+ * <p>{@link #get} and {@link #set} can only be called from an event loop. The values on all loops can be read with
+ * {@link #aggregate} and changed with {@link #scatter}, which run on each loop in turn and call a handler back on the
+ * caller's context when done.</p>
+ *
+ * <p>Values passed between loops by {@link #aggregate} should be immutable or not used again by the loop which
+ * produced them.</p>
+ *
+ * <p>Each variable takes a slot on every event loop, and its values are kept there for as long as the loop runs. A
+ * variable held in a {@code static} field is fine, but one created for an object which doesn't live as long as the
+ * loops, such as a server, must be {@link #release}d when the object is finished with.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class LoopLocal<T> {
+
+  private static final AtomicInteger nextIndex = new AtomicInteger();
+  //Slots given up by released variables, which have been cleared on every loop
+  private static final Queue<Integer> freeIndexes = new ConcurrentLinkedQueue<>();
+
+  //Marks a slot which has been set to null, as distinct from one which has not been initialised
+  private static final Object NULL = new Object();
+
+  private final int index = allocateIndex();
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  /**
+   * Return the initial value of this variable on an event loop. This is called the first time {@link #get} is called
+   * on each loop, unless {@link #set} has been called first. The default implementation returns {@code null}.
+   */
+  protected T initialValue() {
+    return null;
+  }
+
+  /**
+   * Return the value of this variable on the current event loop.
+   * @throws IllegalStateException if not called from an event loop
+   */
+  @SuppressWarnings("unchecked")
+  public T get() {
+    LoopThread thread = loopThread();
+    if (released.get()) {
+      //The slot may belong to another variable by now
+      return initialValue();
+    }
+    Object value = thread.getLoopLocal(index);
+    if (value == null) {
+      T initial = initialValue();
+      thread.setLoopLocal(index, initial == null ? NULL : initial);
+      return initial;
+    }
+    return value == NULL ? null : (T) value;
+  }
+
+  /**
+   * Set the value of this variable on the current event loop.
+   * @throws IllegalStateException if not called from an event loop
+   */
+  public void set(T value) {
+    LoopThread thread = loopThread();
+    if (!released.get()) {
+      thread.setLoopLocal(index, value == null ? NULL : value);
+    }
+  }
+
+  /**
+   * Remove the value of this variable on the current event loop. The next call to {@link #get} on this loop will call
+   * {@link #initialValue} again.
+   * @throws IllegalStateException if not called from an event loop
+   */
+  public void remove() {
+    LoopThread thread = loopThread();
+    if (!released.get()) {
+      thread.setLoopLocal(index, null);
+    }
+  }
+
+  /**
+   * Remove the value of this variable on every event loop, and give up its slot so it can be used by another variable.
+   * Once released, {@link #get} returns a new initial value each time it's called, and {@link #set} and
+   * {@link #remove} do nothing. Releasing a variable more than once has no effect.
+   */
+  public void release() {
+    if (!released.compareAndSet(false, true)) {
+      return;
+    }
+    long[] loopContextIDs = NodexInternal.instance.getLoopContextIDs();
+    final AtomicInteger remaining = new AtomicInteger(loopContextIDs.length);
+    for (long loopContextID : loopContextIDs) {
+      //Runs after anything the loop is doing with the variable now, and anything it does later sees it's released
+      NodexInternal.instance.executeOnContext(loopContextID, new Runnable() {
+        public void run() {
+          loopThread().setLoopLocal(index, null);
+          if (remaining.decrementAndGet() == 0) {
+            freeIndexes.add(index);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Combine the values of this variable on all event loops.<p>
+   * {@code mapper} is called on each loop with that loop's value. The results are combined with {@code reducer} on
+   * the caller's context, in no particular order, and the final result is passed to {@code completionHandler}. If
+   * {@code mapper} throws an exception on any loop, the completion fails with that exception.
+   * @throws IllegalStateException if not called from a context
+   */
+  public <R> void aggregate(final Mapper<T, R> mapper, final Reducer<R> reducer,
+                            final CompletionHandler<R> completionHandler) {
+    new AllLoops<R>(completionHandler) {
+      R onLoop() {
+        return mapper.map(get());
+      }
+
+      R combine(R total, R result) {
+        return reducer.reduce(total, result);
+      }
+    }.start();
+  }
+
+  /**
+   * Change the value of this variable on all event loops.<p>
+   * {@code updater} is called on each loop with that loop's value, and the value is set to the result. When all the
+   * loops have been updated {@code completionHandler} is called on the caller's context. If {@code updater} throws an
+   * exception on any loop, the completion fails with that exception, but the other loops are still updated.
+   * @throws IllegalStateException if not called from a context
+   */
+  public void scatter(final Updater<T> updater, final CompletionHandler<Void> completionHandler) {
+    new AllLoops<Void>(completionHandler) {
+      Void onLoop() {
+        set(updater.update(get()));
+        return null;
+      }
+
+      Void combine(Void total, Void result) {
+        return null;
+      }
+    }.start();
+  }
+
+  private static int allocateIndex() {
+    Integer index = freeIndexes.poll();
+    return index != null ? index : nextIndex.getAndIncrement();
+  }
+
+  private static LoopThread loopThread() {
+    Thread thread = Thread.currentThread();
+    if (!(thread instanceof LoopThread)) {
+      throw new IllegalStateException("LoopLocal can only be accessed from an event loop");
+    }
+    return (LoopThread) thread;
+  }
+
+  /**
+   * Maps the value of a {@link LoopLocal} on one event loop to a result.
+   */
+  public interface Mapper<T, R> {
+    R map(T value);
+  }
+
+  /**
+   * Combines two results.
+   */
+  public interface Reducer<R> {
+    R reduce(R r1, R r2);
+  }
+
+  /**
+   * Computes the new value of a {@link LoopLocal} on one event loop from its current value.
+   */
+  public interface Updater<T> {
+    T update(T value);
+  }
+
+  //Runs onLoop on every event loop and combines the results on the caller's context
+  private static abstract class AllLoops<R> {
+
+    private final CompletionHandler<R> completionHandler;
+    private final long callerContextID;
+    //The following are only accessed on the caller's context
+    private int remaining;
+    private boolean first = true;
+    private R total;
+    private Exception exception;
+
+    AllLoops(CompletionHandler<R> completionHandler) {
+      Long contextID = Nodex.instance.getContextID();
+      if (contextID == null) {
+        throw new IllegalStateException("Cannot access loop locals with no context");
+      }
+      this.callerContextID = contextID;
+      this.completionHandler = completionHandler;
+    }
+
+    abstract R onLoop();
+
+    abstract R combine(R total, R result);
+
+    void start() {
+      long[] loopContextIDs = NodexInternal.instance.getLoopContextIDs();
+      remaining = loopContextIDs.length;
+      for (final long loopContextID : loopContextIDs) {
+        NodexInternal.instance.executeOnContext(loopContextID, new Runnable() {
+          public void run() {
+            R result = null;
+            Exception ex = null;
+            Long prevContextID = Nodex.instance.getContextID();
+            NodexInternal.instance.setContextID(loopContextID);
+            try {
+              result = onLoop();
+            } catch (Exception e) {
+              ex = e;
+            } finally {
+              if (prevContextID != null) {
+                NodexInternal.instance.setContextID(prevContextID);
+              }
+            }
+            reply(result, ex);
+          }
+        });
+      }
+    }
+
+    private void reply(final R result, final Exception ex) {
+      try {
+        NodexInternal.instance.executeOnContext(callerContextID, new Runnable() {
+          public void run() {
+            Long prevContextID = Nodex.instance.getContextID();
+            NodexInternal.instance.setContextID(callerContextID);
+            try {
+              received(result, ex);
+            } finally {
+              if (prevContextID != null) {
+                NodexInternal.instance.setContextID(prevContextID);
+              }
+            }
+          }
+        });
+      } catch (IllegalStateException e) {
+        //The caller's context has gone away - nothing to tell
+      }
+    }
+
+    private void received(R result, Exception ex) {
+      if (ex != null) {
+        if (exception == null) {
+          exception = ex;
+        }
+      } else if (exception == null) {
+        try {
+          total = first ? result : combine(total, result);
+          first = false;
+        } catch (Exception e) {
+          exception = e;
+        }
+      }
+      if (--remaining == 0) {
+        completionHandler.onEvent(exception == null ? new Completion<R>(total) : new Completion<R>(exception));
+      }
+    }
+  }
+}
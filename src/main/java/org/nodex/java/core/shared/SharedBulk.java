@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.NodexInternal;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs bulk operations over the elements of a shared data structure on the parallel pool.<p>
+ * The non blocking tables we use don't expose their internal arrays, so the elements are first copied out with a
+ * weakly consistent snapshot, which is done on the pool too, and the copy is then split into ranges which are processed
+ * in parallel. The result is delivered on the caller's context.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+abstract class SharedBulk<E, U> {
+
+  //Don't split ranges smaller than this - the overhead of forking would outweigh the work
+  private static final int MIN_BATCH = 256;
+
+  private final boolean search;
+  private final AtomicReference<U> found = new AtomicReference<>();
+
+  /**
+   * @param search if true, stop as soon as any element produces a non null result, and return that result
+   */
+  SharedBulk(boolean search) {
+    this.search = search;
+  }
+
+  /**
+   * Process one element. A {@code null} result is ignored.
+   */
+  abstract U apply(E element);
+
+  /**
+   * Combine two non null results. Not called when searching.
+   */
+  U combine(U u1, U u2) {
+    return null;
+  }
+
+  void start(final Collection<E> source, final CompletionHandler<U> completionHandler) {
+    final Long contextID = Nodex.instance.getContextID();
+    if (contextID == null) {
+      throw new IllegalStateException("Cannot run bulk operation with no context");
+    }
+    final ForkJoinPool pool = NodexInternal.instance.getParallelPool();
+    pool.execute(new Runnable() {
+      public void run() {
+        Completion<U> completion;
+        try {
+          Object[] elements = source.toArray();
+          int batch = Math.max(MIN_BATCH, elements.length / (pool.getParallelism() * 4));
+          U result = new Task(elements, 0, elements.length, batch).invoke();
+          completion = new Completion<U>(search ? found.get() : result);
+        } catch (Exception e) {
+          completion = new Completion<U>(e);
+        }
+        complete(contextID, completion, completionHandler);
+      }
+    });
+  }
+
+  private static <U> void complete(final long contextID, final Completion<U> completion,
+                                   final CompletionHandler<U> completionHandler) {
+    try {
+      NodexInternal.instance.executeOnContext(contextID, new Runnable() {
+        public void run() {
+          Long prevContextID = Nodex.instance.getContextID();
+          NodexInternal.instance.setContextID(contextID);
+          try {
+            completionHandler.onEvent(completion);
+          } finally {
+            if (prevContextID != null) {
+              NodexInternal.instance.setContextID(prevContextID);
+            }
+          }
+        }
+      });
+    } catch (IllegalStateException e) {
+      //The caller's context has gone away - nothing to tell
+    }
+  }
+
+  //Tasks are never serialized
+  @SuppressWarnings("serial")
+  private final class Task extends RecursiveTask<U> {
+    final Object[] elements;
+    final int lo;
+    final int hi;
+    final int batch;
+
+    Task(Object[] elements, int lo, int hi, int batch) {
+      this.elements = elements;
+      this.lo = lo;
+      this.hi = hi;
+      this.batch = batch;
+    }
+
+    protected U compute() {
+      if (hi - lo <= batch) {
+        return computeRange();
+      }
+      int mid = (lo + hi) >>> 1;
+      Task right = new Task(elements, mid, hi, batch);
+      right.fork();
+      U u1 = new Task(elements, lo, mid, batch).compute();
+      U u2 = right.join();
+      if (u1 == null) {
+        return u2;
+      } else if (u2 == null) {
+        return u1;
+      } else {
+        return search ? u1 : combine(u1, u2);
+      }
+    }
+
+    //elements is a snapshot of a collection of E
+    @SuppressWarnings("unchecked")
+    private U computeRange() {
+      U total = null;
+      for (int i = lo; i < hi; i++) {
+        if (search && found.get() != null) {
+          return null;
+        }
+        U u = apply((E) elements[i]);
+        if (u != null) {
+          if (search) {
+            found.compareAndSet(null, u);
+            return null;
+          }
+          total = total == null ? u : combine(total, u);
+        }
+      }
+      return total;
+    }
+  }
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import org.cliffc.high_scale_lib.ConcurrentAutoTable;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.nodex.java.core.buffer.Buffer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A bounded cache which can be shared between event loops.</p>
+ *
+ * <p>Instances are obtained using {@link SharedData#getCache}. The cache can be bounded by number of entries and/or
+ * by the approximate number of bytes used by its keys and values, and entries can be given a time to live.</p>
+ *
+ * <p>Reads never take a lock. A read only marks the entry as recently used, and with the
+ * {@link SharedCacheConfig.EvictionPolicy#TINY_LFU} policy records the access in a frequency sketch. Eviction is done by
+ * whichever writer takes the cache over its bounds, so there is no background sweeper. Since eviction is done
+ * concurrently with other writers, the cache may briefly exceed its bounds by a small amount.</p>
+ *
+ * <p>Expired entries are never returned. They are removed lazily when they are looked up, when they reach the head of
+ * the eviction queue, or when they are chosen for eviction.</p>
+ *
+ * <p>Only the types allowed in {@link SharedData} can be used as keys and values.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedCache<K, V> {
+
+  private static final long ENTRY_OVERHEAD = 48;
+  private static final int SWEEP_BATCH = 4;
+
+  private final ConcurrentMap<K, Entry<K, V>> map = new NonBlockingHashMap<>();
+  private final long maxEntries;
+  private final long maxBytes;
+  private final long defaultTTL;
+
+  // Entries are kept in insertion order in these queues, which are only polled while holding the eviction lock.
+  // With LRU all entries go straight into the main queue, which is managed as a CLOCK. With TinyLFU new entries go into
+  // a small window queue and only enter the main queue if they are used more often than the entry they would evict.
+  private final Queue<Entry<K, V>> main = new ConcurrentLinkedQueue<>();
+  private final Queue<Entry<K, V>> window;
+  private final FrequencySketch sketch;
+  private final long windowMaxEntries;
+  private final long windowMaxBytes;
+  private final AtomicLong windowCount = new AtomicLong();
+  private final AtomicLong windowBytes = new AtomicLong();
+
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong queued = new AtomicLong();
+  private volatile boolean hasTTL;
+
+  private final ConcurrentAutoTable hits = new ConcurrentAutoTable();
+  private final ConcurrentAutoTable misses = new ConcurrentAutoTable();
+  private final ConcurrentAutoTable evictions = new ConcurrentAutoTable();
+  private final ConcurrentAutoTable expirations = new ConcurrentAutoTable();
+
+  SharedCache(SharedCacheConfig config) {
+    this.maxEntries = config.getMaxEntries();
+    this.maxBytes = config.getMaxBytes();
+    this.defaultTTL = config.getDefaultTTL();
+    this.hasTTL = defaultTTL != -1;
+    if (config.getEvictionPolicy() == SharedCacheConfig.EvictionPolicy.TINY_LFU) {
+      window = new ConcurrentLinkedQueue<>();
+      windowMaxEntries = maxEntries == -1 ? Long.MAX_VALUE : Math.max(1, maxEntries / 100);
+      windowMaxBytes = maxBytes == -1 ? Long.MAX_VALUE : Math.max(1, maxBytes / 100);
+      long expected = maxEntries != -1 ? maxEntries : (maxBytes != -1 ? maxBytes / 256 : 1024);
+      sketch = new FrequencySketch(expected);
+    } else {
+      window = null;
+      windowMaxEntries = windowMaxBytes = 0;
+      sketch = null;
+    }
+  }
+
+  /**
+   * Return the value for {@code key}, or {@code null} if there is no live entry for it.
+   */
+  public V get(K key) {
+    Entry<K, V> e = map.get(key);
+    if (sketch != null) {
+      sketch.increment(key);
+    }
+    if (e == null) {
+      misses.increment();
+      return null;
+    }
+    if (e.isExpired()) {
+      if (map.remove(key, e)) {
+        unlinked(e);
+        expirations.increment();
+      }
+      misses.increment();
+      return null;
+    }
+    if (!e.accessed) {
+      e.accessed = true;
+    }
+    hits.increment();
+    return e.value;
+  }
+
+  /**
+   * Put an entry in the cache using the default time to live from the cache configuration.
+   * @return the previous live value for {@code key}, or {@code null} if there was none
+   */
+  public V put(K key, V value) {
+    return put(key, value, defaultTTL);
+  }
+
+  /**
+   * Put an entry in the cache which will expire after {@code ttl} milliseconds. A {@code ttl} of {@code -1} means the
+   * entry does not expire.<p>
+   * If the entry is larger than the maximum number of bytes in the cache it will not be stored, and any existing entry
+   * for {@code key} is removed.
+   * @return the previous live value for {@code key}, or {@code null} if there was none
+   */
+  public V put(K key, V value, long ttl) {
+    Entry<K, V> e = createEntry(key, value, ttl);
+    if (maxBytes != -1 && e.weight > maxBytes) {
+      return remove(e.key);
+    }
+    if (sketch != null) {
+      sketch.increment(e.key);
+    }
+    Entry<K, V> old = map.put(e.key, e);
+    linked(e);
+    V prev = null;
+    if (old != null) {
+      unlinked(old);
+      if (old.isExpired()) {
+        expirations.increment();
+      } else {
+        prev = old.value;
+      }
+    }
+    maintain();
+    return prev;
+  }
+
+  /**
+   * Put an entry in the cache only if there is no live entry for {@code key}, using the default time to live.
+   * @return the existing live value for {@code key}, or {@code null} if the entry was added
+   */
+  public V putIfAbsent(K key, V value) {
+    Entry<K, V> e = createEntry(key, value, defaultTTL);
+    if (maxBytes != -1 && e.weight > maxBytes) {
+      return get(e.key);
+    }
+    if (sketch != null) {
+      sketch.increment(e.key);
+    }
+    while (true) {
+      Entry<K, V> old = map.putIfAbsent(e.key, e);
+      if (old == null) {
+        break;
+      }
+      if (!old.isExpired()) {
+        return old.value;
+      }
+      if (map.replace(e.key, old, e)) {
+        unlinked(old);
+        expirations.increment();
+        break;
+      }
+    }
+    linked(e);
+    maintain();
+    return null;
+  }
+
+  /**
+   * Remove the entry for {@code key}.
+   * @return the live value that was removed, or {@code null} if there was none
+   */
+  public V remove(K key) {
+    Entry<K, V> e = map.remove(key);
+    if (e == null) {
+      return null;
+    }
+    unlinked(e);
+    if (e.isExpired()) {
+      expirations.increment();
+      return null;
+    }
+    return e.value;
+  }
+
+  /**
+   * Return {@code true} if there is a live entry for {@code key}. This does not count as an access of the entry.
+   */
+  public boolean containsKey(K key) {
+    Entry<K, V> e = map.get(key);
+    return e != null && !e.isExpired();
+  }
+
+  /**
+   * Remove all entries from the cache.
+   */
+  public void clear() {
+    for (K key : map.keySet()) {
+      Entry<K, V> e = map.remove(key);
+      if (e != null) {
+        unlinked(e);
+      }
+    }
+    maintain();
+  }
+
+  /**
+   * Return the number of entries in the cache. This may include expired entries which have not yet been removed.
+   */
+  public long size() {
+    return count.get();
+  }
+
+  /**
+   * Return the approximate number of bytes used by the keys and values in the cache.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Return a snapshot of the cache statistics.
+   */
+  public SharedCacheStats getStats() {
+    return new SharedCacheStats(hits.get(), misses.get(), evictions.get(), expirations.get(), count.get(), bytes.get());
+  }
+
+  private Entry<K, V> createEntry(K key, V value, long ttl) {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+    if (ttl < 1 && ttl != -1) {
+      throw new IllegalArgumentException("ttl must be > 0 or -1");
+    }
+    key = SharedUtils.checkObject(key);
+    value = SharedUtils.checkObject(value);
+    long expires = 0;
+    if (ttl != -1) {
+      hasTTL = true;
+      // 0 is reserved for "never"
+      expires = (System.nanoTime() + ttl * 1000000) | 1;
+    }
+    return new Entry<>(key, value, ENTRY_OVERHEAD + weigh(key) + weigh(value), expires);
+  }
+
+  private void linked(Entry<K, V> e) {
+    count.incrementAndGet();
+    bytes.addAndGet(e.weight);
+    queued.incrementAndGet();
+    if (window != null) {
+      windowCount.incrementAndGet();
+      windowBytes.addAndGet(e.weight);
+      window.add(e);
+    } else {
+      main.add(e);
+    }
+  }
+
+  // Must only be called by the thread that removed the entry from the map
+  private void unlinked(Entry<K, V> e) {
+    e.dead = true;
+    count.decrementAndGet();
+    bytes.addAndGet(-e.weight);
+  }
+
+  private boolean overLimit() {
+    return (maxEntries != -1 && count.get() > maxEntries) || (maxBytes != -1 && bytes.get() > maxBytes);
+  }
+
+  private boolean windowOverLimit() {
+    return windowCount.get() > windowMaxEntries || windowBytes.get() > windowMaxBytes;
+  }
+
+  private boolean tooManyDead() {
+    return queued.get() > 2 * count.get() + 64;
+  }
+
+  private boolean needsMaintenance() {
+    return overLimit() || hasTTL || tooManyDead() || (window != null && windowOverLimit());
+  }
+
+  private void maintain() {
+    while (needsMaintenance() && evictionLock.tryLock()) {
+      try {
+        if (window != null) {
+          sweep(window);
+          sweep(main);
+          evictTinyLFU();
+        } else {
+          sweep(main);
+          evictLRU();
+        }
+        if (tooManyDead()) {
+          purgeDead();
+        }
+      } finally {
+        evictionLock.unlock();
+      }
+      // Another writer may have taken us over the limit while we held the lock
+      if (!overLimit()) {
+        break;
+      }
+    }
+  }
+
+  // Cheaply remove dead and expired entries from the head of the queue
+  private void sweep(Queue<Entry<K, V>> queue) {
+    for (int i = 0; i < SWEEP_BATCH; i++) {
+      Entry<K, V> e = queue.peek();
+      if (e == null || (!e.dead && !e.isExpired())) {
+        return;
+      }
+      poll(queue);
+      evict(e);
+    }
+  }
+
+  private Entry<K, V> poll(Queue<Entry<K, V>> queue) {
+    Entry<K, V> e = queue.poll();
+    if (e != null) {
+      queued.decrementAndGet();
+      if (queue == window) {
+        windowCount.decrementAndGet();
+        windowBytes.addAndGet(-e.weight);
+      }
+    }
+    return e;
+  }
+
+  private void evict(Entry<K, V> e) {
+    if (!e.dead && map.remove(e.key, e)) {
+      unlinked(e);
+      if (e.isExpired()) {
+        expirations.increment();
+      } else {
+        evictions.increment();
+      }
+    }
+  }
+
+  // Second chance CLOCK - entries which have been accessed since we last looked at them go to the back of the queue
+  private Entry<K, V> selectVictim() {
+    long chances = queued.get() + SWEEP_BATCH;
+    Entry<K, V> e;
+    while ((e = poll(main)) != null) {
+      if (e.dead) {
+        continue;
+      }
+      if (e.accessed && !e.isExpired() && chances-- > 0) {
+        e.accessed = false;
+        main.add(e);
+        queued.incrementAndGet();
+        continue;
+      }
+      return e;
+    }
+    return null;
+  }
+
+  private void evictLRU() {
+    while (overLimit()) {
+      Entry<K, V> victim = selectVictim();
+      if (victim == null) {
+        break;
+      }
+      evict(victim);
+    }
+  }
+
+  private void evictTinyLFU() {
+    ArrayDeque<Entry<K, V>> candidates = new ArrayDeque<>();
+    while (windowOverLimit()) {
+      Entry<K, V> e = poll(window);
+      if (e == null) {
+        break;
+      }
+      if (e.dead) {
+        continue;
+      }
+      if (e.isExpired()) {
+        evict(e);
+        continue;
+      }
+      main.add(e);
+      queued.incrementAndGet();
+      candidates.add(e);
+    }
+    while (overLimit()) {
+      Entry<K, V> victim = selectVictim();
+      if (victim == null) {
+        // Everything is in the window
+        victim = poll(window);
+        if (victim == null) {
+          break;
+        }
+        evict(victim);
+        continue;
+      }
+      Entry<K, V> candidate = candidates.poll();
+      while (candidate != null && candidate.dead) {
+        candidate = candidates.poll();
+      }
+      if (candidate == null || candidate == victim || victim.isExpired()) {
+        evict(victim);
+      } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+        evict(victim);
+      } else {
+        // The candidate loses - it stays in the queue as a dead entry until it is polled
+        evict(candidate);
+        main.add(victim);
+        queued.incrementAndGet();
+      }
+    }
+  }
+
+  private void purgeDead() {
+    purgeDead(main);
+    if (window != null) {
+      purgeDead(window);
+    }
+  }
+
+  private void purgeDead(Queue<Entry<K, V>> queue) {
+    for (Iterator<Entry<K, V>> iter = queue.iterator(); iter.hasNext(); ) {
+      Entry<K, V> e = iter.next();
+      if (e.dead) {
+        iter.remove();
+        queued.decrementAndGet();
+        if (queue == window) {
+          windowCount.decrementAndGet();
+          windowBytes.addAndGet(-e.weight);
+        }
+      }
+    }
+  }
+
+  private static long weigh(Object obj) {
+    if (obj instanceof String) {
+      return 40 + 2 * ((String) obj).length();
+    } else if (obj instanceof byte[]) {
+      return 16 + ((byte[]) obj).length;
+    } else if (obj instanceof Buffer) {
+      return 64 + ((Buffer) obj).length();
+    } else if (obj instanceof Number || obj instanceof Boolean || obj instanceof Character) {
+      return 16;
+    } else {
+      // Immutable - we can't know how big it is
+      return 64;
+    }
+  }
+
+  private static final class Entry<K, V> {
+    final K key;
+    final V value;
+    final long weight;
+    final long expires;
+    volatile boolean accessed;
+    volatile boolean dead;
+
+    Entry(K key, V value, long weight, long expires) {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+      this.expires = expires;
+    }
+
+    boolean isExpired() {
+      return expires != 0 && System.nanoTime() - expires >= 0;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>Configuration for a {@link SharedCache}.</p>
+ *
+ * <p>A cache can be bounded by number of entries, by the approximate number of bytes used by its keys and values, or
+ * both. If neither bound is set the cache is unbounded, and entries will only be removed when they expire or are
+ * removed explicitly.</p>
+ *
+ * <p>Instances of this class are not thread-safe. The configuration is copied when the cache is created, so changing
+ * it afterwards has no effect on the cache.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedCacheConfig {
+
+  /**
+   * The policy used to choose which entries to evict when the cache is full.
+   */
+  public enum EvictionPolicy {
+    /**
+     * Evict the approximately least recently used entry.
+     */
+    LRU,
+    /**
+     * Admit new entries to the main part of the cache only if they are used more frequently than the entry they
+     * would replace. This is resistant to scans and usually gives a better hit rate than {@code LRU}.
+     */
+    TINY_LFU
+  }
+
+  private long maxEntries = -1;
+  private long maxBytes = -1;
+  private long defaultTTL = -1;
+  private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+  /**
+   * Set the maximum number of entries in the cache. {@code -1} means no limit.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedCacheConfig setMaxEntries(long maxEntries) {
+    if (maxEntries < 1 && maxEntries != -1) {
+      throw new IllegalArgumentException("maxEntries must be > 0 or -1");
+    }
+    this.maxEntries = maxEntries;
+    return this;
+  }
+
+  /**
+   * Set the maximum approximate number of bytes used by the keys and values in the cache. {@code -1} means no limit.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedCacheConfig setMaxBytes(long maxBytes) {
+    if (maxBytes < 1 && maxBytes != -1) {
+      throw new IllegalArgumentException("maxBytes must be > 0 or -1");
+    }
+    this.maxBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Set the time to live in milliseconds of entries which are put without specifying one. {@code -1} means entries
+   * do not expire.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedCacheConfig setDefaultTTL(long defaultTTL) {
+    if (defaultTTL < 1 && defaultTTL != -1) {
+      throw new IllegalArgumentException("defaultTTL must be > 0 or -1");
+    }
+    this.defaultTTL = defaultTTL;
+    return this;
+  }
+
+  /**
+   * Set the eviction policy. The default is {@link EvictionPolicy#LRU}.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedCacheConfig setEvictionPolicy(EvictionPolicy evictionPolicy) {
+    if (evictionPolicy == null) {
+      throw new NullPointerException("evictionPolicy");
+    }
+    this.evictionPolicy = evictionPolicy;
+    return this;
+  }
+
+  public long getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getDefaultTTL() {
+    return defaultTTL;
+  }
+
+  public EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+}
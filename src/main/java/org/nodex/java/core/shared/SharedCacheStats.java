@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>A point in time snapshot of the statistics of a {@link SharedCache}.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedCacheStats {
+
+  /**
+   * The number of lookups which found a live entry
+   */
+  public final long hits;
+
+  /**
+   * The number of lookups which did not find a live entry
+   */
+  public final long misses;
+
+  /**
+   * The number of entries removed to keep the cache within its bounds
+   */
+  public final long evictions;
+
+  /**
+   * The number of entries removed because their time to live had passed
+   */
+  public final long expirations;
+
+  /**
+   * The number of entries in the cache
+   */
+  public final long entries;
+
+  /**
+   * The approximate number of bytes used by the keys and values in the cache
+   */
+  public final long bytes;
+
+  SharedCacheStats(long hits, long misses, long evictions, long expirations, long entries, long bytes) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.expirations = expirations;
+    this.entries = entries;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Return the ratio of hits to lookups, or {@code 1.0} if there have been no lookups.
+   */
+  public double hitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 1.0 : (double) hits / lookups;
+  }
+
+  public String toString() {
+    return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " expirations=" + expirations +
+        " entries=" + entries + " bytes=" + bytes;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.nodex.java.core.buffer.Buffer;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes the types allowed in shared data structures as a type tag byte followed by the value.<p>
+ * {@link org.nodex.java.core.Immutable} instances cannot be encoded since we know nothing about their contents.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class SharedCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static final byte STRING = 1;
+  static final byte INT = 2;
+  static final byte LONG = 3;
+  static final byte DOUBLE = 4;
+  static final byte FLOAT = 5;
+  static final byte SHORT = 6;
+  static final byte BYTE = 7;
+  static final byte BOOLEAN = 8;
+  static final byte CHAR = 9;
+  static final byte BIG_DECIMAL = 10;
+  static final byte BYTES = 11;
+  static final byte BUFFER = 12;
+
+  static byte[] encode(Object obj) {
+    if (obj instanceof String) {
+      return tagged(STRING, ((String) obj).getBytes(UTF8));
+    } else if (obj instanceof Integer) {
+      return allocate(INT, 4).putInt((Integer) obj).array();
+    } else if (obj instanceof Long) {
+      return allocate(LONG, 8).putLong((Long) obj).array();
+    } else if (obj instanceof Double) {
+      return allocate(DOUBLE, 8).putDouble((Double) obj).array();
+    } else if (obj instanceof Float) {
+      return allocate(FLOAT, 4).putFloat((Float) obj).array();
+    } else if (obj instanceof Short) {
+      return allocate(SHORT, 2).putShort((Short) obj).array();
+    } else if (obj instanceof Byte) {
+      return allocate(BYTE, 1).put((Byte) obj).array();
+    } else if (obj instanceof Boolean) {
+      return allocate(BOOLEAN, 1).put((byte) ((Boolean) obj ? 1 : 0)).array();
+    } else if (obj instanceof Character) {
+      return allocate(CHAR, 2).putChar((Character) obj).array();
+    } else if (obj instanceof BigDecimal) {
+      return tagged(BIG_DECIMAL, obj.toString().getBytes(UTF8));
+    } else if (obj instanceof byte[]) {
+      return tagged(BYTES, (byte[]) obj);
+    } else if (obj instanceof Buffer) {
+      Buffer buff = (Buffer) obj;
+      byte[] bytes = new byte[buff.length() + 1];
+      bytes[0] = BUFFER;
+      buff.getChannelBuffer().getBytes(0, bytes, 1, buff.length());
+      return bytes;
+    } else if (obj == null) {
+      throw new NullPointerException();
+    } else {
+      throw new IllegalArgumentException("Cannot encode type: " + obj.getClass().getName());
+    }
+  }
+
+  /**
+   * Decode the value between the position and the limit of {@code buff}. The position of {@code buff} is not changed.
+   */
+  static Object decode(ByteBuffer buff) {
+    int pos = buff.position();
+    byte tag = buff.get(pos);
+    switch (tag) {
+      case STRING:
+        return new String(bytes(buff), UTF8);
+      case INT:
+        return buff.getInt(pos + 1);
+      case LONG:
+        return buff.getLong(pos + 1);
+      case DOUBLE:
+        return buff.getDouble(pos + 1);
+      case FLOAT:
+        return buff.getFloat(pos + 1);
+      case SHORT:
+        return buff.getShort(pos + 1);
+      case BYTE:
+        return buff.get(pos + 1);
+      case BOOLEAN:
+        return buff.get(pos + 1) == 1;
+      case CHAR:
+        return buff.getChar(pos + 1);
+      case BIG_DECIMAL:
+        return new BigDecimal(new String(bytes(buff), UTF8));
+      case BYTES:
+        return bytes(buff);
+      case BUFFER:
+        return new Buffer(ChannelBuffers.wrappedBuffer(bytes(buff)));
+      default:
+        throw new IllegalStateException("Invalid type tag: " + tag);
+    }
+  }
+
+  // The bytes after the tag
+  private static byte[] bytes(ByteBuffer buff) {
+    ByteBuffer dup = buff.duplicate();
+    dup.position(dup.position() + 1);
+    byte[] bytes = new byte[dup.remaining()];
+    dup.get(bytes);
+    return bytes;
+  }
+
+  private static byte[] tagged(byte tag, byte[] payload) {
+    byte[] bytes = new byte[payload.length + 1];
+    bytes[0] = tag;
+    System.arraycopy(payload, 0, bytes, 1, payload.length);
+    return bytes;
+  }
+
+  private static ByteBuffer allocate(byte tag, int size) {
+    return ByteBuffer.allocate(size + 1).put(tag);
+  }
+}
@@ -18,28 +18,53 @@ package org.nodex.java.core.shared;
 
 import org.cliffc.high_scale_lib.ConcurrentAutoTable;
 
+/**
+ * <p>A counter which can be shared between event loops. Instances are obtained using {@link SharedData#getCounter}.</p>
+ *
+ * <p>Updates are striped across an internal table, so counters can be updated from many event loops at once without
+ * contention.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
 public class SharedCounter {
 
   private final ConcurrentAutoTable counter = new ConcurrentAutoTable();
 
+  // Set after the counter is modified, cleared when it is written to a snapshot
+  volatile boolean dirty = true;
+
+  SharedCounter() {
+  }
+
+  void markDirty() {
+    if (!dirty) {
+      dirty = true;
+    }
+  }
+
   public void add(long amount) {
     counter.add(amount);
+    markDirty();
   }
 
   public void subtract(long amount) {
     counter.add(-amount);
+    markDirty();
   }
 
   public void increment() {
     counter.increment();
+    markDirty();
   }
 
   public void decrement() {
     counter.decrement();
+    markDirty();
   }
 
   public void set(long value) {
     counter.set(value);
+    markDirty();
   }
 
   public long get() {
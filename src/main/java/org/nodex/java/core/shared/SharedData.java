@@ -17,10 +17,14 @@
 package org.nodex.java.core.shared;
 
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.nodex.java.core.BlockingTask;
+import org.nodex.java.core.CompletionHandler;
 
-import java.util.Map;
+import java.io.File;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <p>Sometimes it is desirable to share immutable data between different event loops, for example to implement a
@@ -52,17 +56,30 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class SharedData {
 
+  private static final AtomicBoolean snapshotting = new AtomicBoolean();
+  //Removals are only recorded once a snapshot has been taken, since only incremental snapshots need them. They are
+  //sets so removing the same name repeatedly between snapshots doesn't grow them
+  private static volatile boolean trackRemovals;
+  private static final Set<Object> removedMaps = new NonBlockingHashSet<>();
+  private static final Set<Object> removedSets = new NonBlockingHashSet<>();
+  private static final Set<Object> removedCounters = new NonBlockingHashSet<>();
+
   private static ConcurrentMap<Object, SharedMap<?, ?>> maps = new NonBlockingHashMap<>();
   private static ConcurrentMap<Object, SharedSet<?>> sets = new NonBlockingHashMap<>();
   private static ConcurrentMap<Object, SharedCounter> counters = new NonBlockingHashMap<>();
-  private static ConcurrentMap<Object, SharedQueue> queues = new NonBlockingHashMap<>();
+  private static ConcurrentMap<Object, SharedQueue<?>> queues = new NonBlockingHashMap<>();
+  private static ConcurrentMap<Object, SharedCache<?, ?>> caches = new NonBlockingHashMap<>();
+  private static ConcurrentMap<Object, SharedOffHeapMap<?, ?>> offHeapMaps = new NonBlockingHashMap<>();
+  private static ConcurrentMap<Object, SharedLongSet> longSets = new NonBlockingHashMap<>();
+  private static ConcurrentMap<Object, SharedLongLongMap> longLongMaps = new NonBlockingHashMap<>();
+  private static ConcurrentMap<Object, SharedLongObjectMap<?>> longObjectMaps = new NonBlockingHashMap<>();
 
   /**
    * Return a {@code Map} with the specific {@code name}. All invocations of this method with the same value of {@code name}
    * are guaranteed to return the same {@code Map} instance. <p>
    * The Map instance returned is a lock free Map which supports a very high degree of concurrency.
    */
-  public static <K, V> Map<K, V> getMap(Object name) {
+  public static <K, V> SharedMap<K, V> getMap(Object name) {
     SharedMap<K, V> map = (SharedMap<K, V>) maps.get(name);
     if (map == null) {
       map = new SharedMap<>();
@@ -79,7 +96,7 @@ public class SharedData {
    * are guaranteed to return the same {@code Set} instance. <p>
    * The Set instance returned is a lock free Map which supports a very high degree of concurrency.
    */
-  public static <E> Set<E> getSet(Object name) {
+  public static <E> SharedSet<E> getSet(Object name) {
     SharedSet<E> set = (SharedSet<E>) sets.get(name);
     if (set == null) {
       set = new SharedSet<>();
@@ -91,49 +108,293 @@ public class SharedData {
     return set;
   }
 
-//  public static SharedCounter getCounter(Object name) {
-//    SharedCounter counter = counters.get(name);
-//    if (counter == null) {
-//      counter = new SharedCounter();
-//      SharedCounter prev = counters.putIfAbsent(name, counter);
-//      if (prev != null) {
-//        counter = prev;
-//      }
-//    }
-//    return counter;
-//  }
-
-//  public static <E> SharedQueue<E> getQueue(Object name) {
-//    SharedQueue<E> queue = (SharedQueue<E>) queues.get(name);
-//    if (queue == null) {
-//      queue = new SharedQueue<>();
-//      SharedQueue prev = queues.putIfAbsent(name, queue);
-//      if (prev != null) {
-//        queue = prev;
-//      }
-//    }
-//    return queue;
-//  }
+  /**
+   * Return a {@link SharedCache} with the specific {@code name}. All invocations of this method with the same value of
+   * {@code name} are guaranteed to return the same {@code SharedCache} instance. <p>
+   * The cache is created using {@code config} the first time it is requested. If the cache already exists, it is
+   * returned with the configuration it was created with.
+   */
+  @SuppressWarnings("unchecked")
+  public static <K, V> SharedCache<K, V> getCache(Object name, SharedCacheConfig config) {
+    SharedCache<K, V> cache = (SharedCache<K, V>) caches.get(name);
+    if (cache == null) {
+      cache = new SharedCache<>(config);
+      SharedCache<K, V> prev = (SharedCache<K, V>) caches.putIfAbsent(name, cache);
+      if (prev != null) {
+        cache = prev;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Return a {@link SharedOffHeapMap} with the specific {@code name}, using the default configuration. All invocations
+   * of this method with the same value of {@code name} are guaranteed to return the same {@code SharedOffHeapMap}
+   * instance.
+   */
+  public static <K, V> SharedOffHeapMap<K, V> getOffHeapMap(Object name) {
+    return getOffHeapMap(name, new SharedOffHeapMapConfig());
+  }
+
+  /**
+   * Return a {@link SharedOffHeapMap} with the specific {@code name}. All invocations of this method with the same
+   * value of {@code name} are guaranteed to return the same {@code SharedOffHeapMap} instance. <p>
+   * The map is created using {@code config} the first time it is requested. If the map already exists, it is
+   * returned with the configuration it was created with.
+   */
+  @SuppressWarnings("unchecked")
+  public static <K, V> SharedOffHeapMap<K, V> getOffHeapMap(Object name, SharedOffHeapMapConfig config) {
+    SharedOffHeapMap<K, V> map = (SharedOffHeapMap<K, V>) offHeapMaps.get(name);
+    if (map == null) {
+      map = new SharedOffHeapMap<>(config);
+      SharedOffHeapMap<K, V> prev = (SharedOffHeapMap<K, V>) offHeapMaps.putIfAbsent(name, map);
+      if (prev != null) {
+        map = prev;
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Return a {@link SharedLongSet} with the specific {@code name}. All invocations of this method with the same value of
+   * {@code name} are guaranteed to return the same {@code SharedLongSet} instance.
+   */
+  public static SharedLongSet getLongSet(Object name) {
+    SharedLongSet set = longSets.get(name);
+    if (set == null) {
+      set = new SharedLongSet();
+      SharedLongSet prev = longSets.putIfAbsent(name, set);
+      if (prev != null) {
+        set = prev;
+      }
+    }
+    return set;
+  }
+
+  /**
+   * Return a {@link SharedLongLongMap} with the specific {@code name}. All invocations of this method with the same value
+   * of {@code name} are guaranteed to return the same {@code SharedLongLongMap} instance.
+   */
+  public static SharedLongLongMap getLongLongMap(Object name) {
+    SharedLongLongMap map = longLongMaps.get(name);
+    if (map == null) {
+      map = new SharedLongLongMap();
+      SharedLongLongMap prev = longLongMaps.putIfAbsent(name, map);
+      if (prev != null) {
+        map = prev;
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Return a {@link SharedLongObjectMap} with the specific {@code name}. All invocations of this method with the same
+   * value of {@code name} are guaranteed to return the same {@code SharedLongObjectMap} instance.
+   */
+  @SuppressWarnings("unchecked")
+  public static <V> SharedLongObjectMap<V> getLongObjectMap(Object name) {
+    SharedLongObjectMap<V> map = (SharedLongObjectMap<V>) longObjectMaps.get(name);
+    if (map == null) {
+      map = new SharedLongObjectMap<>();
+      SharedLongObjectMap<V> prev = (SharedLongObjectMap<V>) longObjectMaps.putIfAbsent(name, map);
+      if (prev != null) {
+        map = prev;
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Return a {@link SharedCounter} with the specific {@code name}. All invocations of this method with the same value of
+   * {@code name} are guaranteed to return the same {@code SharedCounter} instance.
+   */
+  public static SharedCounter getCounter(Object name) {
+    SharedCounter counter = counters.get(name);
+    if (counter == null) {
+      counter = new SharedCounter();
+      SharedCounter prev = counters.putIfAbsent(name, counter);
+      if (prev != null) {
+        counter = prev;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Return an unbounded {@link SharedQueue} with the specific {@code name}. All invocations of this method with the same
+   * value of {@code name} are guaranteed to return the same {@code SharedQueue} instance. <p>
+   * The queue instance returned is lock free and can be used to pass data between event loops.
+   */
+  public static <E> SharedQueue<E> getQueue(Object name) {
+    return getQueue(name, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Return a {@link SharedQueue} with the specific {@code name} and maximum size {@code maxSize}. All invocations of this
+   * method with the same value of {@code name} are guaranteed to return the same {@code SharedQueue} instance. <p>
+   * If the queue already exists, it is returned with the maximum size it was created with.
+   */
+  @SuppressWarnings("unchecked")
+  public static <E> SharedQueue<E> getQueue(Object name, int maxSize) {
+    SharedQueue<E> queue = (SharedQueue<E>) queues.get(name);
+    if (queue == null) {
+      queue = new SharedQueue<>(maxSize);
+      SharedQueue<E> prev = (SharedQueue<E>) queues.putIfAbsent(name, queue);
+      if (prev != null) {
+        queue = prev;
+      }
+    }
+    return queue;
+  }
 
   /**
    * Remove the {@code Map} with the specifiec {@code name}.
    */
   public static boolean removeMap(Object name) {
-    return maps.remove(name) != null;
+    if (maps.remove(name) != null) {
+      if (trackRemovals) {
+        removedMaps.add(name);
+      }
+      return true;
+    }
+    return false;
   }
 
   /**
    * Remove the {@code Set} with the specifiec {@code name}.
    */
   public static boolean removeSet(Object name) {
-    return sets.remove(name) != null;
+    if (sets.remove(name) != null) {
+      if (trackRemovals) {
+        removedSets.add(name);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Remove the {@code SharedQueue} with the specifiec {@code name}.
+   */
+  public static boolean removeQueue(Object name) {
+    return queues.remove(name) != null;
+  }
+
+  /**
+   * Remove the {@code SharedCache} with the specifiec {@code name}.
+   */
+  public static boolean removeCache(Object name) {
+    return caches.remove(name) != null;
+  }
+
+  /**
+   * Remove the {@code SharedOffHeapMap} with the specifiec {@code name}. Its memory is released once it is no longer
+   * referenced.
+   */
+  public static boolean removeOffHeapMap(Object name) {
+    return offHeapMaps.remove(name) != null;
+  }
+
+  /**
+   * Remove the {@code SharedLongSet} with the specifiec {@code name}.
+   */
+  public static boolean removeLongSet(Object name) {
+    return longSets.remove(name) != null;
+  }
+
+  /**
+   * Remove the {@code SharedLongLongMap} with the specifiec {@code name}.
+   */
+  public static boolean removeLongLongMap(Object name) {
+    return longLongMaps.remove(name) != null;
   }
 
-//  public static boolean removeCounter(Object name) {
-//    return counters.remove(name) != null;
-//  }
-//
-//  public static boolean removeQueue(Object name) {
-//    return queues.remove(name) != null;
-//  }
+  /**
+   * Remove the {@code SharedLongObjectMap} with the specifiec {@code name}.
+   */
+  public static boolean removeLongObjectMap(Object name) {
+    return longObjectMaps.remove(name) != null;
+  }
+
+  /**
+   * Remove the {@code SharedCounter} with the specifiec {@code name}.
+   */
+  public static boolean removeCounter(Object name) {
+    if (counters.remove(name) != null) {
+      if (trackRemovals) {
+        removedCounters.add(name);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Asynchronously write all the shared maps, sets and counters to the file {@code filename}. The file is written by
+   * a background thread so the event loop is not blocked. When the snapshot is complete, or has failed, the
+   * {@code completionHandler} will be called.<p>
+   * The names, keys, values and elements of the structures must all be one of the types allowed in
+   * {@code SharedData} other than {@link org.nodex.java.core.Immutable}, otherwise the snapshot will fail. Only one
+   * snapshot can be in progress at any time.
+   */
+  public static void snapshot(String filename, CompletionHandler<Void> completionHandler) {
+    snapshot(filename, false, completionHandler);
+  }
+
+  /**
+   * Asynchronously write the shared maps, sets and counters which have been created, modified or removed since the
+   * last snapshot to the file {@code filename}. When the snapshot is complete, or has failed, the
+   * {@code completionHandler} will be called.<p>
+   * To restore the latest state, restore the last full snapshot and then each incremental snapshot taken after it in
+   * order.
+   */
+  public static void snapshotIncremental(String filename, CompletionHandler<Void> completionHandler) {
+    snapshot(filename, true, completionHandler);
+  }
+
+  /**
+   * Asynchronously restore the shared maps, sets and counters from the snapshot file {@code filename}. Each structure
+   * in the snapshot replaces any existing structure with the same name. When the restore is complete, or has failed,
+   * the {@code completionHandler} will be called.
+   */
+  public static void restore(String filename, CompletionHandler<Void> completionHandler) {
+    restore(new String[]{filename}, completionHandler);
+  }
+
+  /**
+   * Asynchronously restore the shared maps, sets and counters from the snapshot files {@code filenames}, in order.
+   * Use this to restore a full snapshot followed by its incremental snapshots.
+   */
+  public static void restore(final String[] filenames, CompletionHandler<Void> completionHandler) {
+    new BlockingTask<Void>(completionHandler) {
+      public Void execute() throws Exception {
+        for (String filename : filenames) {
+          createSnapshot().read(new File(filename));
+        }
+        return null;
+      }
+    }.run();
+  }
+
+  private static void snapshot(final String filename, final boolean incremental,
+                               CompletionHandler<Void> completionHandler) {
+    trackRemovals = true;
+    new BlockingTask<Void>(completionHandler) {
+      public Void execute() throws Exception {
+        if (!snapshotting.compareAndSet(false, true)) {
+          throw new IllegalStateException("A snapshot is already in progress");
+        }
+        try {
+          createSnapshot().write(new File(filename), incremental);
+        } finally {
+          snapshotting.set(false);
+        }
+        return null;
+      }
+    }.run();
+  }
+
+  private static SharedDataSnapshot createSnapshot() {
+    return new SharedDataSnapshot(maps, sets, counters, removedMaps, removedSets, removedCounters);
+  }
 }
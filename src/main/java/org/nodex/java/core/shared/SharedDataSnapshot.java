@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes the shared maps, sets and counters to a snapshot file, and reads them back again.<p>
+ * The file format is a header followed by one record per structure:
+ * <pre>
+ *   int magic, byte version, byte incremental
+ *   byte type, int nameLength, name, contents...
+ *   ...
+ *   byte END
+ * </pre>
+ * Map contents are a sequence of length prefixed keys and values, and set contents a sequence of length prefixed
+ * elements, both terminated by a length of -1. Counter contents are a single {@code long}. Removal records have no
+ * contents. Names, keys, values and elements are encoded with {@link SharedCodec}.<p>
+ * A full snapshot contains every structure. An incremental snapshot only contains the structures which have been
+ * modified, created or removed since the last snapshot was taken. Each record replaces the whole structure when it is
+ * restored, so a full snapshot followed by each of its incremental snapshots, in order, restores the latest state.<p>
+ * Structures are written while they are being modified, so a snapshot is not a point-in-time image of all of them.
+ * Modifications made through iterators and {@code Map.Entry} instances are not tracked for incremental snapshots.
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+class SharedDataSnapshot {
+
+  private static final int MAGIC = 0x4e585344;
+  private static final byte VERSION = 1;
+
+  private static final byte END = 0;
+  private static final byte MAP = 1;
+  private static final byte SET = 2;
+  private static final byte COUNTER = 3;
+  private static final byte REMOVED_MAP = 4;
+  private static final byte REMOVED_SET = 5;
+  private static final byte REMOVED_COUNTER = 6;
+
+  private final ConcurrentMap<Object, SharedMap<?, ?>> maps;
+  private final ConcurrentMap<Object, SharedSet<?>> sets;
+  private final ConcurrentMap<Object, SharedCounter> counters;
+  private final Set<Object> removedMaps;
+  private final Set<Object> removedSets;
+  private final Set<Object> removedCounters;
+
+  SharedDataSnapshot(ConcurrentMap<Object, SharedMap<?, ?>> maps, ConcurrentMap<Object, SharedSet<?>> sets,
+                     ConcurrentMap<Object, SharedCounter> counters, Set<Object> removedMaps, Set<Object> removedSets,
+                     Set<Object> removedCounters) {
+    this.maps = maps;
+    this.sets = sets;
+    this.counters = counters;
+    this.removedMaps = removedMaps;
+    this.removedSets = removedSets;
+    this.removedCounters = removedCounters;
+  }
+
+  /**
+   * Write a snapshot to {@code file}. The snapshot is written to a temporary file which is renamed once it is
+   * complete, so {@code file} always contains a complete snapshot.<p>
+   * If the snapshot fails, the structures it would have written are marked as modified again.
+   */
+  void write(File file, boolean incremental) throws IOException {
+    List<Object> removedMapNames = drain(removedMaps);
+    List<Object> removedSetNames = drain(removedSets);
+    List<Object> removedCounterNames = drain(removedCounters);
+    List<SharedMap<?, ?>> writtenMaps = new ArrayList<>();
+    List<SharedSet<?>> writtenSets = new ArrayList<>();
+    List<SharedCounter> writtenCounters = new ArrayList<>();
+
+    File tmp = new File(file.getPath() + ".tmp");
+    boolean ok = false;
+    try {
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeBoolean(incremental);
+        if (incremental) {
+          writeRemoved(out, REMOVED_MAP, removedMapNames);
+          writeRemoved(out, REMOVED_SET, removedSetNames);
+          writeRemoved(out, REMOVED_COUNTER, removedCounterNames);
+        }
+        for (Map.Entry<Object, SharedMap<?, ?>> entry : maps.entrySet()) {
+          SharedMap<?, ?> map = entry.getValue();
+          if (incremental && !map.dirty) {
+            continue;
+          }
+          // Clear the flag before reading, so any concurrent modification marks it dirty again
+          map.dirty = false;
+          writtenMaps.add(map);
+          writeName(out, MAP, entry.getKey());
+          for (Map.Entry<?, ?> e : map.entrySet()) {
+            writeObject(out, e.getKey());
+            writeObject(out, e.getValue());
+          }
+          out.writeInt(-1);
+        }
+        for (Map.Entry<Object, SharedSet<?>> entry : sets.entrySet()) {
+          SharedSet<?> set = entry.getValue();
+          if (incremental && !set.dirty) {
+            continue;
+          }
+          set.dirty = false;
+          writtenSets.add(set);
+          writeName(out, SET, entry.getKey());
+          for (Object o : set) {
+            writeObject(out, o);
+          }
+          out.writeInt(-1);
+        }
+        for (Map.Entry<Object, SharedCounter> entry : counters.entrySet()) {
+          SharedCounter counter = entry.getValue();
+          if (incremental && !counter.dirty) {
+            continue;
+          }
+          counter.dirty = false;
+          writtenCounters.add(counter);
+          writeName(out, COUNTER, entry.getKey());
+          out.writeLong(counter.get());
+        }
+        out.writeByte(END);
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        fos.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to rename " + tmp + " to " + file);
+      }
+      ok = true;
+    } finally {
+      if (!ok) {
+        tmp.delete();
+        for (SharedMap<?, ?> map : writtenMaps) {
+          map.markDirty();
+        }
+        for (SharedSet<?> set : writtenSets) {
+          set.markDirty();
+        }
+        for (SharedCounter counter : writtenCounters) {
+          counter.markDirty();
+        }
+        removedMaps.addAll(removedMapNames);
+        removedSets.addAll(removedSetNames);
+        removedCounters.addAll(removedCounterNames);
+      }
+    }
+  }
+
+  /**
+   * Restore the structures in the snapshot {@code file}. The file is memory-mapped rather than read.
+   */
+  void read(File file) throws IOException {
+    ByteBuffer buff;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      buff = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+    if (buff.remaining() < 6 || buff.getInt() != MAGIC) {
+      throw new IOException(file + " is not a snapshot file");
+    }
+    byte version = buff.get();
+    if (version != VERSION) {
+      throw new IOException("Unsupported snapshot version " + version);
+    }
+    buff.get(); //incremental - records are applied the same way either way
+    while (true) {
+      byte type = buff.get();
+      if (type == END) {
+        return;
+      }
+      Object name = readObject(buff);
+      switch (type) {
+        case MAP: {
+          Map<Object, Object> map = SharedData.getMap(name);
+          map.clear();
+          Object key;
+          while ((key = readObject(buff)) != null) {
+            map.put(key, readObject(buff));
+          }
+          break;
+        }
+        case SET: {
+          java.util.Set<Object> set = SharedData.getSet(name);
+          set.clear();
+          Object o;
+          while ((o = readObject(buff)) != null) {
+            set.add(o);
+          }
+          break;
+        }
+        case COUNTER:
+          SharedData.getCounter(name).set(buff.getLong());
+          break;
+        case REMOVED_MAP:
+          SharedData.removeMap(name);
+          break;
+        case REMOVED_SET:
+          SharedData.removeSet(name);
+          break;
+        case REMOVED_COUNTER:
+          SharedData.removeCounter(name);
+          break;
+        default:
+          throw new IOException("Invalid record type " + type + " in " + file);
+      }
+    }
+  }
+
+  private static List<Object> drain(Set<Object> names) {
+    List<Object> list = new ArrayList<>();
+    for (Object name : names) {
+      if (names.remove(name)) {
+        list.add(name);
+      }
+    }
+    return list;
+  }
+
+  private static void writeRemoved(DataOutputStream out, byte type, List<Object> names) throws IOException {
+    for (Object name : names) {
+      writeName(out, type, name);
+    }
+  }
+
+  private static void writeName(DataOutputStream out, byte type, Object name) throws IOException {
+    out.writeByte(type);
+    writeObject(out, name);
+  }
+
+  private static void writeObject(DataOutputStream out, Object obj) throws IOException {
+    byte[] bytes = SharedCodec.encode(obj);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  // Returns null at the end of a sequence
+  private static Object readObject(ByteBuffer buff) {
+    int len = buff.getInt();
+    if (len == -1) {
+      return null;
+    }
+    ByteBuffer slice = buff.duplicate();
+    slice.limit(slice.position() + len);
+    buff.position(buff.position() + len);
+    return SharedCodec.decode(slice);
+  }
+}
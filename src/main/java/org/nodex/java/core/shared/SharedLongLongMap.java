@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>A map from primitive {@code long} keys to primitive {@code long} values which can be shared between event
+ * loops.</p>
+ *
+ * <p>Instances are obtained using {@link SharedData#getLongLongMap}. Keys and values are not boxed, reads are lock
+ * free, and {@link #forEach} does not allocate.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedLongLongMap {
+
+  /**
+   * Called for each entry in the map by {@link SharedLongLongMap#forEach}
+   */
+  public interface Visitor {
+    void visit(long key, long value);
+  }
+
+  private final LongHashTable table = new LongHashTable(true, false);
+
+  SharedLongLongMap() {
+  }
+
+  /**
+   * Return the value for {@code key}, or {@code defaultValue} if there is no entry for it.
+   */
+  public long get(long key, long defaultValue) {
+    LongHashTable.Table t = table.table;
+    int i = LongHashTable.find(t, key);
+    return i == -1 ? defaultValue : t.longs.get(i);
+  }
+
+  /**
+   * Return {@code true} if there is an entry for {@code key}.
+   */
+  public boolean containsKey(long key) {
+    return LongHashTable.find(table.table, key) != -1;
+  }
+
+  /**
+   * Put an entry in the map, replacing any existing entry for {@code key}.
+   * @return {@code true} if there was no existing entry for {@code key}
+   */
+  public boolean put(long key, long value) {
+    table.lock();
+    try {
+      int i = table.slotFor(key);
+      table.table.longs.set(i, value);
+      return table.publish(i);
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Put an entry in the map only if there is no existing entry for {@code key}.
+   * @return {@code true} if the entry was added
+   */
+  public boolean putIfAbsent(long key, long value) {
+    table.lock();
+    try {
+      if (LongHashTable.find(table.table, key) != -1) {
+        return false;
+      }
+      int i = table.slotFor(key);
+      table.table.longs.set(i, value);
+      return table.publish(i);
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Add {@code delta} to the value for {@code key}. If there is no entry for {@code key} one is created with the value
+   * {@code delta}.
+   * @return the new value
+   */
+  public long addAndGet(long key, long delta) {
+    table.lock();
+    try {
+      LongHashTable.Table t = table.table;
+      int i = LongHashTable.find(t, key);
+      if (i != -1) {
+        return t.longs.addAndGet(i, delta);
+      }
+      i = table.slotFor(key);
+      table.table.longs.set(i, delta);
+      table.publish(i);
+      return delta;
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Remove the entry for {@code key}.
+   * @return {@code true} if there was an entry to remove
+   */
+  public boolean remove(long key) {
+    table.lock();
+    try {
+      int i = LongHashTable.find(table.table, key);
+      if (i == -1) {
+        return false;
+      }
+      table.delete(i);
+      return true;
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Call {@code visitor} with each entry in the map. Entries added, removed or changed while this method is running may
+   * or may not be visited.
+   */
+  public void forEach(Visitor visitor) {
+    LongHashTable.Table t = table.table;
+    for (int i = 0; i < t.capacity(); i++) {
+      if (t.states.get(i) == LongHashTable.FULL) {
+        visitor.visit(t.keys[i], t.longs.get(i));
+      }
+    }
+  }
+
+  /**
+   * Return the number of entries in the map.
+   */
+  public int size() {
+    return table.size();
+  }
+
+  /**
+   * Return {@code true} if the map is empty
+   */
+  public boolean isEmpty() {
+    return table.size() == 0;
+  }
+
+  /**
+   * Remove all entries from the map.
+   */
+  public void clear() {
+    table.lock();
+    try {
+      table.clear();
+    } finally {
+      table.unlock();
+    }
+  }
+}
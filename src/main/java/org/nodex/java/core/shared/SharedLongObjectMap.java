@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>A map from primitive {@code long} keys to values which can be shared between event loops.</p>
+ *
+ * <p>Instances are obtained using {@link SharedData#getLongObjectMap}. Keys are not boxed, reads are lock free, and
+ * {@link #forEach} does not allocate. Only the types allowed in {@link SharedData} can be used as values.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedLongObjectMap<V> {
+
+  /**
+   * Called for each entry in the map by {@link SharedLongObjectMap#forEach}
+   */
+  public interface Visitor<V> {
+    void visit(long key, V value);
+  }
+
+  private final LongHashTable table = new LongHashTable(false, true);
+
+  SharedLongObjectMap() {
+  }
+
+  /**
+   * Return the value for {@code key}, or {@code null} if there is no entry for it.
+   */
+  public V get(long key) {
+    LongHashTable.Table t = table.table;
+    int i = LongHashTable.find(t, key);
+    return i == -1 ? null : asValue(t.objects.get(i));
+  }
+
+  /**
+   * Return {@code true} if there is an entry for {@code key}.
+   */
+  public boolean containsKey(long key) {
+    return LongHashTable.find(table.table, key) != -1;
+  }
+
+  /**
+   * Put an entry in the map, replacing any existing entry for {@code key}.
+   * @return the previous value for {@code key}, or {@code null} if there was none
+   */
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    value = SharedUtils.checkObject(value);
+    table.lock();
+    try {
+      int i = table.slotFor(key);
+      V prev = asValue(table.table.objects.getAndSet(i, value));
+      return table.publish(i) ? null : prev;
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Put an entry in the map only if there is no existing entry for {@code key}.
+   * @return the existing value for {@code key}, or {@code null} if the entry was added
+   */
+  public V putIfAbsent(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    value = SharedUtils.checkObject(value);
+    table.lock();
+    try {
+      LongHashTable.Table t = table.table;
+      int i = LongHashTable.find(t, key);
+      if (i != -1) {
+        return asValue(t.objects.get(i));
+      }
+      i = table.slotFor(key);
+      table.table.objects.set(i, value);
+      table.publish(i);
+      return null;
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Remove the entry for {@code key}.
+   * @return the value that was removed, or {@code null} if there was none
+   */
+  public V remove(long key) {
+    table.lock();
+    try {
+      LongHashTable.Table t = table.table;
+      int i = LongHashTable.find(t, key);
+      if (i == -1) {
+        return null;
+      }
+      V prev = asValue(t.objects.get(i));
+      table.delete(i);
+      return prev;
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Call {@code visitor} with each entry in the map. Entries added, removed or changed while this method is running may
+   * or may not be visited.
+   */
+  public void forEach(Visitor<V> visitor) {
+    LongHashTable.Table t = table.table;
+    for (int i = 0; i < t.capacity(); i++) {
+      if (t.states.get(i) == LongHashTable.FULL) {
+        V value = asValue(t.objects.get(i));
+        // Removed since we checked the state
+        if (value != null) {
+          visitor.visit(t.keys[i], value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the number of entries in the map.
+   */
+  public int size() {
+    return table.size();
+  }
+
+  /**
+   * Return {@code true} if the map is empty
+   */
+  public boolean isEmpty() {
+    return table.size() == 0;
+  }
+
+  /**
+   * Remove all entries from the map.
+   */
+  public void clear() {
+    table.lock();
+    try {
+      table.clear();
+    } finally {
+      table.unlock();
+    }
+  }
+
+  //Only values of type V are put in the table
+  @SuppressWarnings("unchecked")
+  private static <T> T asValue(Object value) {
+    return (T) value;
+  }
+}
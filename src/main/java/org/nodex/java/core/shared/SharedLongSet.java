@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>A set of primitive {@code long} values which can be shared between event loops.</p>
+ *
+ * <p>Instances are obtained using {@link SharedData#getLongSet}. Use this instead of a {@code Set<Long>} to hold handler
+ * IDs such as {@link org.nodex.java.core.net.NetSocket#writeHandlerID}: values are not boxed, reads are lock free, and
+ * {@link #forEach} does not allocate.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedLongSet {
+
+  /**
+   * Called for each value in the set by {@link SharedLongSet#forEach}
+   */
+  public interface Visitor {
+    void visit(long value);
+  }
+
+  private final LongHashTable table = new LongHashTable(false, false);
+
+  SharedLongSet() {
+  }
+
+  /**
+   * Add {@code value} to the set.
+   * @return {@code true} if the set did not already contain the value
+   */
+  public boolean add(long value) {
+    table.lock();
+    try {
+      return table.publish(table.slotFor(value));
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Remove {@code value} from the set.
+   * @return {@code true} if the set contained the value
+   */
+  public boolean remove(long value) {
+    table.lock();
+    try {
+      int i = LongHashTable.find(table.table, value);
+      if (i == -1) {
+        return false;
+      }
+      table.delete(i);
+      return true;
+    } finally {
+      table.unlock();
+    }
+  }
+
+  /**
+   * Return {@code true} if the set contains {@code value}.
+   */
+  public boolean contains(long value) {
+    return LongHashTable.find(table.table, value) != -1;
+  }
+
+  /**
+   * Call {@code visitor} with each value in the set. Values added or removed while this method is running may or may
+   * not be visited.
+   */
+  public void forEach(Visitor visitor) {
+    LongHashTable.Table t = table.table;
+    for (int i = 0; i < t.capacity(); i++) {
+      if (t.states.get(i) == LongHashTable.FULL) {
+        visitor.visit(t.keys[i]);
+      }
+    }
+  }
+
+  /**
+   * Return the number of values in the set.
+   */
+  public int size() {
+    return table.size();
+  }
+
+  /**
+   * Return {@code true} if the set is empty
+   */
+  public boolean isEmpty() {
+    return table.size() == 0;
+  }
+
+  /**
+   * Remove all values from the set.
+   */
+  public void clear() {
+    table.lock();
+    try {
+      table.clear();
+    } finally {
+      table.unlock();
+    }
+  }
+}
@@ -17,37 +17,168 @@
 package org.nodex.java.core.shared;
 
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.NodexInternal;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
-class SharedMap<K, V> implements ConcurrentMap<K, V> {
+/**
+ * <p>A lock free {@code Map} which can be shared between event loops. Instances are obtained using
+ * {@link SharedData#getMap}.</p>
+ *
+ * <p>Event loops can register a listener with {@link #addListener} to be told when the map changes, instead of polling
+ * it. Changes are delivered in batches on the event loop that registered the listener. Within a batch there is at
+ * most one {@link SharedMapEvent} per key, with the value the key had before the first change and the value it has
+ * when the batch is delivered. Writers never block or wait for listeners, even on the listener's own event loop; they
+ * only record the change and, if the listener is not already scheduled, schedule it.</p>
+ *
+ * <p>Whole map jobs which would stall an event loop, such as expiring entries or computing aggregates, can be run in
+ * parallel off the event loop with {@link #forEach(Visitor, CompletionHandler)}, {@link #reduce} and
+ * {@link #search}.</p>
+ *
+ * <p>Changes made through {@code Map.Entry} instances returned from {@link #entrySet}, or through the {@link #keySet}
+ * and {@link #values} views, are not reported to listeners.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedMap<K, V> implements ConcurrentMap<K, V> {
+
+  /**
+   * Called for each entry in the map by {@link SharedMap#forEach(Visitor, CompletionHandler)}
+   */
+  public interface Visitor<K, V> {
+    void visit(K key, V value);
+  }
+
+  /**
+   * Computes a result from an entry by {@link SharedMap#reduce} and {@link SharedMap#search}
+   */
+  public interface Transformer<K, V, U> {
+    U transform(K key, V value);
+  }
+
+  /**
+   * Combines two results of {@link SharedMap#reduce}
+   */
+  public interface Reducer<U> {
+    U reduce(U u1, U u2);
+  }
 
   private final ConcurrentMap<K, V> map = new NonBlockingHashMap<>();
+  private final AtomicReference<Listener<K, V>[]> listeners = new AtomicReference<>(SharedMap.<K, V>newListeners(0));
+  private final AtomicLong listenerSeq = new AtomicLong(0);
+
+  // Set after the map is modified, cleared when it is written to a snapshot
+  volatile boolean dirty = true;
+
+  SharedMap() {
+  }
+
+  void markDirty() {
+    if (!dirty) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Register a listener with the map. As the map changes the {@code handler} will be called with batches of changes on
+   * the event loop that registered it.
+   * @return the unique ID of the listener. This is required when calling {@link #removeListener}.
+   */
+  public long addListener(EventHandler<List<SharedMapEvent<K, V>>> handler) {
+    Long contextID = Nodex.instance.getContextID();
+    if (contextID == null) {
+      throw new IllegalStateException("Cannot add listener with no context");
+    }
+    Listener<K, V> listener = new Listener<>(this, listenerSeq.getAndIncrement(), contextID, handler);
+    while (true) {
+      Listener<K, V>[] curr = listeners.get();
+      Listener<K, V>[] copy = newListeners(curr.length + 1);
+      System.arraycopy(curr, 0, copy, 0, curr.length);
+      copy[curr.length] = listener;
+      if (listeners.compareAndSet(curr, copy)) {
+        return listener.id;
+      }
+    }
+  }
+
+  /**
+   * Remove the listener with the specified {@code listenerID}. Changes which have not yet been delivered to the
+   * listener are discarded.
+   * @return true if the listener was removed, otherwise false if the listener cannot be found.
+   */
+  public boolean removeListener(long listenerID) {
+    while (true) {
+      Listener<K, V>[] curr = listeners.get();
+      int pos = -1;
+      for (int i = 0; i < curr.length; i++) {
+        if (curr[i].id == listenerID) {
+          pos = i;
+          break;
+        }
+      }
+      if (pos == -1) {
+        return false;
+      }
+      if (removeListener(curr, pos)) {
+        curr[pos].removed = true;
+        return true;
+      }
+    }
+  }
 
   public V putIfAbsent(K k, V v) {
     k = SharedUtils.checkObject(k);
     v = SharedUtils.checkObject(v);
-    return map.putIfAbsent(k, v);
+    V result = map.putIfAbsent(k, v);
+    if (result == null) {
+      changed(k, null, v);
+    }
+    return result;
   }
 
+  //The entry was in the map, so o is a K and o1 a V
+  @SuppressWarnings("unchecked")
   public boolean remove(Object o, Object o1) {
-    return map.remove(o, o1);
+    boolean result = map.remove(o, o1);
+    if (result) {
+      changed((K) o, (V) o1, null);
+    }
+    return result;
   }
 
   public boolean replace(K k, V v, V v1) {
     k = SharedUtils.checkObject(k);
     v1 = SharedUtils.checkObject(v1);
-    return map.replace(k, v, v1);
+    boolean result = map.replace(k, v, v1);
+    if (result) {
+      changed(k, v, v1);
+    }
+    return result;
   }
 
   public V replace(K k, V v) {
     k = SharedUtils.checkObject(k);
     v = SharedUtils.checkObject(v);
-    return map.replace(k, v);
+    V result = map.replace(k, v);
+    if (result != null) {
+      changed(k, result, v);
+    }
+    return result;
   }
 
   public int size() {
@@ -73,23 +204,230 @@ class SharedMap<K, V> implements ConcurrentMap<K, V> {
   public V put(K k, V v) {
     k = SharedUtils.checkObject(k);
     v = SharedUtils.checkObject(v);
-    return map.put(k, v);
+    V result = map.put(k, v);
+    changed(k, result, v);
+    return result;
   }
 
+  //The entry was in the map, so o is a K
+  @SuppressWarnings("unchecked")
   public V remove(Object o) {
-    return map.remove(o);
+    V result = map.remove(o);
+    if (result != null) {
+      changed((K) o, result, null);
+    }
+    return result;
   }
 
+  /**
+   * Copy all the entries of {@code map} into this map. Every key and value is checked before any are added, so if one
+   * of them is of an invalid type the map is left unchanged.
+   */
   public void putAll(Map<? extends K, ? extends V> map) {
+    List<K> keys = new ArrayList<>(map.size());
+    List<V> values = new ArrayList<>(map.size());
     for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
-      K k = SharedUtils.checkObject(entry.getKey());
-      V v = SharedUtils.checkObject(entry.getValue());
-      this.map.put(k, v);
+      keys.add(SharedUtils.checkObject(entry.getKey()));
+      values.add(SharedUtils.checkObject(entry.getValue()));
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      K k = keys.get(i);
+      V v = values.get(i);
+      V result = this.map.put(k, v);
+      changed(k, result, v);
+    }
+  }
+
+  /**
+   * Return the values of the specified {@code keys}. Keys which are not in the map are not included in the result.
+   */
+  public Map<K, V> getAll(Collection<? extends K> keys) {
+    Map<K, V> result = new HashMap<>(keys.size() * 2);
+    for (K k : keys) {
+      V v = map.get(k);
+      if (v != null) {
+        result.put(k, v);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Remove the specified {@code keys} from the map.
+   * @return the number of keys which were removed.
+   */
+  public int removeAll(Collection<?> keys) {
+    int removed = 0;
+    for (Object k : keys) {
+      if (remove(k) != null) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Atomically compute a new value for {@code k} from its current value, or {@code null} if it has none. If the new
+   * value is {@code null} the key is removed.<p>
+   * The map is never locked. If another writer changes the key while {@code remappingFunction} is running, the
+   * function is called again with the new current value, so it should be free of side effects.
+   */
+  public V compute(K k, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    k = SharedUtils.checkObject(k);
+    while (true) {
+      V prev = map.get(k);
+      V v = remappingFunction.apply(k, prev);
+      if (v == null) {
+        if (prev == null || map.remove(k, prev)) {
+          if (prev != null) {
+            changed(k, prev, null);
+          }
+          return null;
+        }
+      } else if (set(k, prev, v = SharedUtils.checkObject(v))) {
+        return v;
+      }
+    }
+  }
+
+  /**
+   * Atomically compute a value for {@code k} if it has none. If the computed value is {@code null} nothing is added.
+   * <p>The function may be called concurrently by more than one writer for the same key, in which case only one of the
+   * results is added and the others are discarded.
+   * @return the current value of the key, or the computed value if it had none.
+   */
+  public V computeIfAbsent(K k, Function<? super K, ? extends V> mappingFunction) {
+    V prev = map.get(k);
+    if (prev != null) {
+      return prev;
+    }
+    k = SharedUtils.checkObject(k);
+    V v = mappingFunction.apply(k);
+    if (v == null) {
+      return null;
+    }
+    v = SharedUtils.checkObject(v);
+    prev = map.putIfAbsent(k, v);
+    if (prev != null) {
+      return prev;
     }
+    changed(k, null, v);
+    return v;
+  }
+
+  /**
+   * Atomically compute a new value for {@code k} if it has one. If the new value is {@code null} the key is removed.
+   * <p>As with {@link #compute}, the function is called again if the key is changed while it runs.
+   */
+  public V computeIfPresent(K k, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    k = SharedUtils.checkObject(k);
+    while (true) {
+      V prev = map.get(k);
+      if (prev == null) {
+        return null;
+      }
+      V v = remappingFunction.apply(k, prev);
+      if (v == null) {
+        if (map.remove(k, prev)) {
+          changed(k, prev, null);
+          return null;
+        }
+      } else if (set(k, prev, v = SharedUtils.checkObject(v))) {
+        return v;
+      }
+    }
+  }
+
+  /**
+   * Atomically set {@code k} to {@code v} if it has no value, otherwise to the result of calling
+   * {@code remappingFunction} with its current value and {@code v}. If the result is {@code null} the key is removed.
+   * <p>As with {@link #compute}, the function is called again if the key is changed while it runs.
+   */
+  public V merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    k = SharedUtils.checkObject(k);
+    v = SharedUtils.checkObject(v);
+    while (true) {
+      V prev = map.get(k);
+      if (prev == null) {
+        if (map.putIfAbsent(k, v) == null) {
+          changed(k, null, v);
+          return v;
+        }
+        continue;
+      }
+      V merged = remappingFunction.apply(prev, v);
+      if (merged == null) {
+        if (map.remove(k, prev)) {
+          changed(k, prev, null);
+          return null;
+        }
+      } else if (set(k, prev, merged = SharedUtils.checkObject(merged))) {
+        return merged;
+      }
+    }
+  }
+
+  /**
+   * Call {@code visitor} with every entry in the map, in parallel, then call {@code completionHandler} on the caller's
+   * context.<p>
+   * The entries are processed on a shared fork-join pool, not on an event loop, so {@code visitor} must be thread-safe.
+   * The entries processed are a weakly consistent snapshot of the map taken when the operation starts running.
+   */
+  public void forEach(final Visitor<? super K, ? super V> visitor, CompletionHandler<Void> completionHandler) {
+    new SharedBulk<Map.Entry<K, V>, Void>(false) {
+      Void apply(Map.Entry<K, V> entry) {
+        visitor.visit(entry.getKey(), entry.getValue());
+        return null;
+      }
+    }.start(map.entrySet(), completionHandler);
+  }
+
+  /**
+   * Call {@code transformer} with every entry in the map, in parallel, and combine the non {@code null} results with
+   * {@code reducer}. The result, or {@code null} if there were no results, is passed to {@code completionHandler} on
+   * the caller's context.<p>
+   * As with {@link #forEach(Visitor, CompletionHandler)}, the functions are called on a fork-join pool so must be
+   * thread-safe. {@code reducer} should be associative since the order in which results are combined is not defined.
+   */
+  public <U> void reduce(final Transformer<? super K, ? super V, ? extends U> transformer,
+                         final Reducer<U> reducer, CompletionHandler<U> completionHandler) {
+    new SharedBulk<Map.Entry<K, V>, U>(false) {
+      U apply(Map.Entry<K, V> entry) {
+        return transformer.transform(entry.getKey(), entry.getValue());
+      }
+
+      U combine(U u1, U u2) {
+        return reducer.reduce(u1, u2);
+      }
+    }.start(map.entrySet(), completionHandler);
+  }
+
+  /**
+   * Call {@code searchFunction} with the entries in the map, in parallel, until it returns a non {@code null} result.
+   * That result, or {@code null} if there was none, is passed to {@code completionHandler} on the caller's context.
+   * If more than one entry gives a result, which one is returned is not defined.<p>
+   * As with {@link #forEach(Visitor, CompletionHandler)}, the function is called on a fork-join pool so must be
+   * thread-safe.
+   */
+  public <U> void search(final Transformer<? super K, ? super V, ? extends U> searchFunction,
+                         CompletionHandler<U> completionHandler) {
+    new SharedBulk<Map.Entry<K, V>, U>(true) {
+      U apply(Map.Entry<K, V> entry) {
+        return searchFunction.transform(entry.getKey(), entry.getValue());
+      }
+    }.start(map.entrySet(), completionHandler);
   }
 
   public void clear() {
-    map.clear();
+    if (listeners.get().length == 0) {
+      map.clear();
+      markDirty();
+    } else {
+      // Remove the keys one by one so listeners can be told the old values
+      for (K k : map.keySet()) {
+        remove(k);
+      }
+    }
   }
 
   public Set<K> keySet() {
@@ -118,6 +456,143 @@ class SharedMap<K, V> implements ConcurrentMap<K, V> {
     return map.hashCode();
   }
 
+  // Set k from prev to v with a single CAS, where prev is null if k has no value. v must already be checked.
+  private boolean set(K k, V prev, V v) {
+    boolean result = prev == null ? map.putIfAbsent(k, v) == null : map.replace(k, prev, v);
+    if (result) {
+      changed(k, prev, v);
+    }
+    return result;
+  }
+
+  private void changed(K key, V oldValue, V newValue) {
+    markDirty();
+    Listener<K, V>[] curr = listeners.get();
+    for (Listener<K, V> listener : curr) {
+      listener.changed(key, oldValue);
+    }
+  }
+
+  private boolean removeListener(Listener<K, V>[] curr, int pos) {
+    Listener<K, V>[] copy = newListeners(curr.length - 1);
+    System.arraycopy(curr, 0, copy, 0, pos);
+    System.arraycopy(curr, pos + 1, copy, pos, curr.length - pos - 1);
+    return listeners.compareAndSet(curr, copy);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Listener<K, V>[] newListeners(int length) {
+    return (Listener<K, V>[]) new Listener<?, ?>[length];
+  }
+
+  private void listenerGone(Listener<K, V> listener) {
+    while (true) {
+      Listener<K, V>[] curr = listeners.get();
+      int pos = -1;
+      for (int i = 0; i < curr.length; i++) {
+        if (curr[i] == listener) {
+          pos = i;
+          break;
+        }
+      }
+      if (pos == -1 || removeListener(curr, pos)) {
+        return;
+      }
+    }
+  }
+
+  // A pending change for a key. The old value is the value before the first change recorded since the last delivery.
+  // The new value isn't recorded: changes to a key can be recorded in a different order to the one they were made in,
+  // so the value in the map is read when the change is delivered
+  private static final class Change<V> {
+    final V oldValue;
+
+    Change(V oldValue) {
+      this.oldValue = oldValue;
+    }
+  }
+
+  private static final class Listener<K, V> implements Runnable {
+    final SharedMap<K, V> map;
+    final long id;
+    final long contextID;
+    final EventHandler<List<SharedMapEvent<K, V>>> handler;
+    // Coalesces changes by key, so a slow listener holds at most one pending change per key
+    final ConcurrentMap<K, Change<V>> pending = new NonBlockingHashMap<>();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    volatile boolean removed;
+
+    Listener(SharedMap<K, V> map, long id, long contextID, EventHandler<List<SharedMapEvent<K, V>>> handler) {
+      this.map = map;
+      this.id = id;
+      this.contextID = contextID;
+      this.handler = handler;
+    }
+
+    void changed(K key, V oldValue) {
+      if (removed) {
+        return;
+      }
+      if (!pending.containsKey(key)) {
+        pending.putIfAbsent(key, new Change<>(oldValue));
+      }
+      schedule();
+    }
+
+    void schedule() {
+      if (removed || !scheduled.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        //Always posted, so a writer on our own loop never runs the handler, and changes made in the rest of its task are
+        //batched with this one
+        NodexInternal.instance.postOnContext(contextID, this);
+      } catch (IllegalStateException e) {
+        //The context has been destroyed without the listener being removed
+        removed = true;
+        map.listenerGone(this);
+      }
+    }
+
+    public void run() {
+      Long prevContextID = Nodex.instance.getContextID();
+      NodexInternal.instance.setContextID(contextID);
+      try {
+        List<SharedMapEvent<K, V>> events = new ArrayList<>();
+        for (K key : pending.keySet()) {
+          Change<V> change = pending.remove(key);
+          if (change != null) {
+            V newValue = map.map.get(key);
+            if (!equal(change.oldValue, newValue)) {
+              events.add(new SharedMapEvent<>(key, change.oldValue, newValue));
+            }
+          }
+        }
+        if (!events.isEmpty() && !removed) {
+          try {
+            handler.onEvent(events);
+          } catch (Throwable t) {
+            t.printStackTrace(System.err);
+          }
+        }
+      } finally {
+        if (prevContextID != null) {
+          NodexInternal.instance.setContextID(prevContextID);
+        }
+      }
+      scheduled.set(false);
+      //Re-check to avoid missing a change made after we drained but before we cleared the flag, including any made by
+      //the handler itself
+      if (!pending.isEmpty()) {
+        schedule();
+      }
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+      return o1 == null ? o2 == null : o1.equals(o2);
+    }
+  }
+
   private static class Entry<K, V> implements Map.Entry<K, V> {
 
     final Map.Entry<K, V> internalEntry;
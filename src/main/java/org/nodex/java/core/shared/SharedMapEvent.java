@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>Describes a change to a key in a {@link SharedMap}.</p>
+ *
+ * <p>If the key was added to the map {@link #oldValue} is {@code null}, and if it was removed from the map
+ * {@link #newValue} is {@code null}.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedMapEvent<K, V> {
+
+  /**
+   * The key that changed
+   */
+  public final K key;
+
+  /**
+   * The value before the change, or {@code null} if the key was not in the map
+   */
+  public final V oldValue;
+
+  /**
+   * The value after the change, or {@code null} if the key was removed from the map
+   */
+  public final V newValue;
+
+  SharedMapEvent(K key, V oldValue, V newValue) {
+    this.key = key;
+    this.oldValue = oldValue;
+    this.newValue = newValue;
+  }
+
+  public String toString() {
+    return key + ": " + oldValue + " -> " + newValue;
+  }
+}
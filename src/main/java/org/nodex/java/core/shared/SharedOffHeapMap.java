@@ -0,0 +1,460 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.nodex.java.core.buffer.Buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>A map which can be shared between event loops and which stores its keys and values outside the Java heap.</p>
+ *
+ * <p>Instances are obtained using {@link SharedData#getOffHeapMap}. Use this instead of {@link SharedData#getMap} for
+ * large datasets, so the garbage collector does not have to scan every entry on each old generation collection.</p>
+ *
+ * <p>Keys and values can be any of the types allowed in {@link SharedData} except
+ * {@link org.nodex.java.core.Immutable}, since those can't be serialized. Keys are compared by their serialized form,
+ * so for example {@code Integer} {@code 1} and {@code Long} {@code 1} are different keys.</p>
+ *
+ * <p>The map is split into segments, each with its own read-write lock, so readers never block each other. Each segment
+ * appends its entries to large slabs of direct or memory-mapped memory. Replacing or removing an entry leaves garbage in
+ * the slab, which is reclaimed by compacting the segment once more than half of its memory is garbage.</p>
+ *
+ * <p>{@link #get} returns a copy of the value on the heap. {@link #getView} returns a {@code Buffer} over the value's
+ * bytes in place without copying them. Entries are never overwritten in place, so a view remains valid and unchanged even if
+ * the entry is subsequently replaced, removed or compacted.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedOffHeapMap<K, V> {
+
+  private static final long EMPTY = 0;
+  private static final long TOMBSTONE = -1;
+  // Key length and value length
+  private static final int HEADER = 8;
+
+  private final Segment[] segments;
+  private final int segmentShift;
+  private final int slabSize;
+  private final File directory;
+
+  SharedOffHeapMap(SharedOffHeapMapConfig config) {
+    int num = 1;
+    int shift = 0;
+    while (num < config.getSegments()) {
+      num <<= 1;
+      shift++;
+    }
+    @SuppressWarnings("unchecked")
+    Segment[] segments = (Segment[]) new SharedOffHeapMap<?, ?>.Segment[num];
+    for (int i = 0; i < num; i++) {
+      segments[i] = new Segment();
+    }
+    this.segments = segments;
+    segmentShift = 32 - shift;
+    slabSize = config.getSlabSize();
+    directory = config.getDirectory() == null ? null : new File(config.getDirectory());
+  }
+
+  /**
+   * Return a copy of the value for {@code key}, or {@code null} if there is no entry for it.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(K key) {
+    byte[] k = SharedCodec.encode(key);
+    int hash = hash(k);
+    ByteBuffer value = segmentFor(hash).get(k, hash);
+    return value == null ? null : (V) SharedCodec.decode(value);
+  }
+
+  /**
+   * Return a {@code Buffer} over the bytes of the value for {@code key}, or {@code null} if there is no entry for it.
+   * For {@code Buffer} and {@code byte[]} values these are the original bytes, for {@code String} values they are the
+   * UTF-8 encoded string, and for numbers they are the value in big-endian order.<p>
+   * The bytes are not copied. If the Buffer is written to it is copied first, so the map is never changed.
+   */
+  public Buffer getView(K key) {
+    byte[] k = SharedCodec.encode(key);
+    int hash = hash(k);
+    ByteBuffer value = segmentFor(hash).get(k, hash);
+    if (value == null) {
+      return null;
+    }
+    // Skip the type tag
+    value.position(1);
+    return Buffer.wrap(ChannelBuffers.wrappedBuffer(value.slice().asReadOnlyBuffer()));
+  }
+
+  /**
+   * Put an entry in the map, replacing any existing entry for {@code key}.
+   * @return {@code true} if an existing entry was replaced
+   */
+  public boolean put(K key, V value) {
+    byte[] k = SharedCodec.encode(key);
+    byte[] v = SharedCodec.encode(value);
+    int hash = hash(k);
+    return segmentFor(hash).put(k, v, hash);
+  }
+
+  /**
+   * Remove the entry for {@code key}.
+   * @return {@code true} if there was an entry to remove
+   */
+  public boolean remove(K key) {
+    byte[] k = SharedCodec.encode(key);
+    int hash = hash(k);
+    return segmentFor(hash).remove(k, hash);
+  }
+
+  /**
+   * Return {@code true} if there is an entry for {@code key}.
+   */
+  public boolean containsKey(K key) {
+    byte[] k = SharedCodec.encode(key);
+    int hash = hash(k);
+    return segmentFor(hash).get(k, hash) != null;
+  }
+
+  /**
+   * Return the number of entries in the map.
+   */
+  public long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  /**
+   * Remove all entries from the map and release its memory.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * Return the number of bytes of off heap memory allocated by the map.
+   */
+  public long getAllocatedBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += segment.allocated;
+    }
+    return bytes;
+  }
+
+  /**
+   * Return the number of bytes of off heap memory used by live entries in the map.
+   */
+  public long getLiveBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += segment.live;
+    }
+    return bytes;
+  }
+
+  /**
+   * Compact all segments now, rather than waiting for them to accumulate enough garbage.
+   */
+  public void compact() {
+    for (Segment segment : segments) {
+      segment.lock.writeLock().lock();
+      try {
+        segment.compact();
+      } finally {
+        segment.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments.length == 1 ? segments[0] : segments[(hash * 0x9e3779b9) >>> segmentShift];
+  }
+
+  private static int hash(byte[] bytes) {
+    int h = 0x811c9dc5;
+    for (byte b : bytes) {
+      h = (h ^ b) * 0x01000193;
+    }
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  private static long address(int slab, int offset) {
+    return ((((long) slab) << 32) | offset) + 1;
+  }
+
+  private static int slabOf(long address) {
+    return (int) ((address - 1) >>> 32);
+  }
+
+  private static int offsetOf(long address) {
+    return (int) (address - 1);
+  }
+
+  private ByteBuffer allocateSlab(int size) {
+    if (directory == null) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    try {
+      File file = File.createTempFile("nodex-offheap-", ".slab", directory);
+      try {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+          raf.setLength(size);
+          return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+          raf.close();
+        }
+      } finally {
+        //The mapping outlives the file
+        file.delete();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to map slab in " + directory, e);
+    }
+  }
+
+  private final class Segment {
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    long[] addresses = new long[16];
+    int[] hashes = new int[16];
+    volatile int size;
+    int tombstones;
+    List<ByteBuffer> slabs = new ArrayList<>();
+    ByteBuffer current;
+    int writePos;
+    volatile long allocated;
+    volatile long live;
+
+    ByteBuffer get(byte[] key, int hash) {
+      lock.readLock().lock();
+      try {
+        int slot = find(key, hash);
+        return slot == -1 ? null : value(addresses[slot]);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    boolean put(byte[] key, byte[] value, int hash) {
+      lock.writeLock().lock();
+      try {
+        int slot = find(key, hash);
+        long address = append(key, value);
+        if (slot != -1) {
+          live -= recordLength(addresses[slot]);
+          addresses[slot] = address;
+        } else {
+          if ((size + tombstones + 1) * 4L > addresses.length * 3L) {
+            int cap = addresses.length;
+            while ((size + 1) * 2L > cap) {
+              cap <<= 1;
+            }
+            rehash(cap);
+          }
+          insert(address, hash);
+          size++;
+        }
+        maybeCompact();
+        return slot != -1;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    boolean remove(byte[] key, int hash) {
+      lock.writeLock().lock();
+      try {
+        int slot = find(key, hash);
+        if (slot == -1) {
+          return false;
+        }
+        live -= recordLength(addresses[slot]);
+        addresses[slot] = TOMBSTONE;
+        tombstones++;
+        size--;
+        maybeCompact();
+        return true;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    void clear() {
+      lock.writeLock().lock();
+      try {
+        addresses = new long[16];
+        hashes = new int[16];
+        size = 0;
+        tombstones = 0;
+        slabs = new ArrayList<>();
+        current = null;
+        writePos = 0;
+        allocated = 0;
+        live = 0;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    private int find(byte[] key, int hash) {
+      int mask = addresses.length - 1;
+      int i = hash & mask;
+      while (true) {
+        long address = addresses[i];
+        if (address == EMPTY) {
+          return -1;
+        }
+        if (address != TOMBSTONE && hashes[i] == hash && keyEquals(address, key)) {
+          return i;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    private void insert(long address, int hash) {
+      int mask = addresses.length - 1;
+      int i = hash & mask;
+      while (true) {
+        long curr = addresses[i];
+        if (curr == EMPTY || curr == TOMBSTONE) {
+          if (curr == TOMBSTONE) {
+            tombstones--;
+          }
+          addresses[i] = address;
+          hashes[i] = hash;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    private void rehash(int capacity) {
+      long[] oldAddresses = addresses;
+      int[] oldHashes = hashes;
+      addresses = new long[capacity];
+      hashes = new int[capacity];
+      tombstones = 0;
+      for (int i = 0; i < oldAddresses.length; i++) {
+        if (oldAddresses[i] != EMPTY && oldAddresses[i] != TOMBSTONE) {
+          insert(oldAddresses[i], oldHashes[i]);
+        }
+      }
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+      ByteBuffer slab = slabs.get(slabOf(address));
+      int offset = offsetOf(address);
+      if (slab.getInt(offset) != key.length) {
+        return false;
+      }
+      int start = offset + HEADER;
+      for (int i = 0; i < key.length; i++) {
+        if (slab.get(start + i) != key[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private ByteBuffer value(long address) {
+      ByteBuffer slab = slabs.get(slabOf(address));
+      int offset = offsetOf(address);
+      int start = offset + HEADER + slab.getInt(offset);
+      ByteBuffer dup = slab.duplicate();
+      dup.limit(start + slab.getInt(offset + 4));
+      dup.position(start);
+      return dup.slice();
+    }
+
+    private int recordLength(long address) {
+      ByteBuffer slab = slabs.get(slabOf(address));
+      int offset = offsetOf(address);
+      return HEADER + slab.getInt(offset) + slab.getInt(offset + 4);
+    }
+
+    private long append(byte[] key, byte[] value) {
+      int length = HEADER + key.length + value.length;
+      ByteBuffer slab = reserve(length);
+      long address = address(slabs.size() - 1, writePos);
+      ByteBuffer dup = slab.duplicate();
+      dup.position(writePos);
+      dup.putInt(key.length).putInt(value.length).put(key).put(value);
+      writePos += length;
+      live += length;
+      return address;
+    }
+
+    private ByteBuffer reserve(int length) {
+      if (current == null || writePos + length > current.capacity()) {
+        int size = Math.max(slabSize, length);
+        current = allocateSlab(size);
+        slabs.add(current);
+        writePos = 0;
+        allocated += size;
+      }
+      return current;
+    }
+
+    private void maybeCompact() {
+      if (allocated > 2L * slabSize && live * 2 < allocated) {
+        compact();
+      }
+    }
+
+    // Copy the live entries into new slabs. The old slabs are released once there are no more views of them.
+    private void compact() {
+      List<ByteBuffer> oldSlabs = slabs;
+      slabs = new ArrayList<>();
+      current = null;
+      writePos = 0;
+      allocated = 0;
+      for (int i = 0; i < addresses.length; i++) {
+        long address = addresses[i];
+        if (address != EMPTY && address != TOMBSTONE) {
+          ByteBuffer oldSlab = oldSlabs.get(slabOf(address));
+          int offset = offsetOf(address);
+          int length = HEADER + oldSlab.getInt(offset) + oldSlab.getInt(offset + 4);
+          ByteBuffer record = oldSlab.duplicate();
+          record.limit(offset + length);
+          record.position(offset);
+          ByteBuffer slab = reserve(length);
+          addresses[i] = address(slabs.size() - 1, writePos);
+          ByteBuffer dup = slab.duplicate();
+          dup.position(writePos);
+          dup.put(record);
+          writePos += length;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 VMware, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nodex.java.core.shared;
+
+/**
+ * <p>Configuration for a {@link SharedOffHeapMap}.</p>
+ *
+ * <p>By default the map stores its data in direct memory. If a directory is set, the data is stored in memory-mapped
+ * scratch files in that directory instead, which lets the operating system page out parts of very large maps. The files
+ * are unlinked as soon as they are mapped so they never outlive the process.</p>
+ *
+ * <p>Instances of this class are not thread-safe. The configuration is copied when the map is created, so changing
+ * it afterwards has no effect on the map.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedOffHeapMapConfig {
+
+  private int segments = 16;
+  private int slabSize = 16 * 1024 * 1024;
+  private String directory;
+
+  /**
+   * Set the number of segments. Writers only lock the segment they write to, so more segments allow more concurrent
+   * writers. This is rounded up to a power of two. The default is 16.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedOffHeapMapConfig setSegments(int segments) {
+    if (segments < 1 || segments > 1 << 16) {
+      throw new IllegalArgumentException("segments must be between 1 and 65536");
+    }
+    this.segments = segments;
+    return this;
+  }
+
+  /**
+   * Set the size in bytes of each block of memory allocated by a segment. The default is 16MB.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedOffHeapMapConfig setSlabSize(int slabSize) {
+    if (slabSize < 1024) {
+      throw new IllegalArgumentException("slabSize must be >= 1024");
+    }
+    this.slabSize = slabSize;
+    return this;
+  }
+
+  /**
+   * Set the directory in which to create memory-mapped files. If {@code null}, direct memory is used.
+   * @return A reference to this, so multiple method calls can be chained.
+   */
+  public SharedOffHeapMapConfig setDirectory(String directory) {
+    this.directory = directory;
+    return this;
+  }
+
+  public int getSegments() {
+    return segments;
+  }
+
+  public int getSlabSize() {
+    return slabSize;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+}
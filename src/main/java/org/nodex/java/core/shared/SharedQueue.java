@@ -16,31 +16,354 @@
 
 package org.nodex.java.core.shared;
 
+import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
+import org.nodex.java.core.internal.NodexInternal;
+
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * User: tim
- * Date: 17/08/11
- * Time: 19:13
+ * <p>A lock free, optionally bounded, multi-producer multi-consumer queue which can be shared between event loops.</p>
+ *
+ * <p>Items can be offered to the queue from any event loop. Consumers register a handler using {@link #registerConsumer}
+ * and are woken up on their own event loop when items arrive. When more than one consumer is registered items are
+ * distributed amongst them, so the queue can be used to load balance work between event loops.</p>
+ *
+ * <p>If the queue was created with a maximum size, {@link #offer} will return {@code false} when the queue is full. A
+ * producer can call {@link #drainHandler} to be told when there is space in the queue again.</p>
+ *
+ * <p>Only the types allowed in {@link SharedData} can be added to the queue.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
  */
-public class SharedQueue<T> {
-  private final Queue<T> queue = new ConcurrentLinkedQueue<>();
+public class SharedQueue<E> {
+
+  //The most items a consumer handles each time it's woken, so one consumer can't take the whole backlog
+  private static final int MAX_BATCH = 64;
+
+  private final Queue<E> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger(0);
+  private final int maxSize;
+  private final AtomicReference<Consumer<E>[]> consumers = new AtomicReference<>(SharedQueue.<E>newConsumers(0));
+  private final AtomicInteger nextConsumer = new AtomicInteger(0);
+  private final AtomicLong consumerSeq = new AtomicLong(0);
+  private final Queue<DrainWaiter> drainWaiters = new ConcurrentLinkedQueue<>();
 
-  public void add(T t) {
-    t = SharedUtils.checkObject(t);
-    queue.add(t);
+  SharedQueue() {
+    this(Integer.MAX_VALUE);
   }
 
-  public void clear() {
-    queue.clear();
+  SharedQueue(int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be > 0");
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Offer {@code e} to the queue. This method never blocks.
+   * @return {@code true} if the item was added, or {@code false} if the queue is full.
+   */
+  public boolean offer(E e) {
+    e = SharedUtils.checkObject(e);
+    while (true) {
+      int s = size.get();
+      if (s >= maxSize) {
+        return false;
+      }
+      if (size.compareAndSet(s, s + 1)) {
+        break;
+      }
+    }
+    queue.add(e);
+    signalConsumer();
+    return true;
   }
 
-  public T poll() {
-    return queue.poll();
+  /**
+   * Add {@code e} to the queue.
+   * @throws IllegalStateException if the queue is full
+   */
+  public void add(E e) {
+    if (!offer(e)) {
+      throw new IllegalStateException("Queue is full");
+    }
   }
 
-  public Object peek() {
+  /**
+   * Remove and return the head of the queue, or {@code null} if the queue is empty.
+   */
+  public E poll() {
+    E e = queue.poll();
+    if (e != null) {
+      size.decrementAndGet();
+      checkDrained();
+    }
+    return e;
+  }
+
+  /**
+   * Return the head of the queue without removing it, or {@code null} if the queue is empty.
+   */
+  public E peek() {
     return queue.peek();
   }
+
+  /**
+   * Remove all items from the queue.
+   */
+  public void clear() {
+    while (poll() != null) {
+    }
+  }
+
+  /**
+   * Return the number of items in the queue.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Return {@code true} if the queue is empty
+   */
+  public boolean isEmpty() {
+    return size.get() == 0;
+  }
+
+  /**
+   * Return {@code true} if the queue has reached its maximum size.
+   */
+  public boolean isFull() {
+    return size.get() >= maxSize;
+  }
+
+  /**
+   * Return the maximum size of the queue, {@link Integer#MAX_VALUE} if the queue is unbounded.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Register a consumer with the queue. As items arrive, the {@code handler} will be called with them on the event loop
+   * that registered it. Items are only delivered to one consumer.
+   * @return the unique ID of the consumer. This is required when calling {@link #unregisterConsumer}.
+   */
+  public long registerConsumer(EventHandler<E> handler) {
+    Long contextID = Nodex.instance.getContextID();
+    if (contextID == null) {
+      throw new IllegalStateException("Cannot register consumer with no context");
+    }
+    Consumer<E> consumer = new Consumer<>(this, consumerSeq.getAndIncrement(), contextID, handler);
+    while (true) {
+      Consumer<E>[] curr = consumers.get();
+      Consumer<E>[] copy = newConsumers(curr.length + 1);
+      System.arraycopy(curr, 0, copy, 0, curr.length);
+      copy[curr.length] = consumer;
+      if (consumers.compareAndSet(curr, copy)) {
+        break;
+      }
+    }
+    //Items may have been added before there were any consumers
+    if (!queue.isEmpty()) {
+      consumer.schedule();
+    }
+    return consumer.id;
+  }
+
+  /**
+   * Unregister the consumer with the specified {@code consumerID}. This must be called from the same event loop that
+   * registered the consumer.
+   * @return true if the consumer was successfully unregistered, otherwise false if the consumer cannot be found.
+   */
+  public boolean unregisterConsumer(long consumerID) {
+    Long contextID = Nodex.instance.getContextID();
+    while (true) {
+      Consumer<E>[] curr = consumers.get();
+      int pos = -1;
+      for (int i = 0; i < curr.length; i++) {
+        if (curr[i].id == consumerID) {
+          pos = i;
+          break;
+        }
+      }
+      if (pos == -1) {
+        return false;
+      }
+      if (contextID == null || contextID != curr[pos].contextID) {
+        throw new IllegalStateException("Cannot unregister consumer from different context");
+      }
+      if (removeConsumer(curr, pos)) {
+        curr[pos].removed = true;
+        //In case it was about to consume something
+        if (!queue.isEmpty()) {
+          signalConsumer();
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Set a one-shot drain handler. If the queue is bounded, the handler will be called on the caller's event loop once
+   * the queue has been reduced to half its maximum size. If the queue is already at or below that size the handler
+   * is called immediately.
+   */
+  public void drainHandler(EventHandler<Void> handler) {
+    Long contextID = Nodex.instance.getContextID();
+    if (contextID == null) {
+      throw new IllegalStateException("Cannot set drain handler with no context");
+    }
+    drainWaiters.add(new DrainWaiter(contextID, handler));
+    checkDrained();
+  }
+
+  private boolean removeConsumer(Consumer<E>[] curr, int pos) {
+    Consumer<E>[] copy = newConsumers(curr.length - 1);
+    System.arraycopy(curr, 0, copy, 0, pos);
+    System.arraycopy(curr, pos + 1, copy, pos, curr.length - pos - 1);
+    return consumers.compareAndSet(curr, copy);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> Consumer<E>[] newConsumers(int length) {
+    return (Consumer<E>[]) new Consumer<?>[length];
+  }
+
+  private void signalConsumer() {
+    Consumer<E>[] curr = consumers.get();
+    int len = curr.length;
+    if (len == 0) {
+      return;
+    }
+    int start = (nextConsumer.getAndIncrement() & Integer.MAX_VALUE) % len;
+    for (int i = 0; i < len; i++) {
+      if (curr[(start + i) % len].schedule()) {
+        return;
+      }
+    }
+    //All consumers are busy - one of them will pick up the item
+  }
+
+  private void checkDrained() {
+    if (!drainWaiters.isEmpty() && size.get() <= maxSize / 2) {
+      DrainWaiter waiter;
+      while ((waiter = drainWaiters.poll()) != null) {
+        waiter.call();
+      }
+    }
+  }
+
+  private void consumerGone(Consumer<E> consumer) {
+    while (true) {
+      Consumer<E>[] curr = consumers.get();
+      int pos = -1;
+      for (int i = 0; i < curr.length; i++) {
+        if (curr[i] == consumer) {
+          pos = i;
+          break;
+        }
+      }
+      if (pos == -1 || removeConsumer(curr, pos)) {
+        return;
+      }
+    }
+  }
+
+  private static final class Consumer<E> implements Runnable {
+    final SharedQueue<E> queue;
+    final long id;
+    final long contextID;
+    final EventHandler<E> handler;
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    volatile boolean removed;
+
+    Consumer(SharedQueue<E> queue, long id, long contextID, EventHandler<E> handler) {
+      this.queue = queue;
+      this.id = id;
+      this.contextID = contextID;
+      this.handler = handler;
+    }
+
+    boolean schedule() {
+      if (removed || !scheduled.compareAndSet(false, true)) {
+        return false;
+      }
+      try {
+        //Always posted, so a producer on our own loop never runs the handler inside offer
+        NodexInternal.instance.postOnContext(contextID, this);
+      } catch (IllegalStateException e) {
+        //The context has been destroyed without the consumer being unregistered
+        removed = true;
+        queue.consumerGone(this);
+        scheduled.set(false);
+        return false;
+      }
+      return true;
+    }
+
+    public void run() {
+      Long prevContextID = Nodex.instance.getContextID();
+      NodexInternal.instance.setContextID(contextID);
+      try {
+        E e;
+        for (int i = 0; i < MAX_BATCH && !removed && (e = queue.poll()) != null; i++) {
+          try {
+            handler.onEvent(e);
+          } catch (Throwable t) {
+            t.printStackTrace(System.err);
+          }
+        }
+        scheduled.set(false);
+        //Catches an item added after we found the queue empty but before we cleared the flag. If we stopped at the
+        //batch limit the next consumer in turn is woken, and if that's us we're posted behind whatever else the loop has
+        //to do
+        if (!removed && !queue.isEmpty()) {
+          queue.signalConsumer();
+        }
+      } finally {
+        if (prevContextID != null) {
+          NodexInternal.instance.setContextID(prevContextID);
+        }
+      }
+    }
+  }
+
+  private static final class DrainWaiter implements Runnable {
+    final long contextID;
+    final EventHandler<Void> handler;
+
+    DrainWaiter(long contextID, EventHandler<Void> handler) {
+      this.contextID = contextID;
+      this.handler = handler;
+    }
+
+    void call() {
+      try {
+        NodexInternal.instance.postOnContext(contextID, this);
+      } catch (IllegalStateException e) {
+        //Context has gone away - nothing to tell
+      }
+    }
+
+    public void run() {
+      Long prevContextID = Nodex.instance.getContextID();
+      NodexInternal.instance.setContextID(contextID);
+      try {
+        handler.onEvent(null);
+      } catch (Throwable t) {
+        t.printStackTrace(System.err);
+      } finally {
+        if (prevContextID != null) {
+          NodexInternal.instance.setContextID(prevContextID);
+        }
+      }
+    }
+  }
 }
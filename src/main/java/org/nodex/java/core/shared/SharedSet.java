@@ -17,15 +17,58 @@
 package org.nodex.java.core.shared;
 
 import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.nodex.java.core.CompletionHandler;
 
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
 
-class SharedSet<E> implements Set<E> {
+/**
+ * <p>A lock free {@code Set} which can be shared between event loops. Instances are obtained using
+ * {@link SharedData#getSet}.</p>
+ *
+ * <p>Whole set jobs which would stall an event loop can be run in parallel off the event loop with
+ * {@link #forEach(Visitor, CompletionHandler)}, {@link #reduce} and {@link #search}.</p>
+ *
+ * @author <a href="http://tfox.org">Tim Fox</a>
+ */
+public class SharedSet<E> implements Set<E> {
+
+  /**
+   * Called for each element in the set by {@link SharedSet#forEach(Visitor, CompletionHandler)}
+   */
+  public interface Visitor<E> {
+    void visit(E e);
+  }
+
+  /**
+   * Computes a result from an element by {@link SharedSet#reduce} and {@link SharedSet#search}
+   */
+  public interface Transformer<E, U> {
+    U transform(E e);
+  }
+
+  /**
+   * Combines two results of {@link SharedSet#reduce}
+   */
+  public interface Reducer<U> {
+    U reduce(U u1, U u2);
+  }
 
   private final Set<E> set = new NonBlockingHashSet<>();
 
+  // Set after the set is modified, cleared when it is written to a snapshot
+  volatile boolean dirty = true;
+
+  SharedSet() {
+  }
+
+  void markDirty() {
+    if (!dirty) {
+      dirty = true;
+    }
+  }
+
   public int size() {
     return set.size();
   }
@@ -52,11 +95,15 @@ class SharedSet<E> implements Set<E> {
 
   public boolean add(E e) {
     e = SharedUtils.checkObject(e);
-    return set.add(e);
+    boolean result = set.add(e);
+    markDirty();
+    return result;
   }
 
   public boolean remove(Object o) {
-    return set.remove(o);
+    boolean result = set.remove(o);
+    markDirty();
+    return result;
   }
 
   public boolean containsAll(Collection<?> objects) {
@@ -68,19 +115,25 @@ class SharedSet<E> implements Set<E> {
       e = SharedUtils.checkObject(e);
       set.add(e);
     }
+    markDirty();
     return true;
   }
 
   public boolean retainAll(Collection<?> objects) {
-    return set.retainAll(objects);
+    boolean result = set.retainAll(objects);
+    markDirty();
+    return result;
   }
 
   public boolean removeAll(Collection<?> objects) {
-    return set.removeAll(objects);
+    boolean result = set.removeAll(objects);
+    markDirty();
+    return result;
   }
 
   public void clear() {
     set.clear();
+    markDirty();
   }
 
   @Override
@@ -92,4 +145,55 @@ class SharedSet<E> implements Set<E> {
   public int hashCode() {
     return set.hashCode();
   }
+
+  /**
+   * Call {@code visitor} with every element in the set, in parallel, then call {@code completionHandler} on the
+   * caller's context.<p>
+   * The elements are processed on a shared fork-join pool, not on an event loop, so {@code visitor} must be
+   * thread-safe. The elements processed are a weakly consistent snapshot of the set taken when the operation starts
+   * running.
+   */
+  public void forEach(final Visitor<? super E> visitor, CompletionHandler<Void> completionHandler) {
+    new SharedBulk<E, Void>(false) {
+      Void apply(E e) {
+        visitor.visit(e);
+        return null;
+      }
+    }.start(set, completionHandler);
+  }
+
+  /**
+   * Call {@code transformer} with every element in the set, in parallel, and combine the non {@code null} results
+   * with {@code reducer}. The result, or {@code null} if there were no results, is passed to
+   * {@code completionHandler} on the caller's context.<p>
+   * The functions are called on a fork-join pool so must be thread-safe. {@code reducer} should be associative since
+   * the order in which results are combined is not defined.
+   */
+  public <U> void reduce(final Transformer<? super E, ? extends U> transformer, final Reducer<U> reducer,
+                         CompletionHandler<U> completionHandler) {
+    new SharedBulk<E, U>(false) {
+      U apply(E e) {
+        return transformer.transform(e);
+      }
+
+      U combine(U u1, U u2) {
+        return reducer.reduce(u1, u2);
+      }
+    }.start(set, completionHandler);
+  }
+
+  /**
+   * Call {@code searchFunction} with the elements in the set, in parallel, until it returns a non {@code null}
+   * result. That result, or {@code null} if there was none, is passed to {@code completionHandler} on the caller's
+   * context. If more than one element gives a result, which one is returned is not defined.<p>
+   * The function is called on a fork-join pool so must be thread-safe.
+   */
+  public <U> void search(final Transformer<? super E, ? extends U> searchFunction,
+                         CompletionHandler<U> completionHandler) {
+    new SharedBulk<E, U>(true) {
+      U apply(E e) {
+        return searchFunction.transform(e);
+      }
+    }.start(set, completionHandler);
+  }
 }
@@ -16,6 +16,8 @@
 
 package org.nodex.tests.core.buffer;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.nodex.java.core.buffer.Buffer;
 import org.nodex.tests.Utils;
 import org.nodex.tests.core.TestBase;
@@ -586,6 +588,23 @@ public class BufferTest extends TestBase {
     //TODO toString with encoding
   }
 
+  @Test
+  public void testWrap() throws Exception {
+    byte[] bytes = Utils.generateRandomByteArray(100);
+    ChannelBuffer cb = ChannelBuffers.wrappedBuffer(bytes);
+    cb.skipBytes(10);
+    Buffer buff = Buffer.wrap(cb.slice(cb.readerIndex(), 50));
+    azzert(buff.length() == 50);
+    azzert(buff.getByte(0) == bytes[10]);
+
+    //Writing copies rather than writing through to the wrapped bytes
+    buff.setByte(0, (byte) (bytes[10] + 1));
+    buff.appendInt(1);
+    azzert(buff.length() == 54);
+    azzert(buff.getByte(0) == (byte) (bytes[10] + 1));
+    azzert(cb.getByte(10) == bytes[10]);
+  }
+
   @Test
   public void testCopy() throws Exception {
     Buffer buff = Utils.generateRandomBuffer(100);
@@ -16,27 +16,54 @@
 
 package org.nodex.tests.core.http;
 
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
 import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.Nodex;
 import org.nodex.java.core.NodexMain;
 import org.nodex.java.core.SimpleEventHandler;
 import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.file.AsyncFile;
+import org.nodex.java.core.file.FileSystem;
+import org.nodex.java.core.http.EventStream;
+import org.nodex.java.core.http.HttpBody;
 import org.nodex.java.core.http.HttpClient;
 import org.nodex.java.core.http.HttpClientRequest;
 import org.nodex.java.core.http.HttpClientResponse;
 import org.nodex.java.core.http.HttpServer;
+import org.nodex.java.core.http.HttpRouteStats;
 import org.nodex.java.core.http.HttpServerRequest;
+import org.nodex.java.core.http.HttpServerStats;
+import org.nodex.java.core.http.MultipartParser;
+import org.nodex.java.core.http.MultipartPart;
+import org.nodex.java.core.http.RouteMatcher;
+import org.nodex.java.core.http.ServerSentEvent;
+import org.nodex.java.core.http.StaticFileHandler;
+import org.nodex.java.core.http.StaticHttpResponse;
+import org.nodex.java.core.net.NetClient;
+import org.nodex.java.core.net.NetSocket;
+import org.nodex.java.core.streams.Pump;
 import org.nodex.tests.Utils;
 import org.nodex.tests.core.TestBase;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class HttpTest extends TestBase {
 
@@ -189,37 +216,1104 @@ public class HttpTest extends TestBase {
     throwAssertions();
   }
 
+  @Test
+  public void testRouteMatcher() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final String[][] requests = {
+        {"GET", "/animals/cats", "200", "cats"},
+        {"GET", "/animals/dogs", "200", "animal:dogs"},
+        {"GET", "/animals/cat", "200", "animal:cat"},
+        {"GET", "/animals/catsanddogs", "200", "animal:catsanddogs"},
+        {"GET", "/animals/dogs/food", "200", "food:dogs"},
+        {"GET", "/animals/cats/food", "200", "food:cats"},
+        {"POST", "/animals/dogs", "200", "post:dogs"},
+        {"GET", "/users/tim/posts/23", "200", "tim,23"},
+        {"PUT", "/static/css/main.css", "200", "static:css/main.css"},
+        {"GET", "/static/", "200", "static:"},
+        {"GET", "/animals", "404", ""},
+        {"GET", "/animals/", "404", ""},
+        {"DELETE", "/animals/cats", "404", ""},
+        {"GET", "/nothing", "404", ""}
+    };
+
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      int responses;
+
+      public void go() throws Exception {
+        RouteMatcher matcher = new RouteMatcher()
+            .get("/animals/cats", new EventHandler<HttpServerRequest>() {
+              public void onEvent(HttpServerRequest req) {
+                respond(req, "cats");
+              }
+            })
+            .get("/animals/:id", new EventHandler<HttpServerRequest>() {
+              public void onEvent(HttpServerRequest req) {
+                respond(req, "animal:" + req.getParam("id"));
+              }
+            })
+            .get("/animals/:animal/food", new EventHandler<HttpServerRequest>() {
+              public void onEvent(HttpServerRequest req) {
+                respond(req, "food:" + req.getParam("animal"));
+              }
+            })
+            .post("/animals/:id", new EventHandler<HttpServerRequest>() {
+              public void onEvent(HttpServerRequest req) {
+                respond(req, "post:" + req.getParam("id"));
+              }
+            })
+            .get("/users/:name/posts/:post", new EventHandler<HttpServerRequest>() {
+              public void onEvent(HttpServerRequest req) {
+                respond(req, req.getParam("name") + "," + req.getParam("post"));
+              }
+            })
+            .all("/static/*", new EventHandler<HttpServerRequest>() {
+              public void onEvent(HttpServerRequest req) {
+                respond(req, "static:" + req.getParam("*"));
+              }
+            });
+
+        final HttpServer server = new HttpServer().requestHandler(matcher).listen(port, host);
+        final HttpClient client = new HttpClient().setPort(port).setHost(host);
+
+        for (final String[] request : requests) {
+          client.request(request[0], request[1], new EventHandler<HttpClientResponse>() {
+            public void onEvent(final HttpClientResponse response) {
+              azzert(response.statusCode == Integer.parseInt(request[2]), request[1] + ":" + response.statusCode);
+              final Buffer buff = Buffer.create(0);
+              response.dataHandler(new EventHandler<Buffer>() {
+                public void onEvent(Buffer data) {
+                  buff.appendBuffer(data);
+                }
+              });
+              response.endHandler(new SimpleEventHandler() {
+                public void onEvent() {
+                  azzert(request[3].equals(buff.toString()), request[1] + ":" + buff.toString());
+                  if (++responses == requests.length) {
+                    server.close(new SimpleEventHandler() {
+                      public void onEvent() {
+                        client.close();
+                        latch.countDown();
+                      }
+                    });
+                  }
+                }
+              });
+            }
+          }).end();
+        }
+      }
+    }.run();
+
+    azzert(latch.await(10, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  private void respond(HttpServerRequest req, String body) {
+    Buffer buff = Buffer.create(body);
+    req.response.putHeader("Content-Length", buff.length());
+    req.response.write(buff);
+    req.response.end();
+  }
+
+  @Test
+  public void testRequestURIParsing() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            azzert("/some/path with spaces/\u20ac".equals(req.path), req.path);
+            azzert("foo=bar&baz=a+b&c&empty&x=\u20ac&foo=again".equals(req.query), req.query);
+            azzert("bar".equals(req.getParam("foo")));
+            azzert("a b&c".equals(req.getParam("baz")), req.getParam("baz"));
+            azzert("".equals(req.getParam("empty")));
+            azzert("\u20ac".equals(req.getParam("x")));
+            azzert(req.getParam("fo") == null);
+            azzert(req.getParam("missing") == null);
+            req.response.end();
+          }
+        }).listen(port, host);
+
+        final HttpClient client = new HttpClient().setPort(port).setHost(host);
+        client.getNow("/some/path%20with%20spaces/%E2%82%AC?foo=bar&baz=a+b%26c&empty&x=%E2%82%AC&foo=again",
+            new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 200);
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                client.close();
+                latch.countDown();
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testHeadersCaseInsensitive() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            Map<String, String> headers = req.getHeaders();
+            azzert("bar".equals(headers.get("x-foo")));
+            azzert("bar".equals(headers.get("X-FOO")));
+            azzert(headers.containsKey("X-Foo"));
+            azzert(!headers.containsKey("x-missing"));
+            azzert("bar".equals(req.getHeader("x-FOO")));
+            Buffer body = Buffer.create("quux");
+            //Lower case content-length must still be recognised
+            req.response.putHeader("content-length", body.length());
+            req.response.putHeader("X-Bar", "wibble");
+            azzert("wibble".equals(req.response.getHeaders().get("x-bar")));
+            req.response.write(body);
+            req.response.end();
+          }
+        }).listen(port, host);
+
+        final HttpClient client = new HttpClient().setPort(port).setHost(host);
+        HttpClientRequest req = client.get("/", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 200);
+            azzert("wibble".equals(response.getHeaders().get("x-BAR")));
+            azzert("4".equals(response.getHeaders().get("Content-Length")));
+            azzert(response.getTrailers().isEmpty());
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                client.close();
+                latch.countDown();
+              }
+            });
+          }
+        });
+        req.putHeader("X-Foo", "bar");
+        req.end();
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testStaticResponse() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final int requests = 10;
+    final String body = "{\"status\":\"ok\"}";
+    final StaticHttpResponse staticResponse = new StaticHttpResponse(200, "application/json", body);
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      int responses;
+
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            if (req.path.equals("/health")) {
+              req.response.send(staticResponse);
+            } else {
+              req.response.statusCode = 404;
+              req.response.end();
+            }
+          }
+        }).listen(port, host);
+
+        final HttpClient client = new HttpClient().setPort(port).setHost(host).setKeepAlive(true);
+        for (int i = 0; i < requests; i++) {
+          final boolean health = i % 2 == 0;
+          client.getNow(health ? "/health" : "/other", new EventHandler<HttpClientResponse>() {
+            public void onEvent(HttpClientResponse response) {
+              azzert(response.getHeader("Date") != null);
+              if (health) {
+                azzert(response.statusCode == 200);
+                azzert("application/json".equals(response.getHeader("Content-Type")));
+                azzert(String.valueOf(body.length()).equals(response.getHeader("Content-Length")));
+              } else {
+                azzert(response.statusCode == 404);
+              }
+              final Buffer buff = Buffer.create(0);
+              response.dataHandler(new EventHandler<Buffer>() {
+                public void onEvent(Buffer data) {
+                  buff.appendBuffer(data);
+                }
+              });
+              response.endHandler(new SimpleEventHandler() {
+                public void onEvent() {
+                  azzert((health ? body : "").equals(buff.toString()));
+                  if (++responses == requests) {
+                    server.close(new SimpleEventHandler() {
+                      public void onEvent() {
+                        client.close();
+                        latch.countDown();
+                      }
+                    });
+                  }
+                }
+              });
+            }
+          });
+        }
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testPipeliningOutOfOrderEnd() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final int requests = 5;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      int received;
+
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(final HttpServerRequest req) {
+            //All the requests are handled before any response is ended, and the earliest ones end last
+            final int num = Integer.parseInt(req.path.substring(1));
+            azzert(num == received++);
+            if (received == requests) {
+              req.response.setChunked(true);
+              req.response.write("chunk-");
+              req.response.write("body-" + num);
+              req.response.end();
+            } else {
+              Nodex.instance.setTimer(50 * (requests - num), new EventHandler<Long>() {
+                public void onEvent(Long id) {
+                  azzert(received == requests);
+                  respond(req, "body-" + num);
+                }
+              });
+            }
+          }
+        }).listen(port, host);
+
+        final NetClient client = new NetClient();
+        client.connect(port, host, new EventHandler<NetSocket>() {
+          public void onEvent(NetSocket sock) {
+            final Buffer buff = Buffer.create(0);
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+                String str = buff.toString();
+                if (str.contains("body-" + (requests - 1))) {
+                  int pos = 0;
+                  for (int i = 0; i < requests; i++) {
+                    int next = str.indexOf("body-" + i, pos);
+                    azzert(next > pos);
+                    pos = next;
+                  }
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      client.close();
+                      latch.countDown();
+                    }
+                  });
+                }
+              }
+            });
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < requests; i++) {
+              sb.append("GET /").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            }
+            sock.write(sb.toString());
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testPipeliningDeferredSendFileMissing() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final File file = setupFile("pipelined.txt", "some content");
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(final HttpServerRequest req) {
+            if (req.path.equals("/0")) {
+              Nodex.instance.setTimer(100, new EventHandler<Long>() {
+                public void onEvent(Long id) {
+                  req.response.putHeader("Content-Length", 6);
+                  req.response.write("body-0");
+                  req.response.end();
+                }
+              });
+            } else {
+              //Deferred behind the first response, and the file is gone by the time it can be sent
+              req.response.sendFile("./pipelined.txt", 0, file.length(), null);
+              azzert(file.delete());
+            }
+          }
+        }).listen(port, host);
+
+        final NetClient client = new NetClient();
+        client.connect(port, host, new EventHandler<NetSocket>() {
+          public void onEvent(NetSocket sock) {
+            final Buffer buff = Buffer.create(0);
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+              }
+            });
+            sock.closedHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(buff.toString().contains("body-0"));
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    client.close();
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+            sock.write("GET /0 HTTP/1.1\r\nHost: localhost\r\n\r\nGET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
   @Test
   public void testSendFile() throws Exception {
     final String host = "localhost";
-    final boolean keepAlive = true;
-    final String path = "foo.txt";
+    final boolean keepAlive = true;
+    final String path = "foo.txt";
+    final int port = 8181;
+
+    final String content = Utils.randomAlphaString(10000);
+    final File file = setupFile(path, content);
+
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            azzert(path.equals(req.path));
+            //Clearly in a real web server you'd do some safety checks on the path
+            String fileName = "./" + req.path;
+            req.response.sendFile(fileName);
+          }
+        }).listen(port, host);
+
+        HttpClient client = new HttpClient().setKeepAlive(keepAlive).setPort(port).setHost(host);
+
+        client.getNow(path, new EventHandler<HttpClientResponse>() {
+          public void onEvent(final HttpClientResponse response) {
+            dumpHeaders(response);
+            azzert(response.statusCode == 200);
+            azzert(file.length() == Long.valueOf(response.getHeader("Content-Length")));
+            final Buffer buff = Buffer.create(0);
+            response.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+              }
+            });
+            response.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(content.equals(buff.toString()));
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+          }
+        });
+
+        client.close();
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testSendFileRange() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final String content = Utils.randomAlphaString(10000);
+    final File file = setupFile("foo.txt", content);
+    final CountDownLatch latch = new CountDownLatch(2);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            req.response.statusCode = 206;
+            req.response.putHeader("Content-Range", "bytes 1000-2999/10000");
+            req.response.sendFile("./foo.txt", 1000, 2000, new SimpleEventHandler() {
+              public void onEvent() {
+                latch.countDown();
+              }
+            });
+          }
+        }).listen(port, host);
+
+        final HttpClient client = new HttpClient().setPort(port).setHost(host);
+        client.getNow("/foo.txt", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 206);
+            azzert("2000".equals(response.getHeader("Content-Length")));
+            azzert("bytes 1000-2999/10000".equals(response.getHeader("Content-Range")));
+            final Buffer buff = Buffer.create(0);
+            response.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+              }
+            });
+            response.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(content.substring(1000, 3000).equals(buff.toString()));
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    client.close();
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+    file.delete();
+  }
+
+  @Test
+  public void testSendFileOver2GB() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final long length = Integer.MAX_VALUE + 10L;
+    final File file = new File("./big.bin");
+    //Sparse, so no disk space is used
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(length);
+    raf.close();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final StaticFileHandler handler = new StaticFileHandler(".");
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            if (req.method.equals("HEAD")) {
+              handler.onEvent(req);
+            } else {
+              req.response.sendFile("./big.bin", 0, length, null);
+            }
+          }
+        }).listen(port, host);
+
+        final HttpClient client = new HttpClient().setPort(port).setHost(host);
+        client.getNow("/big.bin", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 200);
+            azzert(String.valueOf(length).equals(response.getHeader("Content-Length")));
+            //Don't wait for the body
+            client.close();
+            final HttpClient headClient = new HttpClient().setPort(port).setHost(host);
+            headClient.head("/big.bin", new EventHandler<HttpClientResponse>() {
+              public void onEvent(HttpClientResponse response) {
+                azzert(response.statusCode == 200);
+                azzert(String.valueOf(length).equals(response.getHeader("Content-Length")));
+                headClient.close();
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    latch.countDown();
+                  }
+                });
+              }
+            }).end();
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+    file.delete();
+  }
+
+  @Test
+  public void testBodyHandler() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final String small = Utils.randomAlphaString(500);
+    final String large = Utils.randomAlphaString(5000);
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      HttpServer server;
+      HttpClient client;
+
+      public void go() throws Exception {
+        server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(final HttpServerRequest req) {
+            if (req.path.equals("/memory")) {
+              req.bodyHandler(Long.MAX_VALUE, new EventHandler<Buffer>() {
+                public void onEvent(Buffer body) {
+                  req.response.putHeader("Content-Length", body.length()).write(body).end();
+                }
+              });
+            } else if (req.path.equals("/spill")) {
+              req.bodyHandler(10000, 1000, new EventHandler<HttpBody>() {
+                public void onEvent(HttpBody body) {
+                  azzert(!body.isInMemory());
+                  azzert(body.length == large.length());
+                  File file = new File(body.file);
+                  try {
+                    azzert(large.equals(new String(Files.readAllBytes(file.toPath()), "UTF-8")));
+                  } catch (IOException e) {
+                    azzert(false);
+                  }
+                  azzert(file.delete());
+                  req.response.end();
+                }
+              });
+            } else if (req.path.equals("/large")) {
+              req.bodyHandler(1000, new EventHandler<Buffer>() {
+                public void onEvent(Buffer body) {
+                  azzert(false);
+                }
+              });
+            } else {
+              req.response.putHeader("Content-Length", large.length()).write(large).end();
+            }
+          }
+        }).listen(port, host);
+
+        client = new HttpClient().setPort(port).setHost(host);
+        testMemory();
+      }
+
+      //A chunked body, so it has no Content-Length
+      void testMemory() {
+        HttpClientRequest req = client.post("/memory", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 200);
+            response.bodyHandler(1000, new EventHandler<Buffer>() {
+              public void onEvent(Buffer body) {
+                azzert(small.equals(body.toString()));
+                testSpill();
+              }
+            });
+          }
+        });
+        req.setChunked(true);
+        req.write(small.substring(0, 200));
+        req.write(small.substring(200));
+        req.end();
+      }
+
+      void testSpill() {
+        HttpClientRequest req = client.post("/spill", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 200);
+            testTooLargeResponse();
+          }
+        });
+        req.setChunked(true);
+        for (int i = 0; i < large.length(); i += 500) {
+          req.write(large.substring(i, i + 500));
+        }
+        req.end();
+      }
+
+      void testTooLargeResponse() {
+        client.getNow("/", new EventHandler<HttpClientResponse>() {
+          public void onEvent(final HttpClientResponse response) {
+            response.exceptionHandler(new EventHandler<Exception>() {
+              public void onEvent(Exception e) {
+                testTooLargeRequest();
+              }
+            });
+            response.bodyHandler(1000, new EventHandler<Buffer>() {
+              public void onEvent(Buffer body) {
+                azzert(false);
+              }
+            });
+          }
+        });
+      }
+
+      void testTooLargeRequest() {
+        final HttpClient client2 = new HttpClient().setPort(port).setHost(host).setKeepAlive(false);
+        HttpClientRequest req = client2.post("/large", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 413);
+            azzert("close".equalsIgnoreCase(response.getHeader("Connection")));
+            client2.close();
+            client.close();
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                latch.countDown();
+              }
+            });
+          }
+        });
+        req.putHeader("Content-Length", 1500);
+        req.write(large.substring(0, 1500));
+        req.end();
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testMultipart() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final String content = Utils.randomAlphaString(50000);
+    final String boundary = "----node.x-boundary-" + Utils.randomAlphaString(10);
+    final String body = "preamble\r\n--" + boundary + "\r\n" +
+        "Content-Disposition: form-data; name=\"field\"\r\n\r\n" +
+        "some value\r\n--" + boundary + "\r\n" +
+        "Content-Disposition: form-data; name=\"upload\"; filename=\"up.txt\"\r\n" +
+        "Content-Type: text/plain\r\n\r\n" +
+        content + "\r\n--" + boundary + "--\r\n";
+    final File file = new File("upload.txt");
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(final HttpServerRequest req) {
+            final int[] done = new int[1];
+            final EventHandler<Void> checkDone = new SimpleEventHandler() {
+              public void onEvent() {
+                //Both the body has been parsed and the file has been closed
+                if (++done[0] == 2) {
+                  try {
+                    azzert(content.equals(new String(Files.readAllBytes(file.toPath()), "UTF-8")));
+                  } catch (IOException e) {
+                    azzert(false);
+                  }
+                  req.response.end();
+                }
+              }
+            };
+            MultipartParser parser = new MultipartParser(req, new EventHandler<MultipartPart>() {
+              public void onEvent(final MultipartPart part) {
+                if (!part.isFile()) {
+                  azzert("field".equals(part.name));
+                  final Buffer value = Buffer.create(0);
+                  part.dataHandler(new EventHandler<Buffer>() {
+                    public void onEvent(Buffer data) {
+                      value.appendBuffer(data);
+                    }
+                  });
+                  part.endHandler(new SimpleEventHandler() {
+                    public void onEvent() {
+                      azzert("some value".equals(value.toString()));
+                    }
+                  });
+                } else {
+                  azzert("upload".equals(part.name));
+                  azzert("up.txt".equals(part.filename));
+                  azzert("text/plain".equals(part.contentType));
+                  part.pause();
+                  FileSystem.instance.open(file.getPath(), new CompletionHandler<AsyncFile>() {
+                    public void onEvent(Completion<AsyncFile> completion) {
+                      final AsyncFile asyncFile = completion.result;
+                      new Pump(part, asyncFile.getWriteStream()).start();
+                      part.endHandler(new SimpleEventHandler() {
+                        public void onEvent() {
+                          asyncFile.close(new CompletionHandler<Void>() {
+                            public void onEvent(Completion<Void> completion) {
+                              azzert(completion.succeeded());
+                              checkDone.onEvent(null);
+                            }
+                          });
+                        }
+                      });
+                      part.resume();
+                    }
+                  });
+                }
+              }
+            });
+            parser.endHandler(checkDone);
+          }
+        }).listen(port, host);
+
+        final HttpClient client = new HttpClient().setPort(port).setHost(host);
+        HttpClientRequest req = client.post("/upload", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            azzert(response.statusCode == 200);
+            client.close();
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                latch.countDown();
+              }
+            });
+          }
+        });
+        req.putHeader("Content-Type", "multipart/form-data; boundary=\"" + boundary + "\"");
+        req.setChunked(true);
+        //Small writes, so boundaries are split between reads
+        for (int i = 0; i < body.length(); i += 100) {
+          req.write(body.substring(i, Math.min(body.length(), i + 100)));
+        }
+        req.end();
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+    file.delete();
+  }
+
+  @Test
+  public void testTimeouts() throws Exception {
+    final String host = "localhost";
     final int port = 8181;
+    final long timeout = 300;
+    final CountDownLatch latch = new CountDownLatch(1);
 
-    final String content = Utils.randomAlphaString(10000);
-    final File file = setupFile(path, content);
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().setIdleTimeout(timeout).setHeaderReadTimeout(timeout)
+            .requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            //The slow client never finishes its headers
+            azzert("/fast".equals(req.path));
+            req.response.putHeader("Content-Length", 2);
+            req.response.write("ok");
+            req.response.end();
+          }
+        }).listen(port, host);
+
+        final NetClient client = new NetClient();
+
+        //Close from the server's own context, since the sockets' contexts go away when they close
+        final long actorId = Nodex.instance.registerHandler(new EventHandler<String>() {
+          public void onEvent(String msg) {
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                client.close();
+                latch.countDown();
+              }
+            });
+          }
+        });
+        final AtomicInteger closed = new AtomicInteger();
+        final EventHandler<Void> onClosed = new SimpleEventHandler() {
+          public void onEvent() {
+            if (closed.incrementAndGet() == 2) {
+              Nodex.instance.sendToHandler(actorId, "close");
+            }
+          }
+        };
+
+        //An idle keep-alive connection is closed once the response has been sent
+        client.connect(port, host, new EventHandler<NetSocket>() {
+          public void onEvent(NetSocket sock) {
+            final Buffer buff = Buffer.create(0);
+            final long[] responded = new long[1];
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+                if (buff.toString().endsWith("ok")) {
+                  responded[0] = System.currentTimeMillis();
+                }
+              }
+            });
+            sock.closedHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(responded[0] != 0);
+                azzert(System.currentTimeMillis() - responded[0] >= timeout - 50);
+                onClosed.onEvent((Void) null);
+              }
+            });
+            sock.write("GET /fast HTTP/1.1\r\nHost: localhost\r\n\r\n");
+          }
+        });
+
+        //A client sending its headers a byte at a time is closed, even though it's never idle for long
+        client.connect(port, host, new EventHandler<NetSocket>() {
+          public void onEvent(final NetSocket sock) {
+            final long start = System.currentTimeMillis();
+            sock.write("GET /slow HTTP/1.1\r\n");
+            final long timerID = Nodex.instance.setPeriodic(50, new EventHandler<Long>() {
+              public void onEvent(Long id) {
+                sock.write("X");
+              }
+            });
+            sock.closedHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                Nodex.instance.cancelTimer(timerID);
+                long elapsed = System.currentTimeMillis() - start;
+                azzert(elapsed >= timeout - 50 && elapsed < 4 * timeout);
+                onClosed.onEvent((Void) null);
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
 
+  @Test
+  public void testMetrics() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final String[] paths = {"/users/1", "/users/2", "/users/3", "/missing", "/upload", "/admin/metrics"};
+    final String body = Utils.randomAlphaString(1000);
     final CountDownLatch latch = new CountDownLatch(1);
 
     new NodexMain() {
       public void go() throws Exception {
+        final HttpServer server = new HttpServer().setMetricsEnabled(true);
+        RouteMatcher rm = new RouteMatcher();
+        rm.get("/users/:id", new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            req.response.putHeader("Content-Length", 5);
+            req.response.write("hello");
+            req.response.end();
+          }
+        });
+        rm.post("/upload", new EventHandler<HttpServerRequest>() {
+          public void onEvent(final HttpServerRequest req) {
+            req.bodyHandler(10000, new EventHandler<Buffer>() {
+              public void onEvent(Buffer buff) {
+                azzert(buff.length() == body.length());
+                req.response.statusCode = 201;
+                req.response.end();
+              }
+            });
+          }
+        });
+        rm.get("/admin/metrics", server.getMetrics().adminHandler());
+        server.requestHandler(rm).listen(port, host);
+
+        //Close from the server's own context
+        final long actorId = Nodex.instance.registerHandler(new EventHandler<String>() {
+          public void onEvent(String msg) {
+            server.getMetrics().snapshot(new CompletionHandler<HttpServerStats>() {
+              public void onEvent(Completion<HttpServerStats> completion) {
+                azzert(completion.succeeded());
+                HttpServerStats stats = completion.result;
+                azzert(stats.connections() == 1);
+                azzert(stats.requests() == paths.length);
+                azzert(stats.reusedRequests() == paths.length - 1);
+                azzert(stats.inFlight() == 0);
+                azzert(stats.statusCount(200) == 4);
+                azzert(stats.statusCount(201) == 1);
+                azzert(stats.statusCount(404) == 1);
+                azzert(stats.bytesIn() == body.length());
+
+                HttpRouteStats users = stats.routes().get("GET /users/:id");
+                azzert(users.requests() == 3);
+                azzert(users.statusClassCount(2) == 3);
+                azzert(users.bytesOut() == 15);
+                azzert(users.timeToLastByte().count() == 3);
+                azzert(users.timeToFirstByte().max() <= users.timeToLastByte().max());
+                azzert(users.timeToLastByte().percentile(50) <= users.timeToLastByte().max());
+                azzert(stats.routes().get("POST /upload").bytesIn() == body.length());
+                //Unrouted requests are recorded under their method
+                azzert(stats.routes().get("GET").statusClassCount(4) == 1);
 
-        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+          }
+        });
+
+        final HttpClient client = new HttpClient().setKeepAlive(true).setMaxPoolSize(1).setPort(port).setHost(host);
+        new Object() {
+          void send(final int i) {
+            if (i == paths.length) {
+              client.close();
+              Nodex.instance.sendToHandler(actorId, "done");
+              return;
+            }
+            EventHandler<HttpClientResponse> handler = new EventHandler<HttpClientResponse>() {
+              public void onEvent(HttpClientResponse resp) {
+                final Buffer buff = Buffer.create(0);
+                resp.dataHandler(new EventHandler<Buffer>() {
+                  public void onEvent(Buffer data) {
+                    buff.appendBuffer(data);
+                  }
+                });
+                resp.endHandler(new SimpleEventHandler() {
+                  public void onEvent() {
+                    if (paths[i].equals("/admin/metrics")) {
+                      String json = buff.toString();
+                      azzert(json.startsWith("{\"connections\":1,"));
+                      azzert(json.contains("\"GET /users/:id\":{\"requests\":3,"));
+                    }
+                    send(i + 1);
+                  }
+                });
+              }
+            };
+            if (paths[i].equals("/upload")) {
+              HttpClientRequest req = client.post(paths[i], handler);
+              req.putHeader("Content-Length", body.length());
+              req.write(body);
+              req.end();
+            } else {
+              client.get(paths[i], handler).end();
+            }
+          }
+        }.send(0);
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    StringBuilder sb = new StringBuilder("{\"values\":[");
+    for (int i = 0; i < 200; i++) {
+      sb.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"value-").append(i).append("\"}");
+    }
+    final String json = sb.append("]}").toString();
+    final String content = Utils.randomAlphaString(10000);
+    setupFile("foo.txt", content);
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      HttpServer server;
+      HttpClient client;
+
+      public void go() throws Exception {
+        server = new HttpServer().setCompressionSupported(true).requestHandler(new EventHandler<HttpServerRequest>() {
           public void onEvent(HttpServerRequest req) {
-            azzert(path.equals(req.path));
-            //Clearly in a real web server you'd do some safety checks on the path
-            String fileName = "./" + req.path;
-            req.response.sendFile(fileName);
+            if (req.path.equals("/stream")) {
+              req.response.setChunked(true);
+              req.response.putHeader("Content-Type", "application/json");
+              req.response.write(json.substring(0, json.length() / 2));
+              //Empty writes must not end the chunked body early
+              req.response.write("");
+              req.response.write(json.substring(json.length() / 2));
+              req.response.write("");
+              req.response.end();
+            } else if (req.path.equals("/fixed")) {
+              req.response.putHeader("Content-Type", "application/json");
+              Buffer buff = Buffer.create(json);
+              req.response.putHeader("Content-Length", buff.length());
+              req.response.write(buff);
+              req.response.write(Buffer.create(0));
+              req.response.end();
+            } else if (req.path.equals("/small")) {
+              respond(req, "tiny");
+            } else {
+              req.response.sendFile("./foo.txt");
+            }
           }
         }).listen(port, host);
 
-        HttpClient client = new HttpClient().setKeepAlive(keepAlive).setPort(port).setHost(host);
+        client = new HttpClient().setPort(port).setHost(host).setKeepAlive(true);
+        check("/stream", "gzip", "gzip", json, new SimpleEventHandler() {
+          public void onEvent() {
+            check("/fixed", "deflate, gzip;q=0.5", "deflate", json, new SimpleEventHandler() {
+              public void onEvent() {
+                check("/small", "gzip", null, "tiny", new SimpleEventHandler() {
+                  public void onEvent() {
+                    check("/fixed", "gzip;q=0, identity", null, json, new SimpleEventHandler() {
+                      public void onEvent() {
+                        checkFile(0);
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
 
-        client.getNow(path, new EventHandler<HttpClientResponse>() {
+      //The file is compressed in the background after it is first asked for, so try until it comes back compressed
+      void checkFile(final int attempt) {
+        get("/foo.txt", "gzip", new EventHandler<String[]>() {
+          public void onEvent(String[] res) {
+            azzert(content.equals(res[1]));
+            if (res[0] != null) {
+              azzert("gzip".equals(res[0]));
+              server.close(new SimpleEventHandler() {
+                public void onEvent() {
+                  client.close();
+                  latch.countDown();
+                }
+              });
+            } else if (attempt < 100) {
+              Nodex.instance.setTimer(20, new EventHandler<Long>() {
+                public void onEvent(Long id) {
+                  checkFile(attempt + 1);
+                }
+              });
+            }
+          }
+        });
+      }
+
+      void check(String uri, String accept, final String expectedEncoding, final String expected,
+                 final SimpleEventHandler then) {
+        get(uri, accept, new EventHandler<String[]>() {
+          public void onEvent(String[] res) {
+            azzert(expectedEncoding == null ? res[0] == null : expectedEncoding.equals(res[0]), String.valueOf(res[0]));
+            azzert(expected.equals(res[1]));
+            then.onEvent(null);
+          }
+        });
+      }
+
+      //Calls handler with the content encoding and the decoded body
+      void get(String uri, String accept, final EventHandler<String[]> handler) {
+        client.get(uri, new EventHandler<HttpClientResponse>() {
           public void onEvent(final HttpClientResponse response) {
-            dumpHeaders(response);
             azzert(response.statusCode == 200);
-            azzert(file.length() == Long.valueOf(response.getHeader("Content-Length")));
             final Buffer buff = Buffer.create(0);
             response.dataHandler(new EventHandler<Buffer>() {
               public void onEvent(Buffer data) {
@@ -228,23 +1322,179 @@ public class HttpTest extends TestBase {
             });
             response.endHandler(new SimpleEventHandler() {
               public void onEvent() {
-                azzert(content.equals(buff.toString()));
-                server.close(new SimpleEventHandler() {
+                String encoding = response.getHeader("Content-Encoding");
+                try {
+                  handler.onEvent(new String[] {encoding, decode(encoding, buff)});
+                } catch (IOException e) {
+                  azzert(false, e.getMessage());
+                }
+              }
+            });
+          }
+        }).putHeader("Accept-Encoding", accept).end();
+      }
+    }.run();
+
+    azzert(latch.await(10, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  private String decode(String encoding, Buffer buff) throws IOException {
+    if (encoding == null) {
+      return buff.toString();
+    }
+    InputStream bin = new ByteArrayInputStream(buff.getBytes());
+    InputStream in = encoding.equals("gzip") ? new GZIPInputStream(bin) : new InflaterInputStream(bin);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] bytes = new byte[1024];
+    int n;
+    while ((n = in.read(bytes)) != -1) {
+      out.write(bytes, 0, n);
+    }
+    return new String(out.toByteArray(), "UTF-8");
+  }
+
+  @Test
+  public void testStaticFileHandler() throws Exception {
+    final String host = "localhost";
+    final int port = 8181;
+    final File dir = new File("static-test");
+    dir.mkdir();
+    final String small = Utils.randomAlphaString(1000);
+    final String large = Utils.randomAlphaString(100000);
+    setupFile("static-test/small.txt", small);
+    setupFile("static-test/large.txt", large);
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      HttpServer server;
+      HttpClient client;
+      HttpClientResponse last;
+
+      public void go() throws Exception {
+        final StaticFileHandler handler = new StaticFileHandler("static-test").setMaxAge(60);
+        server = new HttpServer().requestHandler(handler).listen(port, host);
+        client = new HttpClient().setPort(port).setHost(host).setKeepAlive(true);
+
+        expect("/small.txt", null, 200, small, new SimpleEventHandler() {
+          public void onEvent() {
+            final String etag = last.getHeader("ETag");
+            azzert(etag != null);
+            azzert("text/plain".equals(last.getHeader("Content-Type")));
+            azzert("public, max-age=60".equals(last.getHeader("Cache-Control")));
+            expect("/small.txt", header("If-None-Match", etag), 304, "", new SimpleEventHandler() {
+              public void onEvent() {
+                expect("/small.txt", header("If-Modified-Since", last.getHeader("Last-Modified")), 304, "",
+                    new SimpleEventHandler() {
                   public void onEvent() {
-                    latch.countDown();
+                    expect("/small.txt", header("Range", "bytes=-10"), 206, small.substring(990),
+                        new SimpleEventHandler() {
+                      public void onEvent() {
+                        azzert("bytes 990-999/1000".equals(last.getHeader("Content-Range")));
+                        expect("/large.txt", header("Range", "bytes=100-199"), 206, large.substring(100, 200),
+                            new SimpleEventHandler() {
+                          public void onEvent() {
+                            expect("/large.txt", header("Range", "bytes=200000-"), 416, "", new SimpleEventHandler() {
+                              public void onEvent() {
+                                expect("/large.txt", header("If-Range", "\"other\""), 200, large, new SimpleEventHandler() {
+                                  public void onEvent() {
+                                    expect("/../build.xml", null, 404, "", new SimpleEventHandler() {
+                                      public void onEvent() {
+                                        expect("/missing.txt", null, 404, "", new SimpleEventHandler() {
+                                          public void onEvent() {
+                                            try {
+                                              setupFile("static-test/small.txt", "changed");
+                                            } catch (Exception e) {
+                                              azzert(false, e.getMessage());
+                                            }
+                                            expectChanged(0, handler);
+                                          }
+                                        });
+                                      }
+                                    });
+                                  }
+                                });
+                              }
+                            });
+                          }
+                        });
+                      }
+                    });
                   }
                 });
               }
             });
           }
         });
+      }
 
-        client.close();
+      //The change is seen by the file watcher asynchronously, so try until it shows
+      void expectChanged(final int attempt, final StaticFileHandler handler) {
+        client.getNow("/small.txt", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse response) {
+            final Buffer buff = Buffer.create(0);
+            response.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+              }
+            });
+            response.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                if (buff.toString().equals("changed")) {
+                  handler.close();
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      client.close();
+                      latch.countDown();
+                    }
+                  });
+                } else if (attempt < 100) {
+                  Nodex.instance.setTimer(20, new EventHandler<Long>() {
+                    public void onEvent(Long id) {
+                      expectChanged(attempt + 1, handler);
+                    }
+                  });
+                }
+              }
+            });
+          }
+        });
+      }
+
+      Map<String, String> header(String name, String value) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(name, value);
+        return headers;
+      }
+
+      void expect(String uri, Map<String, String> headers, final int statusCode, final String body,
+                  final SimpleEventHandler then) {
+        client.getNow(uri, headers, new EventHandler<HttpClientResponse>() {
+          public void onEvent(final HttpClientResponse response) {
+            azzert(response.statusCode == statusCode, String.valueOf(response.statusCode));
+            final Buffer buff = Buffer.create(0);
+            response.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+              }
+            });
+            response.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(body.equals(buff.toString()));
+                last = response;
+                then.onEvent(null);
+              }
+            });
+          }
+        });
       }
     }.run();
 
-    azzert(latch.await(5, TimeUnit.SECONDS));
+    azzert(latch.await(10, TimeUnit.SECONDS));
     throwAssertions();
+    new File(dir, "small.txt").delete();
+    new File(dir, "large.txt").delete();
+    dir.delete();
   }
 
   @Test
@@ -757,4 +2007,78 @@ public class HttpTest extends TestBase {
     }
     return builder.toString();
   }
+
+  @Test
+  public void testEventStream() throws Exception {
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final EventStream stream = new EventStream(10, 50);
+    final String first = "id: 1\ndata: first\n\n";
+    final String second = "id: 2\nevent: tick\ndata: second\ndata: line\n\n";
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().requestHandler(new EventHandler<HttpServerRequest>() {
+          public void onEvent(HttpServerRequest req) {
+            stream.subscribe(req);
+            if (req.getHeader("Last-Event-ID") == null) {
+              stream.send(new ServerSentEvent("1", null, "first"));
+              stream.send(new ServerSentEvent("2", "tick", "second\nline"));
+            }
+          }
+        }).listen(port);
+
+        //Not keep alive, so the second request gets its own connection rather than queueing behind the first
+        final HttpClient client = new HttpClient().setPort(port).setKeepAlive(false).setMaxPoolSize(2);
+        client.get("/", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse resp) {
+            azzert(resp.statusCode == 200);
+            azzert(resp.getHeader("Content-Type").startsWith("text/event-stream"));
+            final Buffer received = Buffer.create(0);
+            final AtomicBoolean reconnected = new AtomicBoolean();
+            resp.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                received.appendBuffer(data);
+                String str = received.toString("UTF-8");
+                //Both events, then a heartbeat
+                if (str.startsWith(first + second + ":\n\n") && !reconnected.getAndSet(true)) {
+                  reconnect(client, server);
+                }
+              }
+            });
+          }
+        }).end();
+      }
+
+      void reconnect(final HttpClient client, final HttpServer server) {
+        HttpClientRequest req = client.get("/", new EventHandler<HttpClientResponse>() {
+          public void onEvent(HttpClientResponse resp) {
+            final Buffer received = Buffer.create(0);
+            final AtomicBoolean done = new AtomicBoolean();
+            resp.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                received.appendBuffer(data);
+                //Only the event after the one it last saw is replayed
+                if (received.length() >= second.length() && !done.getAndSet(true)) {
+                  azzert(received.toString("UTF-8").startsWith(second));
+                  stream.close();
+                  client.close();
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      latch.countDown();
+                    }
+                  });
+                }
+              }
+            });
+          }
+        });
+        req.putHeader("Last-Event-ID", "1");
+        req.end();
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
 }
@@ -17,18 +17,23 @@
 package org.nodex.tests.core.http;
 
 import org.nodex.java.core.EventHandler;
+import org.nodex.java.core.Nodex;
 import org.nodex.java.core.NodexMain;
 import org.nodex.java.core.SimpleEventHandler;
 import org.nodex.java.core.buffer.Buffer;
 import org.nodex.java.core.http.HttpClient;
 import org.nodex.java.core.http.HttpServer;
 import org.nodex.java.core.http.Websocket;
+import org.nodex.java.core.http.WebsocketFrame;
+import org.nodex.java.core.http.WebsocketGroup;
 import org.nodex.tests.Utils;
 import org.nodex.tests.core.TestBase;
 import org.testng.annotations.Test;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WebsocketTest extends TestBase {
 
@@ -108,4 +113,389 @@ public class WebsocketTest extends TestBase {
     azzert(latch.await(5, TimeUnit.SECONDS));
     throwAssertions();
   }
+
+  @Test
+  public void testFragmentsAndPing() throws Exception {
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final HttpClient client = new HttpClient().setPort(port);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().websocketHandler(new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.frameHandler(new EventHandler<WebsocketFrame>() {
+              public void onEvent(WebsocketFrame frame) {
+                //Echo each fragment back as it arrives
+                ws.writeFragment(frame.getData(), frame.isText(), frame.isFinal());
+              }
+            });
+          }
+        }).listen(port);
+
+        client.connectWebsocket("/", new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            final String[] parts = {"foo", "\u00e9bar", "quux"};
+            final Buffer received = Buffer.create(0);
+            final AtomicInteger frames = new AtomicInteger();
+            ws.frameHandler(new EventHandler<WebsocketFrame>() {
+              public void onEvent(WebsocketFrame frame) {
+                int n = frames.getAndIncrement();
+                azzert(frame.isText());
+                azzert(frame.isContinuation() == (n > 0));
+                azzert(frame.isFinal() == (n == parts.length - 1));
+                received.appendBuffer(frame.getData());
+                if (frame.isFinal()) {
+                  azzert("foo\u00e9barquux".equals(received.toString("UTF-8")));
+                  ws.writePing(Buffer.create("ping", "UTF-8"));
+                }
+              }
+            });
+            ws.pongHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                azzert("ping".equals(data.toString("UTF-8")));
+                ws.close();
+              }
+            });
+            ws.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(frames.get() == parts.length);
+                client.close();
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+            for (int i = 0; i < parts.length; i++) {
+              ws.writeFragment(Buffer.create(parts[i], "UTF-8"), true, i == parts.length - 1);
+            }
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testServerClose() throws Exception {
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final CountDownLatch serverEnded = new CountDownLatch(1);
+    final HttpClient client = new HttpClient().setPort(port);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().websocketHandler(new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                serverEnded.countDown();
+              }
+            });
+            ws.close();
+          }
+        }).listen(port);
+
+        client.connectWebsocket("/", new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                client.close();
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    azzert(serverEnded.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testLargeFrameAndMaxFrameSize() throws Exception {
+    final int port = 8181;
+    final int maxSize = 64 * 1024;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicBoolean protocolError = new AtomicBoolean();
+    final HttpClient client = new HttpClient().setPort(port);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().setMaxWebsocketFrameSize(maxSize).websocketHandler(
+            new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                ws.writeBinaryFrame(data);
+              }
+            });
+            ws.exceptionHandler(new EventHandler<Exception>() {
+              public void onEvent(Exception e) {
+                protocolError.set(true);
+              }
+            });
+          }
+        }).listen(port);
+
+        client.connectWebsocket("/", new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            //Big enough to be split between reads, but within the limit
+            final Buffer sent = Buffer.create(Utils.generateRandomByteArray(maxSize - 1));
+            final Buffer received = Buffer.create(0);
+            ws.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                received.appendBuffer(data);
+                if (received.length() == sent.length()) {
+                  azzert(Utils.buffersEqual(sent, received));
+                  ws.writeBinaryFrame(Buffer.create(Utils.generateRandomByteArray(maxSize + 1)));
+                }
+              }
+            });
+            ws.endHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                azzert(received.length() == sent.length());
+                azzert(protocolError.get());
+                client.close();
+                server.close(new SimpleEventHandler() {
+                  public void onEvent() {
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+            ws.writeBinaryFrame(sent);
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testGroupBroadcast() throws Exception {
+    final int port = 8181;
+    final int clients = 5;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final HttpClient client = new HttpClient().setPort(port).setMaxPoolSize(clients);
+    final WebsocketGroup group = new WebsocketGroup();
+    final Buffer binary = Buffer.create(Utils.generateRandomByteArray(1000));
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().websocketHandler(new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            group.add(ws);
+            if (group.size() == clients) {
+              group.writeTextFrame("hello");
+              group.writeBinaryFrame(binary);
+            }
+          }
+        }).listen(port);
+
+        final AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < clients; i++) {
+          client.connectWebsocket("/", new EventHandler<Websocket>() {
+            public void onEvent(final Websocket ws) {
+              final AtomicInteger frames = new AtomicInteger();
+              ws.frameHandler(new EventHandler<WebsocketFrame>() {
+                public void onEvent(WebsocketFrame frame) {
+                  if (frames.getAndIncrement() == 0) {
+                    azzert(frame.isText());
+                    azzert("hello".equals(frame.getText()));
+                  } else {
+                    azzert(frame.isBinary());
+                    azzert(Utils.buffersEqual(binary, frame.getData()));
+                    if (done.incrementAndGet() == clients) {
+                      client.close();
+                      server.close(new SimpleEventHandler() {
+                        public void onEvent() {
+                          latch.countDown();
+                        }
+                      });
+                    }
+                  }
+                }
+              });
+            }
+          });
+        }
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+
+  @Test
+  public void testGroupHoldsFramesDuringFragmentedMessage() throws Exception {
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final HttpClient client = new HttpClient().setPort(port);
+    final WebsocketGroup group = new WebsocketGroup();
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().websocketHandler(new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            group.add(ws);
+            ws.writeFragment(Buffer.create("foo"), true, false);
+            group.writeTextFrame("group");
+            Nodex.instance.setTimer(100, new EventHandler<Long>() {
+              public void onEvent(Long id) {
+                ws.writeFragment(Buffer.create("bar"), true, true);
+              }
+            });
+          }
+        }).listen(port);
+
+        client.connectWebsocket("/", new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            final AtomicInteger frames = new AtomicInteger();
+            ws.frameHandler(new EventHandler<WebsocketFrame>() {
+              public void onEvent(WebsocketFrame frame) {
+                switch (frames.getAndIncrement()) {
+                  case 0:
+                    azzert(frame.isText() && !frame.isContinuation() && !frame.isFinal());
+                    azzert("foo".equals(frame.getText()));
+                    break;
+                  case 1:
+                    //The group's frame must not be written inside the message
+                    azzert(frame.isContinuation() && frame.isFinal());
+                    azzert("bar".equals(frame.getText()));
+                    break;
+                  default:
+                    azzert(frame.isText() && !frame.isContinuation() && frame.isFinal());
+                    azzert("group".equals(frame.getText()));
+                    client.close();
+                    server.close(new SimpleEventHandler() {
+                      public void onEvent() {
+                        latch.countDown();
+                      }
+                    });
+                }
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testGroupBuffersForSlowConsumer() throws Exception {
+    final int port = 8181;
+    final int frames = 800;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final HttpClient client = new HttpClient().setPort(port);
+    final WebsocketGroup group = new WebsocketGroup(WebsocketGroup.SlowConsumerPolicy.BUFFER, 64 * 1024 * 1024);
+    final byte[] padding = Utils.generateRandomByteArray(16 * 1024);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().websocketHandler(new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.setWriteQueueMaxSize(64 * 1024);
+            group.add(ws);
+            //More than the socket buffers hold, so the write queue fills while the client isn't reading, and the rest
+            //of the burst is held by the group. Nothing else is written, so only draining sends the held frames
+            for (int i = 0; i < frames; i++) {
+              group.writeBinaryFrame(Buffer.create(0).appendInt(i).appendBytes(padding));
+            }
+          }
+        }).listen(port);
+
+        client.connectWebsocket("/", new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.pause();
+            Nodex.instance.setTimer(500, new EventHandler<Long>() {
+              public void onEvent(Long id) {
+                ws.resume();
+              }
+            });
+            final AtomicInteger received = new AtomicInteger();
+            ws.frameHandler(new EventHandler<WebsocketFrame>() {
+              public void onEvent(WebsocketFrame frame) {
+                //None are dropped, and they arrive in order
+                azzert(frame.getData().getInt(0) == received.getAndIncrement());
+                if (received.get() == frames) {
+                  client.close();
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      latch.countDown();
+                    }
+                  });
+                }
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(10, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+  @Test
+  public void testGroupDisconnectsSlowConsumer() throws Exception {
+    final int port = 8181;
+    final CountDownLatch latch = new CountDownLatch(1);
+    final HttpClient client = new HttpClient().setPort(port);
+    final WebsocketGroup group = new WebsocketGroup(WebsocketGroup.SlowConsumerPolicy.DISCONNECT, 0);
+    final Buffer data = Buffer.create(Utils.generateRandomByteArray(64 * 1024));
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final HttpServer server = new HttpServer().websocketHandler(new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            ws.setWriteQueueMaxSize(256 * 1024);
+            group.add(ws);
+          }
+        }).listen(port);
+
+        client.connectWebsocket("/", new EventHandler<Websocket>() {
+          public void onEvent(final Websocket ws) {
+            //Never read, so the server's writes back up
+            ws.pause();
+            final AtomicBoolean added = new AtomicBoolean();
+            Nodex.instance.setPeriodic(1, new EventHandler<Long>() {
+              public void onEvent(Long id) {
+                if (group.size() != 0) {
+                  added.set(true);
+                  group.writeBinaryFrame(data);
+                } else if (added.get()) {
+                  Nodex.instance.cancelTimer(id);
+                  client.close();
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      latch.countDown();
+                    }
+                  });
+                }
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(10, TimeUnit.SECONDS));
+    throwAssertions();
+  }
 }
@@ -194,6 +194,268 @@ public class NetTest extends TestBase {
     throwAssertions();
   }
 
+  @Test
+  /*
+  Test many small writes from a data handler arrive in order and all complete
+   */
+  public void testManySmallWrites() throws Exception {
+
+    final CountDownLatch latch = new CountDownLatch(2);
+    final int sendSize = 1000;
+
+    new NodexMain() {
+      public void go() throws Exception {
+
+        final NetServer server = new NetServer();
+        final AtomicInteger completed = new AtomicInteger(0);
+
+        server.connectHandler(new EventHandler<NetSocket>() {
+          public void onEvent(final NetSocket sock) {
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                //Echo it back a byte at a time
+                for (int i = 0; i < data.length(); i++) {
+                  sock.write(data.copy(i, i + 1), new SimpleEventHandler() {
+                    public void onEvent() {
+                      if (completed.incrementAndGet() == sendSize) {
+                        latch.countDown();
+                      }
+                    }
+                  });
+                }
+              }
+            });
+          }
+        }).listen(8181);
+
+        final NetClient client = new NetClient();
+        client.connect(8181, new EventHandler<NetSocket>() {
+          public void onEvent(NetSocket sock) {
+            final Buffer sent = Utils.generateRandomBuffer(sendSize);
+            final Buffer received = Buffer.create(0);
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                received.appendBuffer(data);
+                if (received.length() == sendSize) {
+                  azzert(Utils.buffersEqual(sent, received));
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      client.close();
+                      latch.countDown();
+                    }
+                  });
+                }
+              }
+            });
+            sock.write(sent);
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+
+    throwAssertions();
+  }
+
+  @Test
+  public void testSendFileRanges() throws Exception {
+    testSendFileRanges(false);
+  }
+
+  @Test
+  public void testSendFileRangesSSL() throws Exception {
+    testSendFileRanges(true);
+  }
+
+  private void testSendFileRanges(final boolean ssl) throws Exception {
+    final String path = "foo.txt";
+    final String content = Utils.randomAlphaString(100000);
+    final File file = setupFile(path, content);
+    //Ranges of the same file sent back to back, so they share the open file
+    final long[][] ranges = {{50000, 50000}, {0, 10}, {99990, 10}, {12345, 40000}};
+    final StringBuilder expected = new StringBuilder();
+    for (long[] range : ranges) {
+      expected.append(content.substring((int) range[0], (int) (range[0] + range[1])));
+    }
+    final CountDownLatch latch = new CountDownLatch(2);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final NetServer server = new NetServer().setSSL(ssl);
+        if (ssl) {
+          server.setKeyStorePath("./src/tests/resources/keystores/server-keystore.jks").setKeyStorePassword("wibble");
+        }
+        server.connectHandler(new EventHandler<NetSocket>() {
+          public void onEvent(final NetSocket sock) {
+            sock.setSendFileChunkSize(1000);
+            //Wait for the client to write first, which starts the SSL handshake
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                final AtomicInteger done = new AtomicInteger(0);
+                for (long[] range : ranges) {
+                  sock.sendFile("./" + path, range[0], range[1], new SimpleEventHandler() {
+                    public void onEvent() {
+                      if (done.incrementAndGet() == ranges.length) {
+                        latch.countDown();
+                      }
+                    }
+                  });
+                }
+              }
+            });
+          }
+        }).listen(8181);
+
+        final NetClient client = new NetClient().setSSL(ssl).setTrustAll(true);
+        client.connect(8181, new EventHandler<NetSocket>() {
+          public void onEvent(NetSocket sock) {
+            final Buffer buff = Buffer.create(0);
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                buff.appendBuffer(data);
+                if (buff.length() == expected.length()) {
+                  azzert(expected.toString().equals(buff.toString()));
+                  server.close(new SimpleEventHandler() {
+                    public void onEvent() {
+                      client.close();
+                      latch.countDown();
+                    }
+                  });
+                }
+              }
+            });
+            sock.write("go");
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+    file.delete();
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    final long timeout = 200;
+    final int writes = 8;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final NetClient client = new NetClient();
+        final long[] lastWrite = new long[1];
+
+        final NetServer server = new NetServer().setIdleTimeout(timeout);
+
+        //Close from the server's own context, since the connections' contexts go away when they close
+        final long actorId = Nodex.instance.registerHandler(new EventHandler<String>() {
+          public void onEvent(String msg) {
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                client.close();
+                latch.countDown();
+              }
+            });
+          }
+        });
+
+        server.connectHandler(new EventHandler<NetSocket>() {
+          public void onEvent(final NetSocket sock) {
+            final int[] received = new int[1];
+            sock.dataHandler(new EventHandler<Buffer>() {
+              public void onEvent(Buffer data) {
+                received[0] += data.length();
+              }
+            });
+            sock.closedHandler(new SimpleEventHandler() {
+              public void onEvent() {
+                //Writing more often than the timeout keeps the connection open
+                azzert(received[0] == writes);
+                azzert(System.currentTimeMillis() - lastWrite[0] >= timeout - 50);
+                Nodex.instance.sendToHandler(actorId, "close");
+              }
+            });
+          }
+        }).listen(8181);
+
+        client.connect(8181, new EventHandler<NetSocket>() {
+          public void onEvent(final NetSocket sock) {
+            Nodex.instance.setPeriodic(timeout / 4, new EventHandler<Long>() {
+              int count;
+
+              public void onEvent(Long id) {
+                sock.write("x");
+                lastWrite[0] = System.currentTimeMillis();
+                if (++count == writes) {
+                  Nodex.instance.cancelTimer(id);
+                }
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testMaxConnections() throws Exception {
+    final int max = 2;
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final NetClient client = new NetClient();
+        final AtomicInteger connected = new AtomicInteger();
+
+        final NetServer server = new NetServer().setMaxConnections(max);
+
+        //Close from the server's own context, since the connections' contexts go away when they close
+        final long actorId = Nodex.instance.registerHandler(new EventHandler<String>() {
+          public void onEvent(String msg) {
+            server.close(new SimpleEventHandler() {
+              public void onEvent() {
+                client.close();
+                latch.countDown();
+              }
+            });
+          }
+        });
+
+        server.connectHandler(new EventHandler<NetSocket>() {
+          public void onEvent(final NetSocket sock) {
+            int count = connected.incrementAndGet();
+            if (count == max) {
+              //The last connection isn't accepted until one of the others closes
+              Nodex.instance.setTimer(300, new EventHandler<Long>() {
+                public void onEvent(Long id) {
+                  azzert(connected.get() == max);
+                  sock.close();
+                }
+              });
+            } else if (count == max + 1) {
+              Nodex.instance.sendToHandler(actorId, "close");
+            }
+          }
+        }).listen(8181);
+
+        for (int i = 0; i < max + 1; i++) {
+          client.connect(8181, new EventHandler<NetSocket>() {
+            public void onEvent(NetSocket sock) {
+            }
+          });
+        }
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
   @Test
   public void testSendFileClientToServer() throws Exception {
     testSendFile(true);
@@ -255,7 +517,7 @@ public class NetTest extends TestBase {
       }
     }.run();
 
-    assert latch.await(5, TimeUnit.SECONDS);
+    azzert(latch.await(5, TimeUnit.SECONDS));
     throwAssertions();
     file.delete();
   }
@@ -16,18 +16,46 @@
 
 package org.nodex.tests.core.shared;
 
+import org.nodex.java.core.Completion;
+import org.nodex.java.core.CompletionHandler;
+import org.nodex.java.core.EventHandler;
 import org.nodex.java.core.Immutable;
+import org.nodex.java.core.Nodex;
+import org.nodex.java.core.NodexMain;
+import org.nodex.java.core.SimpleEventHandler;
 import org.nodex.java.core.buffer.Buffer;
+import org.nodex.java.core.internal.NodexInternal;
+import org.nodex.java.core.shared.LoopLocal;
+import org.nodex.java.core.shared.SharedCache;
+import org.nodex.java.core.shared.SharedCacheConfig;
+import org.nodex.java.core.shared.SharedCacheStats;
 import org.nodex.java.core.shared.SharedCounter;
+import org.nodex.java.core.shared.SharedLongLongMap;
+import org.nodex.java.core.shared.SharedMap;
+import org.nodex.java.core.shared.SharedMapEvent;
+import org.nodex.java.core.shared.SharedLongObjectMap;
+import org.nodex.java.core.shared.SharedLongSet;
+import org.nodex.java.core.shared.SharedOffHeapMap;
+import org.nodex.java.core.shared.SharedOffHeapMapConfig;
 import org.nodex.java.core.shared.SharedData;
 import org.nodex.java.core.shared.SharedQueue;
+import org.nodex.java.core.shared.SharedSet;
 import org.nodex.tests.Utils;
 import org.nodex.tests.core.TestBase;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * User: tim
@@ -93,6 +121,7 @@ public class SharedDataTest extends TestBase {
     } catch (IllegalArgumentException e) {
       //OK
     }
+    SharedData.removeMap("foo");
   }
 
 
@@ -116,45 +145,1061 @@ public class SharedDataTest extends TestBase {
     assert (set4 != set3);
   }
 
-//  @Test
-//  public void testCounter() throws Exception {
-//
-//    SharedCounter counter = SharedData.getCounter("foo");
-//
-//    SharedCounter counter2 = SharedData.getCounter("foo");
-//
-//    assert (counter == counter2);
-//
-//    SharedCounter counter3 = SharedData.getCounter("bar");
-//
-//    assert (counter3 != counter2);
-//
-//    assert (SharedData.removeCounter("foo"));
-//
-//    SharedCounter counter4 = SharedData.getCounter("foo");
-//
-//    assert (counter4 != counter3);
-//  }
-
-//  @Test
-//  public void testQueue() throws Exception {
-//
-//    SharedQueue<String> queue = SharedData.getQueue("foo");
-//
-//    SharedQueue<String> queue2 = SharedData.getQueue("foo");
-//
-//    assert (queue == queue2);
-//
-//    SharedQueue<String> queue3 = SharedData.getQueue("bar");
-//
-//    assert (queue3 != queue2);
-//
-//    assert (SharedData.removeQueue("foo"));
-//
-//    SharedQueue<String> queue4 = SharedData.getQueue("foo");
-//
-//    assert (queue4 != queue3);
-//  }
+  @Test
+  public void testCounter() throws Exception {
 
-}
+    SharedCounter counter = SharedData.getCounter("foo");
+
+    SharedCounter counter2 = SharedData.getCounter("foo");
+
+    assert (counter == counter2);
+
+    SharedCounter counter3 = SharedData.getCounter("bar");
+
+    assert (counter3 != counter2);
+
+    assert (SharedData.removeCounter("foo"));
+
+    SharedCounter counter4 = SharedData.getCounter("foo");
+
+    assert (counter4 != counter3);
+
+    SharedData.removeCounter("foo");
+    SharedData.removeCounter("bar");
+  }
+
+  @Test
+  public void testQueue() throws Exception {
+
+    SharedQueue<String> queue = SharedData.getQueue("foo");
+
+    SharedQueue<String> queue2 = SharedData.getQueue("foo");
+
+    assert (queue == queue2);
+
+    SharedQueue<String> queue3 = SharedData.getQueue("bar");
+
+    assert (queue3 != queue2);
+
+    assert (SharedData.removeQueue("foo"));
+
+    SharedQueue<String> queue4 = SharedData.getQueue("foo");
+
+    assert (queue4 != queue3);
+
+    SharedData.removeQueue("foo");
+    SharedData.removeQueue("bar");
+  }
+
+  @Test
+  public void testBoundedQueue() throws Exception {
+    SharedQueue<Integer> queue = SharedData.getQueue("bounded", 3);
+    azzert(queue.getMaxSize() == 3);
+    // Existing queue is returned with its original size
+    azzert(SharedData.<Integer>getQueue("bounded", 10) == queue);
+    azzert(queue.offer(1));
+    azzert(queue.offer(2));
+    queue.add(3);
+    azzert(queue.isFull());
+    azzert(!queue.offer(4));
+    try {
+      queue.add(4);
+      azzert(false, "Should throw exception");
+    } catch (IllegalStateException e) {
+      //OK
+    }
+    azzert(queue.size() == 3);
+    azzert(queue.peek() == 1);
+    azzert(queue.poll() == 1);
+    azzert(queue.poll() == 2);
+    azzert(queue.offer(5));
+    queue.clear();
+    azzert(queue.isEmpty());
+    azzert(queue.poll() == null);
+    try {
+      ((SharedQueue) queue).offer(new Object());
+      azzert(false, "Should throw exception");
+    } catch (IllegalArgumentException e) {
+      //OK
+    }
+    azzert(SharedData.removeQueue("bounded"));
+  }
+
+  @Test
+  public void testQueueConsumers() throws Exception {
+    final int numConsumers = 4;
+    final int numItems = 1000;
+    final SharedQueue<Integer> queue = SharedData.getQueue("consumed");
+    final Set<Integer> received = SharedData.getSet("received");
+    final CountDownLatch registeredLatch = new CountDownLatch(numConsumers);
+    final CountDownLatch receivedLatch = new CountDownLatch(numItems);
+
+    for (int i = 0; i < numConsumers; i++) {
+      new NodexMain() {
+        public void go() throws Exception {
+          final Long contextID = Nodex.instance.getContextID();
+          queue.registerConsumer(new EventHandler<Integer>() {
+            public void onEvent(Integer item) {
+              azzert(contextID.equals(Nodex.instance.getContextID()));
+              azzert(received.add(item));
+              receivedLatch.countDown();
+            }
+          });
+          registeredLatch.countDown();
+        }
+      }.run();
+    }
+
+    azzert(registeredLatch.await(5, TimeUnit.SECONDS));
+
+    new NodexMain() {
+      public void go() throws Exception {
+        for (int i = 0; i < numItems; i++) {
+          queue.add(i);
+        }
+      }
+    }.run();
+
+    azzert(receivedLatch.await(5, TimeUnit.SECONDS));
+    azzert(received.size() == numItems);
+    azzert(queue.isEmpty());
+
+    SharedData.removeQueue("consumed");
+    SharedData.removeSet("received");
+    throwAssertions();
+  }
+
+  @Test
+  public void testQueueConsumerOnOwnLoop() throws Exception {
+    final SharedQueue<Integer> queue = SharedData.getQueue("consumed");
+    final CountDownLatch receivedLatch = new CountDownLatch(2);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final boolean[] offering = new boolean[1];
+        queue.registerConsumer(new EventHandler<Integer>() {
+          public void onEvent(Integer item) {
+            azzert(!offering[0]);
+            receivedLatch.countDown();
+          }
+        });
+        offering[0] = true;
+        azzert(queue.offer(1));
+        azzert(queue.offer(2));
+        offering[0] = false;
+      }
+    }.run();
+
+    azzert(receivedLatch.await(5, TimeUnit.SECONDS));
+    SharedData.removeQueue("consumed");
+    throwAssertions();
+  }
+
+  @Test
+  public void testQueueConsumerYieldsToLoop() throws Exception {
+    final int numItems = 1000;
+    final SharedQueue<Integer> queue = SharedData.getQueue("backlog");
+    final SharedQueue<Integer> other = SharedData.getQueue("other");
+    final CountDownLatch receivedLatch = new CountDownLatch(numItems + 1);
+
+    for (int i = 0; i < numItems; i++) {
+      queue.add(i);
+    }
 
+    new NodexMain() {
+      public void go() throws Exception {
+        final int[] received = new int[1];
+        queue.registerConsumer(new EventHandler<Integer>() {
+          public void onEvent(Integer item) {
+            if (received[0]++ == 0) {
+              azzert(other.offer(0));
+            }
+            receivedLatch.countDown();
+          }
+        });
+        other.registerConsumer(new EventHandler<Integer>() {
+          public void onEvent(Integer item) {
+            //The backlog's consumer must have given the loop back before taking everything
+            azzert(received[0] < numItems);
+            receivedLatch.countDown();
+          }
+        });
+      }
+    }.run();
+
+    azzert(receivedLatch.await(5, TimeUnit.SECONDS));
+    SharedData.removeQueue("backlog");
+    SharedData.removeQueue("other");
+    throwAssertions();
+  }
+
+  @Test
+  public void testQueueDrainHandler() throws Exception {
+    final SharedQueue<String> queue = SharedData.getQueue("drain", 4);
+    final CountDownLatch drainLatch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        while (queue.offer("foo")) {
+        }
+        queue.drainHandler(new SimpleEventHandler() {
+          public void onEvent() {
+            azzert(queue.size() <= 2);
+            drainLatch.countDown();
+          }
+        });
+        queue.poll();
+        azzert(drainLatch.getCount() == 1);
+        queue.poll();
+        //Drained, but the handler is called later on this loop, not inside poll
+        azzert(drainLatch.getCount() == 1);
+      }
+    }.run();
+
+    azzert(drainLatch.await(5, TimeUnit.SECONDS));
+    SharedData.removeQueue("drain");
+    throwAssertions();
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    SharedCacheConfig config = new SharedCacheConfig().setMaxEntries(10);
+    SharedCache<String, String> cache = SharedData.getCache("foo", config);
+    azzert(SharedData.<String, String>getCache("foo", new SharedCacheConfig()) == cache);
+    azzert(cache.put("a", "1") == null);
+    azzert(cache.put("a", "2").equals("1"));
+    azzert(cache.putIfAbsent("a", "3").equals("2"));
+    azzert(cache.get("a").equals("2"));
+    azzert(cache.get("b") == null);
+    azzert(cache.containsKey("a"));
+    azzert(cache.remove("a").equals("2"));
+    azzert(cache.size() == 0);
+    azzert(cache.getBytes() == 0);
+    SharedCacheStats stats = cache.getStats();
+    azzert(stats.hits == 1);
+    azzert(stats.misses == 1);
+    try {
+      ((SharedCache) cache).put("key", new Object());
+      azzert(false, "Should throw exception");
+    } catch (IllegalArgumentException e) {
+      //OK
+    }
+    azzert(SharedData.removeCache("foo"));
+    azzert(SharedData.<String, String>getCache("foo", config) != cache);
+    SharedData.removeCache("foo");
+  }
+
+  @Test
+  public void testCacheLRU() throws Exception {
+    SharedCache<Integer, String> cache = SharedData.getCache("lru", new SharedCacheConfig().setMaxEntries(100));
+    for (int i = 0; i < 100; i++) {
+      cache.put(i, "val" + i);
+    }
+    // Touch the first half so they get a second chance
+    for (int i = 0; i < 50; i++) {
+      azzert(cache.get(i) != null);
+    }
+    for (int i = 100; i < 150; i++) {
+      cache.put(i, "val" + i);
+    }
+    azzert(cache.size() == 100);
+    for (int i = 0; i < 50; i++) {
+      azzert(cache.get(i) != null);
+    }
+    for (int i = 50; i < 100; i++) {
+      azzert(!cache.containsKey(i));
+    }
+    azzert(cache.getStats().evictions == 50);
+    SharedData.removeCache("lru");
+  }
+
+  @Test
+  public void testCacheMaxBytes() throws Exception {
+    SharedCache<Integer, byte[]> cache = SharedData.getCache("bytes", new SharedCacheConfig().setMaxBytes(10000));
+    for (int i = 0; i < 100; i++) {
+      cache.put(i, new byte[1000]);
+      azzert(cache.getBytes() <= 10000);
+    }
+    azzert(cache.size() < 10);
+    azzert(cache.containsKey(99));
+    // Too big to ever fit
+    azzert(cache.put(99, new byte[20000]) != null);
+    azzert(!cache.containsKey(99));
+    SharedData.removeCache("bytes");
+  }
+
+  @Test
+  public void testCacheTTL() throws Exception {
+    SharedCache<String, String> cache = SharedData.getCache("ttl", new SharedCacheConfig().setDefaultTTL(100));
+    cache.put("a", "1");
+    cache.put("b", "2", -1);
+    cache.put("c", "3", 10000);
+    azzert(cache.get("a").equals("1"));
+    Thread.sleep(200);
+    azzert(cache.get("a") == null);
+    azzert(cache.putIfAbsent("a", "4") == null);
+    azzert(cache.get("b").equals("2"));
+    azzert(cache.get("c").equals("3"));
+    azzert(cache.getStats().expirations == 1);
+    SharedData.removeCache("ttl");
+  }
+
+  @Test
+  public void testCacheTinyLFU() throws Exception {
+    SharedCache<Integer, Integer> cache = SharedData.getCache("lfu",
+        new SharedCacheConfig().setMaxEntries(100).setEvictionPolicy(SharedCacheConfig.EvictionPolicy.TINY_LFU));
+    for (int i = 0; i < 100; i++) {
+      cache.put(i, i);
+    }
+    for (int j = 0; j < 5; j++) {
+      for (int i = 0; i < 50; i++) {
+        cache.get(i);
+      }
+    }
+    // A scan of keys which are only used once should not displace the frequently used ones
+    for (int i = 1000; i < 2000; i++) {
+      cache.put(i, i);
+    }
+    azzert(cache.size() <= 100);
+    int retained = 0;
+    for (int i = 0; i < 50; i++) {
+      if (cache.containsKey(i)) {
+        retained++;
+      }
+    }
+    azzert(retained >= 45, "Only retained " + retained);
+    SharedData.removeCache("lfu");
+  }
+
+  @Test
+  public void testOffHeapMap() throws Exception {
+    SharedOffHeapMap<Object, Object> map = SharedData.getOffHeapMap("foo");
+    azzert(SharedData.getOffHeapMap("foo") == map);
+
+    azzert(!map.put("key", "value"));
+    azzert(map.get("key").equals("value"));
+    azzert(map.put("key", 123));
+    azzert(map.get("key").equals(123));
+    map.put(1, 1.2d);
+    map.put(1l, 3.2f);
+    map.put((short) 2, (byte) 1);
+    map.put('c', true);
+    map.put(new BigDecimal("1.5"), (short) 23);
+    azzert(map.get(1).equals(1.2d));
+    azzert(map.get(1l).equals(3.2f));
+    azzert(map.get((short) 2).equals((byte) 1));
+    azzert(map.get('c').equals(true));
+    azzert(map.get(new BigDecimal("1.5")).equals((short) 23));
+    azzert(map.size() == 6);
+
+    byte[] bytes = Utils.generateRandomByteArray(100);
+    map.put("bytes", bytes);
+    azzert(Utils.byteArraysEqual(bytes, (byte[]) map.get("bytes")));
+    Buffer buff = Utils.generateRandomBuffer(100);
+    map.put(buff, buff);
+    azzert(Utils.buffersEqual(buff, (Buffer) map.get(buff)));
+
+    Buffer view = map.getView(buff);
+    azzert(Utils.buffersEqual(buff, view));
+    // Writing to the view copies it rather than changing the map
+    map.getView(buff).setByte(0, (byte) (buff.getByte(0) + 1));
+    azzert(Utils.buffersEqual(buff, map.getView(buff)));
+    // The view is unaffected by later changes
+    map.put(buff, "something else");
+    map.compact();
+    azzert(Utils.buffersEqual(buff, view));
+
+    azzert(map.remove("key"));
+    azzert(!map.remove("key"));
+    azzert(!map.containsKey("key"));
+    azzert(map.get("key") == null);
+
+    try {
+      map.put("key", new Immutable() {});
+      azzert(false, "Should throw exception");
+    } catch (IllegalArgumentException e) {
+      //OK
+    }
+
+    map.clear();
+    azzert(map.size() == 0);
+    azzert(map.getAllocatedBytes() == 0);
+    azzert(SharedData.removeOffHeapMap("foo"));
+  }
+
+  @Test
+  public void testOffHeapMapCompaction() throws Exception {
+    String dir = System.getProperty("java.io.tmpdir");
+    SharedOffHeapMap<Integer, Buffer> map = SharedData.getOffHeapMap("compact",
+        new SharedOffHeapMapConfig().setSegments(2).setSlabSize(4096).setDirectory(dir));
+    Buffer value = Utils.generateRandomBuffer(100);
+    for (int j = 0; j < 20; j++) {
+      for (int i = 0; i < 1000; i++) {
+        map.put(i, value);
+      }
+    }
+    azzert(map.size() == 1000);
+    // Compaction should have reclaimed most of the garbage
+    azzert(map.getAllocatedBytes() < 4 * map.getLiveBytes());
+    for (int i = 0; i < 1000; i++) {
+      azzert(Utils.buffersEqual(value, map.get(i)));
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      azzert(map.remove(i));
+    }
+    azzert(map.size() == 500);
+    for (int i = 1; i < 1000; i += 2) {
+      azzert(map.containsKey(i));
+    }
+    SharedData.removeOffHeapMap("compact");
+  }
+
+  @Test
+  public void testLongSet() throws Exception {
+    SharedLongSet set = SharedData.getLongSet("foo");
+    azzert(SharedData.getLongSet("foo") == set);
+    azzert(set.isEmpty());
+    final int num = 10000;
+    for (long i = 0; i < num; i++) {
+      azzert(set.add(i * 31));
+    }
+    azzert(!set.add(0));
+    azzert(set.add(-1));
+    azzert(set.remove(-1));
+    azzert(!set.remove(-1));
+    azzert(set.size() == num);
+    for (long i = 0; i < num; i++) {
+      azzert(set.contains(i * 31));
+      azzert(!set.contains(i * 31 + 1));
+    }
+    final long[] total = new long[1];
+    set.forEach(new SharedLongSet.Visitor() {
+      public void visit(long value) {
+        total[0] += value;
+      }
+    });
+    azzert(total[0] == 31l * num * (num - 1) / 2);
+    for (long i = 0; i < num; i += 2) {
+      azzert(set.remove(i * 31));
+    }
+    azzert(set.size() == num / 2);
+    // Removed values can be re-added
+    azzert(set.add(0));
+    set.clear();
+    azzert(set.isEmpty());
+    azzert(!set.contains(31));
+    azzert(SharedData.removeLongSet("foo"));
+    azzert(SharedData.getLongSet("foo") != set);
+    SharedData.removeLongSet("foo");
+  }
+
+  @Test
+  public void testLongLongMap() throws Exception {
+    SharedLongLongMap map = SharedData.getLongLongMap("foo");
+    azzert(SharedData.getLongLongMap("foo") == map);
+    for (long i = 0; i < 1000; i++) {
+      azzert(map.put(i, i * 2));
+    }
+    azzert(!map.put(1, 100));
+    azzert(map.get(1, -1) == 100);
+    azzert(map.get(1000, -1) == -1);
+    azzert(!map.putIfAbsent(1, 200));
+    azzert(map.putIfAbsent(1000, 200));
+    azzert(map.addAndGet(1000, 5) == 205);
+    azzert(map.addAndGet(2000, 5) == 5);
+    azzert(map.size() == 1002);
+    azzert(map.remove(2000));
+    azzert(!map.containsKey(2000));
+    final long[] count = new long[1];
+    map.forEach(new SharedLongLongMap.Visitor() {
+      public void visit(long key, long value) {
+        count[0]++;
+      }
+    });
+    azzert(count[0] == 1001);
+    map.clear();
+    azzert(map.isEmpty());
+    azzert(SharedData.removeLongLongMap("foo"));
+  }
+
+  @Test
+  public void testLongObjectMap() throws Exception {
+    SharedLongObjectMap<String> map = SharedData.getLongObjectMap("foo");
+    azzert(SharedData.<String>getLongObjectMap("foo") == map);
+    azzert(map.put(1, "a") == null);
+    azzert(map.put(1, "b").equals("a"));
+    azzert(map.putIfAbsent(1, "c").equals("b"));
+    azzert(map.putIfAbsent(2, "c") == null);
+    azzert(map.get(1).equals("b"));
+    azzert(map.get(3) == null);
+    azzert(map.remove(2).equals("c"));
+    azzert(map.remove(2) == null);
+    azzert(map.size() == 1);
+    try {
+      ((SharedLongObjectMap) map).put(4, new Object());
+      azzert(false, "Should throw exception");
+    } catch (IllegalArgumentException e) {
+      //OK
+    }
+    map.clear();
+    azzert(map.isEmpty());
+    azzert(SharedData.removeLongObjectMap("foo"));
+  }
+
+  @Test
+  public void testLongSetConcurrent() throws Exception {
+    final SharedLongSet set = SharedData.getLongSet("concurrent");
+    final int numThreads = 4;
+    final int num = 10000;
+    final CountDownLatch latch = new CountDownLatch(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      final long base = t * num;
+      new Thread() {
+        public void run() {
+          for (long i = base; i < base + num; i++) {
+            set.add(i);
+            azzert(set.contains(i));
+          }
+          latch.countDown();
+        }
+      }.start();
+    }
+    azzert(latch.await(10, TimeUnit.SECONDS));
+    azzert(set.size() == numThreads * num);
+    for (long i = 0; i < numThreads * num; i++) {
+      azzert(set.contains(i));
+    }
+    SharedData.removeLongSet("concurrent");
+    throwAssertions();
+  }
+
+  @Test
+  public void testSnapshotRestore() throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"));
+    final String full = new File(dir, "nodex-snapshot-full.bin").getPath();
+    final String incremental = new File(dir, "nodex-snapshot-inc.bin").getPath();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    final Map<String, Object> map = SharedData.getMap("snapmap");
+    map.put("a", 1);
+    map.put("b", "two");
+    map.put("c", Buffer.create("three"));
+    final Set<Long> set = SharedData.getSet("snapset");
+    set.add(1l);
+    set.add(2l);
+    SharedData.getCounter("snapcounter").set(123);
+    SharedData.getMap("snapremoved").put("x", "y");
+
+    new NodexMain() {
+      public void go() throws Exception {
+        SharedData.snapshot(full, new CompletionHandler<Void>() {
+          public void onEvent(Completion<Void> completion) {
+            azzert(completion.succeeded());
+            map.put("a", 100);
+            SharedData.removeMap("snapremoved");
+            SharedData.snapshotIncremental(incremental, new CompletionHandler<Void>() {
+              public void onEvent(Completion<Void> completion) {
+                azzert(completion.succeeded());
+                // Trash the current state and restore it
+                SharedData.removeMap("snapmap");
+                SharedData.removeSet("snapset");
+                SharedData.getCounter("snapcounter").set(0);
+                SharedData.restore(new String[]{full, incremental}, new CompletionHandler<Void>() {
+                  public void onEvent(Completion<Void> completion) {
+                    azzert(completion.succeeded());
+                    Map<String, Object> restored = SharedData.getMap("snapmap");
+                    azzert(restored != map);
+                    azzert(restored.size() == 3);
+                    azzert(restored.get("a").equals(100));
+                    azzert(restored.get("b").equals("two"));
+                    azzert(restored.get("c").toString().equals("three"));
+                    Set<Long> restoredSet = SharedData.getSet("snapset");
+                    azzert(restoredSet.size() == 2);
+                    azzert(restoredSet.contains(1l));
+                    azzert(SharedData.getCounter("snapcounter").get() == 123);
+                    azzert(!SharedData.removeMap("snapremoved"));
+                    latch.countDown();
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    new File(full).delete();
+    new File(incremental).delete();
+    SharedData.removeMap("snapmap");
+    SharedData.removeSet("snapset");
+    SharedData.removeCounter("snapcounter");
+    throwAssertions();
+  }
+
+  @Test
+  public void testSnapshotUnsupportedType() throws Exception {
+    final String filename = new File(System.getProperty("java.io.tmpdir"), "nodex-snapshot-bad.bin").getPath();
+    final CountDownLatch latch = new CountDownLatch(1);
+    SharedData.getMap("snapbad").put("key", new Immutable() {});
+
+    new NodexMain() {
+      public void go() throws Exception {
+        SharedData.snapshot(filename, new CompletionHandler<Void>() {
+          public void onEvent(Completion<Void> completion) {
+            azzert(!completion.succeeded());
+            azzert(completion.exception instanceof IllegalArgumentException);
+            azzert(!new File(filename).exists());
+            latch.countDown();
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    SharedData.removeMap("snapbad");
+    throwAssertions();
+  }
+
+  @Test
+  public void testMapListener() throws Exception {
+    final SharedMap<String, Integer> map = SharedData.getMap("listened");
+    map.put("existing", 0);
+    final CountDownLatch registeredLatch = new CountDownLatch(1);
+    final CountDownLatch doneLatch = new CountDownLatch(1);
+    // key -> {oldValue, newValue}
+    final Map<String, Integer[]> received = new HashMap<>();
+    final long[] listenerID = new long[1];
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final Long contextID = Nodex.instance.getContextID();
+        listenerID[0] = map.addListener(new EventHandler<List<SharedMapEvent<String, Integer>>>() {
+          public void onEvent(List<SharedMapEvent<String, Integer>> events) {
+            azzert(contextID.equals(Nodex.instance.getContextID()));
+            for (SharedMapEvent<String, Integer> event : events) {
+              azzert(event.oldValue != event.newValue);
+              Integer[] prev = received.get(event.key);
+              // Coalesce across batches too, the test can't control how changes are batched
+              Integer oldValue = prev == null ? event.oldValue : prev[0];
+              received.put(event.key, new Integer[]{oldValue, event.newValue});
+            }
+            if (received.containsKey("done")) {
+              doneLatch.countDown();
+            }
+          }
+        });
+        registeredLatch.countDown();
+      }
+    }.run();
+
+    azzert(registeredLatch.await(5, TimeUnit.SECONDS));
+
+    new NodexMain() {
+      public void go() throws Exception {
+        for (int i = 0; i < 100; i++) {
+          map.put("counter", i);
+        }
+        map.put("existing", 1);
+        map.remove("existing");
+        map.put("transient", 1);
+        map.remove("transient");
+        map.putIfAbsent("done", 1);
+      }
+    }.run();
+
+    azzert(doneLatch.await(5, TimeUnit.SECONDS));
+    azzert(received.get("counter")[0] == null);
+    azzert(received.get("counter")[1] == 99);
+    azzert(received.get("existing")[0] == 0);
+    azzert(received.get("existing")[1] == null);
+    azzert(map.removeListener(listenerID[0]));
+    azzert(!map.removeListener(listenerID[0]));
+    SharedData.removeMap("listened");
+    throwAssertions();
+  }
+
+  @Test
+  public void testMapListenerConcurrentWriters() throws Exception {
+    final SharedMap<String, Integer> map = SharedData.getMap("concurrently-listened");
+    map.put("counter", 0);
+    final int numWriters = 4;
+    final int numIncrements = 10000;
+    final CountDownLatch registeredLatch = new CountDownLatch(1);
+    final CountDownLatch doneLatch = new CountDownLatch(1);
+    final int[] lastValue = new int[1];
+    final long[] listenerID = new long[1];
+
+    new NodexMain() {
+      public void go() throws Exception {
+        listenerID[0] = map.addListener(new EventHandler<List<SharedMapEvent<String, Integer>>>() {
+          public void onEvent(List<SharedMapEvent<String, Integer>> events) {
+            for (SharedMapEvent<String, Integer> event : events) {
+              if (event.key.equals("counter")) {
+                azzert(!event.oldValue.equals(event.newValue));
+                // The counter only goes up, so a stale new value would go backwards. A change recorded after its value
+                // was delivered can repeat the current value
+                azzert(event.newValue >= lastValue[0]);
+                lastValue[0] = event.newValue;
+                if (lastValue[0] == numWriters * numIncrements) {
+                  doneLatch.countDown();
+                }
+              }
+            }
+          }
+        });
+        registeredLatch.countDown();
+      }
+    }.run();
+
+    azzert(registeredLatch.await(5, TimeUnit.SECONDS));
+
+    Thread[] writers = new Thread[numWriters];
+    for (int i = 0; i < numWriters; i++) {
+      writers[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < numIncrements; j++) {
+            while (true) {
+              Integer prev = map.get("counter");
+              if (map.replace("counter", prev, prev + 1)) {
+                break;
+              }
+            }
+          }
+        }
+      };
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    // The final value must be delivered
+    azzert(doneLatch.await(5, TimeUnit.SECONDS));
+    azzert(map.removeListener(listenerID[0]));
+    SharedData.removeMap("concurrently-listened");
+    throwAssertions();
+  }
+
+  @Test
+  public void testMapListenerNotCalledInline() throws Exception {
+    final SharedMap<String, Integer> map = SharedData.getMap("listened-inline");
+    final CountDownLatch latch = new CountDownLatch(1);
+    final long[] listenerID = new long[1];
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final boolean[] putting = new boolean[1];
+        final int[] batches = new int[1];
+        listenerID[0] = map.addListener(new EventHandler<List<SharedMapEvent<String, Integer>>>() {
+          public void onEvent(List<SharedMapEvent<String, Integer>> events) {
+            azzert(!putting[0]);
+            azzert(++batches[0] == 1);
+            // Both writes are made in the same task on this loop, so they arrive together
+            azzert(events.size() == 2);
+            latch.countDown();
+          }
+        });
+        putting[0] = true;
+        map.put("foo", 1);
+        map.put("bar", 2);
+        putting[0] = false;
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    azzert(map.removeListener(listenerID[0]));
+    SharedData.removeMap("listened-inline");
+    throwAssertions();
+  }
+
+  @Test
+  public void testLoopLocal() throws Exception {
+    final LoopLocal<Integer> counter = new LoopLocal<Integer>() {
+      protected Integer initialValue() {
+        return 0;
+      }
+    };
+    try {
+      counter.get();
+      azzert(false);
+    } catch (IllegalStateException e) {
+      //OK - not on an event loop
+    }
+    final int numLoops = NodexInternal.instance.getCoreThreadPoolSize();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final Long contextID = Nodex.instance.getContextID();
+        azzert(counter.get() == 0);
+        counter.set(10);
+        azzert(counter.get() == 10);
+        counter.remove();
+        azzert(counter.get() == 0);
+        counter.scatter(new LoopLocal.Updater<Integer>() {
+          public Integer update(Integer value) {
+            return value + 1;
+          }
+        }, new CompletionHandler<Void>() {
+          public void onEvent(Completion<Void> completion) {
+            azzert(completion.succeeded());
+            azzert(contextID.equals(Nodex.instance.getContextID()));
+            azzert(counter.get() == 1);
+            counter.aggregate(new LoopLocal.Mapper<Integer, Integer>() {
+              public Integer map(Integer value) {
+                return value;
+              }
+            }, new LoopLocal.Reducer<Integer>() {
+              public Integer reduce(Integer r1, Integer r2) {
+                return r1 + r2;
+              }
+            }, new CompletionHandler<Integer>() {
+              public void onEvent(Completion<Integer> completion) {
+                azzert(completion.succeeded());
+                azzert(contextID.equals(Nodex.instance.getContextID()));
+                azzert(completion.result == numLoops);
+                latch.countDown();
+              }
+            });
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testLoopLocalRelease() throws Exception {
+    final LoopLocal<Integer> released = new LoopLocal<Integer>() {
+      protected Integer initialValue() {
+        return 0;
+      }
+    };
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        released.set(10);
+        released.release();
+        azzert(released.get() == 0);
+        released.set(20);
+        azzert(released.get() == 0);
+        //Once every loop has cleared it, the slot can be taken by a new variable, which mustn't see the old value
+        Nodex.instance.setTimer(100, new EventHandler<Long>() {
+          public void onEvent(Long id) {
+            LoopLocal<Integer> reused = new LoopLocal<>();
+            azzert(reused.get() == null);
+            reused.release();
+            latch.countDown();
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    throwAssertions();
+  }
+
+  @Test
+  public void testMapCompute() throws Exception {
+    final SharedMap<String, Integer> map = SharedData.getMap("compute");
+    azzert(map.compute("a", new BiFunction<String, Integer, Integer>() {
+      public Integer apply(String k, Integer v) {
+        return v == null ? 1 : v + 1;
+      }
+    }) == 1);
+    azzert(map.computeIfPresent("a", new BiFunction<String, Integer, Integer>() {
+      public Integer apply(String k, Integer v) {
+        return v + 10;
+      }
+    }) == 11);
+    azzert(map.computeIfPresent("b", new BiFunction<String, Integer, Integer>() {
+      public Integer apply(String k, Integer v) {
+        return v + 10;
+      }
+    }) == null);
+    azzert(!map.containsKey("b"));
+    azzert(map.computeIfAbsent("b", new Function<String, Integer>() {
+      public Integer apply(String k) {
+        return 5;
+      }
+    }) == 5);
+    azzert(map.computeIfAbsent("b", new Function<String, Integer>() {
+      public Integer apply(String k) {
+        return 6;
+      }
+    }) == 5);
+    azzert(map.compute("b", new BiFunction<String, Integer, Integer>() {
+      public Integer apply(String k, Integer v) {
+        return null;
+      }
+    }) == null);
+    azzert(!map.containsKey("b"));
+
+    final int numThreads = 4;
+    final int numMerges = 1000;
+    final CountDownLatch latch = new CountDownLatch(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      new Thread() {
+        public void run() {
+          for (int j = 0; j < numMerges; j++) {
+            map.merge("count", 1, new BiFunction<Integer, Integer, Integer>() {
+              public Integer apply(Integer v1, Integer v2) {
+                return v1 + v2;
+              }
+            });
+          }
+          latch.countDown();
+        }
+      }.start();
+    }
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    azzert(map.get("count") == numThreads * numMerges);
+
+    SharedData.removeMap("compute");
+    throwAssertions();
+  }
+
+  @Test
+  public void testMapBulk() throws Exception {
+    SharedMap<String, Object> map = SharedData.getMap("bulk");
+    Map<String, Object> entries = new HashMap<>();
+    entries.put("a", 1);
+    entries.put("b", "foo");
+    entries.put("c", 2L);
+    map.putAll(entries);
+    azzert(map.size() == 3);
+
+    Map<String, Object> invalid = new HashMap<>();
+    invalid.put("d", 3);
+    invalid.put("e", new Object());
+    try {
+      map.putAll(invalid);
+      azzert(false);
+    } catch (IllegalArgumentException e) {
+      //OK
+    }
+    azzert(!map.containsKey("d"));
+
+    Map<String, Object> all = map.getAll(Arrays.asList("a", "b", "z"));
+    azzert(all.size() == 2);
+    azzert(all.get("a").equals(1));
+    azzert(all.get("b").equals("foo"));
+
+    azzert(map.removeAll(Arrays.asList("a", "c", "z")) == 2);
+    azzert(map.size() == 1);
+
+    SharedData.removeMap("bulk");
+    throwAssertions();
+  }
+
+  @Test
+  public void testMapParallel() throws Exception {
+    final SharedMap<Integer, Integer> map = SharedData.getMap("parallel");
+    final int numEntries = 10000;
+    for (int i = 0; i < numEntries; i++) {
+      map.put(i, i);
+    }
+    final AtomicInteger visited = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(3);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        final Long contextID = Nodex.instance.getContextID();
+        map.forEach(new SharedMap.Visitor<Integer, Integer>() {
+          public void visit(Integer k, Integer v) {
+            visited.incrementAndGet();
+          }
+        }, new CompletionHandler<Void>() {
+          public void onEvent(Completion<Void> completion) {
+            azzert(completion.succeeded());
+            azzert(contextID.equals(Nodex.instance.getContextID()));
+            azzert(visited.get() == numEntries);
+            latch.countDown();
+          }
+        });
+        map.reduce(new SharedMap.Transformer<Integer, Integer, Long>() {
+          public Long transform(Integer k, Integer v) {
+            return (long) v;
+          }
+        }, new SharedMap.Reducer<Long>() {
+          public Long reduce(Long l1, Long l2) {
+            return l1 + l2;
+          }
+        }, new CompletionHandler<Long>() {
+          public void onEvent(Completion<Long> completion) {
+            azzert(completion.succeeded());
+            azzert(contextID.equals(Nodex.instance.getContextID()));
+            azzert(completion.result == (long) numEntries * (numEntries - 1) / 2);
+            latch.countDown();
+          }
+        });
+        map.search(new SharedMap.Transformer<Integer, Integer, String>() {
+          public String transform(Integer k, Integer v) {
+            return v == 1234 ? "found" + k : null;
+          }
+        }, new CompletionHandler<String>() {
+          public void onEvent(Completion<String> completion) {
+            azzert(completion.succeeded());
+            azzert(contextID.equals(Nodex.instance.getContextID()));
+            azzert("found1234".equals(completion.result));
+            latch.countDown();
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    SharedData.removeMap("parallel");
+    throwAssertions();
+  }
+
+  @Test
+  public void testSetParallel() throws Exception {
+    final SharedSet<String> set = SharedData.getSet("parallel");
+    for (int i = 0; i < 1000; i++) {
+      set.add("foo" + i);
+    }
+    final CountDownLatch latch = new CountDownLatch(2);
+
+    new NodexMain() {
+      public void go() throws Exception {
+        set.reduce(new SharedSet.Transformer<String, Integer>() {
+          public Integer transform(String s) {
+            return 1;
+          }
+        }, new SharedSet.Reducer<Integer>() {
+          public Integer reduce(Integer i1, Integer i2) {
+            return i1 + i2;
+          }
+        }, new CompletionHandler<Integer>() {
+          public void onEvent(Completion<Integer> completion) {
+            azzert(completion.succeeded());
+            azzert(completion.result == 1000);
+            latch.countDown();
+          }
+        });
+        set.search(new SharedSet.Transformer<String, String>() {
+          public String transform(String s) {
+            if (s.equals("foo10")) {
+              throw new IllegalStateException("bang");
+            }
+            return null;
+          }
+        }, new CompletionHandler<String>() {
+          public void onEvent(Completion<String> completion) {
+            azzert(completion.failed());
+            latch.countDown();
+          }
+        });
+      }
+    }.run();
+
+    azzert(latch.await(5, TimeUnit.SECONDS));
+    SharedData.removeSet("parallel");
+    throwAssertions();
+  }
+}